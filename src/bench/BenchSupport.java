@@ -0,0 +1,243 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import io.MessageReader;
+import io.MessageStreams;
+import io.MessageWriter;
+import messages.ExitRoomMessage;
+import messages.JoinRoomMessage;
+import messages.Message;
+import messages.NewRoomMessage;
+import messages.SessionConnectMessage;
+import messages.WelcomeMessage;
+import net.RegistryChannel;
+
+/**
+ * what the benchmarks in this package have in common: opening a room to put
+ * load on, getting users in and out of it, keeping connections drained,
+ * summing up timings, and cleaning up scratch directories afterwards.
+ */
+public class BenchSupport {
+
+    public static final int THREAD_STACK_SIZE = 256 * 1024; // for threads that mostly sit blocked on a read
+
+    /**
+     * where a room opened by openRoom() can be reached.
+     */
+    public static final class RoomAddress {
+        public final String name; // name of the room
+        public final String ip; // address of its session gateway
+        public final int port; // ... and port
+        public final String key; // key the room goes by there
+
+        /**
+         * RoomAddress constructor.
+         *
+         * @param roomName    name of the room
+         * @param connectInfo "ip:port/roomKey", as handed out by the Registry
+         */
+        public RoomAddress(String roomName, String connectInfo) {
+            String[] parts = connectInfo.split("/");
+            String[] address = parts[0].split(":");
+            name = roomName;
+            ip = address[0].equals("0.0.0.0") ? "localhost" : address[0];
+            port = Integer.parseInt(address[1]);
+            key = parts[1];
+        }
+    }
+
+    /**
+     * opens a room on the Registry, giving up on the whole run if it can't be.
+     *
+     * @param registry connection to the Registry
+     * @param host     alias of the room's host
+     * @param roomName name of the room
+     * @return where the room can be reached
+     * @throws Exception if the Registry can't be reached
+     */
+    public static RoomAddress openRoom(RegistryChannel registry, String host, String roomName) throws Exception {
+        String content = registry.request(new NewRoomMessage(host, roomName)).getContent();
+        if (!content.contains("ConnectInfo is ")) {
+            System.out.println("Could not open a room --> " + content);
+            System.exit(1);
+        }
+        return new RoomAddress(roomName, content.substring(content.indexOf("ConnectInfo is ") + 15).trim());
+    }
+
+    /**
+     * a user's connection to a room, once they are in it.
+     */
+    public static final class Session {
+        public final RoomAddress room; // the room
+        public final String alias; // name of the user
+        public final Socket socket; // the connection
+        public final MessageWriter out; // ... its output stream
+        public final MessageReader in; // ... and its input stream
+
+        private Session(RoomAddress r, String a, Socket s, MessageWriter o, MessageReader i) {
+            room = r;
+            alias = a;
+            socket = s;
+            out = o;
+            in = i;
+        }
+    }
+
+    /**
+     * connects to a room and joins it (or, for its host, enters it), speaking the
+     * protocol directly, as a JoinRoomWorker and ChatUser would over a single
+     * connection. Returns once the user has been welcomed; whatever the room sent
+     * before the welcome (others' join notices, say) is skipped.
+     *
+     * @param room      the room
+     * @param alias     name of the user
+     * @param isHost    true if the user opened the room
+     * @param timeoutMs longest to wait for the welcome (0 for no limit)
+     * @return the user's session
+     * @throws Exception if the user couldn't get in
+     */
+    public static Session enter(RoomAddress room, String alias, boolean isHost, int timeoutMs) throws Exception {
+        return enter(new Socket(room.ip, room.port), room, alias, isHost, timeoutMs);
+    }
+
+    /**
+     * as above, over a connection already made to the room's session gateway
+     * (one opened from a SocketChannel, say, to be drained by a Selector once in).
+     * The connection is closed if the user couldn't get in.
+     *
+     * @param socket    connection to the room's session gateway
+     * @param room      the room
+     * @param alias     name of the user
+     * @param isHost    true if the user opened the room
+     * @param timeoutMs longest to wait for the welcome (0 for no limit)
+     * @return the user's session
+     * @throws Exception if the user couldn't get in
+     */
+    public static Session enter(Socket socket, RoomAddress room, String alias, boolean isHost, int timeoutMs)
+                    throws Exception {
+        try {
+            socket.setSoTimeout(timeoutMs);
+            MessageWriter out = MessageStreams.openWriter(socket.getOutputStream());
+            MessageReader in = MessageStreams.openReader(socket.getInputStream());
+            out.writeMessage(new SessionConnectMessage(room.key, alias));
+            if (!isHost) {
+                out.writeMessage(new JoinRoomMessage(alias, room.name));
+            }
+            out.flush();
+            if (!isHost) {
+                in.readMessage(); // "OK"
+            }
+            while (!(in.readMessage() instanceof WelcomeMessage)) {
+                // others' join notices may come first.
+            }
+            socket.setSoTimeout(0);
+            return new Session(room, alias, socket, out, in);
+        } catch (Exception e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * has a user leave a room, the way an ExitRoomWorker does: over a connection
+     * of its own. The user's session connection is sent the ExitRoomMessage, then
+     * closed by the room.
+     *
+     * @param session   the user's session
+     * @param timeoutMs longest to wait for the room to answer (0 for no limit)
+     * @throws Exception if the room couldn't be told
+     */
+    public static void leave(Session session, int timeoutMs) throws Exception {
+        try (Socket socket = new Socket(session.room.ip, session.room.port)) {
+            socket.setSoTimeout(timeoutMs);
+            MessageWriter out = MessageStreams.openWriter(socket.getOutputStream());
+            MessageReader in = MessageStreams.openReader(socket.getInputStream());
+            out.writeMessage(new SessionConnectMessage(session.room.key, session.alias));
+            out.writeMessage(new ExitRoomMessage(session.alias, session.room.name));
+            out.flush();
+            in.readMessage(); // "OK"
+        }
+    }
+
+    /**
+     * keeps reading whatever comes in over a connection, so the room never has to
+     * hold anything back on our account.
+     *
+     * @param in      input stream
+     * @param handler given every Message read (null to ignore them)
+     */
+    public static void startDraining(MessageReader in, Consumer<Message> handler) {
+        Thread drainer = new Thread(null, () -> {
+            try {
+                while (true) {
+                    Message msg = in.readMessage();
+                    if (handler != null) {
+                        handler.accept(msg);
+                    }
+                }
+            } catch (Exception e) {
+                // connection closed; we're done.
+            }
+        }, "drainer", THREAD_STACK_SIZE);
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * the given percentile of some sorted values.
+     *
+     * @param sorted values, in ascending order
+     * @param p      percentile (0 to 100)
+     * @return the value
+     */
+    public static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p / 100))];
+    }
+
+    /**
+     * p50, p90, p99 and the maximum of some timings, in milliseconds.
+     *
+     * @param nanos timings, in any order
+     * @return summary
+     */
+    public static String summarize(long[] nanos) {
+        if (nanos.length == 0) {
+            return "-";
+        }
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return "p50=" + millis(percentile(sorted, 50)) + " p90=" + millis(percentile(sorted, 90)) + " p99="
+                        + millis(percentile(sorted, 99)) + " max=" + millis(sorted[sorted.length - 1]);
+    }
+
+    /**
+     * a time in milliseconds, for printing.
+     *
+     * @param nanos time in nanoseconds
+     * @return the time
+     */
+    public static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    /**
+     * deletes a directory along with everything in it.
+     *
+     * @param dir the directory
+     * @throws IOException if it can't be walked
+     */
+    public static void deleteAll(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import messages.ExitRoomMessage;
+import messages.Message;
+import messages.SimpleMessage;
+import misc.Constants;
+import net.RegistryChannel;
+
+/**
+ * checks that rooms keep to themselves while their membership keeps changing:
+ * no user ever gets another room's Messages, and a room's fan-out carries on
+ * through every join and exit (see RoutingTable).
+ *
+ * Opens a number of rooms on a running Registry. In each, the host listens while
+ * a few chatters keep sending Messages tagged with the room's name, and a few
+ * churners join, listen for a moment, and leave, over and over, until the run is
+ * over. Every Message any of them receives is checked against the room it was
+ * sent in (cross-room deliveries); afterwards, every host's record is checked
+ * for chatter it never got (missing, less what the room reports having dropped
+ * for falling behind), which is what a fan-out that broke on a changing
+ * membership would look like. Joins and exits that fail or time out are
+ * counted as well.
+ *
+ * Usage: java bench.ChurnCheck [rooms] [seconds] [chatters] [churners]
+ *
+ * (defaults to 8 rooms for 10 seconds, with 2 chatters and 2 churners in each).
+ * Start the Registry first; anything it logs as an Error (a
+ * ConcurrentModificationException in a router, say) is a failure too. Exits
+ * with 1 if anything went wrong.
+ */
+public class ChurnCheck {
+
+    private static final int TIMEOUT_MS = 10_000; // longest to wait to get in or out, or for the last Messages
+    private static final int SEND_INTERVAL_MS = 2; // between a chatter's Messages
+    private static final int STAY_MS = 20; // how long a churner stays in before leaving
+
+    private static final AtomicLong crossRoom = new AtomicLong(); // Messages delivered to the wrong room
+    private static final AtomicLong failures = new AtomicLong(); // joins, exits or sends that failed
+
+    /**
+     * one room, and the Messages its host got from its chatters.
+     */
+    private static final class Room {
+        private final BenchSupport.RoomAddress address; // where the room is
+        private final long[] sent; // Messages each chatter has sent
+        private final AtomicLong received = new AtomicLong(); // chatter the host has received
+        private final AtomicLong dropped = new AtomicLong(); // Messages the room dropped for the host
+        private final AtomicLong cycles = new AtomicLong(); // churners' joins and exits
+
+        Room(BenchSupport.RoomAddress a, int chatters) {
+            address = a;
+            sent = new long[chatters];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int roomCount = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int chatters = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        int churners = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+        // open the rooms, and let in their hosts and chatters.
+        RegistryChannel registry = new RegistryChannel("RC-bench", Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
+        String prefix = "churn-" + System.currentTimeMillis() + "-";
+        ArrayList<Room> rooms = new ArrayList<Room>();
+        ArrayList<BenchSupport.Session> chatterSessions = new ArrayList<BenchSupport.Session>();
+        for (int r = 0; r < roomCount; r++) {
+            Room room = new Room(BenchSupport.openRoom(registry, "host", prefix + r), chatters);
+            rooms.add(room);
+            BenchSupport.Session host = BenchSupport.enter(room.address, "host", true, TIMEOUT_MS);
+            BenchSupport.startDraining(host.in, msg -> {
+                if (isChatter(msg) && check(room, msg)) {
+                    room.received.incrementAndGet();
+                } else if (msg instanceof SimpleMessage && Constants.GAP_MARKER_ALIAS.equals(
+                                msg.getAssociatedSenderAlias())) {
+                    String text = ((SimpleMessage) msg).getText();
+                    room.dropped.addAndGet(Long.parseLong(text.substring(0, text.indexOf(' '))));
+                }
+            });
+            for (int c = 0; c < chatters; c++) {
+                BenchSupport.Session chatter = BenchSupport.enter(room.address, "chatter" + c, false, TIMEOUT_MS);
+                BenchSupport.startDraining(chatter.in, msg -> check(room, msg));
+                chatterSessions.add(chatter);
+            }
+        }
+
+        // chat and churn, every room at once.
+        AtomicBoolean isOver = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(roomCount * (chatters + churners));
+        for (int r = 0; r < roomCount; r++) {
+            Room room = rooms.get(r);
+            for (int c = 0; c < chatters; c++) {
+                BenchSupport.Session session = chatterSessions.get(r * chatters + c);
+                int index = c;
+                start("chat-" + r + "-" + c, done, () -> chat(room, session, index, isOver));
+            }
+            for (int c = 0; c < churners; c++) {
+                String alias = "churner" + c;
+                start("churn-" + r + "-" + c, done, () -> churn(room, alias, isOver));
+            }
+        }
+        Thread.sleep(seconds * 1000L);
+        isOver.set(true);
+        done.await();
+        awaitQuiet(rooms);
+
+        long cycles = 0;
+        long missing = 0;
+        long dropped = 0;
+        for (Room room : rooms) {
+            long sent = 0;
+            for (long n : room.sent) {
+                sent += n;
+            }
+            cycles += room.cycles.get();
+            dropped += room.dropped.get();
+            missing += Math.max(0, sent - room.received.get() - room.dropped.get());
+        }
+        System.out.println(roomCount + " rooms for " + seconds + " s, " + chatters + " chatters and " + churners
+                        + " churners in each; " + cycles + " joins and exits");
+        System.out.println("cross.room=" + crossRoom.get() + " missing=" + missing + " dropped=" + dropped
+                        + " failures=" + failures.get());
+        boolean isIsolated = crossRoom.get() == 0 && missing == 0 && failures.get() == 0;
+        System.out.println(isIsolated ? "OK" : "FAILED");
+        System.exit(isIsolated ? 0 : 1);
+    }
+
+    /**
+     * keeps sending Messages tagged with the room's name until the run is over.
+     */
+    private static void chat(Room room, BenchSupport.Session session, int index, AtomicBoolean isOver) {
+        try {
+            while (!isOver.get()) {
+                session.out.writeMessage(new SimpleMessage(session.alias, room.address.name + ":" + room.sent[index]));
+                session.out.flush();
+                room.sent[index]++;
+                Thread.sleep(SEND_INTERVAL_MS);
+            }
+        } catch (Exception e) {
+            failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * keeps joining the room, listening for a moment, and leaving it, until the
+     * run is over.
+     */
+    private static void churn(Room room, String alias, AtomicBoolean isOver) {
+        while (!isOver.get()) {
+            try {
+                BenchSupport.Session session = BenchSupport.enter(room.address, alias, false, TIMEOUT_MS);
+                room.cycles.incrementAndGet();
+                CountDownLatch isOut = new CountDownLatch(1);
+                BenchSupport.startDraining(session.in, msg -> {
+                    if (msg instanceof ExitRoomMessage) {
+                        isOut.countDown();
+                    } else {
+                        check(room, msg);
+                    }
+                });
+                Thread.sleep(STAY_MS);
+                BenchSupport.leave(session, TIMEOUT_MS);
+                // let the room close the connection, as a ChatUser would.
+                if (!isOut.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    failures.incrementAndGet();
+                }
+                room.cycles.incrementAndGet();
+                session.socket.close();
+            } catch (Exception e) {
+                failures.incrementAndGet();
+            }
+        }
+    }
+
+    private static boolean isChatter(Message msg) {
+        return msg instanceof SimpleMessage && msg.getAssociatedSenderAlias().startsWith("chatter");
+    }
+
+    /**
+     * checks that a Message received in a room was sent in it.
+     *
+     * @return true if it was
+     */
+    private static boolean check(Room room, Message msg) {
+        if (!isChatter(msg)) {
+            return false;
+        } else if (((SimpleMessage) msg).getText().startsWith(room.address.name + ":")) {
+            return true;
+        }
+        crossRoom.incrementAndGet();
+        return false;
+    }
+
+    private static void start(String name, CountDownLatch done, Runnable task) {
+        Thread thread = new Thread(null, () -> {
+            try {
+                task.run();
+            } finally {
+                done.countDown();
+            }
+        }, name, BenchSupport.THREAD_STACK_SIZE);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * waits until every host has received all the chatter it should have, or
+     * until nothing more has come through for a while.
+     */
+    private static void awaitQuiet(ArrayList<Room> rooms) throws InterruptedException {
+        long lastTotal = -1;
+        long lastChange = System.nanoTime();
+        while (System.nanoTime() - lastChange < TIMEOUT_MS * 1_000_000L) {
+            long total = 0;
+            boolean isComplete = true;
+            for (Room room : rooms) {
+                long sent = 0;
+                for (long n : room.sent) {
+                    sent += n;
+                }
+                long got = room.received.get() + room.dropped.get();
+                total += got;
+                isComplete &= got >= sent;
+            }
+            if (isComplete) {
+                return;
+            }
+            if (total != lastTotal) {
+                lastTotal = total;
+                lastChange = System.nanoTime();
+            }
+            Thread.sleep(10);
+        }
+    }
+}
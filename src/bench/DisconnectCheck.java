@@ -0,0 +1,121 @@
+package bench;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import messages.ExitNotifyMessage;
+import messages.LookupRoomMessage;
+import messages.SimpleMessage;
+import misc.Constants;
+import net.RegistryChannel;
+
+/**
+ * checks that a user the room cuts off for falling behind (the "disconnect"
+ * backpressure policy) is let out of the room like anyone who leaves: everyone
+ * else is told, the Registry's count of the room's users goes down, and the
+ * user's name is free to be taken again.
+ *
+ * Opens a room on a running Registry and lets in its host, a chatter, and a
+ * user that never reads anything. The chatter then floods the room until the
+ * room gives up on the stalled user, or until the time limit runs out.
+ *
+ * Usage: java bench.DisconnectCheck [seconds] [message bytes]
+ *
+ * (defaults to at most 30 seconds of 1024-byte Messages). Start the Registry
+ * first, with -Dchatter.backpressure=disconnect (a low
+ * -Dchatter.backpressure.max.bytes gets to the point sooner). Exits with 1 if
+ * anything went wrong.
+ */
+public class DisconnectCheck {
+
+    private static final int TIMEOUT_MS = 10_000; // longest to wait to get in, or for the Registry to catch up
+    private static final int RECEIVE_BUFFER_BYTES = 4096; // the stalled user's, so the room's backlog fills up sooner
+    private static final String STALLED = "stalled"; // alias of the user that never reads
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+
+        RegistryChannel registry = new RegistryChannel("RC-bench", Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
+        BenchSupport.RoomAddress room = BenchSupport.openRoom(registry, "host",
+                        "disconnect-" + System.currentTimeMillis());
+
+        // the host and chatter read everything, watching for the stalled user's exit.
+        CountDownLatch told = new CountDownLatch(2);
+        BenchSupport.Session host = BenchSupport.enter(room, "host", true, TIMEOUT_MS);
+        BenchSupport.startDraining(host.in, msg -> {
+            if (msg instanceof ExitNotifyMessage && STALLED.equals(((ExitNotifyMessage) msg).getUserLeaving())) {
+                told.countDown();
+            }
+        });
+        BenchSupport.Session chatter = BenchSupport.enter(room, "chatter", false, TIMEOUT_MS);
+        BenchSupport.startDraining(chatter.in, msg -> {
+            if (msg instanceof ExitNotifyMessage && STALLED.equals(((ExitNotifyMessage) msg).getUserLeaving())) {
+                told.countDown();
+            }
+        });
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(RECEIVE_BUFFER_BYTES);
+        socket.connect(new InetSocketAddress(room.ip, room.port));
+        BenchSupport.Session stalled = BenchSupport.enter(socket, room, STALLED, false, TIMEOUT_MS);
+        int before = awaitGuestCount(registry, room.name, 3);
+
+        // flood the room until the stalled user is let go.
+        String text = "x".repeat(size);
+        long sent = 0;
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        while (told.getCount() > 0 && System.nanoTime() < deadline) {
+            chatter.out.writeMessage(new SimpleMessage(chatter.alias, text));
+            chatter.out.flush();
+            sent++;
+        }
+        boolean isTold = told.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        long cutOffNanos = System.nanoTime() - start;
+        int after = awaitGuestCount(registry, room.name, before - 1);
+
+        // the name should be free again.
+        boolean isRejoined;
+        try {
+            BenchSupport.enter(room, STALLED, false, TIMEOUT_MS).socket.close();
+            isRejoined = true;
+        } catch (Exception e) {
+            isRejoined = false;
+        }
+        stalled.socket.close();
+
+        System.out.println("# results");
+        System.out.println("sent=" + sent);
+        System.out.println("cut.off.after=" + BenchSupport.millis(cutOffNanos));
+        System.out.println("exit.notices=" + (2 - told.getCount()) + "/2");
+        System.out.println("guests.before=" + before);
+        System.out.println("guests.after=" + after);
+        System.out.println("rejoined=" + isRejoined);
+        boolean isOk = isTold && after == before - 1 && isRejoined;
+        System.out.println(isOk ? "OK" : "FAILED");
+        System.exit(isOk ? 0 : 1);
+    }
+
+    /**
+     * asks the Registry how many users a room has until it gives the expected
+     * answer (it hears of joins and exits a little after the fact), or until
+     * the time limit runs out.
+     *
+     * @return the last count given
+     */
+    private static int awaitGuestCount(RegistryChannel registry, String roomName, int expected) throws Exception {
+        long deadline = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+        int count;
+        do {
+            LookupRoomMessage lookup = (LookupRoomMessage) registry.request(new LookupRoomMessage(roomName));
+            count = lookup.getGuestCount();
+            if (count == expected) {
+                break;
+            }
+            Thread.sleep(20);
+        } while (System.nanoTime() < deadline);
+        return count;
+    }
+}
@@ -0,0 +1,114 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.EncodedFrame;
+import io.history.HistoryStore;
+import io.history.RoomHistory;
+import messages.SimpleMessage;
+import misc.Constants;
+
+/**
+ * measures how many broadcasts per second room histories (see
+ * io.history.HistoryStore) can keep up with, for one room and for many rooms on
+ * one node at once.
+ *
+ * Producer threads stand in for a room's routers: they encode chat messages and
+ * hand them to the rooms' histories, as fast as the histories' writers take
+ * them in (a producer that gets too far ahead of a room's writer waits for it,
+ * so that nothing is dropped and the rate measured is one the writers can
+ * sustain). How long handing a message over takes the producer (i.e., what
+ * keeping history adds to delivery) is printed too.
+ *
+ * Usage: java [-Dchatter.history.fsync=always|interval|never] bench.HistoryAppend [rooms] [seconds] [producers]
+ *
+ * (defaults to 1 room, 5 seconds, 1 producer). Histories are written to a
+ * scratch directory, deleted afterwards. They are indexed for searching as they
+ * would be on a node (see bench.SearchIndexing); -Dchatter.search=off leaves
+ * that out.
+ */
+public class HistoryAppend {
+
+    public static void main(String[] args) throws Exception {
+        int roomCount = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int producers = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        Path dir = Files.createTempDirectory("history-append");
+        System.setProperty(Constants.HISTORY_DIR_PROPERTY, dir.toString());
+
+        HistoryStore store = HistoryStore.fromProperties();
+        RoomHistory[] rooms = new RoomHistory[roomCount];
+        for (int i = 0; i < roomCount; i++) {
+            rooms[i] = store.open(Constants.SID_PREFIX + i);
+        }
+        SimpleMessage msg = new SimpleMessage("bench",
+                        "the quick brown fox jumps over the lazy dog, as chat messages tend to go, more or less.");
+        int window = Constants.HISTORY_QUEUE_LENGTH / 2; // most messages a room is let get ahead of its writer
+
+        AtomicLong handOffNanos = new AtomicLong();
+        long[] sent = new long[roomCount];
+        CountDownLatch done = new CountDownLatch(producers);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            final int first = p;
+            Thread producer = new Thread(() -> {
+                long spent = 0;
+                try {
+                    while (System.nanoTime() < deadline) {
+                        for (int r = first; r < roomCount; r += producers) {
+                            if (sent[r] - rooms[r].getNextOffset() >= window) {
+                                Thread.yield(); // the room's writer is behind.
+                                continue;
+                            }
+                            EncodedFrame frame = EncodedFrame.encode(msg, 1);
+                            long t = System.nanoTime();
+                            synchronized (rooms[r]) { // stands in for the room's fan-out lock
+                                rooms[r].record(frame);
+                            }
+                            spent += System.nanoTime() - t;
+                            sent[r]++;
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("encoding failed --> " + e.getMessage());
+                } finally {
+                    handOffNanos.addAndGet(spent);
+                    done.countDown();
+                }
+            }, "producer-" + p);
+            producer.start();
+        }
+        done.await();
+
+        // wait for the writers to catch up.
+        long total = 0;
+        for (long s : sent) {
+            total += s;
+        }
+        while (store.getWrittenCount() < total) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+        long dropped = 0;
+        for (RoomHistory room : rooms) {
+            dropped += room.getDroppedCount();
+            room.close();
+        }
+        store.shutDown();
+
+        double perSecond = store.getWrittenCount() / (elapsed / 1e9);
+        System.out.println(store.describe());
+        System.out.println(roomCount + " rooms, " + producers + " producers: " + String.format("%.0f", perSecond)
+                        + " messages/s in all, " + String.format("%.0f", perSecond / roomCount)
+                        + " per room; " + dropped + " dropped");
+        System.out.println("hand-off to history: " + String.format("%.0f", handOffNanos.get() / (double) total)
+                        + " ns per message, on average");
+        BenchSupport.deleteAll(dir);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,752 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.management.ThreadMXBean;
+
+import io.BackpressurePolicy;
+import io.EncodedFrame;
+import io.OutgoingBacklog;
+import io.session.MessageRouter;
+import io.session.RoutingTable;
+import messages.ExitRoomMessage;
+import messages.JoinRoomMessage;
+import messages.ListRoomsMessage;
+import messages.Message;
+import messages.MessageDecoder;
+import messages.MessageEncoder;
+import messages.SessionConnectMessage;
+import messages.SimpleMessage;
+import messages.WelcomeMessage;
+import misc.Constants;
+import misc.MpscRingBuffer;
+import misc.TimeStampGenerator;
+import misc.ValidateInput;
+import net.RoomDirectory;
+
+/**
+ * times the paths every chat Message goes down, one at a time and with nothing
+ * else running, so that any change meant to speed one of them up has a baseline
+ * to be held against:
+ *
+ * serialize.java, encode.binary: a Message written out in the old wire format
+ * (through an ObjectOutputStream, as MessageStreams does when asked for it) and
+ * encoded into a frame in the binary one (see EncodedFrame).
+ *
+ * deserialize.java, decode.binary: the same Messages read back in, as a
+ * MessageReader would in either format.
+ *
+ * wire.size: not timed; the bytes a few kinds of Message take in either
+ * format. Java serialization is counted twice: for a Message of its kind sent
+ * first on a stream (class descriptors and all, as on every one-shot
+ * connection) and for any sent after it.
+ *
+ * timestamp: TimeStampGenerator.now(), which every Message calls when built.
+ *
+ * fanout.10, fanout.100, fanout.1000: a broadcast handed to a MessageRouter and
+ * put into the backlog of every other user in a room of that many, who take it
+ * out again (as their OutputWorkers would, less the writing).
+ *
+ * handoff.ring, handoff.legacy: a Message handed from a SessionInputWorker to
+ * its MessageRouter, through the MpscRingBuffer that does so now, and through
+ * the pair of ArrayBlockingQueues (and the notify() on the recipient's side)
+ * that did so at first. One producer only; see RingHandoff for several.
+ *
+ * listing.rebuild, listing.delta, listing.cached: the room listings the Registry
+ * hands out (see RoomDirectory, which took over from its roomListCsvMap), with
+ * a thousand rooms open: rebuilt after a user joined or left one of them, as a
+ * delta since just before, and unchanged.
+ *
+ * Each benchmark is first run until it's been compiled and settled, then timed
+ * over a number of rounds. Reported per operation: the time taken (the median
+ * round, along with the quickest and slowest) and the bytes allocated, on the
+ * thread running the benchmark and any it started (and on the former alone);
+ * along with the collections the rounds cost. Results are printed
+ * last as key=value lines too, to be compared from one run to the next.
+ *
+ * Usage: java bench.HotPaths [benchmark ...]
+ *
+ * (defaults to all of them; a name stands for every benchmark starting with it,
+ * so "fanout" runs all three). No Registry needed.
+ */
+public class HotPaths {
+
+    private static final String[] BENCHMARKS = { "serialize.java", "encode.binary", "deserialize.java",
+                    "decode.binary", "timestamp", "fanout.10", "fanout.100", "fanout.1000", "handoff.ring",
+                    "handoff.legacy", "listing.rebuild", "listing.delta", "listing.cached" };
+
+    private static final int WARMUP_ROUNDS = 5; // rounds run before timing
+    private static final int ROUNDS = 10; // rounds timed
+    private static final long ROUND_NANOS = 200_000_000L; // about how long each round runs
+    private static final int VARIANTS = 1024; // distinct Messages cycled through (a power of 2)
+    private static final int TEXT_LENGTH = 100; // characters of text in each
+    private static final int FANOUT_BATCH = 32; // broadcasts sent before the recipients take them out
+    private static final int LISTED_ROOMS = 1000; // rooms open for the listing benchmarks
+
+    private static volatile long sink; // every Blackhole is emptied in here after each run
+
+    /**
+     * where a benchmark puts what each of its operations comes up with, so the
+     * compiler can't decide the work goes unused and leave it out.
+     *
+     * NOTE consuming is deliberately cheap (plain field writes, no volatile or
+     * synchronized access), so that it doesn't cost more than what it is meant to
+     * keep alive. The fields are only published, through the volatile sink, once
+     * a run is over (see empty()).
+     */
+    static final class Blackhole {
+        private long sum; // longs consumed, added up
+        private Object last; // the last object consumed
+        private long objects; // objects consumed
+
+        void consume(long value) {
+            sum += value;
+        }
+
+        void consume(Object value) {
+            last = value;
+            objects++;
+        }
+
+        /**
+         * publishes what has been consumed, then starts over.
+         */
+        void empty() {
+            sink += sum + objects + (last == null ? 0 : 1);
+            sum = 0;
+            objects = 0;
+            last = null;
+        }
+    }
+
+    /**
+     * something to be timed, an operation at a time.
+     */
+    abstract static class Benchmark {
+
+        /**
+         * runs the given number of operations.
+         *
+         * @param ops operations to run
+         * @param bh  where each operation's result goes
+         * @throws Exception if one fails
+         */
+        abstract void run(long ops, Blackhole bh) throws Exception;
+
+        /**
+         * the threads the benchmark started, if any, whose allocations count toward
+         * its own along with those of the thread running it.
+         *
+         * @return the threads
+         */
+        List<Thread> threads() {
+            return Collections.emptyList();
+        }
+
+        /**
+         * stops whatever threads the benchmark started.
+         *
+         * @throws Exception if they can't be stopped
+         */
+        void close() throws Exception {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+        Message[] messages = new Message[VARIANTS];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = new SimpleMessage("user" + (i % 40), textFor(i));
+        }
+
+        ArrayList<String> results = new ArrayList<String>();
+        if (isWanted("wire.size", args)) {
+            reportWireSizes(results);
+        }
+        for (String name : BENCHMARKS) {
+            if (!isWanted(name, args)) {
+                continue;
+            }
+            Benchmark bench = create(name, messages);
+            try {
+                measure(name, bench, threads, results);
+            } finally {
+                bench.close();
+            }
+        }
+        System.out.println("# results");
+        for (String line : results) {
+            System.out.println(line);
+        }
+        System.exit(0);
+    }
+
+    private static boolean isWanted(String name, String[] args) {
+        if (args.length == 0) {
+            return true;
+        }
+        for (String arg : args) {
+            if (name.startsWith(arg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Benchmark create(String name, Message[] messages) throws Exception {
+        switch (name) {
+            case "serialize.java":
+                return new SerializeJava(messages);
+            case "encode.binary":
+                return new EncodeBinary(messages);
+            case "deserialize.java":
+                return new DeserializeJava(messages);
+            case "decode.binary":
+                return new DecodeBinary(messages);
+            case "timestamp":
+                return new Timestamp();
+            case "handoff.ring":
+                return new HandoffRing(messages);
+            case "handoff.legacy":
+                return new HandoffLegacy(messages);
+            case "listing.rebuild":
+                return new Listings(false);
+            case "listing.delta":
+                return new Listings(true);
+            case "listing.cached":
+                return new CachedListings();
+            default:
+                return new FanOut(messages, Integer.parseInt(name.substring("fanout.".length())));
+        }
+    }
+
+    /**
+     * times a benchmark and reports on it.
+     *
+     * @param name    name of the benchmark
+     * @param bench   the benchmark
+     * @param threads where allocations are counted
+     * @param results where the key=value results go
+     * @throws Exception if the benchmark fails
+     */
+    private static void measure(String name, Benchmark bench, ThreadMXBean threads, ArrayList<String> results)
+                    throws Exception {
+        // find how many operations take about a round, then settle on it as the code warms up (the first few
+        // operations can be slower by orders of magnitude, with classes still being loaded).
+        Blackhole bh = new Blackhole();
+        long ops = 1;
+        long took = 0;
+        while (took < ROUND_NANOS / 10) {
+            ops *= 2;
+            long start = System.nanoTime();
+            bench.run(ops, bh);
+            took = System.nanoTime() - start;
+            bh.empty();
+        }
+        for (int r = 0; r < WARMUP_ROUNDS; r++) {
+            ops = Math.max(1, ops * ROUND_NANOS / Math.max(1, took));
+            long start = System.nanoTime();
+            bench.run(ops, bh);
+            took = System.nanoTime() - start;
+            bh.empty();
+        }
+
+        // allocations are counted on the thread running the benchmark and on the threads it started, and on
+        // nothing else the JVM happens to have going meanwhile.
+        List<Thread> started = bench.threads();
+        long[] ids = new long[started.size() + 1];
+        ids[0] = Thread.currentThread().getId();
+        for (int i = 0; i < started.size(); i++) {
+            ids[i + 1] = started.get(i).getId();
+        }
+
+        double[] nanosPerOp = new double[ROUNDS];
+        long allocated = 0;
+        long allocatedByCaller = 0;
+        long gcCount = -collectionCount();
+        long gcMillis = -collectionMillis();
+        for (int r = 0; r < ROUNDS; r++) {
+            long[] before = threads.getThreadAllocatedBytes(ids);
+            long start = System.nanoTime();
+            bench.run(ops, bh);
+            nanosPerOp[r] = (System.nanoTime() - start) / (double) ops;
+            long[] after = threads.getThreadAllocatedBytes(ids);
+            bh.empty();
+            for (int i = 0; i < ids.length; i++) {
+                allocated += Math.max(0, after[i] - before[i]); // -1 for a thread that has since died.
+            }
+            allocatedByCaller += after[0] - before[0];
+        }
+        gcCount += collectionCount();
+        gcMillis += collectionMillis();
+
+        Arrays.sort(nanosPerOp);
+        double median = nanosPerOp[ROUNDS / 2];
+        double bytesPerOp = allocated / ((double) ops * ROUNDS);
+        double callerBytesPerOp = allocatedByCaller / ((double) ops * ROUNDS);
+        System.out.println(String.format("%-16s %10.1f ns/op (%.1f .. %.1f) %10.1f B/op (%.1f by the caller) %4d GCs"
+                        + " (%d ms)", name, median, nanosPerOp[0], nanosPerOp[ROUNDS - 1], bytesPerOp,
+                        callerBytesPerOp, gcCount, gcMillis));
+        results.add(String.format("%s.ns.per.op=%.1f", name, median));
+        results.add(String.format("%s.bytes.per.op=%.1f", name, bytesPerOp));
+        results.add(String.format("%s.caller.bytes.per.op=%.1f", name, callerBytesPerOp));
+        results.add(String.format("%s.allocated.bytes=%d", name, allocated));
+        results.add(String.format("%s.gc.count=%d", name, gcCount));
+    }
+
+    /**
+     * prints (and adds to the results) the bytes a few kinds of Message take on the
+     * wire in either format.
+     *
+     * @param results where the key=value results go
+     * @throws Exception if a Message can't be written out
+     */
+    private static void reportWireSizes(ArrayList<String> results) throws Exception {
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<String> listings = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            names.add("user" + i);
+            listings.add("room" + i + ",user" + i + "," + (i % 12) + ",10.0.0.1:9000/SID-" + i);
+        }
+        ListRoomsMessage listRooms = new ListRoomsMessage();
+        listRooms.setListings(listings);
+        Message[] samples = { new SimpleMessage("user1", textFor(1)), new SimpleMessage("user1", "hi"),
+                        new JoinRoomMessage("user1", "room1"), new SessionConnectMessage("SID-1", "user1"),
+                        new WelcomeMessage("user1", "room1", false, new ArrayList<String>(names.subList(0, 20))),
+                        listRooms };
+        String[] kinds = { "simple.100", "simple.2", "join", "connect", "welcome.20", "listing.50" };
+
+        System.out.println("wire.size        java (first)  java (after)  binary  (bytes per Message)");
+        for (int i = 0; i < samples.length; i++) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.flush();
+            int header = bytes.size();
+            out.writeObject(samples[i]);
+            out.flush();
+            int first = bytes.size() - header;
+            out.writeObject(copyOf(samples[i]));
+            out.flush();
+            int after = bytes.size() - header - first;
+            EncodedFrame frame = EncodedFrame.encode(samples[i], 1);
+            int binary = frame.getLength();
+            frame.release();
+
+            System.out.println(String.format("  %-14s %12d  %12d  %6d", kinds[i], first, after, binary));
+            results.add("wire.size." + kinds[i] + ".java.first=" + first);
+            results.add("wire.size." + kinds[i] + ".java.after=" + after);
+            results.add("wire.size." + kinds[i] + ".binary=" + binary);
+        }
+    }
+
+    /**
+     * a distinct copy of a Message (so that writing it out again isn't just a
+     * back-reference to the first one).
+     */
+    private static Message copyOf(Message msg) throws Exception {
+        byte[] payload = MessageEncoder.encode(msg);
+        return MessageDecoder.decode(payload, 0, payload.length);
+    }
+
+    private static long collectionCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    private static long collectionMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * made-up chat text, TEXT_LENGTH characters long and a little different for
+     * every i.
+     */
+    private static String textFor(int i) {
+        StringBuilder text = new StringBuilder(TEXT_LENGTH);
+        String words = "the quick brown fox jumps over the lazy dog " + i + " ";
+        while (text.length() < TEXT_LENGTH) {
+            text.append(words);
+        }
+        text.setLength(TEXT_LENGTH);
+        return text.toString();
+    }
+
+    /**
+     * Messages written to a long-lived ObjectOutputStream, as in the old wire
+     * format. The stream is reset every VARIANTS Messages, so each one is written
+     * out in full rather than as a reference to an earlier one.
+     */
+    private static final class SerializeJava extends Benchmark {
+        private final Message[] messages;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 20);
+        private final ObjectOutputStream out;
+        private long count = 0;
+
+        SerializeJava(Message[] msgs) throws Exception {
+            messages = msgs;
+            out = new ObjectOutputStream(bytes);
+        }
+
+        @Override
+        void run(long ops, Blackhole bh) throws Exception {
+            for (long i = 0; i < ops; i++, count++) {
+                out.writeObject(messages[(int) count & (VARIANTS - 1)]);
+                if ((count & (VARIANTS - 1)) == VARIANTS - 1) {
+                    out.reset();
+                    out.flush();
+                    bh.consume(bytes.size());
+                    bytes.reset();
+                }
+            }
+        }
+    }
+
+    /**
+     * Messages encoded into frames, as every broadcast is, then released.
+     */
+    private static final class EncodeBinary extends Benchmark {
+        private final Message[] messages;
+
+        EncodeBinary(Message[] msgs) {
+            messages = msgs;
+        }
+
+        @Override
+        void run(long ops, Blackhole bh) throws Exception {
+            for (long i = 0; i < ops; i++) {
+                EncodedFrame frame = EncodedFrame.encode(messages[(int) i & (VARIANTS - 1)], 1);
+                bh.consume(frame.getLength());
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * Messages read back in from the old wire format, a stream of VARIANTS of them
+     * at a time (written out as SerializeJava writes them), as a MessageReader
+     * does in that format.
+     */
+    private static final class DeserializeJava extends Benchmark {
+        private final byte[] serialized;
+        private ObjectInputStream in;
+        private long count = 0;
+
+        DeserializeJava(Message[] msgs) throws Exception {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 20);
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            for (Message msg : msgs) {
+                out.writeObject(msg);
+            }
+            out.flush();
+            serialized = bytes.toByteArray();
+        }
+
+        @Override
+        void run(long ops, Blackhole bh) throws Exception {
+            for (long i = 0; i < ops; i++, count++) {
+                if ((count & (VARIANTS - 1)) == 0) {
+                    in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+                }
+                bh.consume(ValidateInput.validateMessage(in.readObject()));
+            }
+        }
+    }
+
+    /**
+     * Messages decoded from the binary wire format, as a MessageReader does in
+     * that format.
+     */
+    private static final class DecodeBinary extends Benchmark {
+        private final byte[][] payloads;
+
+        DecodeBinary(Message[] msgs) throws Exception {
+            payloads = new byte[msgs.length][];
+            for (int i = 0; i < msgs.length; i++) {
+                payloads[i] = MessageEncoder.encode(msgs[i]);
+            }
+        }
+
+        @Override
+        void run(long ops, Blackhole bh) throws Exception {
+            for (long i = 0; i < ops; i++) {
+                byte[] payload = payloads[(int) i & (VARIANTS - 1)];
+                bh.consume(MessageDecoder.decode(payload, 0, payload.length));
+            }
+        }
+    }
+
+    private static final class Timestamp extends Benchmark {
+
+        @Override
+        void run(long ops, Blackhole bh) {
+            for (long i = 0; i < ops; i++) {
+                bh.consume(TimeStampGenerator.now());
+            }
+        }
+    }
+
+    /**
+     * a MessageRouter broadcasting for one user in a room of the given size. Its
+     * sender is handed FANOUT_BATCH Messages at a time, then every other user's
+     * backlog is emptied of them.
+     */
+    private static final class FanOut extends Benchmark {
+        private final Message[] messages;
+        private final RoutingTable.Route sender;
+        private final OutgoingBacklog[] backlogs; // everyone else's
+        private final MessageRouter router;
+        private final ArrayList<EncodedFrame> frames = new ArrayList<EncodedFrame>();
+
+        FanOut(Message[] msgs, int roomSize) {
+            messages = msgs;
+            RoutingTable table = new RoutingTable();
+            sender = new RoutingTable.Route(0, "user0", new MpscRingBuffer<Message>(Constants.MSG_QUEUE_LENGTH),
+                            new OutgoingBacklog("user0", BackpressurePolicy.blocking(),
+                                            Constants.SESSION_BACKLOG_LENGTH));
+            table.add(sender);
+            backlogs = new OutgoingBacklog[roomSize - 1];
+            for (int i = 0; i < backlogs.length; i++) {
+                String alias = "user" + (i + 1);
+                backlogs[i] = new OutgoingBacklog(alias, BackpressurePolicy.blocking(),
+                                Constants.SESSION_BACKLOG_LENGTH);
+                table.add(new RoutingTable.Route(i + 1, alias,
+                                new MpscRingBuffer<Message>(Constants.MSG_QUEUE_LENGTH), backlogs[i]));
+            }
+            router = new MessageRouter(sender, table, new Object(), null, null);
+            router.setDaemon(true);
+            router.start();
+        }
+
+        @Override
+        void run(long ops, Blackhole bh) throws Exception {
+            for (long done = 0; done < ops;) {
+                int batch = (int) Math.min(FANOUT_BATCH, ops - done);
+                for (int i = 0; i < batch; i++) {
+                    sender.getIncoming().put(messages[(int) (done + i) & (VARIANTS - 1)]);
+                }
+                for (OutgoingBacklog backlog : backlogs) {
+                    int taken = 0;
+                    while (taken < batch) {
+                        frames.clear();
+                        if (backlog.drainTo(frames) == 0) {
+                            Thread.yield(); // the router is still at it.
+                            continue;
+                        }
+                        for (EncodedFrame frame : frames) {
+                            bh.consume(frame.getLength());
+                            frame.release();
+                        }
+                        taken += frames.size();
+                    }
+                }
+                done += batch;
+            }
+        }
+
+        @Override
+        List<Thread> threads() {
+            return Collections.singletonList(router.getThread());
+        }
+
+        @Override
+        void close() throws Exception {
+            sender.getIncoming().put(new ExitRoomMessage("user0", "bench"));
+            router.join();
+        }
+    }
+
+    /**
+     * Messages handed from one thread to another through an MpscRingBuffer, taken
+     * out the way a MessageRouter does.
+     */
+    private static final class HandoffRing extends Benchmark {
+        private final Message[] messages;
+        private final MpscRingBuffer<Message> queue = new MpscRingBuffer<Message>(Constants.MSG_QUEUE_LENGTH);
+        private final AtomicLong consumed = new AtomicLong(0);
+        private final Thread consumer;
+        private long produced = 0;
+
+        HandoffRing(Message[] msgs) {
+            messages = msgs;
+            consumer = new Thread(() -> {
+                ArrayList<Message> taken = new ArrayList<Message>();
+                try {
+                    while (true) {
+                        taken.clear();
+                        while (queue.drainTo(taken) == 0) {
+                            queue.await();
+                        }
+                        consumed.addAndGet(taken.size());
+                    }
+                } catch (InterruptedException e) {
+                    return; // closed.
+                }
+            }, "handoff-ring");
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+
+        @Override
+        void run(long ops, Blackhole bh) throws Exception {
+            for (long i = 0; i < ops; i++) {
+                queue.put(messages[(int) i & (VARIANTS - 1)]);
+            }
+            produced += ops;
+            while (consumed.get() < produced) {
+                Thread.yield();
+            }
+        }
+
+        @Override
+        List<Thread> threads() {
+            return Collections.singletonList(consumer);
+        }
+
+        @Override
+        void close() throws Exception {
+            consumer.interrupt();
+            consumer.join();
+        }
+    }
+
+    /**
+     * Messages handed from one thread to another as they were at first: put into
+     * the sender's ArrayBlockingQueue, with a task (the sender's routing number)
+     * put into a fair one shared by every router; the router takes the task, then
+     * the Message, and notifies the recipient's OutputWorker.
+     */
+    private static final class HandoffLegacy extends Benchmark {
+        private final Message[] messages;
+        private final ArrayBlockingQueue<Message> queue;
+        private final ArrayBlockingQueue<Integer> tasks;
+        private final Object notifier = new Object(); // the recipient's
+        private final AtomicLong consumed = new AtomicLong(0);
+        private final Thread consumer;
+        private long produced = 0;
+
+        HandoffLegacy(Message[] msgs) {
+            messages = msgs;
+            queue = new ArrayBlockingQueue<Message>(Constants.MSG_QUEUE_LENGTH);
+            tasks = new ArrayBlockingQueue<Integer>(Constants.MSG_QUEUE_LENGTH, true);
+            consumer = new Thread(() -> {
+                try {
+                    while (true) {
+                        tasks.take();
+                        if (queue.poll() != null) {
+                            synchronized (notifier) {
+                                notifier.notify();
+                            }
+                            consumed.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return; // closed.
+                }
+            }, "handoff-legacy");
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+
+        @Override
+        void run(long ops, Blackhole bh) throws Exception {
+            for (long i = 0; i < ops; i++) {
+                queue.put(messages[(int) i & (VARIANTS - 1)]);
+                tasks.put(0);
+            }
+            produced += ops;
+            while (consumed.get() < produced) {
+                Thread.yield();
+            }
+        }
+
+        @Override
+        List<Thread> threads() {
+            return Collections.singletonList(consumer);
+        }
+
+        @Override
+        void close() throws Exception {
+            consumer.interrupt();
+            consumer.join();
+        }
+    }
+
+    /**
+     * a directory with LISTED_ROOMS rooms open, each with its host in it.
+     */
+    private static final class OpenRooms {
+        final RoomDirectory directory = new RoomDirectory();
+        final RoomDirectory.Room[] rooms = new RoomDirectory.Room[LISTED_ROOMS];
+
+        OpenRooms() {
+            for (int i = 0; i < rooms.length; i++) {
+                rooms[i] = new RoomDirectory.Room("room" + i, "host" + i,
+                                Constants.REGISTRY_IP + ":" + (10000 + i) + "/" + Constants.SID_PREFIX + i, null);
+                directory.add(rooms[i]);
+            }
+        }
+    }
+
+    /**
+     * the listings asked for after every change: a guest joining a room, or
+     * leaving it again, a different room each time.
+     */
+    private static final class Listings extends Benchmark {
+        private final OpenRooms open = new OpenRooms();
+        private final boolean isDelta; // true to ask for the changes since, rather than everything
+        private long count = 0;
+
+        Listings(boolean delta) {
+            isDelta = delta;
+        }
+
+        @Override
+        void run(long ops, Blackhole bh) {
+            for (long i = 0; i < ops; i++, count++) {
+                RoomDirectory.Room room = open.rooms[(int) (count % LISTED_ROOMS)];
+                if ((count / LISTED_ROOMS) % 2 == 0) {
+                    open.directory.join(room, "guest");
+                } else {
+                    open.directory.leave(room, "guest");
+                }
+                long version = open.directory.getVersion();
+                RoomDirectory.Listing listing = isDelta ? open.directory.getListingSince(version - 1)
+                                : open.directory.getListing();
+                bh.consume(listing.getListings().size());
+            }
+        }
+    }
+
+    /**
+     * the listings asked for with nothing changed since they were last built.
+     */
+    private static final class CachedListings extends Benchmark {
+        private final OpenRooms open = new OpenRooms();
+
+        @Override
+        void run(long ops, Blackhole bh) {
+            for (long i = 0; i < ops; i++) {
+                bh.consume(open.directory.getListing().getListings().size());
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import misc.Constants;
+import net.RegistryChannel;
+
+/**
+ * measures how long it takes a room to let in a crowd of users all joining at
+ * once (say, everyone turning up as a meeting starts).
+ *
+ * Opens a room on a running Registry, connects its host, then has every joiner
+ * connect and ask to join at the same moment, timing each of them from that
+ * moment until their WelcomeMessage arrives (connecting included, as it is part
+ * of joining). Joiners speak the protocol directly (as a JoinRoomWorker and
+ * ChatUser would, over a single connection), so no UI is needed.
+ *
+ * Usage: java bench.JoinStorm [joiners] [room name]
+ *
+ * (defaults to 1000 joiners). Start the Registry first; each joiner holds a
+ * thread and a connection until the run is over.
+ */
+public class JoinStorm {
+
+    public static void main(String[] args) throws Exception {
+        int joiners = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        String roomName = args.length > 1 ? args[1] : "storm-" + System.currentTimeMillis();
+
+        // open the room, and connect its host.
+        RegistryChannel registry = new RegistryChannel("RC-bench", Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
+        BenchSupport.RoomAddress room = BenchSupport.openRoom(registry, "host", roomName);
+        BenchSupport.Session host = BenchSupport.enter(room, "host", true, 0);
+        BenchSupport.startDraining(host.in, null);
+
+        long[] welcomeNanos = new long[joiners];
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch ready = new CountDownLatch(joiners);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(joiners);
+        long[] start = new long[1];
+
+        for (int i = 0; i < joiners; i++) {
+            final int n = i;
+            Thread joiner = new Thread(null, () -> {
+                try {
+                    String alias = "joiner" + n;
+                    ready.countDown();
+                    go.await();
+
+                    BenchSupport.Session session = BenchSupport.enter(room, alias, false, 0);
+                    welcomeNanos[n] = System.nanoTime() - start[0];
+                    BenchSupport.startDraining(session.in, null);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    welcomeNanos[n] = -1;
+                } finally {
+                    done.countDown();
+                }
+            }, "joiner-" + i, BenchSupport.THREAD_STACK_SIZE);
+            joiner.setDaemon(true);
+            joiner.start();
+        }
+
+        ready.await();
+        start[0] = System.nanoTime();
+        go.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - start[0];
+
+        long[] welcomed = Arrays.stream(welcomeNanos).filter(t -> t >= 0).toArray();
+        System.out.println(joiners + " joiners, " + failures.get() + " failed; all welcomed in "
+                        + BenchSupport.millis(elapsed) + " ms");
+        if (welcomed.length > 0) {
+            System.out.println("time-to-welcome (ms): " + BenchSupport.summarize(welcomed));
+        }
+        System.exit(failures.get() == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,92 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.RegistryJournal;
+import net.RoomDirectory;
+
+/**
+ * measures how quickly the Registry can be brought back from its journal (see
+ * RegistryJournal), with a great many rooms open.
+ *
+ * Opens the given number of rooms in a directory kept by a journal of its own
+ * (in a scratch directory; no Registry needed), has a few users join and
+ * leave each, then recovers from the journal twice: first from the log alone,
+ * then again once a snapshot has been taken and some more changes logged on
+ * top of it. How fast changes could be logged in the first place is printed
+ * too.
+ *
+ * Usage: java bench.JournalReplay [rooms] [users per room]
+ *
+ * (defaults to 100000 rooms, 4 users apiece).
+ */
+public class JournalReplay {
+
+    public static void main(String[] args) throws Exception {
+        int roomCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int usersPerRoom = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        File dir = Files.createTempDirectory("journal-replay").toFile();
+        AtomicInteger usersIssued = new AtomicInteger();
+
+        // fill the journal up.
+        RegistryJournal journal = new RegistryJournal(dir, Long.MAX_VALUE / 2);
+        journal.recover();
+        RoomDirectory rooms = new RoomDirectory(journal);
+        journal.attach(rooms, usersIssued::get, () -> roomCount);
+        journal.start();
+        long start = System.nanoTime();
+        long changes = logChanges(rooms, journal, usersIssued, roomCount, usersPerRoom, "room");
+        journal.sync();
+        long elapsed = System.nanoTime() - start;
+        System.out.println(changes + " changes logged in " + BenchSupport.millis(elapsed) + " ms ("
+                        + String.format("%.0f", changes / (elapsed / 1e9)) + " changes/s); " + journal.describe());
+        System.out.println("log only:          " + new RegistryJournal(dir, 0).recover().describe());
+
+        // snapshot, then log some more on top.
+        start = System.nanoTime();
+        journal.checkpoint();
+        System.out.println("snapshot of " + rooms.size() + " rooms taken in "
+                        + BenchSupport.millis(System.nanoTime() - start) + " ms");
+        changes = logChanges(rooms, journal, usersIssued, roomCount / 10, usersPerRoom, "late");
+        journal.sync();
+        journal.shutDown();
+        System.out.println("snapshot + log:    " + new RegistryJournal(dir, 0).recover().describe());
+
+        BenchSupport.deleteAll(dir.toPath());
+    }
+
+    /**
+     * opens rooms and has users join and leave them, as users would over a day's
+     * chatting (rooms being opened and joined in no particular order).
+     *
+     * @return number of changes made
+     */
+    private static long logChanges(RoomDirectory rooms, RegistryJournal journal, AtomicInteger usersIssued,
+                    int roomCount, int usersPerRoom, String prefix) {
+        ArrayList<Integer> order = new ArrayList<Integer>(roomCount);
+        for (int i = 0; i < roomCount; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order);
+        long changes = 0;
+        for (int i : order) {
+            String name = prefix + i;
+            RoomDirectory.Room room = new RoomDirectory.Room(name, "host" + i, "localhost:9000/S0" + i, null);
+            rooms.add(room);
+            journal.usersIssued(usersIssued.incrementAndGet());
+            changes += 2;
+            for (int u = 0; u < usersPerRoom; u++) {
+                rooms.join(room, name + "-user" + u);
+                journal.usersIssued(usersIssued.incrementAndGet());
+                changes += 2;
+            }
+            rooms.leave(room, name + "-user0");
+            changes++;
+        }
+        return changes;
+    }
+}
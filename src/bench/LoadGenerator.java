@@ -0,0 +1,608 @@
+package bench;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import messages.ExitRoomMessage;
+import messages.Message;
+import messages.SimpleMessage;
+import misc.Constants;
+import net.RegistryChannel;
+
+/**
+ * puts a running Registry (and the rooms it hosts) under a steady, made-up chat
+ * load, with no UI involved: opens a number of rooms, fills each with synthetic
+ * users speaking the protocol directly (as JoinRoomWorkers, ChatUsers and
+ * ExitRoomWorkers would), has them chat at a given rate, and has users leave and
+ * others join in their place as it goes. Reports how many Messages went out and
+ * were delivered, how long delivery took (p50, p99, p99.9), how long joining
+ * took, and everything that went wrong.
+ *
+ * Delivery latency is timed from when a Message was due to be sent (not when it
+ * actually was), so a sender held up by a slow room still shows up in the
+ * latencies rather than quietly sending less. Only Messages due within the
+ * measured part of the run count (after a warm-up), and every copy of a Message
+ * delivered counts, so a room of M users contributes M - 1 samples per Message.
+ *
+ * The workload is given as a properties file (see Workload below for the keys,
+ * and their defaults); keys may also be given on the command line, which win
+ * over the file. The workload in effect is printed first, in the same format,
+ * so any run can be repeated by saving it to a file; results are printed last
+ * as key=value lines too, to be compared from one run to the next. With the
+ * same seed, every run makes the same users say the same things at the same
+ * moments.
+ *
+ * Usage: java bench.LoadGenerator [workload file] [key=value ...]
+ *
+ * Start the Registry first. Each user holds a thread and a connection until the
+ * run is over (their rooms are left open).
+ */
+public class LoadGenerator {
+
+    private static final long GRACE_NANOS = 2_000_000_000L; // wait for deliveries this long after the run
+
+    private final Workload workload; // what to do
+    private final RegistryChannel registry; // where rooms are opened
+    private final ArrayList<Room> rooms; // every room opened
+    private final Histogram joinNanos; // connecting until welcomed, every join (guarded by itself)
+    private final AtomicLong sentCount; // Messages sent (measured part of the run only)
+    private final AtomicLong sentBytes; // ... and their text's length
+    private final AtomicLong droppedCount; // deliveries the rooms reported having dropped
+    private final AtomicInteger joinFailures; // users who couldn't join
+    private final AtomicInteger sendFailures; // Messages that couldn't be sent
+    private final AtomicInteger exitFailures; // users who couldn't leave properly
+    private final AtomicInteger disconnects; // connections lost while their user was in a room
+    private final AtomicInteger churnCount; // users who left and were replaced
+    private volatile long measureFrom; // Messages due from here on count (System.nanoTime())
+    private volatile long measureUntil; // ... up to here
+    private volatile boolean isRunning; // false once the run is over
+
+    /**
+     * what a run does. Every field has a key in the workload file, given next to
+     * it, and a default.
+     */
+    static final class Workload {
+        String registryHost = Constants.REGISTRY_IP; // registry.host
+        int registryPort = Constants.REGISTRY_PORT; // registry.port
+        int rooms = 4; // rooms
+        int usersPerRoom = 10; // users.per.room (host included)
+        int durationSeconds = 30; // duration.seconds (measured part of the run)
+        int warmupSeconds = 5; // warmup.seconds (before the measured part)
+        double messageRate = 2.0; // message.rate (Messages per user per second)
+        String arrivals = "poisson"; // message.arrivals (poisson or constant)
+        String sizes = "uniform"; // message.size (fixed, uniform or exponential)
+        int sizeMin = 16; // message.size.min (characters of text)
+        int sizeMax = 512; // message.size.max
+        int sizeMean = 100; // message.size.mean (fixed and exponential)
+        double churnPerMinute = 6.0; // churn.per.minute (users replaced per room per minute)
+        int joinTimeoutMillis = 10_000; // join.timeout.ms
+        long seed = 42; // seed
+
+        Workload(Properties p) {
+            registryHost = p.getProperty("registry.host", registryHost);
+            registryPort = Integer.parseInt(p.getProperty("registry.port", "" + registryPort));
+            rooms = Integer.parseInt(p.getProperty("rooms", "" + rooms));
+            usersPerRoom = Math.max(1, Integer.parseInt(p.getProperty("users.per.room", "" + usersPerRoom)));
+            durationSeconds = Integer.parseInt(p.getProperty("duration.seconds", "" + durationSeconds));
+            warmupSeconds = Integer.parseInt(p.getProperty("warmup.seconds", "" + warmupSeconds));
+            messageRate = Double.parseDouble(p.getProperty("message.rate", "" + messageRate));
+            arrivals = p.getProperty("message.arrivals", arrivals);
+            sizes = p.getProperty("message.size", sizes);
+            sizeMin = Integer.parseInt(p.getProperty("message.size.min", "" + sizeMin));
+            sizeMax = Math.max(sizeMin, Integer.parseInt(p.getProperty("message.size.max", "" + sizeMax)));
+            sizeMean = Integer.parseInt(p.getProperty("message.size.mean", "" + sizeMean));
+            churnPerMinute = Double.parseDouble(p.getProperty("churn.per.minute", "" + churnPerMinute));
+            joinTimeoutMillis = Integer.parseInt(p.getProperty("join.timeout.ms", "" + joinTimeoutMillis));
+            seed = Long.parseLong(p.getProperty("seed", "" + seed));
+            if (!arrivals.equals("poisson") && !arrivals.equals("constant")) {
+                throw new IllegalArgumentException("message.arrivals must be poisson or constant");
+            }
+            if (!sizes.equals("fixed") && !sizes.equals("uniform") && !sizes.equals("exponential")) {
+                throw new IllegalArgumentException("message.size must be fixed, uniform or exponential");
+            }
+        }
+
+        /**
+         * time until a user's next Message is due.
+         */
+        long nextGapNanos(Random random) {
+            double mean = 1e9 / messageRate;
+            return (long) (arrivals.equals("constant") ? mean : -Math.log(1 - random.nextDouble()) * mean);
+        }
+
+        /**
+         * length of a Message's text.
+         */
+        int nextSize(Random random) {
+            int size;
+            if (sizes.equals("fixed")) {
+                size = sizeMean;
+            } else if (sizes.equals("uniform")) {
+                size = sizeMin + random.nextInt(sizeMax - sizeMin + 1);
+            } else {
+                size = (int) (-Math.log(1 - random.nextDouble()) * sizeMean);
+            }
+            return Math.max(sizeMin, Math.min(sizeMax, size));
+        }
+
+        /**
+         * the workload, in the workload file's format.
+         */
+        String describe() {
+            return "registry.host=" + registryHost + "\nregistry.port=" + registryPort + "\nrooms=" + rooms
+                            + "\nusers.per.room=" + usersPerRoom + "\nduration.seconds=" + durationSeconds
+                            + "\nwarmup.seconds=" + warmupSeconds + "\nmessage.rate=" + messageRate
+                            + "\nmessage.arrivals=" + arrivals + "\nmessage.size=" + sizes + "\nmessage.size.min="
+                            + sizeMin + "\nmessage.size.max=" + sizeMax + "\nmessage.size.mean=" + sizeMean
+                            + "\nchurn.per.minute=" + churnPerMinute + "\njoin.timeout.ms=" + joinTimeoutMillis
+                            + "\nseed=" + seed;
+        }
+    }
+
+    /**
+     * counts of nanosecond values, in buckets about 3% wide (32 per power of two),
+     * so that any number of samples takes the same small amount of memory.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKETS = 32;
+        private final long[] counts = new long[64 * SUB_BUCKETS]; // bucket -> samples in it
+        private long total; // samples in all
+
+        void record(long nanos) {
+            counts[bucketOf(Math.max(0, nanos))]++;
+            total++;
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+        }
+
+        long getTotal() {
+            return total;
+        }
+
+        /**
+         * the value below which the given share of the samples lie (the top of its
+         * bucket).
+         *
+         * @param share between 0 and 1
+         * @return the value, or 0 if there are no samples
+         */
+        long percentile(double share) {
+            long rank = (long) Math.ceil(share * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return topOf(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value); // at least 5
+            int sub = (int) (value >>> (exponent - 5)) & (SUB_BUCKETS - 1);
+            return (exponent - 4) * SUB_BUCKETS + sub;
+        }
+
+        private static long topOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + 4;
+            long sub = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (exponent - 5)) - 1;
+        }
+    }
+
+    /**
+     * a room being chatted in, and its users. Its sender sends every one of its
+     * users' Messages, each when it's due.
+     */
+    private final class Room {
+        private final int number; // which room
+        private final BenchSupport.RoomAddress address; // where the room's sessions are served
+        private final Random random; // what's said, by whom, when (sender only)
+        private final PriorityQueue<User> due; // users in the room, soonest due first (guarded by this)
+        private final ArrayList<User> members; // users in the room, host first (guarded by this)
+        private final ArrayList<User> everyone; // every user who joined, whether still in the room or not (ditto)
+        private int joinedCount; // users who've joined thus far (guarded by this)
+
+        Room(int n, BenchSupport.RoomAddress where) {
+            number = n;
+            address = where;
+            random = new Random(workload.seed * 31 + n);
+            due = new PriorityQueue<User>((a, b) -> Long.compare(a.nextDue, b.nextDue));
+            members = new ArrayList<User>();
+            everyone = new ArrayList<User>();
+            joinedCount = 0;
+        }
+
+        synchronized String nextAlias() {
+            return "lg" + number + "-" + joinedCount++;
+        }
+
+        synchronized void add(User user, long firstDue) {
+            user.nextDue = firstDue;
+            members.add(user);
+            everyone.add(user);
+            due.add(user);
+        }
+
+        /**
+         * takes a user (other than the host) out of the room, to leave.
+         *
+         * @param random picks the user
+         * @return the user, or null if there's nobody but the host
+         */
+        synchronized User takeLeaver(Random random) {
+            if (members.size() < 2) {
+                return null;
+            }
+            User user = members.remove(1 + random.nextInt(members.size() - 1));
+            due.remove(user);
+            user.isInRoom = false;
+            return user;
+        }
+
+        /**
+         * sends every user's Messages as they come due, until the run is over.
+         */
+        void send() {
+            while (isRunning) {
+                User user;
+                long wait;
+                synchronized (this) {
+                    user = due.peek();
+                    wait = user == null ? 10_000_000L : user.nextDue - System.nanoTime();
+                    if (wait <= 0) {
+                        due.poll();
+                    }
+                }
+                if (wait > 0) {
+                    LockSupport.parkNanos(Math.min(wait, 10_000_000L));
+                    continue;
+                }
+
+                long dueAt = user.nextDue;
+                int size = workload.nextSize(random);
+                user.send(dueAt, size);
+                if (dueAt >= measureFrom && dueAt < measureUntil) {
+                    sentCount.incrementAndGet();
+                    sentBytes.addAndGet(size);
+                }
+                synchronized (this) {
+                    if (user.isInRoom) {
+                        user.nextDue = dueAt + workload.nextGapNanos(random);
+                        due.add(user);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * a synthetic user: a session connection, and a reader timing every Message
+     * that arrives over it.
+     */
+    private final class User {
+        private final Room room; // room the user is in
+        private final String alias; // the user's alias
+        private BenchSupport.Session session; // written by the room's sender, read by our reader (null until in)
+        private final Histogram latencies; // delivery latency of every Message received (reader only)
+        private Thread reader; // reads the session connection (null until joined)
+        private volatile boolean isInRoom; // false once the user has been picked to leave
+        private long nextDue; // when the user's next Message is due (guarded by the room)
+
+        User(Room r, String a) {
+            room = r;
+            alias = a;
+            latencies = new Histogram();
+        }
+
+        /**
+         * connects, and joins the room (or, for its host, enters it).
+         *
+         * @param isHost true if the user opened the room
+         * @throws Exception if the user couldn't get in
+         */
+        void join(boolean isHost) throws Exception {
+            long start = System.nanoTime();
+            session = BenchSupport.enter(room.address, alias, isHost, workload.joinTimeoutMillis);
+            synchronized (joinNanos) {
+                joinNanos.record(System.nanoTime() - start);
+            }
+            isInRoom = true;
+            reader = new Thread(null, this::read, "reader-" + alias, BenchSupport.THREAD_STACK_SIZE);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * sends a Message, its text starting with when it was due.
+         */
+        void send(long dueAt, int size) {
+            StringBuilder text = new StringBuilder(size + 20).append(dueAt).append(' ');
+            while (text.length() < size) {
+                text.append((char) ('a' + text.length() % 26));
+            }
+            try {
+                session.out.writeMessage(new SimpleMessage(alias, text.toString()));
+                session.out.flush();
+            } catch (IOException e) {
+                if (isInRoom) {
+                    sendFailures.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * reads until the connection is closed, timing the room's Messages.
+         */
+        void read() {
+            try {
+                while (true) {
+                    Message msg = session.in.readMessage();
+                    if (msg instanceof ExitRoomMessage) {
+                        return; // we left.
+                    } else if (msg instanceof SimpleMessage) {
+                        received((SimpleMessage) msg, System.nanoTime());
+                    }
+                }
+            } catch (Exception e) {
+                if (isInRoom && isRunning) {
+                    disconnects.incrementAndGet();
+                }
+            }
+        }
+
+        private void received(SimpleMessage msg, long now) {
+            String text = msg.getText();
+            if (Constants.GAP_MARKER_ALIAS.equals(msg.getAssociatedSenderAlias())) {
+                // "N messages were dropped because you fell behind."
+                droppedCount.addAndGet(Long.parseLong(text.substring(0, text.indexOf(' '))));
+                return;
+            }
+            int space = text.indexOf(' ');
+            if (space <= 0 || !msg.getAssociatedSenderAlias().startsWith("lg")) {
+                return; // not one of ours.
+            }
+            long dueAt = Long.parseLong(text.substring(0, space));
+            if (dueAt >= measureFrom && dueAt < measureUntil) {
+                latencies.record(now - dueAt);
+            }
+        }
+
+        /**
+         * leaves the room, the way an ExitRoomWorker does: over a connection of its
+         * own, the session connection being closed by the room once it's done.
+         */
+        void exit() {
+            try {
+                BenchSupport.leave(session, workload.joinTimeoutMillis);
+            } catch (Exception e) {
+                exitFailures.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * LoadGenerator constructor.
+     *
+     * @param w what to do
+     */
+    LoadGenerator(Workload w) {
+        workload = w;
+        registry = new RegistryChannel("RC-load", workload.registryHost, workload.registryPort);
+        rooms = new ArrayList<Room>();
+        joinNanos = new Histogram();
+        sentCount = new AtomicLong();
+        sentBytes = new AtomicLong();
+        droppedCount = new AtomicLong();
+        joinFailures = new AtomicInteger();
+        sendFailures = new AtomicInteger();
+        exitFailures = new AtomicInteger();
+        disconnects = new AtomicInteger();
+        churnCount = new AtomicInteger();
+        measureFrom = Long.MAX_VALUE;
+        measureUntil = Long.MAX_VALUE;
+        isRunning = true;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties properties = new Properties();
+        for (String arg : args) {
+            if (!arg.contains("=")) {
+                try (Reader file = new FileReader(arg)) {
+                    properties.load(file);
+                }
+            }
+        }
+        for (String arg : args) {
+            if (arg.contains("=")) {
+                properties.setProperty(arg.substring(0, arg.indexOf('=')).trim(),
+                                arg.substring(arg.indexOf('=') + 1).trim());
+            }
+        }
+        Workload workload = new Workload(properties);
+        System.out.println("# workload");
+        System.out.println(workload.describe());
+
+        LoadGenerator generator = new LoadGenerator(workload);
+        generator.run();
+        System.exit(0);
+    }
+
+    /**
+     * opens the rooms and lets everyone in, chats for the warm-up and the measured
+     * part of the run, then reports.
+     */
+    void run() throws Exception {
+        String runID = Long.toString(System.currentTimeMillis() % 1_000_000, 36);
+        long start = System.nanoTime();
+        for (int r = 0; r < workload.rooms; r++) {
+            String roomName = "load-" + runID + "-" + r;
+            Room room = new Room(r, BenchSupport.openRoom(registry, "lg" + r + "-0", roomName));
+            rooms.add(room);
+            for (int u = 0; u < workload.usersPerRoom; u++) {
+                letIn(room, u == 0, room.random, start);
+            }
+        }
+        System.out.println("# " + workload.rooms * workload.usersPerRoom + " users in " + workload.rooms
+                        + " rooms after " + BenchSupport.millis(System.nanoTime() - start) + " ms");
+
+        long now = System.nanoTime();
+        measureFrom = now + workload.warmupSeconds * 1_000_000_000L;
+        measureUntil = measureFrom + workload.durationSeconds * 1_000_000_000L;
+        ArrayList<Thread> senders = new ArrayList<Thread>();
+        for (Room room : rooms) {
+            Thread sender = new Thread(room::send, "sender-" + room.number);
+            sender.setDaemon(true);
+            sender.start();
+            senders.add(sender);
+        }
+        Thread churner = new Thread(this::churn, "churner");
+        churner.setDaemon(true);
+        churner.start();
+
+        LockSupport.parkNanos(measureUntil - System.nanoTime());
+        isRunning = false;
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        churner.join();
+        Thread.sleep(GRACE_NANOS / 1_000_000);
+
+        // hang up on everyone still in, so every reader is done with its samples.
+        for (Room room : rooms) {
+            synchronized (room) {
+                for (User user : room.members) {
+                    user.session.socket.close();
+                }
+            }
+        }
+        for (Room room : rooms) {
+            synchronized (room) {
+                for (User user : room.everyone) {
+                    user.reader.join(workload.joinTimeoutMillis);
+                }
+            }
+        }
+        report();
+    }
+
+    /**
+     * lets a new user into a room, counting them out if they can't get in.
+     *
+     * @param room   the room
+     * @param isHost true if the user opened the room
+     * @param random picks when the user first speaks
+     * @param now    current time (System.nanoTime())
+     */
+    private void letIn(Room room, boolean isHost, Random random, long now) {
+        User user = new User(room, room.nextAlias());
+        try {
+            user.join(isHost);
+            room.add(user, now + workload.nextGapNanos(random));
+        } catch (Exception e) {
+            joinFailures.incrementAndGet();
+            try {
+                if (user.session != null) {
+                    user.session.socket.close(); // NOTE enter() closes the connection if they didn't get in.
+                }
+            } catch (IOException ignored) {
+                // nothing more to do.
+            }
+        }
+    }
+
+    /**
+     * has users leave, and others join in their place, at the workload's rate,
+     * until the run is over.
+     */
+    private void churn() {
+        if (workload.churnPerMinute <= 0 || rooms.isEmpty()) {
+            return;
+        }
+        Random random = new Random(workload.seed * 17);
+        double meanGapNanos = 60e9 / (workload.churnPerMinute * rooms.size());
+        long next = System.nanoTime();
+        while (isRunning) {
+            next += (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+            while (isRunning && System.nanoTime() < next) {
+                LockSupport.parkNanos(Math.min(next - System.nanoTime(), 10_000_000L));
+            }
+            if (!isRunning) {
+                return;
+            }
+            Room room = rooms.get(random.nextInt(rooms.size()));
+            User leaver = room.takeLeaver(random);
+            if (leaver != null) {
+                leaver.exit();
+                letIn(room, false, random, System.nanoTime());
+                churnCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * prints what happened, then the same as key=value lines.
+     */
+    private void report() {
+        Histogram delivered = new Histogram();
+        for (Room room : rooms) {
+            synchronized (room) {
+                for (User user : room.everyone) {
+                    delivered.add(user.latencies);
+                }
+            }
+        }
+        double seconds = workload.durationSeconds;
+        System.out.println(String.format("sent %d messages (%.0f/s, %.0f bytes of text on average); "
+                        + "delivered %d copies (%.0f/s)", sentCount.get(),
+                        sentCount.get() / seconds, sentBytes.get() / (double) Math.max(1, sentCount.get()),
+                        delivered.getTotal(), delivered.getTotal() / seconds));
+        System.out.println("delivery latency (ms): p50=" + BenchSupport.millis(delivered.percentile(0.5)) + " p99="
+                        + BenchSupport.millis(delivered.percentile(0.99)) + " p99.9="
+                        + BenchSupport.millis(delivered.percentile(0.999)) + " max="
+                        + BenchSupport.millis(delivered.percentile(1.0)));
+        System.out.println("join latency (ms): p50=" + BenchSupport.millis(joinNanos.percentile(0.5)) + " p99="
+                        + BenchSupport.millis(joinNanos.percentile(0.99)) + " over " + joinNanos.getTotal() + " joins, "
+                        + churnCount.get() + " of them replacing users who left");
+        System.out.println("failures: " + joinFailures.get() + " joins, " + sendFailures.get() + " sends, "
+                        + exitFailures.get() + " exits, " + disconnects.get() + " disconnects; " + droppedCount.get()
+                        + " deliveries dropped by the rooms");
+
+        System.out.println("# results");
+        System.out.println("sent.count=" + sentCount.get());
+        System.out.println(String.format("sent.per.second=%.1f", sentCount.get() / seconds));
+        System.out.println("delivered.count=" + delivered.getTotal());
+        System.out.println(String.format("delivered.per.second=%.1f", delivered.getTotal() / seconds));
+        System.out.println("latency.p50.ms=" + BenchSupport.millis(delivered.percentile(0.5)));
+        System.out.println("latency.p99.ms=" + BenchSupport.millis(delivered.percentile(0.99)));
+        System.out.println("latency.p999.ms=" + BenchSupport.millis(delivered.percentile(0.999)));
+        System.out.println("join.p50.ms=" + BenchSupport.millis(joinNanos.percentile(0.5)));
+        System.out.println("join.p99.ms=" + BenchSupport.millis(joinNanos.percentile(0.99)));
+        System.out.println("churn.count=" + churnCount.get());
+        System.out.println("failures.join=" + joinFailures.get());
+        System.out.println("failures.send=" + sendFailures.get());
+        System.out.println("failures.exit=" + exitFailures.get());
+        System.out.println("failures.disconnect=" + disconnects.get());
+        System.out.println("dropped.deliveries=" + droppedCount.get());
+    }
+}
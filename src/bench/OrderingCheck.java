@@ -0,0 +1,245 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import messages.ExitRoomMessage;
+import messages.Message;
+import messages.SimpleMessage;
+import misc.Constants;
+import net.RegistryChannel;
+
+/**
+ * checks that a room keeps to its ordering guarantee under load: every user
+ * gets each sender's Messages in the order they were sent, each exactly once,
+ * and every user gets the room's Messages in one and the same order (see
+ * MessageRouter).
+ *
+ * Opens a room on a running Registry, lets in a number of senders and a few
+ * users who only listen (the host among them), then has every sender flood the
+ * room at once with numbered Messages. Every user in the room records what it
+ * receives; once it's all come through (or nothing more has for a while), each
+ * user's record is checked for a sender's numbers going backwards (reorders),
+ * turning up twice (duplicates) or not at all (missing), and compared with the
+ * host's (mismatches: Messages that came in a different order than they did to
+ * the host, leaving out what the user sent itself). Messages the room reports
+ * having dropped for falling behind (see BackpressurePolicy) are counted apart, as
+ * they are missing by design.
+ *
+ * Usage: java bench.OrderingCheck [senders] [messages per sender] [listeners]
+ *
+ * (defaults to 6 senders of 3000 Messages each, and 2 listeners besides the
+ * host). Start the Registry first. Exits with 1 if anything was out of order.
+ */
+public class OrderingCheck {
+
+    private static final int TIMEOUT_MS = 10_000; // longest to wait to get in, or for anything more to arrive
+
+    /**
+     * a user in the room, and what it has received.
+     */
+    private static final class Receiver {
+        private final BenchSupport.Session session; // the user's connection
+        private final int senderIndex; // which sender the user is (-1 for a listener)
+        private final long[] received; // (sender << 32 | number) of every Message received, in order
+        private final AtomicInteger receivedCount = new AtomicInteger(); // entries in the above
+        private final AtomicLong droppedCount = new AtomicLong(); // Messages the room dropped for us
+
+        Receiver(BenchSupport.Session s, int index, int capacity) {
+            session = s;
+            senderIndex = index;
+            received = new long[capacity];
+        }
+
+        void read() {
+            try {
+                while (true) {
+                    Message msg = session.in.readMessage();
+                    if (msg instanceof ExitRoomMessage) {
+                        return;
+                    } else if (!(msg instanceof SimpleMessage)) {
+                        continue;
+                    }
+                    String alias = msg.getAssociatedSenderAlias();
+                    String text = ((SimpleMessage) msg).getText();
+                    if (Constants.GAP_MARKER_ALIAS.equals(alias)) {
+                        droppedCount.addAndGet(Long.parseLong(text.substring(0, text.indexOf(' '))));
+                    } else if (alias.startsWith("s")) {
+                        long sender = Long.parseLong(alias.substring(1));
+                        int n = receivedCount.get();
+                        if (n < received.length) {
+                            received[n] = sender << 32 | Long.parseLong(text);
+                            receivedCount.set(n + 1); // published for the main thread to poll
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                // connection closed; we're done.
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int senders = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        int perSender = args.length > 1 ? Integer.parseInt(args[1]) : 3000;
+        int listeners = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+        RegistryChannel registry = new RegistryChannel("RC-bench", Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
+        BenchSupport.RoomAddress room = BenchSupport.openRoom(registry, "host", "order-" + System.currentTimeMillis());
+        ArrayList<Receiver> receivers = new ArrayList<Receiver>();
+        int capacity = senders * perSender;
+        receivers.add(new Receiver(BenchSupport.enter(room, "host", true, TIMEOUT_MS), -1, capacity));
+        for (int i = 0; i < listeners; i++) {
+            receivers.add(new Receiver(BenchSupport.enter(room, "l" + i, false, TIMEOUT_MS), -1, capacity));
+        }
+        for (int i = 0; i < senders; i++) {
+            receivers.add(new Receiver(BenchSupport.enter(room, "s" + i, false, TIMEOUT_MS), i, capacity));
+        }
+        for (Receiver receiver : receivers) {
+            Thread reader = new Thread(null, receiver::read, "reader-" + receiver.session.alias,
+                            BenchSupport.THREAD_STACK_SIZE);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // flood the room, every sender at once.
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(senders);
+        AtomicInteger sendFailures = new AtomicInteger();
+        for (Receiver receiver : receivers) {
+            if (receiver.senderIndex < 0) {
+                continue;
+            }
+            Thread sender = new Thread(() -> {
+                try {
+                    go.await();
+                    for (int n = 0; n < perSender; n++) {
+                        receiver.session.out.writeMessage(new SimpleMessage(receiver.session.alias, "" + n));
+                        receiver.session.out.flush();
+                    }
+                } catch (Exception e) {
+                    sendFailures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }, "sender-" + receiver.session.alias);
+            sender.setDaemon(true);
+            sender.start();
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        long sent = System.nanoTime() - start;
+        awaitQuiet(receivers, senders, perSender);
+        long delivered = System.nanoTime() - start;
+
+        // check every user's record.
+        Receiver host = receivers.get(0);
+        HashMap<Long, Integer> hostPositions = new HashMap<Long, Integer>();
+        for (int k = 0; k < host.receivedCount.get(); k++) {
+            hostPositions.put(host.received[k], k);
+        }
+        long reorders = 0;
+        long duplicates = 0;
+        long missing = 0;
+        long dropped = 0;
+        long mismatches = 0;
+        for (Receiver receiver : receivers) {
+            int[] last = new int[senders];
+            BitSet[] seen = new BitSet[senders];
+            for (int i = 0; i < senders; i++) {
+                last[i] = -1;
+                seen[i] = new BitSet(perSender);
+            }
+            int count = receiver.receivedCount.get();
+            for (int k = 0; k < count; k++) {
+                int sender = (int) (receiver.received[k] >>> 32);
+                int n = (int) receiver.received[k];
+                if (seen[sender].get(n)) {
+                    duplicates++;
+                } else if (n < last[sender]) {
+                    reorders++;
+                }
+                seen[sender].set(n);
+                last[sender] = Math.max(last[sender], n);
+            }
+            for (int i = 0; i < senders; i++) {
+                if (i != receiver.senderIndex) {
+                    missing += perSender - seen[i].cardinality();
+                }
+            }
+            dropped += receiver.droppedCount.get();
+            if (receiver != host) {
+                mismatches += compare(hostPositions, receiver);
+            }
+        }
+        missing -= dropped;
+
+        System.out.println(senders + " senders x " + perSender + " Messages, " + receivers.size() + " users in the "
+                        + "room; sent in " + BenchSupport.millis(sent) + " ms, all through in "
+                        + BenchSupport.millis(delivered) + " ms");
+        System.out.println("reorders=" + reorders + " duplicates=" + duplicates + " missing=" + missing
+                        + " mismatches=" + mismatches + " dropped=" + dropped + " send.failures="
+                        + sendFailures.get());
+        boolean isOrdered = reorders == 0 && duplicates == 0 && missing == 0 && mismatches == 0;
+        System.out.println(isOrdered ? "OK" : "FAILED");
+        System.exit(isOrdered ? 0 : 1);
+    }
+
+    /**
+     * waits until every user has received everything it should have, or until
+     * nothing more has come through for a while.
+     */
+    private static void awaitQuiet(ArrayList<Receiver> receivers, int senders, int perSender)
+                    throws InterruptedException {
+        long lastTotal = -1;
+        long lastChange = System.nanoTime();
+        while (System.nanoTime() - lastChange < TIMEOUT_MS * 1_000_000L) {
+            long total = 0;
+            boolean isComplete = true;
+            for (Receiver receiver : receivers) {
+                long expected = (long) (receiver.senderIndex < 0 ? senders : senders - 1) * perSender;
+                long got = receiver.receivedCount.get() + receiver.droppedCount.get();
+                total += got;
+                isComplete &= got >= expected;
+            }
+            if (isComplete) {
+                return;
+            }
+            if (total != lastTotal) {
+                lastTotal = total;
+                lastChange = System.nanoTime();
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * compares a user's record with the host's: every Message both have must come
+     * after the ones before it in the user's record in the host's too. (Messages
+     * dropped for either of them don't count; they are missing, not out of
+     * order.)
+     *
+     * @return number of Messages out of place
+     */
+    private static long compare(HashMap<Long, Integer> hostPositions, Receiver receiver) {
+        long outOfPlace = 0;
+        int previous = -1;
+        int count = receiver.receivedCount.get();
+        for (int k = 0; k < count; k++) {
+            Integer position = hostPositions.get(receiver.received[k]);
+            if (position == null) {
+                continue; // dropped for the host
+            } else if (position < previous) {
+                outOfPlace++;
+            } else {
+                previous = position;
+            }
+        }
+        return outOfPlace;
+    }
+}
@@ -0,0 +1,211 @@
+package bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+
+import messages.ListRoomsMessage;
+import misc.Constants;
+import misc.Worker;
+import net.Registry;
+import net.RegistryChannel;
+
+/**
+ * finds how many participants a room (and the JVM it runs in) can hold in a
+ * given execution mode, and what each one costs.
+ *
+ * Starts a Registry in this JVM (so its threads and memory can be looked at),
+ * opens a room, then lets users in a batch at a time, until one can't get in
+ * (or takes too long to), or the given maximum is reached. After every batch it
+ * prints how many are in, how long the batch took to get in, how many threads
+ * are alive (platform threads only; virtual ones aren't counted), the heap in
+ * use after a GC and the resident set size of the whole process. Once in, users
+ * are kept drained by a single Selector thread, so the client side of the test
+ * costs next to nothing.
+ *
+ * The Registry picks up the usual switches, so run this once per mode:
+ *
+ * java -Dchatter.threads=platform bench.ParticipantScaling
+ *
+ * java -Dchatter.threads=virtual bench.ParticipantScaling (Java 21 or newer;
+ * older runtimes fall back to platform threads, and the run says so)
+ *
+ * adding -Dchatter.session.engine=eventloop to either to try the event-loop
+ * engine, and -Xmx and -Xss to see where each runs out. Both ends of every
+ * connection are in this process, so the file descriptor limit (ulimit -n)
+ * needs to be over twice the maximum.
+ *
+ * Usage: java bench.ParticipantScaling [max participants] [batch size]
+ *
+ * (defaults to 10000 participants, let in 500 at a time). The Registry's
+ * console output goes to registry.log in a scratch directory, which is kept
+ * if the Registry logged any errors.
+ */
+public class ParticipantScaling {
+
+    private static final int TIMEOUT_MS = 30_000; // longest a user may take to get in
+    private static final int STARTUP_TIMEOUT_MS = 30_000; // longest to wait on the Registry to come up
+
+    /**
+     * reads and throws away whatever comes in over the connections handed to it.
+     */
+    private static final class Drainer extends Thread {
+        private final Selector selector; // over every connection being drained
+        private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>(); // to register
+
+        Drainer() throws IOException {
+            super("drainer");
+            selector = Selector.open();
+            setDaemon(true);
+        }
+
+        void drain(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        public void run() {
+            ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+            while (true) {
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.configureBlocking(false);
+                        channel.register(selector, SelectionKey.OP_READ);
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        scratch.clear();
+                        if (((SocketChannel) key.channel()).read(scratch) < 0) {
+                            key.cancel();
+                            key.channel().close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                } catch (IOException e) {
+                    // a connection went bad; carry on with the rest.
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int max = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        // start a Registry of our own, with its console output set aside.
+        Path scratch = Files.createTempDirectory("scaling");
+        System.setProperty(Constants.REGISTRY_JOURNAL_PROPERTY, scratch.resolve("journal").toString());
+        System.setProperty(Constants.HISTORY_DIR_PROPERTY, scratch.resolve("history").toString());
+        File log = scratch.resolve("registry.log").toFile();
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new FileOutputStream(log), true));
+        Thread registryThread = new Thread(() -> Registry.main(new String[0]), "registry");
+        registryThread.setDaemon(true);
+        registryThread.start();
+        RegistryChannel registry = new RegistryChannel("RC-bench", Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
+        awaitRegistry(registry);
+
+        String mode = Worker.isVirtualMode() ? Constants.THREAD_MODE_VIRTUAL : Constants.THREAD_MODE_PLATFORM;
+        console.println("Java " + System.getProperty("java.version") + ", " + mode + " threads, "
+                        + System.getProperty(Constants.SESSION_ENGINE_PROPERTY, Constants.SESSION_ENGINE_THREADED)
+                        + " session engine; max heap " + Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB");
+        console.println("participants  batch (ms)  threads  heap (MB)  rss (MB)");
+
+        String roomName = "scaling-" + System.currentTimeMillis();
+        BenchSupport.RoomAddress room = BenchSupport.openRoom(registry, "host", roomName);
+        Drainer drainer = new Drainer();
+        drainer.start();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int participants = 0;
+        String failure = null;
+        while (participants < max && failure == null) {
+            long start = System.nanoTime();
+            int target = Math.min(max, participants + batch);
+            while (participants < target) {
+                String alias = participants == 0 ? "host" : "u" + participants;
+                SocketChannel channel = SocketChannel.open();
+                try {
+                    channel.connect(new InetSocketAddress(room.ip, room.port));
+                    BenchSupport.enter(channel.socket(), room, alias, participants == 0, TIMEOUT_MS);
+                } catch (Exception e) {
+                    channel.close();
+                    failure = alias + " couldn't get in --> " + e;
+                    break;
+                }
+                drainer.drain(channel);
+                participants++;
+            }
+            long elapsed = System.nanoTime() - start;
+            System.gc();
+            long heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+            console.println(String.format("%12d  %10s  %7d  %9d  %8s", participants, BenchSupport.millis(elapsed),
+                            threads.getThreadCount(), heap / (1024 * 1024), residentMegabytes()));
+        }
+
+        console.println(failure == null ? "all " + participants + " got in" : "stopped: " + failure);
+        System.setOut(console);
+        long errors;
+        try (Stream<String> lines = Files.lines(log.toPath())) {
+            errors = lines.filter(line -> line.contains("Error") || line.contains("Exception")).count();
+        }
+        if (errors > 0) {
+            console.println("the Registry logged " + errors + " errors; see " + log);
+        } else {
+            BenchSupport.deleteAll(scratch);
+        }
+        console.println("# results");
+        console.println("scaling." + mode + ".max.participants=" + participants);
+        console.println("scaling." + mode + ".threads=" + threads.getThreadCount());
+        console.println("scaling." + mode + ".rss.mb=" + residentMegabytes());
+        System.exit(0);
+    }
+
+    /**
+     * waits until the Registry answers requests.
+     */
+    private static void awaitRegistry(RegistryChannel registry) throws Exception {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MS;
+        while (true) {
+            try {
+                registry.request(new ListRoomsMessage());
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * resident set size of this process, in megabytes (Linux only).
+     *
+     * @return the size, or "-" if it can't be told
+     */
+    private static String residentMegabytes() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return "" + Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not Linux.
+        }
+        return "-";
+    }
+}
@@ -0,0 +1,194 @@
+package bench;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import messages.ListRoomsMessage;
+import messages.Message;
+import misc.Constants;
+import misc.ValidateInput;
+import net.RegistryChannel;
+
+/**
+ * measures how many requests a second the Registry's front end gets through
+ * when a crowd of clients all keep refreshing their room listings at once.
+ *
+ * Each client sends ListRoomsMessages back to back, waiting on each response
+ * before sending the next, for as long as the run lasts; every round trip is
+ * timed. Clients speak to the Registry in one of two ways:
+ *
+ * i) oneshot: a new connection (and pair of Object streams) for every request,
+ * as clients did before RegistryChannel. This is the load that costs the
+ * thread-per-request front end a RequestHandler thread per request.
+ *
+ * ii) channel: one RegistryChannel per client, kept open for the whole run.
+ *
+ * The front end is picked when starting the Registry, so compare the two by
+ * running this once against a Registry started with
+ * -Dchatter.registry.mode=threaded, and once against one started without it
+ * (selector mode).
+ *
+ * Usage: java bench.RegistryLoad [clients] [seconds] [oneshot|channel]
+ *
+ * (defaults to 64 clients for 5 seconds of each, after a second of warm-up).
+ */
+public class RegistryLoad {
+
+    private static final int WARM_UP_MS = 1000; // run before counting
+    private static final int MAX_SAMPLES = 1 << 16; // most round trips timed per client
+
+    /**
+     * one client's tally.
+     */
+    private static final class Tally {
+        private final long[] samples = new long[MAX_SAMPLES]; // round trip times
+        private int sampleCount; // entries in the above
+        private long requests; // requests answered while counting
+        private long failures; // requests that went unanswered
+    }
+
+    /**
+     * one way of sending a request and waiting on its response.
+     */
+    private interface Client {
+        Message request(Message request) throws Exception;
+
+        void close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String[] styles = args.length > 2 ? new String[] { args[2] } : new String[] { "oneshot", "channel" };
+
+        ArrayList<String> results = new ArrayList<String>();
+        for (String style : styles) {
+            Tally total = run(style, clients, seconds);
+            double rps = total.requests / (double) seconds;
+            long[] samples = Arrays.copyOf(total.samples, total.sampleCount);
+            System.out.println(String.format("%-8s %d clients: %.0f requests/s, %d failed; round trip (ms): %s",
+                            style, clients, rps, total.failures, BenchSupport.summarize(samples)));
+            results.add(String.format("registry.%s.rps=%.0f", style, rps));
+            results.add("registry." + style + ".failures=" + total.failures);
+            if (samples.length > 0) {
+                Arrays.sort(samples);
+                results.add("registry." + style + ".p50.ms=" + BenchSupport.millis(BenchSupport.percentile(samples,
+                                50)));
+                results.add("registry." + style + ".p99.ms=" + BenchSupport.millis(BenchSupport.percentile(samples,
+                                99)));
+            }
+        }
+        System.out.println("# results");
+        for (String line : results) {
+            System.out.println(line);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * has every client send requests as fast as it can, for a warm-up and then for
+     * the given number of seconds.
+     *
+     * @return everyone's tallies, summed up
+     */
+    private static Tally run(String style, int clients, int seconds) throws Exception {
+        AtomicBoolean isCounting = new AtomicBoolean();
+        AtomicBoolean isOver = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(clients);
+        Tally[] tallies = new Tally[clients];
+        for (int i = 0; i < clients; i++) {
+            Tally tally = new Tally();
+            tallies[i] = tally;
+            Client client = style.equals("channel") ? channelClient(i) : oneShotClient();
+            Thread thread = new Thread(null, () -> {
+                try {
+                    while (!isOver.get()) {
+                        long start = System.nanoTime();
+                        boolean isAnswered;
+                        try {
+                            isAnswered = client.request(new ListRoomsMessage()) != null;
+                        } catch (Exception e) {
+                            isAnswered = false;
+                        }
+                        long elapsed = System.nanoTime() - start;
+                        if (!isCounting.get() || isOver.get()) {
+                            continue;
+                        } else if (!isAnswered) {
+                            tally.failures++;
+                        } else {
+                            tally.requests++;
+                            if (tally.sampleCount < MAX_SAMPLES) {
+                                tally.samples[tally.sampleCount++] = elapsed;
+                            }
+                        }
+                    }
+                } finally {
+                    client.close();
+                    done.countDown();
+                }
+            }, style + "-" + i, BenchSupport.THREAD_STACK_SIZE);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Thread.sleep(WARM_UP_MS);
+        isCounting.set(true);
+        Thread.sleep(seconds * 1000L);
+        isOver.set(true);
+        done.await();
+
+        Tally total = new Tally();
+        for (Tally tally : tallies) {
+            total.requests += tally.requests;
+            total.failures += tally.failures;
+            int n = Math.min(tally.sampleCount, MAX_SAMPLES - total.sampleCount);
+            System.arraycopy(tally.samples, 0, total.samples, total.sampleCount, n);
+            total.sampleCount += n;
+        }
+        return total;
+    }
+
+    /**
+     * a client that opens a new connection for every request, as UserSetupWorker
+     * and friends once did.
+     */
+    private static Client oneShotClient() {
+        return new Client() {
+            public Message request(Message request) throws Exception {
+                try (Socket socket = new Socket(Constants.REGISTRY_IP, Constants.REGISTRY_PORT)) {
+                    // NOTE order of constructor calls is crucial here. See ChatUser.java for deets.
+                    ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                    ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                    out.writeObject(request);
+                    out.flush();
+                    return ValidateInput.validateMessage(in.readObject());
+                }
+            }
+
+            public void close() {
+                // nothing is kept open.
+            }
+        };
+    }
+
+    /**
+     * a client that sends all of its requests over a RegistryChannel of its own.
+     */
+    private static Client channelClient(int n) {
+        RegistryChannel channel = new RegistryChannel("RC-bench-" + n, Constants.REGISTRY_IP,
+                        Constants.REGISTRY_PORT);
+        return new Client() {
+            public Message request(Message request) throws Exception {
+                return channel.request(request);
+            }
+
+            public void close() {
+                channel.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,129 @@
+package bench;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import messages.ListRoomsMessage;
+import misc.Constants;
+import misc.ValidateInput;
+import net.RegistryChannel;
+
+/**
+ * measures how long a single client waits on the Registry for each request,
+ * before and after RegistryChannel.
+ *
+ * Times a number of ListRoomsMessage round trips, one client on an otherwise
+ * idle Registry, three ways:
+ *
+ * i) oneshot: a new connection and pair of Object streams for every request,
+ * as UserSetupWorker, RoomSetupWorker, RoomsListFetcher and SessionCoordinator
+ * did before (a TCP handshake and a stream header each way, every time).
+ *
+ * ii) channel: one RegistryChannel, one request in flight at a time.
+ *
+ * iii) pipelined: one RegistryChannel, with a number of requests in flight at
+ * once (each timed from being sent until its response arrives).
+ *
+ * Usage: java bench.RegistryRoundTrip [requests] [in flight]
+ *
+ * (defaults to 5000 requests of each, and 8 in flight when pipelining). Start
+ * the Registry first.
+ */
+public class RegistryRoundTrip {
+
+    private static final int WARM_UP = 500; // requests sent before timing any
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int inFlight = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        RegistryChannel channel = new RegistryChannel("RC-bench", Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
+        ArrayList<String> results = new ArrayList<String>();
+        for (String style : new String[] { "oneshot", "channel", "pipelined" }) {
+            long[] nanos = null;
+            long elapsed = 0;
+            for (int round = 0; round < 2; round++) { // the first round is warm-up
+                int count = round == 0 ? WARM_UP : requests;
+                long start = System.nanoTime();
+                if (style.equals("oneshot")) {
+                    nanos = oneShot(count);
+                } else if (style.equals("channel")) {
+                    nanos = pipelined(channel, count, 1);
+                } else {
+                    nanos = pipelined(channel, count, inFlight);
+                }
+                elapsed = System.nanoTime() - start;
+            }
+            double rps = requests / (elapsed / 1e9);
+            System.out.println(String.format("%-9s %.0f requests/s; round trip (ms): %s", style, rps,
+                            BenchSupport.summarize(nanos)));
+            Arrays.sort(nanos);
+            results.add(String.format("roundtrip.%s.rps=%.0f", style, rps));
+            results.add("roundtrip." + style + ".p50.ms=" + BenchSupport.millis(BenchSupport.percentile(nanos, 50)));
+            results.add("roundtrip." + style + ".p99.ms=" + BenchSupport.millis(BenchSupport.percentile(nanos, 99)));
+        }
+        channel.close();
+        System.out.println("# results");
+        for (String line : results) {
+            System.out.println(line);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * sends requests one after the other, each over a connection of its own.
+     *
+     * @return round trip times
+     */
+    private static long[] oneShot(int count) throws Exception {
+        long[] nanos = new long[count];
+        for (int i = 0; i < count; i++) {
+            long start = System.nanoTime();
+            try (Socket socket = new Socket(Constants.REGISTRY_IP, Constants.REGISTRY_PORT)) {
+                // NOTE order of constructor calls is crucial here. See ChatUser.java for deets.
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                out.writeObject(new ListRoomsMessage());
+                out.flush();
+                ValidateInput.validateMessage(in.readObject());
+            }
+            nanos[i] = System.nanoTime() - start;
+        }
+        return nanos;
+    }
+
+    /**
+     * sends requests over a channel, keeping up to the given number in flight.
+     *
+     * @return round trip times
+     */
+    private static long[] pipelined(RegistryChannel channel, int count, int inFlight) throws Exception {
+        long[] nanos = new long[count];
+        long[] sentAt = new long[count];
+        List<CompletableFuture<Void>> window = new ArrayList<CompletableFuture<Void>>(inFlight);
+        for (int i = 0; i < count + inFlight; i++) {
+            int slot = i % inFlight;
+            if (i >= inFlight) {
+                window.get(slot).get(); // wait on the oldest request before sending another in its place.
+            }
+            if (i < count) {
+                int n = i;
+                sentAt[n] = System.nanoTime();
+                CompletableFuture<Void> done = channel.send(new ListRoomsMessage()).thenRun(() -> {
+                    nanos[n] = System.nanoTime() - sentAt[n]; // stamped as soon as the response is in
+                });
+                if (slot < window.size()) {
+                    window.set(slot, done);
+                } else {
+                    window.add(done);
+                }
+            }
+        }
+        return nanos;
+    }
+}
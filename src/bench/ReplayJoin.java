@@ -0,0 +1,213 @@
+package bench;
+
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.MessageReader;
+import io.MessageStreams;
+import io.MessageWriter;
+import messages.JoinRoomMessage;
+import messages.Message;
+import messages.ReplayMessage;
+import messages.SessionConnectMessage;
+import messages.SimpleMessage;
+import messages.WelcomeMessage;
+import misc.Constants;
+import net.RegistryChannel;
+
+/**
+ * measures how long joining a room takes depending on how much was said in it
+ * beforehand, now that joiners are sent a replay of it (see
+ * SessionCoordinator.prepareGreeting()).
+ *
+ * For each backlog size, opens a room on a running Registry, has its host say
+ * that many things (with a watcher in the room to tell when they've all gone
+ * through), then has users join one at a time, timing each from connecting until
+ * their WelcomeMessage arrives, and until their replay has too. Then as many
+ * users join again, with the host chatting at a steady pace meanwhile; the
+ * watcher times how long each of those Messages takes to reach it, to show
+ * whether joins hold live chat up. (Join notices are broadcasts too, so even
+ * with no backlog, joiners are shown who joined before them.)
+ *
+ * Usage: java bench.ReplayJoin [joins per backlog] [backlog sizes...]
+ *
+ * (defaults to 50 joins, with backlogs of 0, 100 and 10000 Messages). Start the
+ * Registry first; run it with -Dchatter.replay.messages=N to replay more (or
+ * fewer) than the default.
+ */
+public class ReplayJoin {
+
+    private static final String TEXT = "the quick brown fox jumps over the lazy dog, as chat messages tend to go.";
+    private static final long LIVE_INTERVAL_NANOS = 2_000_000; // how often the host chats while users join
+    private static final int REPLAY_WAIT_MS = 200; // how long a joiner waits past its welcome for a replay
+
+    public static void main(String[] args) throws Exception {
+        int joins = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int[] backlogs = args.length > 1 ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                        : new int[] { 0, 100, 10000 };
+        RegistryChannel registry = new RegistryChannel("RC-bench", Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
+        for (int backlog : backlogs) {
+            run(registry, joins, backlog);
+        }
+        System.exit(0);
+    }
+
+    private static void run(RegistryChannel registry, int joins, int backlog) throws Exception {
+        String roomName = "replay-" + backlog + "-" + System.currentTimeMillis();
+        BenchSupport.RoomAddress room = BenchSupport.openRoom(registry, "host", roomName);
+        String ip = room.ip;
+        int port = room.port;
+        String roomKey = room.key;
+
+        Socket host = new Socket(ip, port);
+        MessageWriter hostOut = MessageStreams.openWriter(host.getOutputStream());
+        MessageReader hostIn = MessageStreams.openReader(host.getInputStream());
+        hostOut.writeMessage(new SessionConnectMessage(roomKey, "host"));
+        hostOut.flush();
+        while (!(hostIn.readMessage() instanceof WelcomeMessage)) {
+            // the host's welcome comes first; anything else would be a replay.
+        }
+        BenchSupport.startDraining(hostIn, null);
+
+        // the watcher counts the host's Messages, and times the live ones.
+        Joiner watcher = join(ip, port, roomKey, roomName, "watcher");
+        AtomicInteger heard = new AtomicInteger();
+        long[] liveNanos = new long[1 << 16];
+        AtomicInteger liveCount = new AtomicInteger();
+        BenchSupport.startDraining(watcher.in, msg -> {
+            if (msg instanceof SimpleMessage && msg.getAssociatedSenderAlias().equals("host")) {
+                heard.incrementAndGet();
+                String text = ((SimpleMessage) msg).getText();
+                if (text.startsWith("live ")) {
+                    int n = liveCount.getAndIncrement();
+                    if (n < liveNanos.length) {
+                        liveNanos[n] = System.nanoTime() - Long.parseLong(text.substring(5));
+                    }
+                }
+            }
+        });
+
+        for (int i = 0; i < backlog; i++) {
+            hostOut.writeMessage(new SimpleMessage("host", "#" + i + " " + TEXT));
+        }
+        hostOut.flush();
+        while (heard.get() < backlog) {
+            Thread.sleep(1);
+        }
+
+        long[][] quiet = joinAll(ip, port, roomKey, roomName, joins, "quiet");
+        System.out.println("backlog " + backlog + ": " + joins + " joins, " + quiet[2][0] + " Messages ("
+                        + quiet[2][1] + " bytes) replayed to each, on average");
+        System.out.println("  time-to-welcome (ms):     " + BenchSupport.summarize(quiet[0]));
+        System.out.println("  time-to-replayed (ms):    " + BenchSupport.summarize(quiet[1]));
+
+        // join as many again, chatting away live meanwhile.
+        CountDownLatch stop = new CountDownLatch(1);
+        Thread chatter = new Thread(() -> {
+            try {
+                long next = System.nanoTime();
+                while (stop.getCount() > 0) {
+                    hostOut.writeMessage(new SimpleMessage("host", "live " + System.nanoTime()));
+                    hostOut.flush();
+                    next += LIVE_INTERVAL_NANOS;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println("host chat failed --> " + e.getMessage());
+            }
+        }, "chatter");
+        chatter.setDaemon(true);
+        chatter.start();
+        long[][] busy = joinAll(ip, port, roomKey, roomName, joins, "busy");
+        stop.countDown();
+        chatter.join();
+        Thread.sleep(100);
+        long[] live = Arrays.copyOf(liveNanos, Math.min(liveCount.get(), liveNanos.length));
+        System.out.println("  with live chat (ms):      welcome " + BenchSupport.summarize(busy[0]) + "; replayed "
+                        + BenchSupport.summarize(busy[1]));
+        System.out.println("  live chat meanwhile (ms): " + BenchSupport.summarize(live) + " (" + live.length
+                        + " Messages)");
+        host.close();
+    }
+
+    /**
+     * has users join one at a time.
+     *
+     * @return times-to-welcome, times-to-replayed, then average Messages and
+     *         bytes replayed
+     */
+    private static long[][] joinAll(String ip, int port, String roomKey, String roomName, int joins, String prefix)
+                    throws Exception {
+        long[] welcomeNanos = new long[joins];
+        long[] replayNanos = new long[joins];
+        long replayed = 0;
+        long replayBytes = 0;
+        for (int i = 0; i < joins; i++) {
+            Joiner joiner = join(ip, port, roomKey, roomName, prefix + i);
+            welcomeNanos[i] = joiner.welcomedAt - joiner.startedAt;
+            replayNanos[i] = joiner.replayedAt - joiner.startedAt;
+            replayed += joiner.replayed;
+            replayBytes += joiner.replayBytes;
+            BenchSupport.startDraining(joiner.in, null);
+        }
+        return new long[][] { welcomeNanos, replayNanos, { replayed / joins, replayBytes / joins } };
+    }
+
+    /**
+     * a user that has joined, along with how long that took.
+     */
+    private static final class Joiner {
+        private MessageReader in; // input stream, once the user is in
+        private long startedAt; // System.nanoTime() before connecting
+        private long welcomedAt; // ... once the WelcomeMessage arrived
+        private long replayedAt; // ... once the replay arrived (as welcomedAt, if there was none)
+        private int replayed; // Messages replayed
+        private int replayBytes; // encoded size of the Messages replayed
+    }
+
+    /**
+     * joins a room, speaking the protocol directly (as a JoinRoomWorker and
+     * ChatUser would, over a single connection). The replay, if any, is taken to
+     * be whatever comes right after the welcome.
+     */
+    private static Joiner join(String ip, int port, String roomKey, String roomName, String alias)
+                    throws Exception {
+        Joiner joiner = new Joiner();
+        joiner.startedAt = System.nanoTime();
+        Socket socket = new Socket(ip, port);
+        MessageWriter out = MessageStreams.openWriter(socket.getOutputStream());
+        MessageReader in = MessageStreams.openReader(socket.getInputStream());
+        out.writeMessage(new SessionConnectMessage(roomKey, alias));
+        out.writeMessage(new JoinRoomMessage(alias, roomName));
+        out.flush();
+        in.readMessage(); // "OK"
+        Message msg = in.readMessage();
+        if (!(msg instanceof WelcomeMessage)) {
+            throw new IllegalStateException("expected a welcome, got " + msg.getClass().getSimpleName());
+        }
+        joiner.welcomedAt = System.nanoTime();
+        joiner.replayedAt = joiner.welcomedAt;
+        socket.setSoTimeout(REPLAY_WAIT_MS);
+        try {
+            msg = in.readMessage();
+            if (msg instanceof ReplayMessage) {
+                joiner.replayedAt = System.nanoTime();
+                for (byte[] payload : ((ReplayMessage) msg).getEncodedMessages()) {
+                    joiner.replayed++;
+                    joiner.replayBytes += payload.length;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // nothing to replay.
+        }
+        socket.setSoTimeout(0);
+        joiner.in = in;
+        return joiner;
+    }
+}
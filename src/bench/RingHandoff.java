@@ -0,0 +1,183 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import misc.Constants;
+import misc.MpscRingBuffer;
+import misc.Signal;
+
+/**
+ * measures handing Messages from any number of threads to one (as
+ * SessionInputWorkers hand them to MessageRouters, and routers to
+ * OutputWorkers): how many get through a second, and how long each spends on
+ * the way (its hop latency, from being put in until being taken out).
+ *
+ * Both ways of doing so are timed, side by side: the MpscRingBuffer workers use
+ * now, and the fair ArrayBlockingQueue and Signal pair they used before it (put
+ * in, then signal; drain, or await the signal). Each producer puts in its share
+ * of the Messages as fast as it can, each stamped with when it was put in; the
+ * consumer drains them in batches and times every one. Both are of
+ * Constants.MSG_QUEUE_LENGTH.
+ *
+ * Usage: java bench.RingHandoff [messages] [producer counts...]
+ *
+ * (defaults to 1000000 messages, with 1, 4 and 16 producers). On few cores,
+ * contended runs mostly measure how the threads get scheduled.
+ */
+public class RingHandoff {
+
+    private static final int ROUNDS = 3; // runs of each, the first one being warm-up
+    private static final int MAX_SAMPLES = 1 << 20; // most hop latencies kept per run
+
+    /**
+     * what's handed over: when it was put in.
+     */
+    private static final class Hop {
+        private final long sentAt; // System.nanoTime()
+
+        Hop(long at) {
+            sentAt = at;
+        }
+    }
+
+    /**
+     * one way of handing Messages over.
+     */
+    private interface Handoff {
+
+        void put(Hop hop) throws InterruptedException;
+
+        /**
+         * takes out whatever has been put in, waiting for something if need be.
+         * Consumer only.
+         */
+        void drainTo(ArrayList<Hop> out) throws InterruptedException;
+    }
+
+    private static final class Ring implements Handoff {
+        private final MpscRingBuffer<Hop> queue = new MpscRingBuffer<Hop>(Constants.MSG_QUEUE_LENGTH);
+
+        public void put(Hop hop) throws InterruptedException {
+            queue.put(hop);
+        }
+
+        public void drainTo(ArrayList<Hop> out) throws InterruptedException {
+            while (queue.drainTo(out) == 0) {
+                queue.await();
+            }
+        }
+    }
+
+    private static final class QueueAndSignal implements Handoff {
+        private final ArrayBlockingQueue<Hop> queue = new ArrayBlockingQueue<Hop>(Constants.MSG_QUEUE_LENGTH, true);
+        private final Signal signal = new Signal();
+
+        public void put(Hop hop) throws InterruptedException {
+            queue.put(hop);
+            signal.signal();
+        }
+
+        public void drainTo(ArrayList<Hop> out) throws InterruptedException {
+            while (queue.drainTo(out) == 0) {
+                signal.await();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int total = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int[] producerCounts = args.length > 1
+                        ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                        : new int[] { 1, 4, 16 };
+
+        ArrayList<String> results = new ArrayList<String>();
+        System.out.println("producers  queue   throughput (M msg/s)  hop latency p50 / p99 (us)");
+        for (int producers : producerCounts) {
+            for (String kind : new String[] { "ring", "abq" }) {
+                double[] last = null;
+                for (int round = 0; round < ROUNDS; round++) {
+                    Handoff handoff = kind.equals("ring") ? new Ring() : new QueueAndSignal();
+                    last = run(handoff, producers, total);
+                }
+                System.out.println(String.format("%9d  %-6s  %20.2f  %10.1f / %.1f", producers, kind, last[0], last[1],
+                                last[2]));
+                String key = "handoff." + kind + "." + producers;
+                results.add(String.format("%s.mps=%.2f", key, last[0]));
+                results.add(String.format("%s.p50.us=%.1f", key, last[1]));
+                results.add(String.format("%s.p99.us=%.1f", key, last[2]));
+            }
+        }
+        System.out.println("# results");
+        for (String line : results) {
+            System.out.println(line);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * hands the given number of Messages over, split among producers.
+     *
+     * @return throughput (millions a second), then p50 and p99 hop latency (us)
+     */
+    private static double[] run(Handoff handoff, int producers, int total) throws Exception {
+        int each = total / producers;
+        int expected = each * producers;
+        int sampleEvery = Math.max(1, expected / MAX_SAMPLES);
+        long[] samples = new long[expected / sampleEvery + 1];
+        int[] sampleCount = new int[1];
+
+        CountDownLatch ready = new CountDownLatch(producers);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread consumer = new Thread(() -> {
+            ArrayList<Hop> taken = new ArrayList<Hop>();
+            int received = 0;
+            try {
+                while (received < expected) {
+                    taken.clear();
+                    handoff.drainTo(taken);
+                    long now = System.nanoTime();
+                    for (Hop hop : taken) {
+                        if (received++ % sampleEvery == 0 && sampleCount[0] < samples.length) {
+                            samples[sampleCount[0]++] = now - hop.sentAt;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }, "consumer");
+        consumer.start();
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(() -> {
+                try {
+                    ready.countDown();
+                    go.await();
+                    for (int i = 0; i < each; i++) {
+                        handoff.put(new Hop(System.nanoTime()));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }, "producer-" + p);
+            threads[p].start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        consumer.join();
+        long elapsed = System.nanoTime() - start;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long[] sorted = Arrays.copyOf(samples, sampleCount[0]);
+        Arrays.sort(sorted);
+        return new double[] { expected / (elapsed / 1e3), BenchSupport.percentile(sorted, 50) / 1e3,
+                        BenchSupport.percentile(sorted, 99) / 1e3 };
+    }
+}
@@ -0,0 +1,170 @@
+package bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import io.EncodedFrame;
+import io.history.HistoryStore;
+import io.history.RoomHistory;
+import io.history.SearchIndex;
+import messages.SearchMessage;
+import messages.SimpleMessage;
+import misc.Constants;
+
+/**
+ * measures whether search indexing (see io.history.SearchIndex) keeps up with a
+ * room's history as it is written, what the index costs on disk, and how long
+ * searches take.
+ *
+ * A producer stands in for the room's routers, handing made-up chat messages
+ * (words drawn from a vocabulary, common words far more often than rare ones,
+ * now and then a link; sent by one of a few dozen users) to the room's history
+ * as fast as its writer takes them in. How far indexing falls behind writing is
+ * sampled throughout, and how long it takes to catch up once the producer
+ * stops. Then a few kinds of searches are run over the lot: a common word, a
+ * rare one, a phrase, a sender, a sender within a time range. Last, the store is
+ * shut down and the room opened again, to check that the index picks up where it
+ * left off rather than starting over.
+ *
+ * Usage: java bench.SearchIndexing [messages] [searches per kind]
+ *
+ * (defaults to 200000 messages, 200 searches). The history is written to a
+ * scratch directory, deleted afterwards.
+ */
+public class SearchIndexing {
+
+    private static final int VOCABULARY = 5000; // distinct words messages are made of
+    private static final int USERS = 40; // distinct senders
+
+    public static void main(String[] args) throws Exception {
+        int total = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int searches = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Path dir = Files.createTempDirectory("search-indexing");
+        System.setProperty(Constants.HISTORY_DIR_PROPERTY, dir.toString());
+        String roomKey = Constants.SID_PREFIX + 0;
+
+        HistoryStore store = HistoryStore.fromProperties();
+        RoomHistory room = store.open(roomKey);
+        if (room.getSearchIndex() == null) {
+            System.out.println("search is off; nothing to measure.");
+            System.exit(1);
+        }
+        String[] words = new String[VOCABULARY];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = wordFor(i);
+        }
+        Random random = new Random(42);
+        int window = Constants.HISTORY_QUEUE_LENGTH / 2; // most messages the room is let get ahead of its writer
+
+        long historyBytes = 0;
+        long maxLag = 0;
+        long lagSum = 0;
+        int lagSamples = 0;
+        long start = System.nanoTime();
+        for (int sent = 0; sent < total; sent++) {
+            while (sent - room.getNextOffset() >= window) {
+                Thread.yield(); // the room's writer is behind.
+            }
+            SimpleMessage msg = new SimpleMessage("user" + random.nextInt(USERS), textFor(random, words));
+            EncodedFrame frame = EncodedFrame.encode(msg, 1);
+            historyBytes += frame.getLength();
+            synchronized (room) { // stands in for the room's fan-out lock
+                room.record(frame);
+            }
+            if (sent % 1000 == 0) {
+                long lag = room.getNextOffset() - room.getSearchIndex().getIndexedUpTo();
+                maxLag = Math.max(maxLag, lag);
+                lagSum += lag;
+                lagSamples++;
+            }
+        }
+        while (room.getNextOffset() < total) {
+            Thread.sleep(1);
+        }
+        long written = System.nanoTime();
+        while (room.getSearchIndex().getIndexedUpTo() < total) {
+            Thread.sleep(1);
+        }
+        long indexed = System.nanoTime();
+
+        System.out.println(store.describe());
+        System.out.println(room.describe());
+        System.out.println(String.format("history written at %.0f messages/s; indexed at %.0f messages/s overall",
+                        total / ((written - start) / 1e9), total / ((indexed - start) / 1e9)));
+        double meanLag = lagSamples == 0 ? 0.0 : lagSum / (double) lagSamples;
+        System.out.println(String.format("indexing lag while writing: %.0f messages on average, %d at most; "
+                        + "caught up %.1f ms after the last write", meanLag, maxLag, (indexed - written) / 1e6));
+
+        // let the last few messages be flushed, so the index's size on disk is all of it.
+        while (room.getSearchIndex().hasBuffered()) {
+            Thread.sleep(10);
+        }
+        SearchIndex index = room.getSearchIndex();
+        System.out.println(String.format("index: %d bytes for %d bytes of messages (%.0f%%), %d flushes, %d merges",
+                        index.getByteCount(), historyBytes, 100.0 * index.getByteCount() / historyBytes,
+                        index.getFlushCount(), index.getMergeCount()));
+
+        String[] queries = { words[1], words[VOCABULARY - 1], words[3] + " " + words[7],
+                        "\"" + words[3] + " " + words[7] + "\"", "from:user7", "from:user7 since:1h " + words[2],
+                        "example.com/" + words[5] };
+        for (String query : queries) {
+            long[] nanos = new long[searches];
+            int matched = 0;
+            for (int i = 0; i < searches; i++) {
+                SearchMessage request = new SearchMessage("bench", "bench", query, Constants.SEARCH_MAX_RESULTS);
+                long t = System.nanoTime();
+                room.search(request);
+                nanos[i] = System.nanoTime() - t;
+                matched = request.getOffsets().size();
+            }
+            Arrays.sort(nanos);
+            System.out.println(String.format("%-32s %2d matches, p50 %7.1f us, p99 %7.1f us", query, matched,
+                            BenchSupport.percentile(nanos, 50) / 1e3, BenchSupport.percentile(nanos, 99) / 1e3));
+        }
+
+        room.close();
+        store.shutDown();
+        HistoryStore reopened = HistoryStore.fromProperties();
+        RoomHistory again = reopened.reopen(roomKey);
+        System.out.println("reopened: indexed up to " + again.getSearchIndex().getIndexedUpTo() + " of "
+                        + again.getNextOffset());
+        again.close();
+        reopened.shutDown();
+        BenchSupport.deleteAll(dir);
+        System.exit(0);
+    }
+
+    /**
+     * a made-up word, distinct for every i.
+     */
+    private static String wordFor(int i) {
+        StringBuilder word = new StringBuilder();
+        String syllables = "ka to ri mu sen la vo pe di an";
+        String[] parts = syllables.split(" ");
+        do {
+            word.append(parts[i % parts.length]);
+            i /= parts.length;
+        } while (i > 0);
+        return word.toString();
+    }
+
+    /**
+     * a made-up message: 3 to 20 words, picked so that word i turns up about
+     * 1/(i+1) as often as the commonest (roughly how words are spread in real
+     * chat), now and then with a link.
+     */
+    private static String textFor(Random random, String[] words) {
+        int length = 3 + random.nextInt(18);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            int w = (int) Math.pow(words.length, random.nextDouble()) - 1;
+            text.append(i == 0 ? "" : " ").append(words[w]);
+        }
+        if (random.nextInt(20) == 0) {
+            text.append(" https://example.com/").append(words[random.nextInt(50)]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,123 @@
+package io;
+
+import misc.Constants;
+
+/**
+ * what to do when a recipient can't keep up with the Messages being sent to
+ * them (see OutgoingBacklog). Each chat room has a policy of its own; by
+ * default, rooms take theirs from the following launch options:
+ *
+ * -Dchatter.backpressure=block|drop-oldest|coalesce|disconnect
+ *
+ * -Dchatter.backpressure.timeout.ms=N (block only; 0 waits for good)
+ *
+ * -Dchatter.backpressure.max.bytes=N (0 for no limit)
+ *
+ * -Dchatter.backpressure.max.age.ms=N (0 for no limit)
+ *
+ * A recipient's backlog is considered full when it holds as many frames as it
+ * can, when it holds more than max.bytes worth of them, or when the oldest of
+ * them has been waiting longer than max.age.ms.
+ */
+public final class BackpressurePolicy {
+
+    /**
+     * the ways a full backlog can be dealt with.
+     */
+    public enum Mode {
+        BLOCK, // sender waits (up to the timeout) for room; the Message is dropped if none comes up
+        DROP_OLDEST, // oldest queued Message is dropped; the recipient is told about the gap
+        COALESCE, // queued chat from the same sender is merged; oldest is dropped if that isn't enough
+        DISCONNECT // recipient is disconnected
+    }
+
+    private final Mode mode; // what to do when full
+    private final long blockTimeoutMillis; // longest a sender waits under BLOCK (0 for no limit)
+    private final long maxBacklogBytes; // most bytes a backlog may hold (0 for no limit)
+    private final long maxBacklogAgeMillis; // longest a frame may wait in a backlog (0 for no limit)
+
+    /**
+     * BackpressurePolicy constructor.
+     *
+     * @param m        what to do when full
+     * @param timeout  longest a sender waits under BLOCK, in ms (0 for no limit)
+     * @param maxBytes most bytes a backlog may hold (0 for no limit)
+     * @param maxAge   longest a frame may wait in a backlog, in ms (0 for no limit)
+     */
+    public BackpressurePolicy(Mode m, long timeout, long maxBytes, long maxAge) {
+        mode = m;
+        blockTimeoutMillis = Math.max(0, timeout);
+        maxBacklogBytes = Math.max(0, maxBytes);
+        maxBacklogAgeMillis = Math.max(0, maxAge);
+    }
+
+    /**
+     * the policy given at launch (see above).
+     *
+     * @return the policy
+     */
+    public static BackpressurePolicy fromProperties() {
+        String name = System.getProperty(Constants.BACKPRESSURE_PROPERTY, Constants.BACKPRESSURE_DROP_OLDEST);
+        Mode m = parseMode(name);
+        if (m == null) {
+            System.out.println("Unknown backpressure policy " + name + "; using "
+                            + Constants.BACKPRESSURE_DROP_OLDEST + ".");
+            m = Mode.DROP_OLDEST;
+        }
+        return new BackpressurePolicy(m,
+                        Long.getLong(Constants.BACKPRESSURE_TIMEOUT_PROPERTY, Constants.BACKPRESSURE_TIMEOUT_MS),
+                        Long.getLong(Constants.BACKPRESSURE_MAX_BYTES_PROPERTY, Constants.BACKPRESSURE_MAX_BYTES),
+                        Long.getLong(Constants.BACKPRESSURE_MAX_AGE_PROPERTY, Constants.BACKPRESSURE_MAX_AGE_MS));
+    }
+
+    /**
+     * a policy that simply waits for room, however long it takes. Used where the
+     * sender is the user themself (i.e., by ChatUser).
+     *
+     * @return the policy
+     */
+    public static BackpressurePolicy blocking() {
+        return new BackpressurePolicy(Mode.BLOCK, 0, 0, 0);
+    }
+
+    /**
+     * maps a policy name, as given at launch, to its mode.
+     *
+     * @param name policy name
+     * @return the mode, or null if unknown
+     */
+    public static Mode parseMode(String name) {
+        if (name.equalsIgnoreCase(Constants.BACKPRESSURE_BLOCK)) {
+            return Mode.BLOCK;
+        } else if (name.equalsIgnoreCase(Constants.BACKPRESSURE_DROP_OLDEST)) {
+            return Mode.DROP_OLDEST;
+        } else if (name.equalsIgnoreCase(Constants.BACKPRESSURE_COALESCE)) {
+            return Mode.COALESCE;
+        } else if (name.equalsIgnoreCase(Constants.BACKPRESSURE_DISCONNECT)) {
+            return Mode.DISCONNECT;
+        }
+        return null;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+    public long getMaxBacklogBytes() {
+        return maxBacklogBytes;
+    }
+
+    public long getMaxBacklogAgeMillis() {
+        return maxBacklogAgeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return mode + " (timeout " + blockTimeoutMillis + "ms, max " + maxBacklogBytes + " bytes, max age "
+                        + maxBacklogAgeMillis + "ms)";
+    }
+}
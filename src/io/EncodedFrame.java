@@ -0,0 +1,216 @@
+package io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import messages.Message;
+import messages.MessageEncoder;
+
+/**
+ * a Message that has already been encoded for the wire, ready to be written out
+ * as-is by any number of OutputWorkers.
+ *
+ * When a MessageRouter broadcasts a Message to N users, it encodes the Message
+ * into one of these exactly once, with a reference count of N. Each OutputWorker
+ * writes the very same bytes out and then releases its reference; once the last
+ * reference is released, the backing array goes back into a shared pool for the
+ * next frame to use. A frame must not be touched after it has been released.
+ *
+ * NOTE frames that are never released (say, because an OutputWorker died with
+ * frames still queued up) are simply garbage collected; their arrays just never
+ * make it back into the pool.
+ *
+ * When the wire format switch calls for Java serialization (see MessageStreams),
+ * there are no bytes to share, as every Object stream encodes differently; the
+ * frame then simply carries the Message along to be written the old way.
+ */
+public final class EncodedFrame {
+
+    private static final int POOLED_ARRAY_SIZE = 512; // frames larger than this get an array of their own
+    private static final int MAX_POOLED_ARRAYS = 1024; // arrays beyond this many are left to the GC
+
+    private static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger pooledCount = new AtomicInteger(0); // size of the pool (CLQ.size() is O(n))
+
+    // each thread encodes with its own encoder, as encoders hold onto scratch space.
+    private static final ThreadLocal<MessageEncoder> encoders = ThreadLocal
+                    .withInitial(() -> new MessageEncoder(null));
+
+    private static final AtomicInteger encodeCount = new AtomicInteger(0); // number of encodes ever performed
+
+    private final Message message; // the Message this frame was built from
+    private byte[] bytes; // encoded Message, length prefix included (null if not encoded)
+    private final int length; // number of bytes in use
+    private final AtomicInteger refCount; // number of writers yet to release this frame
+    private final long encodedAt; // System.nanoTime() at encoding
+
+    /**
+     * private constructor; use encode() instead.
+     *
+     * @param msg        the Message
+     * @param data       encoded bytes (or null)
+     * @param dataLength number of bytes of data in use
+     * @param refs       initial reference count
+     */
+    private EncodedFrame(Message msg, byte[] data, int dataLength, int refs) {
+        message = msg;
+        bytes = data;
+        length = dataLength;
+        refCount = new AtomicInteger(refs);
+        encodedAt = System.nanoTime();
+    }
+
+    /**
+     * builds a frame for the given Message, to be written out by the given number
+     * of writers.
+     *
+     * @param msg        Message to encode
+     * @param recipients number of writers that will write (and then release) the
+     *                       frame
+     * @return the frame
+     * @throws IOException if the Message could not be encoded
+     */
+    public static EncodedFrame encode(Message msg, int recipients) throws IOException {
+        if (!MessageStreams.isBinaryFormat()) {
+            return new EncodedFrame(msg, null, 0, recipients);
+        }
+
+        MessageEncoder encoder = encoders.get();
+        int frameLength = encoder.encodeFramed(msg);
+        byte[] data = null;
+        if (frameLength <= POOLED_ARRAY_SIZE) {
+            data = pool.poll();
+            if (data != null) {
+                pooledCount.decrementAndGet();
+            } else {
+                data = new byte[POOLED_ARRAY_SIZE];
+            }
+        } else {
+            data = new byte[frameLength];
+        }
+        encoder.copyEncoded(data, 0);
+        encodeCount.incrementAndGet();
+        return new EncodedFrame(msg, data, frameLength, recipients);
+    }
+
+    /**
+     * total number of Messages encoded into frames so far. Used to confirm that a
+     * broadcast costs one encode, regardless of the number of recipients.
+     *
+     * @return encode count
+     */
+    public static int getEncodeCount() {
+        return encodeCount.get();
+    }
+
+    /**
+     * getter for the Message this frame was built from.
+     *
+     * @return the Message
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * number of bytes the frame takes up on the wire.
+     *
+     * @return encoded length (0 if not encoded)
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * time since the frame was built; frames are queued up as soon as they are
+     * built, so this is also how long the frame has been waiting to go out.
+     *
+     * @return age in milliseconds
+     */
+    public long getAgeMillis() {
+        return (System.nanoTime() - encodedAt) / 1_000_000;
+    }
+
+    /**
+     * checks whether this frame carries encoded bytes.
+     *
+     * @return true if encoded, false if the Message must be written the old way
+     */
+    public boolean isEncoded() {
+        return bytes != null;
+    }
+
+    /**
+     * writes the encoded bytes out. Only to be called on encoded frames that have
+     * not yet been released by the caller.
+     *
+     * @param out stream to write to
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    /**
+     * wraps the encoded bytes in a buffer of the caller's own, so that several
+     * writers can each keep track of how much they have written. Only to be called
+     * on encoded frames that have not yet been released by the caller.
+     *
+     * @return buffer over the encoded bytes
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes, 0, length);
+    }
+
+    /**
+     * copies the Message out in the binary wire format, without the length prefix
+     * (encoding it, should the frame not be encoded). Only to be called on frames
+     * that have not yet been released by the caller.
+     *
+     * @return the Message's payload
+     * @throws IOException if the Message could not be encoded
+     */
+    public byte[] copyPayload() throws IOException {
+        if (bytes == null) {
+            return MessageEncoder.encode(message);
+        }
+        int start = 0;
+        while ((bytes[start++] & 0x80) != 0) {
+            // skipping the length prefix.
+        }
+        return Arrays.copyOfRange(bytes, start, length);
+    }
+
+    /**
+     * takes more references to this frame, for writers that turned up after it was
+     * built. Only to be called before the frame has been handed to any writer.
+     *
+     * @param n number of references to add
+     */
+    public void retain(int n) {
+        refCount.addAndGet(n);
+    }
+
+    /**
+     * gives up one reference to this frame. The last reference to go returns the
+     * backing array to the pool.
+     */
+    public void release() {
+        int remaining = refCount.decrementAndGet();
+        if (remaining == 0 && bytes != null) {
+            byte[] data = bytes;
+            bytes = null;
+            if (data.length == POOLED_ARRAY_SIZE && pooledCount.incrementAndGet() <= MAX_POOLED_ARRAYS) {
+                pool.offer(data);
+            } else if (data.length == POOLED_ARRAY_SIZE) {
+                pooledCount.decrementAndGet();
+            }
+        } else if (remaining < 0) {
+            throw new IllegalStateException("frame released more times than it was referenced");
+        }
+    }
+}
@@ -1,9 +1,7 @@
 package io;
 
-import java.io.ObjectInputStream;
-import java.util.concurrent.ArrayBlockingQueue;
-
 import messages.Message;
+import misc.MpscRingBuffer;
 import misc.Worker;
 
 /**
@@ -12,12 +10,13 @@ import misc.Worker;
  * the other side of the queue is there to pick & handle it.
  *
  * Implementing subclasses have their own ways of notifying the entity on the
- * other side of the message queue, depending on situational context.
+ * other side of the message queue, depending on situational context. (An entity
+ * sleeping on the queue itself is woken up by the queue.)
  */
 public abstract class InputWorker extends Worker {
 
-    protected ObjectInputStream in; // used to read Message objects.
-    protected ArrayBlockingQueue<Message> messageQueue; // where newly received messages are placed.
+    protected MessageReader in; // used to read Message objects.
+    protected MpscRingBuffer<Message> messageQueue; // where newly received messages are placed.
 
     /**
      * constructor of InputWorker.
@@ -26,7 +25,7 @@ public abstract class InputWorker extends Worker {
      * @param input    incoming message stream.
      * @param msgQueue message queue.
      */
-    public InputWorker(String wid, ObjectInputStream input, ArrayBlockingQueue<Message> msgQueue) {
+    public InputWorker(String wid, MessageReader input, MpscRingBuffer<Message> msgQueue) {
         super(wid);
         isRunning = false;
         messageQueue = msgQueue;
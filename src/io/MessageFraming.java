@@ -0,0 +1,160 @@
+package io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import messages.Message;
+import messages.MessageDecoder;
+import messages.MessageEncoder;
+import messages.WireFormat;
+import misc.ValidateInput;
+
+/**
+ * helpers for exchanging Messages over a long-lived connection as discrete
+ * frames.
+ *
+ * A framed connection begins with CHANNEL_PREAMBLE (written by the connecting
+ * side), after which every Message travels as a 4-byte big-endian length
+ * followed by that many bytes of payload. Each payload is self-contained, so a
+ * non-blocking reader can decode frames one by one as they arrive without
+ * having to keep an ObjectInputStream alive across reads.
+ *
+ * Payloads are written in whichever format the wire format switch calls for
+ * (see MessageStreams), and are told apart on the way in by their first byte.
+ */
+public final class MessageFraming {
+
+    /**
+     * written by clients that wish to speak in frames. Chosen so it can never be
+     * mistaken for the start of an Object stream (0xACED).
+     */
+    public static final byte[] CHANNEL_PREAMBLE = { 'C', 'H', 'T', '1' };
+
+    public static final int MAX_FRAME_LENGTH = 1 << 20; // frames larger than this are refused
+
+    // only Message types (and what they are built from) may be deserialized.
+    private static final ObjectInputFilter MESSAGE_FILTER = ObjectInputFilter.Config
+                    .createFilter("messages.*;java.util.ArrayList;java.lang.*;!*");
+
+    private MessageFraming() {
+    }
+
+    /**
+     * checks whether the given bytes begin with the channel preamble.
+     *
+     * @param bytes  array to inspect
+     * @param offset where to start looking
+     * @param length number of readable bytes from offset
+     * @return true if the preamble is present
+     */
+    public static boolean startsWithPreamble(byte[] bytes, int offset, int length) {
+        if (length < CHANNEL_PREAMBLE.length) {
+            return false;
+        }
+        for (int i = 0; i < CHANNEL_PREAMBLE.length; i++) {
+            if (bytes[offset + i] != CHANNEL_PREAMBLE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * encodes a Message into a complete frame (length prefix included).
+     *
+     * @param msg message to encode
+     * @return frame bytes
+     * @throws IOException
+     */
+    public static byte[] encodeFrame(Message msg) throws IOException {
+        if (MessageStreams.isBinaryFormat()) {
+            byte[] payload = MessageEncoder.encode(msg);
+            byte[] frame = new byte[payload.length + 4];
+            writeLength(frame, payload.length);
+            System.arraycopy(payload, 0, frame, 4, payload.length);
+            return frame;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream framed = new DataOutputStream(bytes);
+        framed.writeInt(0); // placeholder for the length.
+        ObjectOutputStream out = new ObjectOutputStream(framed);
+        out.writeObject(msg);
+        out.flush();
+        byte[] frame = bytes.toByteArray();
+        writeLength(frame, frame.length - 4);
+        return frame;
+    }
+
+    /**
+     * fills in the length prefix at the start of a frame.
+     *
+     * @param frame         frame to fill in
+     * @param payloadLength length of the payload that follows
+     */
+    private static void writeLength(byte[] frame, int payloadLength) {
+        frame[0] = (byte) (payloadLength >>> 24);
+        frame[1] = (byte) (payloadLength >>> 16);
+        frame[2] = (byte) (payloadLength >>> 8);
+        frame[3] = (byte) payloadLength;
+    }
+
+    /**
+     * decodes a frame payload (length prefix excluded) back into a Message.
+     *
+     * @param bytes  array holding the payload
+     * @param offset start of the payload
+     * @param length length of the payload
+     * @return the decoded Message
+     * @throws IOException            if the payload is malformed
+     * @throws ClassNotFoundException if the payload names an unknown class
+     */
+    public static Message decodePayload(byte[] bytes, int offset, int length)
+                    throws IOException, ClassNotFoundException {
+        if (WireFormat.isBinaryPayload(bytes, offset, length)) {
+            return MessageDecoder.decode(bytes, offset, length);
+        }
+        return readObjectMessage(new ByteArrayInputStream(bytes, offset, length));
+    }
+
+    /**
+     * reads a single Message off an Object stream (header included), allowing
+     * only Message types through.
+     *
+     * @param source the stream's bytes
+     * @return the decoded Message
+     * @throws IOException            if the stream is malformed or cut short
+     * @throws ClassNotFoundException if the stream names an unknown class
+     */
+    public static Message readObjectMessage(InputStream source) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(source)) {
+            in.setObjectInputFilter(MESSAGE_FILTER);
+            return ValidateInput.validateMessage(in.readObject());
+        }
+    }
+
+    /**
+     * blocking read of a single frame.
+     *
+     * @param in stream to read from
+     * @return the decoded Message
+     * @throws IOException            on stream failure or a malformed frame
+     * @throws ClassNotFoundException if the payload names an unknown class
+     */
+    public static Message readFrame(DataInputStream in) throws IOException, ClassNotFoundException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("bad frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decodePayload(payload, 0, length);
+    }
+}
@@ -0,0 +1,38 @@
+package io;
+
+import java.io.IOException;
+
+import messages.Message;
+
+/**
+ * reads Messages in from a connection. Implementations are obtained through
+ * MessageStreams, which works out what the Messages look like on the wire.
+ */
+public interface MessageReader {
+
+    /**
+     * blocking read of a single Message.
+     * 
+     * @return the Message read
+     * @throws IOException            on connection failure or a malformed Message
+     * @throws ClassNotFoundException if a serialized Message names an unknown class
+     */
+    public Message readMessage() throws IOException, ClassNotFoundException;
+
+    /**
+     * checks whether Messages are arriving in the binary format.
+     * 
+     * @return true if binary, false if serialized
+     */
+    public boolean isBinary();
+
+    /**
+     * hands over whatever has been read off of the connection but not yet decoded,
+     * for when something else is about to take over reading from it (see
+     * io.session.EventLoopSessionEngine). The reader must not be used afterwards.
+     * 
+     * @return the bytes (possibly none)
+     * @throws IOException if the reader can't hand over its input
+     */
+    public byte[] drainBuffered() throws IOException;
+}
@@ -0,0 +1,144 @@
+package io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import messages.Message;
+import messages.MessageDecoder;
+import messages.MessageEncoder;
+import misc.Constants;
+import misc.ValidateInput;
+
+/**
+ * opens MessageWriters and MessageReaders on top of raw Socket streams.
+ *
+ * What gets written is decided by the wire format switch (see
+ * Constants.WIRE_FORMAT_PROPERTY): either the compact binary encoding (see
+ * messages.WireFormat) or plain Java serialization, as used by older builds.
+ * Readers don't need telling; they look at the first bytes the other side sends
+ * and pick whichever format that turns out to be. So long as both ends run this
+ * code, each may write in either format.
+ *
+ * NOTE just like with Object streams, opening a reader blocks until the other
+ * side has opened its writer, so open the writer first (see ChatUser.java).
+ */
+public final class MessageStreams {
+
+    private MessageStreams() {
+    }
+
+    /**
+     * checks the wire format switch.
+     * 
+     * @return true if Messages should be written in the binary format
+     */
+    public static boolean isBinaryFormat() {
+        String format = System.getProperty(Constants.WIRE_FORMAT_PROPERTY, Constants.WIRE_FORMAT_BINARY);
+        return !format.equalsIgnoreCase(Constants.WIRE_FORMAT_JAVA);
+    }
+
+    /**
+     * opens a writer in whichever format the wire format switch calls for. The
+     * stream header is sent straight away.
+     * 
+     * @param out raw output stream (typically that of a Socket)
+     * @return the writer
+     * @throws IOException
+     */
+    public static MessageWriter openWriter(OutputStream out) throws IOException {
+        if (!isBinaryFormat()) {
+            ObjectOutputStream objectOut = new ObjectOutputStream(out);
+            return new MessageWriter() {
+                public void writeMessage(Message msg) throws IOException {
+                    objectOut.writeObject(msg);
+                }
+
+                public void writeFrame(EncodedFrame frame) throws IOException {
+                    objectOut.writeObject(frame.getMessage());
+                }
+
+                public void flush() throws IOException {
+                    objectOut.flush();
+                }
+            };
+        }
+
+        BufferedOutputStream buffered = new BufferedOutputStream(out);
+        MessageEncoder encoder = new MessageEncoder(buffered);
+        encoder.writeStreamHeader();
+        encoder.flush();
+        return new MessageWriter() {
+            public void writeMessage(Message msg) throws IOException {
+                encoder.writeMessage(msg);
+            }
+
+            public void writeFrame(EncodedFrame frame) throws IOException {
+                if (frame.isEncoded()) {
+                    frame.writeTo(buffered);
+                } else {
+                    encoder.writeMessage(frame.getMessage());
+                }
+            }
+
+            public void flush() throws IOException {
+                encoder.flush();
+            }
+        };
+    }
+
+    /**
+     * opens a reader, blocking until the other side's stream header arrives so
+     * the format can be worked out.
+     * 
+     * @param in raw input stream (typically that of a Socket)
+     * @return the reader
+     * @throws IOException if the header is of neither format
+     */
+    public static MessageReader openReader(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+
+        // serialized streams always begin with 0xACED.
+        if (first == 0xAC && second == 0xED) {
+            ObjectInputStream objectIn = new ObjectInputStream(buffered);
+            return new MessageReader() {
+                public Message readMessage() throws IOException, ClassNotFoundException {
+                    return ValidateInput.validateMessage(objectIn.readObject());
+                }
+
+                public boolean isBinary() {
+                    return false;
+                }
+
+                public byte[] drainBuffered() throws IOException {
+                    throw new IOException("Object streams can't be handed over");
+                }
+            };
+        }
+
+        MessageDecoder decoder = new MessageDecoder(buffered);
+        decoder.readStreamHeader();
+        return new MessageReader() {
+            public Message readMessage() throws IOException {
+                return decoder.readMessage();
+            }
+
+            public boolean isBinary() {
+                return true;
+            }
+
+            public byte[] drainBuffered() throws IOException {
+                // the decoder never reads past the end of a Message, so only the buffer matters.
+                return buffered.readNBytes(buffered.available());
+            }
+        };
+    }
+}
@@ -0,0 +1,36 @@
+package io;
+
+import java.io.IOException;
+
+import messages.Message;
+
+/**
+ * writes Messages out to a connection. Implementations are obtained through
+ * MessageStreams, which decides what the Messages look like on the wire.
+ */
+public interface MessageWriter {
+
+    /**
+     * writes a Message out. It may sit in a buffer until flush() is called.
+     * 
+     * @param msg message to write
+     * @throws IOException
+     */
+    public void writeMessage(Message msg) throws IOException;
+
+    /**
+     * writes a frame out. Encoded frames are written byte for byte; frames that
+     * carry no bytes fall back on writeMessage(). The frame is not released.
+     * 
+     * @param frame frame to write
+     * @throws IOException
+     */
+    public void writeFrame(EncodedFrame frame) throws IOException;
+
+    /**
+     * pushes any buffered Messages out onto the connection.
+     * 
+     * @throws IOException
+     */
+    public void flush() throws IOException;
+}
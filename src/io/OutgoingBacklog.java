@@ -0,0 +1,594 @@
+package io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import messages.ExitRoomMessage;
+import messages.Message;
+import messages.SimpleMessage;
+import misc.Constants;
+import misc.MpscRingBuffer;
+
+/**
+ * the frames waiting to be written out to one recipient, along with what to do
+ * when the recipient can't keep up with them (see BackpressurePolicy).
+ *
+ * Frames are pushed in by any number of senders and taken out by the one writer
+ * serving the recipient (an OutputWorker, or an event loop). When the backlog is
+ * full, the sender deals with it according to the room's policy: it waits for
+ * room, drops the oldest frame, merges queued chat together, or disconnects the
+ * recipient. Dropped frames are counted, and the next time the writer takes
+ * frames out, it is handed a notice telling the recipient how many Messages they
+ * missed.
+ *
+ * Every recipient's backlog keeps count of what it holds and what it has had to
+ * drop, so slow recipients can be spotted (see describe()).
+ *
+ * NOTE frames are held in an MpscRingBuffer, which only one thread may take out
+ * of at a time. Since dropping and merging take frames out from the sender's
+ * side, whoever takes frames out (sender or writer) does so holding
+ * consumerLock.
+ */
+public class OutgoingBacklog {
+
+    private static final int BLOCK_YIELDS = 64; // times a blocked sender yields before napping
+    private static final long BLOCK_BACKOFF_NANOS = 50_000; // how long it then naps between attempts
+    private static final int MAX_MERGED_TEXT = 16 * 1024; // longest text chat is merged into
+
+    private final String owner; // who the frames are for (used when logging)
+    private final BackpressurePolicy policy; // what to do when full
+    private final MpscRingBuffer<EncodedFrame> frames; // the frames themselves
+    private final Object consumerLock = new Object(); // held while taking frames out (see above)
+    private final IdentityHashMap<EncodedFrame, Integer> mergedCounts; // merged frame -> Messages it holds
+
+    private final AtomicLong queuedBytes = new AtomicLong(0); // bytes currently queued
+    private final AtomicLong peakBytes = new AtomicLong(0); // most bytes ever queued at once
+    private final AtomicLong droppedFrames = new AtomicLong(0); // frames dropped so far
+    private final AtomicLong coalescedFrames = new AtomicLong(0); // frames saved by merging so far
+    private final AtomicInteger unreportedGap = new AtomicInteger(0); // drops the recipient hasn't been told of
+
+    private volatile boolean disconnected = false; // true once nothing more is to be queued
+    private volatile boolean isLagging = false; // true from the first drop until the recipient is told
+    private volatile Runnable disconnectHandler = null; // run when the policy disconnects the recipient
+
+    /**
+     * OutgoingBacklog constructor.
+     *
+     * @param who      who the frames are for (used when logging)
+     * @param p        what to do when full
+     * @param capacity most frames that may be queued at once
+     */
+    public OutgoingBacklog(String who, BackpressurePolicy p, int capacity) {
+        owner = who;
+        policy = p;
+        frames = new MpscRingBuffer<EncodedFrame>(capacity);
+        mergedCounts = new IdentityHashMap<EncodedFrame, Integer>();
+    }
+
+    /**
+     * sets what should happen when the policy disconnects the recipient (typically,
+     * closing their connection).
+     *
+     * @param handler what to run
+     */
+    public void setDisconnectHandler(Runnable handler) {
+        disconnectHandler = handler;
+    }
+
+    /**
+     * queues a frame up, dealing with a full backlog according to the policy. The
+     * frame's reference is released if it doesn't make it in. May be called by any
+     * thread.
+     *
+     * @param frame    frame holding one reference for this recipient
+     * @param mayBlock false if the caller must never wait (an event loop, or anyone
+     *                     holding a room's lock), in which case a blocking
+     *                     policy drops the frame straight away
+     * @return true if queued
+     */
+    public boolean offer(EncodedFrame frame, boolean mayBlock) {
+        long deadline = -1;
+        for (int attempt = 0;; attempt++) {
+            if (disconnected) {
+                frame.release();
+                return false;
+            }
+            if (!isOverLimit(frame) && frames.offer(frame)) {
+                long bytes = queuedBytes.addAndGet(frame.getLength());
+                peakBytes.accumulateAndGet(bytes, Math::max);
+                if (disconnected) {
+                    discard(); // discarded just as we got in; nobody else will hand it back now.
+                    return false;
+                }
+                return true;
+            }
+
+            switch (policy.getMode()) {
+                case BLOCK:
+                    if (mayBlock && !Thread.currentThread().isInterrupted()) {
+                        long now = System.nanoTime();
+                        if (deadline < 0) {
+                            long timeout = policy.getBlockTimeoutMillis();
+                            deadline = timeout == 0 ? Long.MAX_VALUE : now + timeout * 1_000_000;
+                        }
+                        if (now < deadline) {
+                            if (attempt < BLOCK_YIELDS) {
+                                Thread.yield();
+                            } else {
+                                LockSupport.parkNanos(this, BLOCK_BACKOFF_NANOS);
+                            }
+                            continue;
+                        }
+                    }
+                    reject(frame);
+                    return false;
+                case DROP_OLDEST:
+                    if (!evictOldest()) {
+                        reject(frame);
+                        return false;
+                    }
+                    break;
+                case COALESCE:
+                    if (coalesce() == 0 && !evictOldest()) {
+                        reject(frame);
+                        return false;
+                    }
+                    break;
+                case DISCONNECT:
+                    frame.release();
+                    disconnect();
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * under a blocking policy, waits (up to the policy's timeout) until the
+     * backlog has room for a frame, without queueing it. This lets a sender do
+     * its waiting before taking a lock that others need, then queue the frame
+     * without blocking (see MessageRouter.forward()). Under any other policy, or
+     * if the caller is interrupted, returns straight away.
+     *
+     * @param frame frame about to be queued
+     * @return true if there is room for it (for now)
+     */
+    public boolean awaitRoom(EncodedFrame frame) {
+        if (policy.getMode() != BackpressurePolicy.Mode.BLOCK) {
+            return true;
+        }
+        long deadline = -1;
+        for (int attempt = 0; !hasRoomFor(frame); attempt++) {
+            long now = System.nanoTime();
+            if (deadline < 0) {
+                long timeout = policy.getBlockTimeoutMillis();
+                deadline = timeout == 0 ? Long.MAX_VALUE : now + timeout * 1_000_000;
+            }
+            if (disconnected || now >= deadline || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            if (attempt < BLOCK_YIELDS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(this, BLOCK_BACKOFF_NANOS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * takes every queued frame out, preceded by a notice of any frames the
+     * recipient has missed. Writer only.
+     *
+     * @param out where to put the frames
+     * @return number of frames taken out
+     */
+    public int drainTo(List<EncodedFrame> out) {
+        synchronized (consumerLock) {
+            int n = 0;
+            EncodedFrame marker = takeGapMarker();
+            if (marker != null) {
+                out.add(marker);
+                n++;
+            }
+            EncodedFrame frame;
+            while ((frame = frames.poll()) != null) {
+                queuedBytes.addAndGet(-frame.getLength());
+                forgetMerged(frame);
+                out.add(frame);
+                n++;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * takes the next frame out (a notice of missed frames, if there is one to be
+     * given). Writer only.
+     *
+     * @return the frame, or null if there is none
+     */
+    public EncodedFrame poll() {
+        synchronized (consumerLock) {
+            EncodedFrame marker = takeGapMarker();
+            if (marker != null) {
+                return marker;
+            }
+            EncodedFrame frame = frames.poll();
+            if (frame != null) {
+                queuedBytes.addAndGet(-frame.getLength());
+                forgetMerged(frame);
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * waits for frames to be queued up (or for wakeUp()). Writer only.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void await() throws InterruptedException {
+        frames.await();
+    }
+
+    /**
+     * wakes the writer up, whether or not there is anything to write.
+     */
+    public void wakeUp() {
+        frames.wakeConsumer();
+    }
+
+    /**
+     * checks whether there is anything to write. Exact for the writer; merely a
+     * hint for anybody else.
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        return frames.isEmpty() && unreportedGap.get() == 0;
+    }
+
+    /**
+     * drops everything queued and refuses anything more, because the recipient is
+     * gone (or on their way out).
+     */
+    public void discard() {
+        disconnected = true;
+        synchronized (consumerLock) {
+            EncodedFrame frame;
+            while ((frame = frames.poll()) != null) {
+                queuedBytes.addAndGet(-frame.getLength());
+                forgetMerged(frame);
+                frame.release();
+            }
+        }
+        frames.wakeConsumer();
+    }
+
+    /**
+     * cuts the recipient off for falling too far behind.
+     */
+    private void disconnect() {
+        synchronized (this) {
+            // any number of senders may find the backlog full at once; only one cuts it off.
+            if (disconnected) {
+                return;
+            }
+            disconnected = true;
+        }
+        System.out.println(owner + " can't keep up (" + describe() + "); disconnecting.");
+        discard();
+        Runnable handler = disconnectHandler;
+        if (handler != null) {
+            handler.run();
+        }
+    }
+
+    /**
+     * checks whether a frame would fit, both within the policy's limits and within
+     * the ring buffer.
+     *
+     * @param frame frame about to be queued
+     * @return true if it would
+     */
+    private boolean hasRoomFor(EncodedFrame frame) {
+        return !isOverLimit(frame) && frames.size() < frames.capacity();
+    }
+
+    /**
+     * checks whether the backlog is full for the purposes of the given frame,
+     * going by the policy's limits (the frame limit is checked by the ring
+     * buffer itself). An empty backlog always has room, however large the frame.
+     *
+     * @param frame frame about to be queued
+     * @return true if over a limit
+     */
+    private boolean isOverLimit(EncodedFrame frame) {
+        if (frames.isEmpty()) {
+            return false;
+        }
+        long maxBytes = policy.getMaxBacklogBytes();
+        if (maxBytes > 0 && queuedBytes.get() + frame.getLength() > maxBytes) {
+            return true;
+        }
+        long maxAge = policy.getMaxBacklogAgeMillis();
+        return maxAge > 0 && getOldestAgeMillis() > maxAge;
+    }
+
+    /**
+     * drops the oldest queued frame. Should that be an ExitRoomMessage, the
+     * recipient is on their way out anyway, and is dealt with as in reject().
+     *
+     * @return true if there was one to drop
+     */
+    private boolean evictOldest() {
+        EncodedFrame oldest;
+        int messages;
+        synchronized (consumerLock) {
+            oldest = frames.poll();
+            if (oldest == null) {
+                return false;
+            }
+            queuedBytes.addAndGet(-oldest.getLength());
+            messages = forgetMerged(oldest);
+        }
+        if (oldest.getMessage() instanceof ExitRoomMessage) {
+            oldest.release();
+            discard();
+            return true;
+        }
+        countDrop(oldest, messages);
+        return true;
+    }
+
+    /**
+     * gives up on a frame that couldn't be queued. An ExitRoomMessage that can't
+     * be queued means the recipient will never hear they are out; their writer is
+     * stopped instead, as though they had been disconnected.
+     *
+     * @param frame the frame
+     */
+    private void reject(EncodedFrame frame) {
+        if (frame.getMessage() instanceof ExitRoomMessage) {
+            frame.release();
+            discard();
+            return;
+        }
+        countDrop(frame, 1);
+    }
+
+    /**
+     * releases a dropped frame and keeps count of it.
+     *
+     * @param frame    the frame
+     * @param messages number of Messages it holds (more than one if merged)
+     */
+    private void countDrop(EncodedFrame frame, int messages) {
+        frame.release();
+        droppedFrames.incrementAndGet();
+        unreportedGap.addAndGet(messages);
+        if (!isLagging) {
+            isLagging = true;
+            System.out.println(owner + " is falling behind; dropping messages (" + describe() + ").");
+        }
+    }
+
+    /**
+     * merges runs of queued chat from the same sender into single Messages.
+     *
+     * @return number of frames saved
+     */
+    private int coalesce() {
+        int saved;
+        synchronized (consumerLock) {
+            saved = frames.rewrite(this::mergeChat);
+        }
+        coalescedFrames.addAndGet(saved);
+        return saved;
+    }
+
+    /**
+     * merges consecutive chat Messages from the same sender into one, the texts
+     * one per line (up to MAX_MERGED_TEXT characters' worth). Anything else is
+     * left alone. Called holding consumerLock.
+     *
+     * @param queued queued frames, oldest first
+     * @return frames to queue in their place
+     */
+    private List<EncodedFrame> mergeChat(List<EncodedFrame> queued) {
+        ArrayList<EncodedFrame> merged = new ArrayList<EncodedFrame>(queued.size());
+        int i = 0;
+        while (i < queued.size()) {
+            EncodedFrame first = queued.get(i);
+            int j = i + 1;
+            int length = isChat(first) ? textOf(first).length() : 0;
+            while (j < queued.size() && isChat(first) && isChat(queued.get(j)) && sameSender(first, queued.get(j))
+                            && length + 1 + textOf(queued.get(j)).length() <= MAX_MERGED_TEXT) {
+                length += 1 + textOf(queued.get(j)).length();
+                j++;
+            }
+            if (j - i == 1) {
+                merged.add(first);
+                i = j;
+                continue;
+            }
+
+            StringBuilder text = new StringBuilder(length);
+            for (int k = i; k < j; k++) {
+                if (k > i) {
+                    text.append('\n');
+                }
+                text.append(textOf(queued.get(k)));
+            }
+            try {
+                String sender = first.getMessage().getAssociatedSenderAlias();
+                EncodedFrame combined = EncodedFrame.encode(new SimpleMessage(sender, text.toString()), 1);
+                int messages = 0;
+                for (int k = i; k < j; k++) {
+                    queuedBytes.addAndGet(-queued.get(k).getLength());
+                    messages += forgetMerged(queued.get(k));
+                    queued.get(k).release();
+                }
+                queuedBytes.addAndGet(combined.getLength());
+                mergedCounts.put(combined, messages);
+                merged.add(combined);
+            } catch (IOException e) {
+                System.out.println(owner + " error merging messages --> " + e.getMessage());
+                merged.addAll(queued.subList(i, j));
+            }
+            i = j;
+        }
+        return merged;
+    }
+
+    /**
+     * checks whether a frame holds a chat Message that may be merged.
+     *
+     * @param frame the frame
+     * @return true if mergeable
+     */
+    private static boolean isChat(EncodedFrame frame) {
+        Message msg = frame.getMessage();
+        return msg instanceof SimpleMessage && !msg.isSingleShot() && msg.getAssociatedSenderAlias() != null;
+    }
+
+    /**
+     * the text of a chat Message.
+     *
+     * @param frame frame holding the Message
+     * @return the text
+     */
+    private static String textOf(EncodedFrame frame) {
+        return ((SimpleMessage) frame.getMessage()).getText();
+    }
+
+    /**
+     * stops keeping track of a frame leaving the backlog, should it have been
+     * merged. Called holding consumerLock.
+     *
+     * @param frame the frame
+     * @return number of Messages it holds
+     */
+    private int forgetMerged(EncodedFrame frame) {
+        if (mergedCounts.isEmpty()) {
+            return 1;
+        }
+        Integer messages = mergedCounts.remove(frame);
+        return messages == null ? 1 : messages;
+    }
+
+    /**
+     * checks whether two frames hold Messages from the same sender.
+     *
+     * @param a one frame
+     * @param b the other
+     * @return true if the senders match
+     */
+    private static boolean sameSender(EncodedFrame a, EncodedFrame b) {
+        return a.getMessage().getAssociatedSenderAlias().equals(b.getMessage().getAssociatedSenderAlias());
+    }
+
+    /**
+     * builds the notice telling the recipient how many Messages they have missed
+     * (if any). Called holding consumerLock.
+     *
+     * @return the notice, or null if there is nothing to tell
+     */
+    private EncodedFrame takeGapMarker() {
+        int missed = unreportedGap.getAndSet(0);
+        if (missed == 0) {
+            return null;
+        }
+        isLagging = false;
+        String text = missed + (missed == 1 ? " message was" : " messages were")
+                        + " dropped because you fell behind.";
+        try {
+            return EncodedFrame.encode(new SimpleMessage(Constants.GAP_MARKER_ALIAS, text), 1);
+        } catch (IOException e) {
+            System.out.println(owner + " error building gap notice --> " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * number of frames currently queued.
+     *
+     * @return frame count
+     */
+    public int getQueuedFrames() {
+        return frames.size();
+    }
+
+    /**
+     * number of bytes currently queued.
+     *
+     * @return byte count
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * most bytes ever queued at once.
+     *
+     * @return byte count
+     */
+    public long getPeakBytes() {
+        return peakBytes.get();
+    }
+
+    /**
+     * how long the oldest queued frame has been waiting.
+     *
+     * @return age in milliseconds (0 if nothing is queued)
+     */
+    public long getOldestAgeMillis() {
+        synchronized (consumerLock) {
+            EncodedFrame oldest = frames.peek();
+            return oldest == null ? 0 : oldest.getAgeMillis();
+        }
+    }
+
+    /**
+     * number of frames dropped so far.
+     *
+     * @return drop count
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * number of frames saved by merging so far.
+     *
+     * @return frame count
+     */
+    public long getCoalescedFrames() {
+        return coalescedFrames.get();
+    }
+
+    /**
+     * checks whether the backlog has stopped taking frames.
+     *
+     * @return true if disconnected (or discarded)
+     */
+    public boolean isDisconnected() {
+        return disconnected;
+    }
+
+    /**
+     * one-line summary of the backlog, for logs and reports.
+     *
+     * @return the summary
+     */
+    public String describe() {
+        return getQueuedFrames() + " frames, " + getQueuedBytes() + " bytes (peak " + getPeakBytes()
+                        + "), oldest " + getOldestAgeMillis() + "ms, " + getDroppedFrames() + " dropped, "
+                        + getCoalescedFrames() + " merged" + (disconnected ? ", disconnected" : "");
+    }
+}
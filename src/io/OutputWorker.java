@@ -1,21 +1,21 @@
 package io;
 
 import java.util.ArrayList;
-import java.util.concurrent.ArrayBlockingQueue;
 
 import messages.ExitRoomMessage;
 import messages.Message;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 
 import misc.Worker;
 
 /**
  * this class represents an entity responsible for writing messages out through
  * a particular Socket to/from a given ChatUser. Before being written to the
- * Socket, outgoing messages are retrieved from an ArrayBlockingQueue, which
- * carries with it embedded protection against race conditions.
+ * Socket, outgoing messages are retrieved from an OutgoingBacklog, which any
+ * number of threads can safely push into (and which deals with a recipient
+ * that can't keep up); the OutputWorker is its one writer, and sleeps on the
+ * backlog itself whenever there is nothing to send.
  *
  * NOTE this class is slightly different from its counterpart, InputWorker, in
  * that its defined functionality/role it is intended to serve for ChatUser and
@@ -23,9 +23,8 @@ import misc.Worker;
  */
 public class OutputWorker extends Worker {
 
-    private ObjectOutputStream out; // what will be used to send outgoing messages.
-    private ArrayBlockingQueue<Message> messageQueue; // where outgoing messages will be retrieved from.
-    private Object outNotifier; // wait on this for new messages that require sending.
+    private MessageWriter out; // what will be used to send outgoing messages.
+    private OutgoingBacklog messageQueue; // where outgoing messages will be retrieved from.
 
     /**
      * constructor of OutputWorker.
@@ -33,23 +32,19 @@ public class OutputWorker extends Worker {
      * @param workerCode differentiates ChatUser/Coordinator writers.
      * @param output     stream used for writing outgoing messages.
      * @param msgQueue   where to-be-sent messages are first pulled from.
-     * @param outNotif   notified on when new messages require sending.
      */
-    public OutputWorker(String workerCode, ObjectOutputStream output, ArrayBlockingQueue<Message> msgQueue,
-                    Object outNotif) {
+    public OutputWorker(String workerCode, MessageWriter output, OutgoingBacklog msgQueue) {
         super("OW-" + workerCode);
         messageQueue = msgQueue;
         out = output;
-        outNotifier = outNotif;
     }
 
     /**
-     * accessor for OutputWorker's notifier.
-     * 
-     * @return notifier object for OutputWorker
+     * wakes the OutputWorker up if it is waiting for messages (used when shutting
+     * it down).
      */
-    public Object getNotifier() {
-        return outNotifier;
+    public void wakeUp() {
+        messageQueue.wakeUp();
     }
 
     /**
@@ -58,28 +53,41 @@ public class OutputWorker extends Worker {
     public void run() {
         turnOn();
 
+        ArrayList<EncodedFrame> toSend = new ArrayList<EncodedFrame>();
         while (true) {
+            int handedBack = 0; // frames of toSend we've written out (or tried to) and released
             try {
-                if (workerID.endsWith("S1")) {
-                    System.out.println("here");
-                }
-                ArrayList<Message> toSend = new ArrayList<Message>();
                 /**
-                 * this loop ensures we don't accidentally call wait() when there are already
-                 * messages queued & ready to be sent out.
+                 * this loop ensures we don't accidentally wait when there are already messages
+                 * queued & ready to be sent out. (await() returns early when woken up for shut
+                 * down, or when the backlog's policy has cut the recipient off, hence the
+                 * checks.)
                  */
                 while (true) {
                     messageQueue.drainTo(toSend);
-                    if (toSend.size() > 0) {
+                    if (toSend.size() > 0 || !isRunning) {
                         break;
                     }
-                    synchronized (outNotifier) {
-                        outNotifier.wait();
+                    if (messageQueue.isDisconnected()) {
+                        turnOff();
+                        break;
                     }
+                    messageQueue.await();
                 }
 
-                for (Object msg : toSend) {
-                    out.writeObject(msg);
+                for (EncodedFrame frame : toSend) {
+                    /**
+                     * NOTE the same frame may be sitting in other OutputWorkers' queues too. We
+                     * hand our reference back as soon as the bytes are out, and must not touch the
+                     * frame after that.
+                     */
+                    Message msg = frame.getMessage();
+                    handedBack++;
+                    try {
+                        out.writeFrame(frame);
+                    } finally {
+                        frame.release();
+                    }
                     // if we catch an ERM as it's going out, we know to turn off.
                     if (msg instanceof ExitRoomMessage) {
                         turnOff();
@@ -97,6 +105,12 @@ public class OutputWorker extends Worker {
                 }
             } catch (Exception e) {
                 System.out.println("OutputWorker Error! --> " + e.getMessage());
+            } finally {
+                // whatever we didn't get to (past an ERM, or a failed write) won't be going out.
+                for (int i = handedBack; i < toSend.size(); i++) {
+                    toSend.get(i).release();
+                }
+                toSend.clear();
             }
 
             synchronized (runLock) {
@@ -106,6 +120,9 @@ public class OutputWorker extends Worker {
             }
         } // end of while loop
 
+        // nor will whatever is still queued up (or pushed from here on).
+        messageQueue.discard();
+
         // vocalize shut down.
         proclaimShutdown();
     }
@@ -118,10 +135,7 @@ public class OutputWorker extends Worker {
      */
     public void triggerMessageSend(Message msg) {
         try {
-            messageQueue.put(msg);
-            synchronized (outNotifier) {
-                outNotifier.notify();
-            }
+            messageQueue.offer(EncodedFrame.encode(msg, 1), true);
         } catch (Exception e) {
             System.out.println("Exception occurred while pushing into " + workerID + "'s outgoing queue! --> "
                             + e.getMessage());
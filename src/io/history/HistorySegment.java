@@ -0,0 +1,266 @@
+package io.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * one segment of a room's history: a fixed-size, memory-mapped log file holding
+ * a run of consecutive messages, along with a sparse index into it.
+ *
+ * Messages are numbered (given an offset) in the order they were broadcast,
+ * from 0 on up, across every segment of the room; each segment is named after
+ * the offset of its first message. In the log, each message is laid out as
+ *
+ * [length (4 bytes)] [CRC32 of the payload (4 bytes)] [payload]
+ *
+ * the payload being the Message in the binary wire format (see
+ * messages.WireFormat). A length of 0 marks the end of what has been written;
+ * as the file starts out zero-filled, and each append zeroes the length slot
+ * past itself, there is always one.
+ *
+ * The index (a file of its own, also mapped) holds a pair of ints for every
+ * Constants.HISTORY_INDEX_INTERVAL_BYTES or so of log: the offset of a message
+ * (relative to the segment's first) and where in the log it starts. A read
+ * starts at the nearest index entry before the message wanted and walks on from
+ * there, never more than an interval's worth.
+ *
+ * NOTE only one thread (the room's HistoryStore writer) ever appends, but any
+ * number of threads may read at once. Readers only look at messages below the
+ * count they were given, which the room publishes (volatile) once the messages
+ * have been written; reads never move the shared buffers' positions.
+ */
+final class HistorySegment {
+
+    private static final int HEADER_LENGTH = 8; // length + CRC
+    private static final int INDEX_ENTRY_LENGTH = 8; // relative offset + position
+
+    private final long baseOffset; // offset of the segment's first message
+    private final File logFile; // the log
+    private final File indexFile; // the sparse index
+    private final MappedByteBuffer log; // the log, mapped
+    private final MappedByteBuffer index; // the sparse index, mapped
+    private final int indexInterval; // log bytes between index entries
+    private final CRC32 crc; // checksums payloads (writer only)
+    private int position; // where the next message goes in the log (writer only)
+    private int count; // messages in the segment (writer only)
+    private volatile int indexEntries; // entries in the index
+    private int lastIndexedPosition; // position of the latest index entry (writer only)
+    private int unforcedFrom; // start of what has been written since the last force (writer only)
+
+    /**
+     * opens a segment, creating it if need be. An existing segment's log is walked
+     * (from its last index entry on) to find where it ends.
+     *
+     * @param dir      the room's history directory
+     * @param base     offset of the segment's first message
+     * @param size     size of the log, in bytes
+     * @param interval log bytes between index entries
+     * @throws IOException if the segment could not be opened or mapped
+     */
+    HistorySegment(File dir, long base, int size, int interval) throws IOException {
+        baseOffset = base;
+        logFile = new File(dir, name(base) + ".log");
+        indexFile = new File(dir, name(base) + ".idx");
+        indexInterval = Math.max(HEADER_LENGTH, interval);
+        crc = new CRC32();
+        boolean isNew = !logFile.exists();
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            int length = isNew ? size : (int) Math.min(file.length(), Integer.MAX_VALUE);
+            log = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+        int indexLength = (log.capacity() / indexInterval + 1) * INDEX_ENTRY_LENGTH;
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+            index = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexLength);
+        }
+        position = 0;
+        count = 0;
+        indexEntries = 0;
+        lastIndexedPosition = 0;
+        if (!isNew) {
+            recover();
+        }
+        unforcedFrom = position;
+    }
+
+    /**
+     * finds the end of what was written to an existing segment, trusting the index
+     * only as far as the log bears it out.
+     */
+    private void recover() {
+        int entries = 0;
+        while ((entries + 1) * INDEX_ENTRY_LENGTH <= index.capacity()) {
+            int relative = index.getInt(entries * INDEX_ENTRY_LENGTH);
+            int at = index.getInt(entries * INDEX_ENTRY_LENGTH + 4);
+            boolean isNext = entries == 0 ? relative == 0 && at == 0 : relative > count && at > position;
+            if (!isNext || recordLength(at) < 0) {
+                break; // the index got ahead of the log.
+            }
+            count = relative;
+            position = at;
+            lastIndexedPosition = at;
+            entries++;
+        }
+        indexEntries = entries;
+        int length;
+        while ((length = recordLength(position)) >= 0) {
+            position += HEADER_LENGTH + length;
+            count++;
+        }
+    }
+
+    /**
+     * checks the message starting at a position of the log.
+     *
+     * @param at position in the log
+     * @return the message's payload length, or -1 if there is no (intact) message
+     *         there
+     */
+    private int recordLength(int at) {
+        if (at + HEADER_LENGTH > log.capacity()) {
+            return -1;
+        }
+        int length = log.getInt(at);
+        if (length <= 0 || length > log.capacity() - at - HEADER_LENGTH) {
+            return -1;
+        }
+        ByteBuffer payload = log.duplicate();
+        payload.limit(at + HEADER_LENGTH + length).position(at + HEADER_LENGTH);
+        crc.reset();
+        crc.update(payload);
+        return (int) crc.getValue() == log.getInt(at + 4) ? length : -1;
+    }
+
+    /**
+     * appends a message, unless the segment hasn't room for it.
+     *
+     * @param payload the message, in the binary wire format (position to limit)
+     * @return false if the segment is full
+     */
+    boolean append(ByteBuffer payload) {
+        int length = payload.remaining();
+        if (position + HEADER_LENGTH + length > log.capacity()) {
+            return false;
+        }
+        if (count == 0 || position - lastIndexedPosition >= indexInterval) {
+            int entry = indexEntries * INDEX_ENTRY_LENGTH;
+            if (entry + INDEX_ENTRY_LENGTH <= index.capacity()) {
+                index.putInt(entry, count);
+                index.putInt(entry + 4, position);
+                lastIndexedPosition = position;
+                indexEntries++;
+            }
+        }
+        crc.reset();
+        crc.update(payload.duplicate());
+        log.put(position + HEADER_LENGTH, payload, payload.position(), length);
+        log.putInt(position + 4, (int) crc.getValue());
+        int end = position + HEADER_LENGTH + length;
+        if (end + 4 <= log.capacity()) {
+            log.putInt(end, 0); // in case something was left there by a crash.
+        }
+        log.putInt(position, length);
+        position = end;
+        count++;
+        return true;
+    }
+
+    /**
+     * reads messages out, from the given one on.
+     *
+     * @param offset  first message wanted
+     * @param limit   offset just past the last message that may be read
+     * @param max     most messages wanted
+     * @param payloads where the messages go (each in the binary wire format)
+     * @return number of messages read
+     */
+    int read(long offset, long limit, int max, List<byte[]> payloads) {
+        int relative = (int) (offset - baseOffset);
+        int end = (int) (Math.min(limit, baseOffset + Integer.MAX_VALUE) - baseOffset);
+        if (relative < 0 || relative >= end || max <= 0) {
+            return 0;
+        }
+
+        // nearest index entry at or before the message wanted.
+        int low = 0;
+        int high = indexEntries - 1;
+        int at = 0;
+        int current = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entryOffset = index.getInt(mid * INDEX_ENTRY_LENGTH);
+            if (entryOffset <= relative) {
+                current = entryOffset;
+                at = index.getInt(mid * INDEX_ENTRY_LENGTH + 4);
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        int read = 0;
+        while (current < end && read < max && at + HEADER_LENGTH <= log.capacity()) {
+            int length = log.getInt(at);
+            if (length <= 0) {
+                break; // end of the segment.
+            }
+            if (current >= relative) {
+                byte[] payload = new byte[length];
+                log.get(at + HEADER_LENGTH, payload);
+                payloads.add(payload);
+                read++;
+            }
+            at += HEADER_LENGTH + length;
+            current++;
+        }
+        return read;
+    }
+
+    /**
+     * forces whatever has been written since the last force out to disk.
+     */
+    void force() {
+        if (position > unforcedFrom) {
+            log.force(unforcedFrom, position - unforcedFrom);
+            index.force();
+            unforcedFrom = position;
+        }
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * number of messages in the segment (as seen by the writer).
+     *
+     * @return message count
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * bytes of log in use.
+     *
+     * @return log bytes
+     */
+    int getSize() {
+        return position;
+    }
+
+    /**
+     * file name (less extension) of the segment starting at the given offset.
+     *
+     * @param base offset of the segment's first message
+     * @return name
+     */
+    static String name(long base) {
+        return String.format("%020d", base);
+    }
+}
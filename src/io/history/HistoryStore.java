@@ -0,0 +1,482 @@
+package io.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import misc.Constants;
+import misc.Worker;
+
+/**
+ * keeps the history of every room on the node (see RoomHistory), each in a
+ * directory of its own, named after its room key and when the room was opened
+ * ("S07-1729260000000"). Room keys are handed out again once the Registry
+ * starts over without its journal, so the key alone would have a new room
+ * carry on from whatever an old one of the same key left behind.
+ *
+ * A small, fixed set of writers does the writing for every room. Each room
+ * belongs to one writer, which is handed the room whenever it has frames
+ * waiting, and writes them all out at once. How often the writes are forced to
+ * disk is up to the fsync policy, selected at launch with
+ * -Dchatter.history.fsync=always|interval|never:
+ *
+ * always: after every batch a room's writer writes out (nothing acknowledged by
+ * the writer is lost to a crash of the machine, at the cost of an fsync per
+ * batch).
+ *
+ * interval: every Constants.HISTORY_FSYNC_INTERVAL_MS, for every room written
+ * to since (up to that much history may be lost should the machine go down).
+ *
+ * never: left to the OS (a crash of the process alone loses nothing, as the
+ * segments are memory-mapped; rooms are still forced to disk when they close).
+ *
+ * History can be turned off altogether with -Dchatter.history=off.
+ *
+ * Each room's history is also indexed for searching (see SearchIndex), by a
+ * small, fixed set of indexers of its own. A room's writer hands the room over
+ * to its indexer once it has written some of it out, so indexing never holds
+ * writing up. Search can be turned off on its own with -Dchatter.search=off.
+ */
+public class HistoryStore {
+
+    /**
+     * how often writes are forced to disk (see above).
+     */
+    public enum FsyncPolicy {
+        ALWAYS, INTERVAL, NEVER
+    }
+
+    private final File root; // each room's directory goes in here
+    private final int segmentBytes; // size of each segment's log
+    private final int indexInterval; // log bytes between index entries
+    private final int queueLength; // most frames a room may have waiting to be written
+    private final FsyncPolicy fsyncPolicy; // how often writes are forced to disk
+    private final long fsyncIntervalMillis; // how often, under INTERVAL
+    private final Writer[] writers; // do the writing for every room
+    private final Indexer[] indexers; // do the indexing for every room (null if search is off)
+    private final AtomicLong writtenCount; // Messages written thus far, across every room
+    private final AtomicLong indexedCount; // Messages indexed thus far, across every room
+
+    /**
+     * HistoryStore constructor, for a store that isn't searched. The writers are
+     * started straight away.
+     *
+     * @param dir         where the rooms' directories go (created if need be)
+     * @param segment     size of each segment's log, in bytes
+     * @param policy      how often writes are forced to disk
+     * @param writerCount number of writers
+     */
+    public HistoryStore(File dir, int segment, FsyncPolicy policy, int writerCount) {
+        this(dir, segment, policy, writerCount, 0);
+    }
+
+    /**
+     * HistoryStore constructor. The writers and indexers are started straight
+     * away.
+     *
+     * @param dir          where the rooms' directories go (created if need be)
+     * @param segment      size of each segment's log, in bytes
+     * @param policy       how often writes are forced to disk
+     * @param writerCount  number of writers
+     * @param indexerCount number of indexers (0 to leave rooms unsearchable)
+     */
+    public HistoryStore(File dir, int segment, FsyncPolicy policy, int writerCount, int indexerCount) {
+        root = dir;
+        segmentBytes = segment;
+        indexInterval = Constants.HISTORY_INDEX_INTERVAL_BYTES;
+        queueLength = Constants.HISTORY_QUEUE_LENGTH;
+        fsyncPolicy = policy;
+        fsyncIntervalMillis = Constants.HISTORY_FSYNC_INTERVAL_MS;
+        writtenCount = new AtomicLong(0);
+        indexedCount = new AtomicLong(0);
+        writers = new Writer[Math.max(1, writerCount)];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Writer(i);
+            writers[i].start();
+        }
+        if (indexerCount > 0) {
+            indexers = new Indexer[indexerCount];
+            for (int i = 0; i < indexers.length; i++) {
+                indexers[i] = new Indexer(i);
+                indexers[i].start();
+            }
+        } else {
+            indexers = null;
+        }
+    }
+
+    /**
+     * the store given at launch (see above).
+     *
+     * @return the store, or null if history is turned off
+     */
+    public static HistoryStore fromProperties() {
+        if (System.getProperty(Constants.HISTORY_PROPERTY, "on").equalsIgnoreCase("off")) {
+            return null;
+        }
+        String name = System.getProperty(Constants.HISTORY_FSYNC_PROPERTY, Constants.HISTORY_FSYNC_INTERVAL);
+        FsyncPolicy policy;
+        if (name.equalsIgnoreCase(Constants.HISTORY_FSYNC_ALWAYS)) {
+            policy = FsyncPolicy.ALWAYS;
+        } else if (name.equalsIgnoreCase(Constants.HISTORY_FSYNC_NEVER)) {
+            policy = FsyncPolicy.NEVER;
+        } else {
+            if (!name.equalsIgnoreCase(Constants.HISTORY_FSYNC_INTERVAL)) {
+                System.out.println("Unknown history fsync policy " + name + "; using "
+                                + Constants.HISTORY_FSYNC_INTERVAL + ".");
+            }
+            policy = FsyncPolicy.INTERVAL;
+        }
+        return new HistoryStore(new File(System.getProperty(Constants.HISTORY_DIR_PROPERTY, Constants.HISTORY_DIR)),
+                        Integer.getInteger(Constants.HISTORY_SEGMENT_BYTES_PROPERTY, Constants.HISTORY_SEGMENT_BYTES),
+                        policy, Constants.HISTORY_WRITER_COUNT,
+                        System.getProperty(Constants.SEARCH_PROPERTY, "on").equalsIgnoreCase("off") ? 0
+                                        : Constants.SEARCH_INDEXER_COUNT);
+    }
+
+    /**
+     * opens the history of a room just opened, in a directory of its own, whatever
+     * may be left over from rooms that had the same room key before it.
+     *
+     * @param roomKey key of the room
+     * @return the room's history (empty)
+     * @throws IOException if the history could not be opened
+     */
+    public RoomHistory open(String roomKey) throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("could not create " + root);
+        }
+        long opened = System.currentTimeMillis();
+        File dir = new File(root, roomKey + "-" + opened);
+        while (!dir.mkdir()) { // NOTE mkdir() fails if the directory is already there, so no two rooms share one.
+            if (!dir.exists()) {
+                throw new IOException("could not create " + dir);
+            }
+            dir = new File(root, roomKey + "-" + (++opened));
+        }
+        return open(roomKey, dir);
+    }
+
+    /**
+     * opens the history of a room being reopened (on recovery, under the same room
+     * key), picking up where the room left off: in the directory of the last room
+     * opened with that key.
+     *
+     * @param roomKey key of the room
+     * @return the room's history
+     * @throws IOException if the history could not be opened
+     */
+    public RoomHistory reopen(String roomKey) throws IOException {
+        File latest = new File(root, roomKey); // as named before rooms were told apart by when they opened
+        long latestOpened = -1;
+        String[] names = root.list();
+        for (String name : names == null ? new String[0] : names) {
+            if (name.startsWith(roomKey + "-")) {
+                try {
+                    long opened = Long.parseLong(name.substring(roomKey.length() + 1));
+                    if (opened > latestOpened) {
+                        latest = new File(root, name);
+                        latestOpened = opened;
+                    }
+                } catch (NumberFormatException e) {
+                    // not one of ours.
+                }
+            }
+        }
+        if (latestOpened < 0 && !latest.isDirectory()) {
+            return open(roomKey); // it never kept any.
+        }
+        return open(roomKey, latest);
+    }
+
+    private RoomHistory open(String roomKey, File dir) throws IOException {
+        RoomHistory room = new RoomHistory(this, roomKey, dir, Math.floorMod(roomKey.hashCode(), writers.length));
+        index(room); // catching up on whatever wasn't indexed last time round.
+        return room;
+    }
+
+    /**
+     * opens the search index kept in a room's directory.
+     *
+     * @param dir where the index is kept (created if need be)
+     * @return the index, or null if search is off
+     * @throws IOException if the index could not be opened
+     */
+    SearchIndex openSearchIndex(File dir) throws IOException {
+        if (indexers == null) {
+            return null;
+        }
+        return new SearchIndex(dir, Constants.SEARCH_FLUSH_MESSAGES, Constants.SEARCH_FLUSH_INTERVAL_MS,
+                        Constants.SEARCH_MERGE_FACTOR);
+    }
+
+    /**
+     * hands a room with frames waiting over to its writer.
+     *
+     * @param room the room
+     */
+    void schedule(RoomHistory room) {
+        writers[room.getWriterIndex()].ready.add(room);
+    }
+
+    /**
+     * has a room's writer write out (and force) whatever the room has left, now
+     * that it has closed.
+     *
+     * @param room the room
+     */
+    void close(RoomHistory room) {
+        writers[room.getWriterIndex()].ready.add(room);
+    }
+
+    /**
+     * hands a room over to its indexer, unless it has been already (or it isn't
+     * searched).
+     *
+     * @param room the room
+     */
+    void index(RoomHistory room) {
+        SearchIndex search = room.getSearchIndex();
+        if (search != null && search.markScheduled()) {
+            indexers[room.getWriterIndex() % indexers.length].ready.add(room);
+        }
+    }
+
+    int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    int getIndexInterval() {
+        return indexInterval;
+    }
+
+    int getQueueLength() {
+        return queueLength;
+    }
+
+    /**
+     * number of Messages written thus far, across every room.
+     *
+     * @return written count
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * number of Messages indexed thus far, across every room.
+     *
+     * @return indexed count
+     */
+    public long getIndexedCount() {
+        return indexedCount.get();
+    }
+
+    /**
+     * stops every writer, once they've written out (and forced) what they have,
+     * then every indexer, once they've indexed (and flushed) that. Indexers
+     * aren't interrupted, as segments are written through channels, which an
+     * interrupt would close; they notice within a fraction of a second anyway.
+     */
+    public void shutDown() {
+        stop(writers, true);
+        if (indexers != null) {
+            stop(indexers, false);
+        }
+    }
+
+    private static void stop(Worker[] workers, boolean interrupt) {
+        for (Worker worker : workers) {
+            worker.turnOff();
+            if (interrupt) {
+                worker.interrupt();
+            }
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * one-line summary, handy for console printing.
+     *
+     * @return summary
+     */
+    public String describe() {
+        return "history " + root + ": " + writtenCount.get() + " messages written by " + writers.length
+                        + " writers, fsync " + fsyncPolicy.name().toLowerCase()
+                        + (indexers == null ? ", search off" : ", " + indexedCount.get() + " indexed");
+    }
+
+    /**
+     * writes out the frames of the rooms it's handed, and forces them to disk as
+     * the fsync policy says.
+     */
+    private final class Writer extends Worker {
+        private final LinkedBlockingQueue<RoomHistory> ready; // rooms with frames waiting
+        private final LinkedHashSet<RoomHistory> unforced; // rooms written to since the last force (INTERVAL)
+
+        Writer(int number) {
+            super("HW-" + number);
+            ready = new LinkedBlockingQueue<RoomHistory>();
+            unforced = new LinkedHashSet<RoomHistory>();
+            setDaemon(true);
+        }
+
+        /**
+         * this worker's main line of execution.
+         */
+        public void run() {
+            turnOn();
+            long nextForce = System.currentTimeMillis() + fsyncIntervalMillis;
+            while (isRunning) {
+                RoomHistory room;
+                try {
+                    room = ready.poll(Math.max(1, nextForce - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (room != null) {
+                    write(room);
+                }
+                if (System.currentTimeMillis() >= nextForce) {
+                    forceAll();
+                    nextForce = System.currentTimeMillis() + fsyncIntervalMillis;
+                }
+            }
+            RoomHistory room;
+            while ((room = ready.poll()) != null) {
+                write(room);
+            }
+            forceAll();
+            proclaimShutdown();
+        }
+
+        private void write(RoomHistory room) {
+            writtenCount.addAndGet(room.drain());
+            index(room);
+            if (fsyncPolicy == FsyncPolicy.ALWAYS || room.isClosed()) {
+                force(room);
+                unforced.remove(room);
+            } else if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+                unforced.add(room);
+            }
+        }
+
+        private void forceAll() {
+            for (RoomHistory room : unforced) {
+                force(room);
+            }
+            unforced.clear();
+        }
+
+        private void force(RoomHistory room) {
+            try {
+                room.force();
+            } catch (RuntimeException e) {
+                System.out.println(workerID + " Error! --> " + room.getRoomKey() + " history could not be forced ("
+                                + e.getMessage() + ")");
+            }
+        }
+    }
+
+    /**
+     * indexes the rooms it's handed, from wherever each room's index is up to, and
+     * flushes each room's index as it comes due.
+     */
+    private final class Indexer extends Worker {
+        private final LinkedBlockingQueue<RoomHistory> ready; // rooms written to since they were last indexed
+        private final LinkedHashSet<RoomHistory> unflushed; // rooms with Messages indexed in memory only
+
+        Indexer(int number) {
+            super("SX-" + number);
+            ready = new LinkedBlockingQueue<RoomHistory>();
+            unflushed = new LinkedHashSet<RoomHistory>();
+            setDaemon(true);
+        }
+
+        /**
+         * this worker's main line of execution.
+         */
+        public void run() {
+            turnOn();
+            long checkMillis = Math.max(1, Constants.SEARCH_FLUSH_INTERVAL_MS / 20);
+            while (isRunning) {
+                RoomHistory room;
+                try {
+                    room = ready.poll(checkMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (room != null) {
+                    index(room);
+                }
+                long now = System.currentTimeMillis();
+                Iterator<RoomHistory> rooms = unflushed.iterator();
+                while (rooms.hasNext()) {
+                    RoomHistory next = rooms.next();
+                    if (next.getSearchIndex().isFlushDue(now)) {
+                        flush(next);
+                        rooms.remove();
+                    }
+                }
+            }
+            RoomHistory room;
+            while ((room = ready.poll()) != null) {
+                index(room);
+            }
+            for (RoomHistory next : unflushed) {
+                flush(next);
+            }
+            proclaimShutdown();
+        }
+
+        /**
+         * indexes a room up to the end of its history, a batch at a time. A room
+         * far behind (say, one whose index was lost) is handed back after a few
+         * batches, so that other rooms are kept up meanwhile.
+         */
+        private void index(RoomHistory room) {
+            SearchIndex search = room.getSearchIndex();
+            search.clearScheduled();
+            int indexed = 0;
+            int read;
+            while ((read = search.indexFrom(room, Constants.SEARCH_BATCH_MESSAGES)) > 0) {
+                indexedCount.addAndGet(read);
+                if (search.isFlushDue(System.currentTimeMillis())) {
+                    flush(room);
+                }
+                indexed += read;
+                if (indexed >= Constants.SEARCH_FLUSH_MESSAGES && isRunning) {
+                    HistoryStore.this.index(room);
+                    break;
+                }
+            }
+            if (search.hasBuffered()) {
+                if (room.isClosed() || !isRunning) {
+                    flush(room);
+                    unflushed.remove(room);
+                } else {
+                    unflushed.add(room);
+                }
+            }
+        }
+
+        private void flush(RoomHistory room) {
+            try {
+                room.getSearchIndex().flush();
+            } catch (IOException e) {
+                System.out.println(workerID + " Error! --> " + room.getRoomKey()
+                                + " search index could not be flushed (" + e.getMessage() + ")");
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package io.history;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import misc.Constants;
+
+/**
+ * the last few Messages broadcast in a room, kept in memory so that users
+ * joining the room can be shown what was said just before they arrived.
+ *
+ * The ring holds at most a set number of Messages, and none older than a set
+ * age; whichever limit is reached first. Messages are kept in the binary wire
+ * format (without a length prefix), which takes up a fraction of the room the
+ * Messages themselves would, and can be sent back out as-is.
+ *
+ * Every Message added is numbered (given a sequence number) from 0 on up, so
+ * that a joiner's replay can be told apart from what reaches them live: what
+ * was added before they were let in is replayed, anything after is delivered
+ * to them as usual. Messages the room's RoomHistory took in also carry the
+ * offset they were given there, so that anything older can be read back from
+ * disk.
+ *
+ * NOTE Messages are added holding the room's fan-out lock, so one thread at a
+ * time, in broadcast order. Any number of threads may read at once, without
+ * locking; a reader simply skips over whatever gets overwritten as it reads.
+ */
+public class ReplayRing {
+
+    /**
+     * a Message kept in the ring.
+     */
+    public static final class Entry {
+        private final long sequence; // order the Message was added in
+        private final long offset; // offset given by the room's history (-1 if not in it)
+        private final long addedAt; // System.currentTimeMillis() when added
+        private final byte[] payload; // the Message, in the binary wire format
+
+        Entry(long seq, long off, long at, byte[] bytes) {
+            sequence = seq;
+            offset = off;
+            addedAt = at;
+            payload = bytes;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots; // entry with sequence s is kept in slot s % length
+    private final long maxAgeMillis; // entries older than this are left out of replays
+    private volatile long nextSequence; // sequence the next entry added will get
+    private long oldestSequence; // oldest entry not yet let go of (fan-out lock)
+
+    /**
+     * ReplayRing constructor.
+     *
+     * @param capacity most Messages kept
+     * @param maxAge   longest Messages are kept, in milliseconds
+     */
+    public ReplayRing(int capacity, long maxAge) {
+        slots = new AtomicReferenceArray<Entry>(Math.max(1, capacity));
+        maxAgeMillis = maxAge;
+        nextSequence = 0;
+        oldestSequence = 0;
+    }
+
+    /**
+     * the ring given at launch (see Constants.REPLAY_MESSAGES_PROPERTY).
+     *
+     * @return a new ring, or null if replay is turned off
+     */
+    public static ReplayRing fromProperties() {
+        int capacity = Integer.getInteger(Constants.REPLAY_MESSAGES_PROPERTY, Constants.REPLAY_MESSAGES);
+        if (capacity <= 0) {
+            return null;
+        }
+        int minutes = Integer.getInteger(Constants.REPLAY_MINUTES_PROPERTY, Constants.REPLAY_MINUTES);
+        return new ReplayRing(capacity, minutes * 60_000L);
+    }
+
+    /**
+     * adds a broadcast Message, letting go of the oldest (and of any that have
+     * grown too old). Caller must hold the room's fan-out lock.
+     *
+     * @param payload the Message, in the binary wire format
+     * @param offset  offset the room's history gave it (-1 if not kept there)
+     */
+    public void add(byte[] payload, long offset) {
+        long now = System.currentTimeMillis();
+        long sequence = nextSequence;
+        int length = slots.length();
+        while (oldestSequence < sequence) {
+            Entry oldest = slots.get((int) (oldestSequence % length));
+            if (sequence - oldestSequence < length && now - oldest.addedAt <= maxAgeMillis) {
+                break;
+            }
+            slots.set((int) (oldestSequence % length), null);
+            oldestSequence++;
+        }
+        slots.set((int) (sequence % length), new Entry(sequence, offset, now, payload));
+        nextSequence = sequence + 1; // publishes the entry to readers.
+    }
+
+    /**
+     * sequence number the next Message added will get; every Message kept is
+     * below it.
+     *
+     * @return next sequence
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * the Messages still kept from the given sequence on, oldest first. May be
+     * called by any thread.
+     *
+     * @param from    sequence of the first Message wanted
+     * @param entries where the Messages go
+     * @return sequence just past the last Message read
+     */
+    public long read(long from, List<Entry> entries) {
+        long to = nextSequence;
+        int length = slots.length();
+        long oldest = System.currentTimeMillis() - maxAgeMillis;
+        for (long s = Math.max(from, to - length); s < to; s++) {
+            Entry entry = slots.get((int) (s % length));
+            if (entry != null && entry.sequence == s && entry.addedAt >= oldest) {
+                entries.add(entry);
+            }
+        }
+        return to;
+    }
+
+    /**
+     * most Messages kept.
+     *
+     * @return capacity
+     */
+    public int getCapacity() {
+        return slots.length();
+    }
+}
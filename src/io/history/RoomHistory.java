@@ -0,0 +1,420 @@
+package io.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.EncodedFrame;
+import messages.HistoryPageMessage;
+import messages.Message;
+import messages.MessageDecoder;
+import messages.MessageEncoder;
+import messages.SearchMessage;
+import messages.SimpleMessage;
+import misc.Constants;
+import misc.MpscRingBuffer;
+
+/**
+ * every Message broadcast in a room, kept on disk in the order it was
+ * broadcast (see HistorySegment for the layout).
+ *
+ * Whoever broadcasts a Message hands its frame over with record(), holding the
+ * room's fan-out lock, so that the history's order is the very order users
+ * received things in. That's all record() does: the frame is queued up (it
+ * holds a reference of its own, so the bytes stay put) and the room is
+ * scheduled with one of the HistoryStore's writers, which copies the bytes into
+ * the room's current segment later on. Delivery never waits on the disk. Should
+ * the room's queue be full, as it would be if its writer couldn't keep up, the
+ * Message is left out of the history (and counted) rather than holding delivery
+ * up.
+ *
+ * Segments are rolled over once full; they are never deleted.
+ *
+ * Unless search is off, the history is indexed as it is written (see
+ * SearchIndex), the index being kept in a directory of its own within the
+ * room's.
+ */
+public class RoomHistory {
+
+    private final HistoryStore store; // writes this room's history out, along with every other room's
+    private final String roomKey; // key of the room (also the name of its directory)
+    private final File directory; // where the room's segments are kept
+    private final int writerIndex; // which of the store's writers this room belongs to
+    private final MpscRingBuffer<EncodedFrame> queue; // frames broadcast but not yet written
+    private final AtomicBoolean isScheduled; // true while queued up with (or being drained by) the writer
+    private final ConcurrentSkipListMap<Long, HistorySegment> segments; // base offset -> segment
+    private final SearchIndex search; // finds what was said in the room (null if it can't be searched)
+    private HistorySegment active; // segment being written to (writer only)
+    private volatile long nextOffset; // offset the next Message written will get
+    private long recordedOffset; // offset the next Message recorded will get (fan-out lock)
+    private final AtomicLong droppedCount; // Messages left out because the queue was full
+    private volatile boolean isClosed; // true once the room has closed
+    private volatile boolean isFailed; // true once a write failed that couldn't be made up for
+    private boolean isDirty; // true if there are writes not yet forced to disk (writer only)
+
+    /**
+     * RoomHistory constructor. Opens the room's existing segments, if it has any,
+     * and carries on after the last Message in them.
+     *
+     * @param hs     the store the room's history is written out by
+     * @param key    key of the room
+     * @param dir    where the room's segments are kept (created if need be)
+     * @param writer which of the store's writers the room belongs to
+     * @throws IOException if the segments could not be opened
+     */
+    RoomHistory(HistoryStore hs, String key, File dir, int writer) throws IOException {
+        store = hs;
+        roomKey = key;
+        directory = dir;
+        writerIndex = writer;
+        queue = new MpscRingBuffer<EncodedFrame>(store.getQueueLength());
+        isScheduled = new AtomicBoolean(false);
+        segments = new ConcurrentSkipListMap<Long, HistorySegment>();
+        droppedCount = new AtomicLong(0);
+        isClosed = false;
+        isFailed = false;
+        isDirty = false;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+        String[] names = directory.list();
+        for (String name : names == null ? new String[0] : names) {
+            if (name.endsWith(".log")) {
+                try {
+                    long base = Long.parseLong(name.substring(0, name.length() - 4));
+                    segments.put(base, new HistorySegment(directory, base, store.getSegmentBytes(),
+                                    store.getIndexInterval()));
+                } catch (NumberFormatException e) {
+                    // not one of ours.
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, new HistorySegment(directory, 0, store.getSegmentBytes(), store.getIndexInterval()));
+        }
+        active = segments.lastEntry().getValue();
+        nextOffset = active.getBaseOffset() + active.getCount();
+        recordedOffset = nextOffset;
+
+        SearchIndex index = null;
+        try {
+            index = store.openSearchIndex(new File(directory, Constants.SEARCH_DIR));
+        } catch (IOException e) {
+            System.out.println(roomKey + " search Error! --> " + e.getMessage() + "; room can't be searched");
+        }
+        search = index;
+    }
+
+    /**
+     * hands a broadcast frame over to be written out. Takes over one of the frame's
+     * references (releasing it straight away if the frame can't be queued up).
+     * Never blocks. Caller must hold the room's fan-out lock.
+     *
+     * As frames are written out in the order they were recorded, the offset the
+     * Message will be given is known right away. (A Message that can't be
+     * written is kept as a placeholder in its place, so those after it keep theirs;
+     * should even that fail, the history stops there.)
+     *
+     * @param frame the frame
+     * @return offset the Message will be given, or -1 if it was left out
+     */
+    public long record(EncodedFrame frame) {
+        if (isClosed || isFailed || !queue.offer(frame)) {
+            droppedCount.incrementAndGet();
+            frame.release();
+            return -1;
+        }
+        if (isScheduled.compareAndSet(false, true)) {
+            store.schedule(this);
+        }
+        return recordedOffset++;
+    }
+
+    /**
+     * writes out every frame queued up. Called by the room's writer.
+     *
+     * @return number of Messages written
+     */
+    int drain() {
+        int written = 0;
+        while (true) {
+            EncodedFrame frame;
+            while ((frame = queue.poll()) != null) {
+                try {
+                    if (!isFailed) {
+                        write(frame);
+                        written++;
+                    } else {
+                        droppedCount.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    droppedCount.incrementAndGet();
+                    System.out.println(roomKey + " history Error! --> " + e.getMessage());
+                    writePlaceholder();
+                } finally {
+                    frame.release();
+                }
+            }
+            isScheduled.set(false);
+            // something may have been queued up as we let go; if so, and nobody has rescheduled us, carry on.
+            if (queue.isEmpty() || !isScheduled.compareAndSet(false, true)) {
+                return written;
+            }
+        }
+    }
+
+    /**
+     * writes a notice in place of a Message that couldn't be written, so that
+     * every Message after it is still given the offset record() handed out for
+     * it. Should even that fail, the history is given up on: nothing more is
+     * taken in, so no Message is ever kept under an offset meant for another.
+     */
+    private void writePlaceholder() {
+        try {
+            write(ByteBuffer.wrap(MessageEncoder.encode(new SimpleMessage(Constants.GAP_MARKER_ALIAS,
+                            "A message could not be kept in this room's history."))));
+        } catch (IOException e) {
+            System.out.println(roomKey + " history Error! --> " + e.getMessage() + "; no more will be kept");
+            isFailed = true;
+        }
+    }
+
+    /**
+     * copies a frame into the active segment, rolling over to a new segment if
+     * it's full.
+     *
+     * @param frame the frame
+     * @throws IOException if it doesn't fit in a segment, or a new segment could
+     *                         not be opened
+     */
+    private void write(EncodedFrame frame) throws IOException {
+        ByteBuffer payload;
+        if (frame.isEncoded()) {
+            payload = frame.asByteBuffer();
+            while ((payload.get() & 0x80) != 0) {
+                // skipping the length prefix; segments keep lengths of their own.
+            }
+        } else {
+            payload = ByteBuffer.wrap(MessageEncoder.encode(frame.getMessage()));
+        }
+        write(payload);
+    }
+
+    /**
+     * copies a Message's payload into the active segment, rolling over to a new
+     * segment if it's full.
+     *
+     * @param payload the payload
+     * @throws IOException if it doesn't fit in a segment, or a new segment could
+     *                         not be opened
+     */
+    private void write(ByteBuffer payload) throws IOException {
+        if (!active.append(payload)) {
+            if (active.getCount() == 0) {
+                throw new IOException("a " + payload.remaining() + " byte message doesn't fit in a history segment");
+            }
+            active.force();
+            HistorySegment next = new HistorySegment(directory, nextOffset, store.getSegmentBytes(),
+                            store.getIndexInterval());
+            segments.put(nextOffset, next);
+            active = next;
+            if (!active.append(payload)) {
+                throw new IOException("a " + payload.remaining() + " byte message doesn't fit in a history segment");
+            }
+        }
+        isDirty = true;
+        nextOffset++; // publishes the write to readers.
+    }
+
+    /**
+     * forces what has been written since the last force out to disk. Called by
+     * the room's writer.
+     */
+    void force() {
+        if (isDirty) {
+            active.force();
+            isDirty = false;
+        }
+    }
+
+    /**
+     * reads Messages back out of the history. May be called by any thread.
+     *
+     * @param from     offset of the first Message wanted
+     * @param max      most Messages wanted
+     * @param messages where the Messages go, oldest first
+     * @return offset of the Message after the last one read
+     * @throws IOException if a Message could not be decoded
+     */
+    public long read(long from, int max, List<Message> messages) throws IOException {
+        ArrayList<byte[]> payloads = new ArrayList<byte[]>();
+        long next = readEncoded(from, max, payloads);
+        for (byte[] payload : payloads) {
+            messages.add(MessageDecoder.decode(payload, 0, payload.length));
+        }
+        return next;
+    }
+
+    /**
+     * reads Messages back out of the history, leaving them encoded (in the binary
+     * wire format, without a length prefix). May be called by any thread.
+     *
+     * @param from     offset of the first Message wanted
+     * @param max      most Messages wanted
+     * @param payloads where the Messages go, oldest first
+     * @return offset of the Message after the last one read
+     */
+    public long readEncoded(long from, int max, List<byte[]> payloads) {
+        long limit = nextOffset;
+        long offset = Math.max(from, getFirstOffset());
+        while (offset < limit && max > 0) {
+            Map.Entry<Long, HistorySegment> entry = segments.floorEntry(offset);
+            if (entry == null) {
+                break;
+            }
+            int read = entry.getValue().read(offset, limit, max, payloads);
+            if (read == 0) {
+                break;
+            }
+            offset += read;
+            max -= read;
+        }
+        return offset;
+    }
+
+    /**
+     * answers a user scrolling back: fills the page in with the Messages just
+     * before the offset it asks for, as many as it asks for (up to
+     * Constants.HISTORY_PAGE_MAX_MESSAGES), leaving the oldest out should they
+     * come to more than Constants.HISTORY_PAGE_MAX_BYTES. Finding the page's
+     * first Message takes a single lookup in the sparse index; the rest is read
+     * on from there. May be called by any thread.
+     *
+     * A page asked for before Messages not yet written comes back empty (the user
+     * can simply ask again).
+     *
+     * @param page the request, filled in as the response
+     */
+    public void readPage(HistoryPageMessage page) {
+        long before = page.getBefore();
+        int max = Math.max(0, Math.min(page.getMaxMessages(), Constants.HISTORY_PAGE_MAX_MESSAGES));
+        ArrayList<byte[]> payloads = new ArrayList<byte[]>();
+        if (before > nextOffset || before <= getFirstOffset()) {
+            page.setPage(Math.max(before, getFirstOffset()), payloads);
+            return;
+        }
+
+        long from = Math.max(getFirstOffset(), before - max);
+        readEncoded(from, (int) (before - from), payloads);
+        int first = 0;
+        long bytes = 0;
+        for (byte[] payload : payloads) {
+            bytes += payload.length;
+        }
+        while (bytes > Constants.HISTORY_PAGE_MAX_BYTES && first < payloads.size()) {
+            bytes -= payloads.get(first++).length;
+        }
+        page.setPage(from + first, new ArrayList<byte[]>(payloads.subList(first, payloads.size())));
+    }
+
+    /**
+     * answers a user searching the room: fills the request in with the Messages
+     * matching its query, newest first, as many as it asks for (up to
+     * Constants.SEARCH_MAX_RESULTS). Only Messages indexed already are searched
+     * (see SearchMessage.getSearchedUpTo()). May be called by any thread.
+     *
+     * @param request the request, filled in as the response
+     */
+    public void search(SearchMessage request) {
+        ArrayList<Long> offsets = new ArrayList<Long>();
+        ArrayList<byte[]> payloads = new ArrayList<byte[]>();
+        if (search == null || request.getQuery() == null) {
+            request.setResults(-1, offsets, payloads);
+            return;
+        }
+        long upTo = search.getIndexedUpTo();
+        SearchQuery query = SearchQuery.parse(request.getQuery(), System.currentTimeMillis());
+        int max = Math.max(0, Math.min(request.getMaxResults(), Constants.SEARCH_MAX_RESULTS));
+        for (long offset : search.search(query, max)) {
+            if (readEncoded(offset, 1, payloads) > offset) {
+                offsets.add(offset);
+            }
+        }
+        request.setResults(upTo, offsets, payloads);
+    }
+
+    /**
+     * getter for the room's search index.
+     *
+     * @return the index, or null if the room can't be searched
+     */
+    public SearchIndex getSearchIndex() {
+        return search;
+    }
+
+    /**
+     * offset of the oldest Message kept.
+     *
+     * @return first offset
+     */
+    public long getFirstOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * offset the next Message written will get; every Message below it can be
+     * read.
+     *
+     * @return next offset
+     */
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * number of Messages left out of the history (see above).
+     *
+     * @return dropped count
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public String getRoomKey() {
+        return roomKey;
+    }
+
+    int getWriterIndex() {
+        return writerIndex;
+    }
+
+    /**
+     * stops taking Messages in. Whatever has been queued up is still written out
+     * (and forced to disk). Called once the room has closed.
+     */
+    public void close() {
+        isClosed = true;
+        store.close(this);
+    }
+
+    boolean isClosed() {
+        return isClosed;
+    }
+
+    /**
+     * one-line summary, handy for console printing.
+     *
+     * @return summary
+     */
+    public String describe() {
+        return roomKey + " history: " + nextOffset + " messages in " + segments.size() + " segments, "
+                        + droppedCount.get() + " dropped" + (search == null ? "" : "; " + search.describe());
+    }
+}
@@ -0,0 +1,577 @@
+package io.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.IntToLongFunction;
+
+import messages.Message;
+import messages.MessageDecoder;
+import messages.SimpleMessage;
+import misc.Constants;
+
+/**
+ * an index of a room's history, for finding what was said in it (see
+ * SearchQuery): for every term, the messages it appears in, and where.
+ *
+ * The index is built by following the history along: one of the HistoryStore's
+ * SearchIndexers is handed the room whenever its writer has written some of it
+ * out, and reads on from wherever the index is up to. So indexing never holds
+ * anyone up (routers hand their broadcasts to the history, and that's all), and
+ * an index that falls behind simply catches up later on.
+ *
+ * Messages indexed are first buffered in memory, their posting lists already
+ * compressed, then flushed to a segment (see SearchSegment) of their own once
+ * there are Constants.SEARCH_FLUSH_MESSAGES of them, or once the oldest of them
+ * has waited Constants.SEARCH_FLUSH_INTERVAL_MS. Segments are merged as they
+ * pile up: whenever the newest Constants.SEARCH_MERGE_FACTOR segments are of a
+ * size (as measured in powers of the merge factor), they're merged into one, so
+ * a room's index never has more than a handful of segments of each size.
+ *
+ * A message's time is its timestamp, which is only the time of day; it is
+ * taken to be from the latest day that doesn't put it after the message was
+ * indexed (give or take a few minutes, for senders whose clocks run fast).
+ *
+ * Nothing but segments is written out, so what was buffered when the process
+ * went down is indexed again, from the history, when the room reopens.
+ *
+ * NOTE the index is only ever added to by its SearchIndexer; any number of
+ * threads may search it meanwhile. Segments merged away are deleted straight
+ * away, searches still reading them keep their mapping of them.
+ */
+public class SearchIndex {
+
+    private static final ZoneId timezone = ZoneId.of(Constants.TIMEZONE);
+    private static final int MAX_TERM_LENGTH = 64; // longer terms are cut short
+    private static final long STAMP_SKEW_MINUTES = 10; // how far ahead a sender's clock may be
+
+    private final File directory; // where the index's segments are kept
+    private final int flushMessages; // messages buffered before being flushed
+    private final long flushIntervalMillis; // most time a message may spend buffered
+    private final int mergeFactor; // segments of a size merged at once
+    private final AtomicBoolean isScheduled; // true while queued up with (or being indexed by) the indexer
+
+    private List<SearchSegment> segments; // oldest first, never changed in place (guarded by this)
+    private HashMap<String, SearchSegment.Postings> buffered; // term -> messages buffered (guarded by this)
+    private long[] bufferedTimes; // time of each message buffered (guarded by this)
+    private int bufferedCount; // number of messages buffered (guarded by this)
+    private long bufferedBase; // offset of the first message buffered (guarded by this)
+    private long bufferedSince; // System.currentTimeMillis() as the first message was buffered (indexer only)
+    private volatile long indexedUpTo; // offset of the next message to be indexed
+
+    private String lastStamp; // timestamp of the last message indexed (indexer only)
+    private long lastStampTime; // ... and the time it was taken to be
+    private long flushCount; // segments flushed thus far (indexer only)
+    private long mergeCount; // merges made thus far (indexer only)
+
+    /**
+     * SearchIndex constructor. Opens the index's existing segments, if it has
+     * any, and carries on after the last message in them. Segments left over
+     * from a merge that didn't get to delete them are deleted.
+     *
+     * @param dir      where the index's segments are kept (created if need be)
+     * @param flush    messages buffered before being flushed
+     * @param interval most time a message may spend buffered (milliseconds)
+     * @param merge    segments of a size merged at once
+     * @throws IOException if the segments could not be opened
+     */
+    SearchIndex(File dir, int flush, long interval, int merge) throws IOException {
+        directory = dir;
+        flushMessages = Math.max(1, flush);
+        flushIntervalMillis = interval;
+        mergeFactor = Math.max(2, merge);
+        isScheduled = new AtomicBoolean(false);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+
+        // take the widest segment starting where the last one taken ends; whatever's left was merged away.
+        TreeMap<Long, File> widest = new TreeMap<Long, File>();
+        TreeMap<Long, Long> ends = new TreeMap<Long, Long>();
+        ArrayList<File> leftOver = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.endsWith(".tmp")) {
+                leftOver.add(file);
+            } else if (name.endsWith(".seg")) {
+                String[] bounds = name.substring(0, name.length() - 4).split("-");
+                try {
+                    long base = Long.parseLong(bounds[0]);
+                    long end = Long.parseLong(bounds[1]);
+                    if (!ends.containsKey(base) || ends.get(base) < end) {
+                        if (widest.containsKey(base)) {
+                            leftOver.add(widest.get(base));
+                        }
+                        widest.put(base, file);
+                        ends.put(base, end);
+                    } else {
+                        leftOver.add(file);
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    // not one of ours.
+                }
+            }
+        }
+        ArrayList<SearchSegment> opened = new ArrayList<SearchSegment>();
+        long next = widest.isEmpty() ? 0 : widest.firstKey();
+        for (Map.Entry<Long, File> entry : widest.entrySet()) {
+            if (entry.getKey() == next) {
+                SearchSegment segment = new SearchSegment(entry.getValue());
+                opened.add(segment);
+                next = segment.getEndOffset();
+            } else {
+                leftOver.add(entry.getValue());
+            }
+        }
+        for (File file : leftOver) {
+            file.delete();
+        }
+
+        segments = Collections.unmodifiableList(opened);
+        indexedUpTo = next;
+        resetBuffer(next);
+    }
+
+    /**
+     * indexes the next few messages of the room's history, if it has any that
+     * haven't been. Called by the room's indexer.
+     *
+     * @param history the room's history
+     * @param max     most messages to index
+     * @return number of messages indexed
+     */
+    int indexFrom(RoomHistory history, int max) {
+        ArrayList<byte[]> payloads = new ArrayList<byte[]>();
+        long from = indexedUpTo;
+        history.readEncoded(from, max, payloads);
+        if (payloads.isEmpty()) {
+            return 0;
+        }
+
+        // terms are gathered up without holding the lock; searches only wait on them being added.
+        long now = System.currentTimeMillis();
+        ArrayList<Map<String, int[]>> terms = new ArrayList<Map<String, int[]>>(payloads.size());
+        long[] times = new long[payloads.size()];
+        for (int i = 0; i < payloads.size(); i++) {
+            byte[] payload = payloads.get(i);
+            HashMap<String, int[]> positions = new HashMap<String, int[]>();
+            try {
+                Message msg = MessageDecoder.decode(payload, 0, payload.length);
+                times[i] = timeOf(msg.getTimestamp(), now);
+                if (msg instanceof SimpleMessage) {
+                    List<String> tokens = tokenize(((SimpleMessage) msg).getText());
+                    for (int position = 0; position < tokens.size(); position++) {
+                        int[] at = positions.get(tokens.get(position));
+                        if (at == null) {
+                            at = new int[] { 0, 0, 0, 0 }; // count, then positions
+                        } else if (at[0] + 1 == at.length) {
+                            at = Arrays.copyOf(at, at.length * 2);
+                        }
+                        at[++at[0]] = position;
+                        positions.put(tokens.get(position), at);
+                    }
+                }
+                String alias = msg.getAssociatedSenderAlias();
+                if (alias != null && !alias.isEmpty()) {
+                    positions.put(senderTerm(alias), new int[] { 0 });
+                }
+            } catch (IOException e) {
+                times[i] = now; // indexed as is, with no terms, so the messages after it are numbered right.
+            }
+            terms.add(positions);
+        }
+
+        synchronized (this) {
+            if (bufferedCount == 0) {
+                bufferedSince = now;
+            }
+            for (int i = 0; i < terms.size(); i++) {
+                int doc = bufferedCount++;
+                if (doc == bufferedTimes.length) {
+                    bufferedTimes = Arrays.copyOf(bufferedTimes, bufferedTimes.length * 2);
+                }
+                bufferedTimes[doc] = times[i];
+                for (Map.Entry<String, int[]> entry : terms.get(i).entrySet()) {
+                    SearchSegment.Postings postings = buffered.get(entry.getKey());
+                    if (postings == null) {
+                        postings = new SearchSegment.Postings();
+                        buffered.put(entry.getKey(), postings);
+                    }
+                    int[] at = entry.getValue();
+                    postings.add(doc, Arrays.copyOfRange(at, 1, at[0] + 1), at[0]);
+                }
+            }
+            indexedUpTo = from + terms.size();
+        }
+        return terms.size();
+    }
+
+    /**
+     * checks whether what's buffered is due to be flushed.
+     *
+     * @param now current time (milliseconds)
+     * @return true if it is
+     */
+    synchronized boolean isFlushDue(long now) {
+        return bufferedCount >= flushMessages || (bufferedCount > 0 && now - bufferedSince >= flushIntervalMillis);
+    }
+
+    /**
+     * checks whether any messages are indexed in memory only, as yet.
+     *
+     * @return true if some are
+     */
+    public synchronized boolean hasBuffered() {
+        return bufferedCount > 0;
+    }
+
+    /**
+     * flushes what's buffered to a segment of its own, then merges segments, should
+     * that be due. Called by the room's indexer.
+     *
+     * @throws IOException if a segment could not be written
+     */
+    void flush() throws IOException {
+        // only the indexer adds to the buffer, so it can be read without the lock as it's written out.
+        if (bufferedCount == 0) {
+            return;
+        }
+        SearchSegment flushed = SearchSegment.write(directory, bufferedBase, bufferedTimes, bufferedCount,
+                        new TreeMap<String, SearchSegment.Postings>(buffered));
+        synchronized (this) {
+            ArrayList<SearchSegment> next = new ArrayList<SearchSegment>(segments);
+            next.add(flushed);
+            segments = Collections.unmodifiableList(next);
+            resetBuffer(flushed.getEndOffset());
+        }
+        flushCount++;
+
+        while (true) {
+            List<SearchSegment> current = getSegments();
+            if (current.size() < mergeFactor) {
+                return;
+            }
+            List<SearchSegment> newest = current.subList(current.size() - mergeFactor, current.size());
+            int level = levelOf(newest.get(0));
+            for (SearchSegment segment : newest) {
+                if (levelOf(segment) != level) {
+                    return;
+                }
+            }
+            SearchSegment merged = SearchSegment.merge(directory, newest);
+            synchronized (this) {
+                ArrayList<SearchSegment> next = new ArrayList<SearchSegment>(current.subList(0,
+                                current.size() - mergeFactor));
+                next.add(merged);
+                segments = Collections.unmodifiableList(next);
+            }
+            for (SearchSegment segment : newest) {
+                segment.getFile().delete();
+            }
+            mergeCount++;
+        }
+    }
+
+    /**
+     * size of a segment, in powers of the merge factor (a segment of fewer than
+     * flushMessages * mergeFactor messages being of size 0).
+     */
+    private int levelOf(SearchSegment segment) {
+        int level = 0;
+        long size = (long) flushMessages * mergeFactor;
+        while (segment.getDocCount() >= size) {
+            size *= mergeFactor;
+            level++;
+        }
+        return level;
+    }
+
+    private void resetBuffer(long base) {
+        buffered = new HashMap<String, SearchSegment.Postings>();
+        bufferedTimes = new long[Math.min(flushMessages, 1024)];
+        bufferedCount = 0;
+        bufferedBase = base;
+    }
+
+    /**
+     * searches the index. May be called by any thread.
+     *
+     * @param query what to look for
+     * @param max   most matches wanted
+     * @return history offsets of the messages matched, newest first
+     */
+    public List<Long> search(SearchQuery query, int max) {
+        ArrayList<Long> offsets = new ArrayList<Long>();
+        if (query.getPhrases().isEmpty() || max <= 0) {
+            return offsets;
+        }
+        List<SearchSegment> searched;
+        synchronized (this) {
+            searched = segments; // (taken along with the buffer, so that nothing is flushed in between)
+            long[] times = bufferedTimes;
+            match(query, this::findBuffered, bufferedBase, doc -> times[doc], max, offsets);
+        }
+        for (int i = searched.size() - 1; i >= 0 && offsets.size() < max; i--) {
+            SearchSegment segment = searched.get(i);
+            if (segment.getMaxTime() < query.getFromMillis() || segment.getMinTime() > query.getToMillis()) {
+                continue;
+            }
+            match(query, segment::find, segment.getBaseOffset(), segment::timeOf, max, offsets);
+        }
+        return offsets;
+    }
+
+    /**
+     * looks a term up among the messages buffered (the lock being held).
+     *
+     * @param term the term
+     * @return its posting list, decoded, or null if it doesn't appear
+     */
+    private SearchSegment.Hits findBuffered(String term) {
+        SearchSegment.Postings postings = buffered.get(term);
+        return postings == null ? null : postings.decode();
+    }
+
+    /**
+     * finds the messages within a segment (or the buffer) matching a query.
+     *
+     * @param query    what to look for
+     * @param find     looks a term's posting list up (null if the term doesn't
+     *                     appear)
+     * @param base     offset of the segment's first message
+     * @param timeOf   time of a message, by doc number
+     * @param max      most matches wanted, all told
+     * @param offsets  where the offsets of matches go, newest first
+     */
+    private static void match(SearchQuery query, Function<String, SearchSegment.Hits> find, long base,
+                    IntToLongFunction timeOf, int max, ArrayList<Long> offsets) {
+        int[] docs = null;
+        for (String[] phrase : query.getPhrases()) {
+            int[] matched = matchPhrase(phrase, find);
+            docs = docs == null ? matched : intersect(docs, matched);
+            if (docs.length == 0) {
+                return;
+            }
+        }
+        for (int i = docs.length - 1; i >= 0 && offsets.size() < max; i--) {
+            long time = timeOf.applyAsLong(docs[i]);
+            if (time >= query.getFromMillis() && time <= query.getToMillis()) {
+                offsets.add(base + docs[i]);
+            }
+        }
+    }
+
+    /**
+     * finds the messages a phrase appears in.
+     *
+     * @return doc numbers, in order
+     */
+    private static int[] matchPhrase(String[] phrase, Function<String, SearchSegment.Hits> find) {
+        SearchSegment.Hits[] hits = new SearchSegment.Hits[phrase.length];
+        for (int i = 0; i < phrase.length; i++) {
+            hits[i] = find.apply(phrase[i]);
+            if (hits[i] == null) {
+                return new int[0];
+            }
+        }
+        if (phrase.length == 1) {
+            return hits[0].docs;
+        }
+
+        // walk every term's list along at once, stopping at the messages they all appear in.
+        int[] matched = new int[hits[0].docs.length];
+        int count = 0;
+        int[] next = new int[phrase.length];
+        for (int d = 0; d < hits[0].docs.length; d++) {
+            int doc = hits[0].docs[d];
+            boolean inAll = true;
+            for (int i = 1; i < phrase.length && inAll; i++) {
+                while (next[i] < hits[i].docs.length && hits[i].docs[next[i]] < doc) {
+                    next[i]++;
+                }
+                inAll = next[i] < hits[i].docs.length && hits[i].docs[next[i]] == doc;
+            }
+            if (inAll && isPhraseAt(hits, d, next)) {
+                matched[count++] = doc;
+            }
+        }
+        return Arrays.copyOf(matched, count);
+    }
+
+    /**
+     * checks whether the terms of a phrase, all found in the same message, appear
+     * one after the other somewhere in it.
+     */
+    private static boolean isPhraseAt(SearchSegment.Hits[] hits, int first, int[] next) {
+        int[][] positions = new int[hits.length][];
+        positions[0] = hits[0].positions(first);
+        for (int i = 1; i < hits.length; i++) {
+            positions[i] = hits[i].positions(next[i]);
+        }
+        for (int start : positions[0]) {
+            boolean follows = true;
+            for (int i = 1; i < hits.length && follows; i++) {
+                follows = Arrays.binarySearch(positions[i], start + i) >= 0;
+            }
+            if (follows) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] both = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                both[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(both, count);
+    }
+
+    /**
+     * breaks text into terms: runs of letters and digits, lowercased.
+     *
+     * @param text the text
+     * @return its terms, in order
+     */
+    public static List<String> tokenize(String text) {
+        ArrayList<String> terms = new ArrayList<String>();
+        int i = 0;
+        while (i < text.length()) {
+            while (i < text.length() && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * the term a message's sender is indexed under. It can't be mistaken for a
+     * term of text, as those never hold an '@'.
+     *
+     * @param alias the sender's alias
+     * @return the term
+     */
+    static String senderTerm(String alias) {
+        return "@" + alias.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * the time a message's timestamp stands for (see above).
+     *
+     * @param stamp the message's timestamp (HH:mm:ss)
+     * @param now   current time (milliseconds)
+     * @return the message's time (milliseconds)
+     */
+    private long timeOf(String stamp, long now) {
+        if (stamp == null) {
+            return now;
+        }
+        if (!stamp.equals(lastStamp) || now - lastStampTime > 86_400_000L - STAMP_SKEW_MINUTES * 60_000L) {
+            try {
+                ZonedDateTime indexedAt = Instant.ofEpochMilli(now).atZone(timezone);
+                ZonedDateTime sentAt = indexedAt.with(LocalTime.parse(stamp));
+                if (sentAt.isAfter(indexedAt.plusMinutes(STAMP_SKEW_MINUTES))) {
+                    sentAt = sentAt.minusDays(1);
+                }
+                lastStampTime = sentAt.toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                lastStampTime = now;
+            }
+            lastStamp = stamp;
+        }
+        return lastStampTime;
+    }
+
+    /**
+     * checks whether the index is to be handed to its indexer; if so, takes note
+     * of it having been.
+     *
+     * @return true if it is to be handed over
+     */
+    boolean markScheduled() {
+        return isScheduled.compareAndSet(false, true);
+    }
+
+    void clearScheduled() {
+        isScheduled.set(false);
+    }
+
+    /**
+     * offset of the next message to be indexed; every message below it can be
+     * found.
+     *
+     * @return indexed offset
+     */
+    public long getIndexedUpTo() {
+        return indexedUpTo;
+    }
+
+    synchronized List<SearchSegment> getSegments() {
+        return segments;
+    }
+
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    public long getMergeCount() {
+        return mergeCount;
+    }
+
+    /**
+     * space the index takes up on disk.
+     *
+     * @return byte count
+     */
+    public long getByteCount() {
+        long bytes = 0;
+        for (SearchSegment segment : getSegments()) {
+            bytes += segment.getByteCount();
+        }
+        return bytes;
+    }
+
+    /**
+     * one-line summary, handy for console printing.
+     *
+     * @return summary
+     */
+    public String describe() {
+        return "search index: " + indexedUpTo + " messages in " + getSegments().size() + " segments ("
+                        + getByteCount() + " bytes), " + flushCount + " flushes, " + mergeCount + " merges";
+    }
+}
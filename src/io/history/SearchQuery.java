@@ -0,0 +1,174 @@
+package io.history;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import misc.Constants;
+
+/**
+ * a search through a room's history (see SearchIndex), as typed in by a user.
+ *
+ * A query is a list of words, every one of which a message must match:
+ *
+ * word: the message's text holds the word. Words are broken into terms the way
+ * messages are (see SearchIndex.tokenize()), so a word that comes out as
+ * several terms (say, "example.com/cats") must appear as a phrase.
+ *
+ * "several words": the message's text holds the words, one after the other.
+ *
+ * from:alias: the message was sent by the user going by that alias.
+ *
+ * since:when, until:when: the message was sent no earlier, or no later, than
+ * the given time; either a date (2022-09-15, that whole day included) or a
+ * number of minutes, hours or days ago (30m, 2h, 7d).
+ *
+ * NOTE a query with nothing but times in it matches nothing.
+ */
+public class SearchQuery {
+
+    private static final ZoneId timezone = ZoneId.of(Constants.TIMEZONE);
+
+    private final ArrayList<String[]> phrases; // each must appear; single words are phrases of one term
+    private long fromMillis; // earliest message time matched
+    private long toMillis; // latest message time matched
+
+    /**
+     * SearchQuery constructor. Matches nothing until phrases are added.
+     */
+    public SearchQuery() {
+        phrases = new ArrayList<String[]>();
+        fromMillis = Long.MIN_VALUE;
+        toMillis = Long.MAX_VALUE;
+    }
+
+    /**
+     * parses a query as typed in.
+     *
+     * @param text      the query
+     * @param nowMillis current time, which relative times are taken from
+     * @return the query
+     */
+    public static SearchQuery parse(String text, long nowMillis) {
+        SearchQuery query = new SearchQuery();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            int end;
+            String word;
+            if (c == '"') {
+                end = text.indexOf('"', i + 1);
+                end = end < 0 ? text.length() : end;
+                word = text.substring(i + 1, end);
+                end++;
+            } else {
+                end = i;
+                while (end < text.length() && !Character.isWhitespace(text.charAt(end))) {
+                    end++;
+                }
+                word = text.substring(i, end);
+            }
+            i = end;
+
+            // quoted words are taken as they are, even if they look like an operator.
+            String lower = c == '"' ? "" : word.toLowerCase(Locale.ROOT);
+            Long since = lower.startsWith("since:") ? timeOf(lower.substring(6), nowMillis, false) : null;
+            Long until = lower.startsWith("until:") ? timeOf(lower.substring(6), nowMillis, true) : null;
+            if (lower.startsWith("from:") && lower.length() > 5) {
+                query.addSender(word.substring(5));
+            } else if (since != null) {
+                query.setTimeRange(since, query.toMillis);
+            } else if (until != null) {
+                query.setTimeRange(query.fromMillis, until);
+            } else {
+                query.addPhrase(word);
+            }
+        }
+        return query;
+    }
+
+    /**
+     * the time a since: or until: stands for.
+     *
+     * @param when      what follows since: or until:
+     * @param nowMillis current time
+     * @param isEnd     true for until: (a date then stands for the end of that day)
+     * @return the time (milliseconds), or null if it isn't one
+     */
+    private static Long timeOf(String when, long nowMillis, boolean isEnd) {
+        try {
+            if (when.length() > 1 && Character.isDigit(when.charAt(0))) {
+                char unit = when.charAt(when.length() - 1);
+                long amount = Long.parseLong(when.substring(0, when.length() - 1));
+                switch (unit) {
+                    case 'm':
+                        return nowMillis - amount * 60_000L;
+                    case 'h':
+                        return nowMillis - amount * 3_600_000L;
+                    case 'd':
+                        return nowMillis - amount * 86_400_000L;
+                    default:
+                        break;
+                }
+            }
+            LocalDate day = LocalDate.parse(when);
+            if (isEnd) {
+                return day.plusDays(1).atStartOfDay(timezone).toInstant().toEpochMilli() - 1;
+            }
+            return day.atStartOfDay(timezone).toInstant().toEpochMilli();
+        } catch (NumberFormatException | DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * adds words the message's text must hold, one after the other.
+     *
+     * @param words the words
+     */
+    public void addPhrase(String words) {
+        List<String> terms = SearchIndex.tokenize(words);
+        if (!terms.isEmpty()) {
+            phrases.add(terms.toArray(new String[0]));
+        }
+    }
+
+    /**
+     * adds a user the message must have been sent by.
+     *
+     * @param alias the user's alias
+     */
+    public void addSender(String alias) {
+        phrases.add(new String[] { SearchIndex.senderTerm(alias) });
+    }
+
+    /**
+     * narrows the query down to messages sent within a time range.
+     *
+     * @param from earliest message time (milliseconds)
+     * @param to   latest message time (milliseconds)
+     */
+    public void setTimeRange(long from, long to) {
+        fromMillis = from;
+        toMillis = to;
+    }
+
+    List<String[]> getPhrases() {
+        return phrases;
+    }
+
+    long getFromMillis() {
+        return fromMillis;
+    }
+
+    long getToMillis() {
+        return toMillis;
+    }
+}
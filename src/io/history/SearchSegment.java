@@ -0,0 +1,459 @@
+package io.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * one segment of a room's search index (see SearchIndex): an immutable,
+ * memory-mapped file covering a run of consecutive messages of the room's
+ * history, from its base offset up to (not including) its end offset. Messages
+ * are referred to within the segment by their offset less the base offset
+ * (their doc number). The file is laid out as
+ *
+ * [header] [time table] [term table] [terms] [postings]
+ *
+ * header: magic, doc count, base offset, earliest and latest message time
+ * (milliseconds), term count, where the terms and postings start.
+ *
+ * time table: one int per message, its time in seconds past the earliest.
+ *
+ * term table: one int per term, in term order, where the term starts; so terms
+ * are looked up by binary search, without reading the terms into memory.
+ *
+ * terms: each term is a varint of its UTF-8 length, its UTF-8 bytes, then
+ * varints of how many messages it appears in and where (relative to the start
+ * of the postings) its posting list starts.
+ *
+ * postings: a term's posting list holds, for each message it appears in, oldest
+ * first, a varint of the doc number less the previous one's (the first less -1),
+ * a varint of how many times the term appears, then varints of each position
+ * (token number) it appears at less the previous one (the first as-is). Varints
+ * are laid out as in the wire format (see messages.WireFormat).
+ *
+ * Segments are written out whole (to a temporary file, then moved into place)
+ * and never changed; merging segments writes out a new one in their stead.
+ */
+final class SearchSegment {
+
+    private static final int MAGIC = 0x43534958; // "CSIX"
+    private static final int HEADER_LENGTH = 44;
+
+    private final File file; // the segment's file
+    private final MappedByteBuffer data; // the file, mapped (never has its position moved)
+    private final int docCount; // messages covered
+    private final long baseOffset; // offset of the first message covered
+    private final long minTime; // earliest message time (milliseconds)
+    private final long maxTime; // latest message time (milliseconds)
+    private final int termCount; // number of terms
+    private final int postingsStart; // where the postings start
+
+    /**
+     * opens a segment.
+     *
+     * @param f the segment's file
+     * @throws IOException if the file could not be mapped, or isn't a segment
+     */
+    SearchSegment(File f) throws IOException {
+        file = f;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if (data.capacity() < HEADER_LENGTH || data.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a search index segment");
+        }
+        docCount = data.getInt(4);
+        baseOffset = data.getLong(8);
+        minTime = data.getLong(16);
+        maxTime = data.getLong(24);
+        termCount = data.getInt(32);
+        postingsStart = data.getInt(40);
+    }
+
+    /**
+     * name of the file of a segment covering the given offsets.
+     *
+     * @param base offset of the first message covered
+     * @param end  offset after the last message covered
+     * @return file name
+     */
+    static String name(long base, long end) {
+        return String.format("%020d-%020d.seg", base, end);
+    }
+
+    /**
+     * writes a segment out.
+     *
+     * @param dir      the room's search index directory
+     * @param base     offset of the first message covered
+     * @param times    time of each message (milliseconds), oldest first
+     * @param count    number of messages covered
+     * @param postings posting list of every term, in term order
+     * @return the segment, opened
+     * @throws IOException if the segment could not be written
+     */
+    static SearchSegment write(File dir, long base, long[] times, int count, SortedMap<String, Postings> postings)
+                    throws IOException {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            min = Math.min(min, times[i]);
+            max = Math.max(max, times[i]);
+        }
+        if (count == 0) {
+            min = 0;
+            max = 0;
+        }
+
+        Postings terms = new Postings(); // (used here as a plain byte buffer)
+        int[] termPositions = new int[postings.size()];
+        int postingsLength = 0;
+        int t = 0;
+        for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+            byte[] term = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            termPositions[t++] = terms.length;
+            terms.putVarInt(term.length);
+            terms.putBytes(term, 0, term.length);
+            terms.putVarInt(entry.getValue().docCount);
+            terms.putVarInt(postingsLength);
+            postingsLength += entry.getValue().length;
+        }
+
+        int timesStart = HEADER_LENGTH;
+        int tableStart = timesStart + count * 4;
+        int termsAt = tableStart + termPositions.length * 4;
+        int postingsAt = termsAt + terms.length;
+        ByteBuffer out = ByteBuffer.allocate(postingsAt + postingsLength);
+        out.putInt(MAGIC).putInt(count).putLong(base).putLong(min).putLong(max).putInt(termPositions.length)
+                        .putInt(termsAt).putInt(postingsAt);
+        for (int i = 0; i < count; i++) {
+            out.putInt((int) ((times[i] - min) / 1000));
+        }
+        for (int position : termPositions) {
+            out.putInt(termsAt + position);
+        }
+        out.put(terms.bytes, 0, terms.length);
+        for (Postings list : postings.values()) {
+            out.put(list.bytes, 0, list.length);
+        }
+
+        File target = new File(dir, name(base, base + count));
+        File temp = new File(dir, target.getName() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+            raf.setLength(0);
+            out.flip();
+            while (out.hasRemaining()) {
+                raf.getChannel().write(out);
+            }
+            raf.getChannel().force(true);
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+        return new SearchSegment(target);
+    }
+
+    /**
+     * merges consecutive segments into one, written out alongside them. The
+     * segments themselves are left as they are.
+     *
+     * @param dir      the room's search index directory
+     * @param segments the segments, oldest first, each picking up where the last
+     *                     one ends
+     * @return the merged segment, opened
+     * @throws IOException if the merged segment could not be written
+     */
+    static SearchSegment merge(File dir, List<SearchSegment> segments) throws IOException {
+        long base = segments.get(0).baseOffset;
+        int count = 0;
+        for (SearchSegment segment : segments) {
+            count += segment.docCount;
+        }
+        long[] times = new long[count];
+        TreeMap<String, Postings> merged = new TreeMap<String, Postings>();
+        for (SearchSegment segment : segments) {
+            int shift = (int) (segment.baseOffset - base);
+            for (int doc = 0; doc < segment.docCount; doc++) {
+                times[shift + doc] = segment.timeOf(doc);
+            }
+            for (int i = 0; i < segment.termCount; i++) {
+                int at = segment.data.getInt(HEADER_LENGTH + segment.docCount * 4 + i * 4);
+                Term term = segment.readTerm(at);
+                Postings list = merged.get(term.text);
+                if (list == null) {
+                    list = new Postings();
+                    merged.put(term.text, list);
+                }
+                list.addAll(segment.hitsAt(term), shift);
+            }
+        }
+        return write(dir, base, times, count, merged);
+    }
+
+    /**
+     * looks a term up.
+     *
+     * @param term the term
+     * @return where the term appears, or null if it doesn't
+     */
+    Hits find(String term) {
+        int tableStart = HEADER_LENGTH + docCount * 4;
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Term candidate = readTerm(data.getInt(tableStart + mid * 4));
+            int comparison = candidate.text.compareTo(term);
+            if (comparison == 0) {
+                return hitsAt(candidate);
+            } else if (comparison < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * time of a message.
+     *
+     * @param doc the message's doc number
+     * @return its time (milliseconds, to the second)
+     */
+    long timeOf(int doc) {
+        return minTime + data.getInt(HEADER_LENGTH + doc * 4) * 1000L;
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    long getEndOffset() {
+        return baseOffset + docCount;
+    }
+
+    int getDocCount() {
+        return docCount;
+    }
+
+    long getMinTime() {
+        return minTime;
+    }
+
+    long getMaxTime() {
+        return maxTime;
+    }
+
+    long getByteCount() {
+        return data.capacity();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * a term as found in the terms.
+     */
+    private static final class Term {
+        private String text; // the term
+        private int docCount; // number of messages it appears in
+        private int postings; // where its posting list starts (relative to the postings)
+    }
+
+    private Term readTerm(int at) {
+        int[] cursor = { at };
+        Term term = new Term();
+        int length = getVarInt(data, cursor);
+        byte[] bytes = new byte[length];
+        data.get(cursor[0], bytes);
+        cursor[0] += length;
+        term.text = new String(bytes, StandardCharsets.UTF_8);
+        term.docCount = getVarInt(data, cursor);
+        term.postings = getVarInt(data, cursor);
+        return term;
+    }
+
+    private Hits hitsAt(Term term) {
+        return Hits.decode(data, postingsStart + term.postings, term.docCount);
+    }
+
+    /**
+     * reads a varint.
+     *
+     * @param buffer where to read from (its position is left as is)
+     * @param cursor where to read from within the buffer, moved past the varint
+     * @return the value
+     */
+    static int getVarInt(ByteBuffer buffer, int[] cursor) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buffer.get(cursor[0]++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * a term's posting list as it is being built: the very bytes that end up in a
+     * segment, so lists kept in memory are as compact as those on disk. Messages
+     * must be added oldest first.
+     */
+    static final class Postings {
+        private byte[] bytes; // the list so far
+        private int length; // number of bytes of it in use
+        private int docCount; // number of messages in it
+        private int lastDoc; // doc number of the latest message in it (-1 if none)
+
+        Postings() {
+            bytes = new byte[16];
+            length = 0;
+            docCount = 0;
+            lastDoc = -1;
+        }
+
+        /**
+         * adds a message the term appears in.
+         *
+         * @param doc       the message's doc number
+         * @param positions positions the term appears at, in order
+         * @param count     number of positions
+         */
+        void add(int doc, int[] positions, int count) {
+            putVarInt(doc - lastDoc);
+            putVarInt(count);
+            int last = 0;
+            for (int i = 0; i < count; i++) {
+                putVarInt(positions[i] - last);
+                last = positions[i];
+            }
+            lastDoc = doc;
+            docCount++;
+        }
+
+        /**
+         * adds every message of another list, which must come after every message in
+         * this one. Only the first doc number needs encoding afresh; the rest of the
+         * list is relative to it, so it is copied over as it is.
+         *
+         * @param hits  the other list, decoded
+         * @param shift added to each of its doc numbers
+         */
+        void addAll(Hits hits, int shift) {
+            if (hits.docs.length == 0) {
+                return;
+            }
+            putVarInt(hits.docs[0] + shift - lastDoc);
+            int from = hits.positionsAt[0];
+            ensureCapacity(hits.end - from);
+            hits.buffer.get(from, bytes, length, hits.end - from);
+            length += hits.end - from;
+            lastDoc = hits.docs[hits.docs.length - 1] + shift;
+            docCount += hits.docs.length;
+        }
+
+        /**
+         * decodes the list.
+         *
+         * @return the list's messages and positions
+         */
+        Hits decode() {
+            return Hits.decode(ByteBuffer.wrap(bytes, 0, length), 0, docCount);
+        }
+
+        int getByteCount() {
+            return length;
+        }
+
+        private void putVarInt(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        private void putBytes(byte[] src, int from, int n) {
+            ensureCapacity(n);
+            System.arraycopy(src, from, bytes, length, n);
+            length += n;
+        }
+
+        private void ensureCapacity(int n) {
+            if (length + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+            }
+        }
+    }
+
+    /**
+     * a posting list, decoded: the doc numbers of the messages a term appears in,
+     * oldest first, and the positions it appears at in each. Positions are only
+     * decoded when asked for, as most messages in a list never get that far
+     * (they're missing some other term of the search).
+     */
+    static final class Hits {
+        final int[] docs; // doc numbers
+        private final ByteBuffer buffer; // where the list was decoded from
+        private final int[] positionsAt; // where each doc's positions (their count first) start in buffer
+        private final int end; // where the list ends in buffer
+
+        private Hits(int[] d, ByteBuffer b, int[] p, int e) {
+            docs = d;
+            buffer = b;
+            positionsAt = p;
+            end = e;
+        }
+
+        static Hits decode(ByteBuffer buffer, int at, int docCount) {
+            int[] cursor = { at };
+            int[] docs = new int[docCount];
+            int[] positionsAt = new int[docCount];
+            int doc = -1;
+            for (int i = 0; i < docCount; i++) {
+                doc += getVarInt(buffer, cursor);
+                docs[i] = doc;
+                positionsAt[i] = cursor[0];
+                for (int count = getVarInt(buffer, cursor); count > 0; count--) {
+                    while ((buffer.get(cursor[0]++) & 0x80) != 0) {
+                        // skipping a position.
+                    }
+                }
+            }
+            return new Hits(docs, buffer, positionsAt, cursor[0]);
+        }
+
+        /**
+         * decodes the positions the term appears at in one of the messages.
+         *
+         * @param i which of the messages (not its doc number)
+         * @return the positions, in order
+         */
+        int[] positions(int i) {
+            int[] cursor = { positionsAt[i] };
+            int[] positions = new int[getVarInt(buffer, cursor)];
+            int position = 0;
+            for (int j = 0; j < positions.length; j++) {
+                position += getVarInt(buffer, cursor);
+                positions[j] = position;
+            }
+            return positions;
+        }
+    }
+}
@@ -0,0 +1,580 @@
+package io.session;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.EncodedFrame;
+import io.MessageReader;
+import io.MessageStreams;
+import io.MessageWriter;
+import io.OutgoingBacklog;
+import io.history.ReplayRing;
+import io.history.RoomHistory;
+import messages.ExitRoomMessage;
+import messages.HistoryPageMessage;
+import messages.Message;
+import messages.MessageDecoder;
+import messages.SearchMessage;
+import messages.WireFormat;
+import misc.Constants;
+import misc.Worker;
+
+/**
+ * serves the participants of one chat room without any threads of their own.
+ *
+ * The threaded engine (see SessionCoordinator) gives every participant a
+ * SessionInputWorker, an OutputWorker and a MessageRouter, all blocked on their
+ * socket or queue most of the time. Here, each participant's connection is
+ * instead switched over to non-blocking mode and registered with one of a small
+ * number of SessionEventLoops, shared by every room on the node. The loop reads
+ * whatever has arrived, decodes it, and routes it on the spot; outgoing frames
+ * are queued up in each participant's OutgoingBacklog and written out by the
+ * participant's own loop as the connection allows.
+ *
+ * Routing follows the same rules as MessageRouter: single-shot Messages go back
+ * to the participant they were routed for, everything else goes to everyone
+ * else in the room, encoded once. Messages routed for the same participant are
+ * always routed in order, as they are all routed on that participant's loop;
+ * and as loops broadcast holding the room's lock, everyone in the room receives
+ * broadcasts in the same order. Broadcasts are handed to the room's history and
+ * ReplayRing (if it keeps them) under that same lock, and participants are let
+ * in holding it, just as with MessageRouters.
+ *
+ * Searches of the room's history are the one thing not done on the loop, as a
+ * search may well take longer than the loop's other participants can be kept
+ * waiting: they are handed to a small pool shared by every room on the node,
+ * and the results delivered whenever they're ready (so possibly after
+ * single-shot Messages routed later on).
+ *
+ * However a participant's connection comes to be closed (they hung up, it went
+ * bad, or the backpressure policy cut them off), the coordinator is told, so it
+ * can let them out of the room; it ignores being told of those it has already
+ * let out.
+ *
+ * NOTE a loop must never wait for a slow participant, so under the block
+ * backpressure policy, frames that don't fit in a participant's backlog are
+ * dropped straight away (and the participant told of the gap) instead.
+ *
+ * NOTE the event-loop engine works on the binary wire format only; Object
+ * streams can't be decoded a few bytes at a time. Selected at launch with
+ * -Dchatter.session.engine=eventloop (see Constants.SESSION_ENGINE_PROPERTY).
+ */
+public class EventLoopSessionEngine {
+
+    private static final int INITIAL_READ_BUFFER_SIZE = 4096; // read buffers grow from here as needed
+
+    private static final boolean selected; // resolved engine choice
+    private static SessionEventLoop[] loops; // shared by every room on the node (null until first used)
+    private static final AtomicInteger nextLoop = new AtomicInteger(0); // round-robin loop assignment
+    private static ExecutorService searchers; // search rooms' histories off the loops (null until first used)
+
+    static {
+        String engine = System.getProperty(Constants.SESSION_ENGINE_PROPERTY, Constants.SESSION_ENGINE_THREADED);
+        boolean wantsEventLoop = engine.equalsIgnoreCase(Constants.SESSION_ENGINE_EVENTLOOP);
+        if (wantsEventLoop && !MessageStreams.isBinaryFormat()) {
+            System.out.println("The event-loop session engine requires the binary wire format; "
+                            + "using the threaded engine.");
+        }
+        selected = wantsEventLoop && MessageStreams.isBinaryFormat();
+    }
+
+    private final String engineID; // used when logging
+    private final ConcurrentHashMap<Integer, Participant> participants; // routing ID -> participant
+    private volatile List<Participant> members; // participants snapshot, swapped on every join and exit
+    private final Object fanOutLock; // held while broadcasting (see above)
+    private final RoomHistory history; // where the room's broadcasts are kept (null if they aren't)
+    private final ReplayRing recent; // the room's last few broadcasts, for joiners (null if not kept)
+
+    /**
+     * a single participant's connection, along with everything waiting to be
+     * written out to it. Only ever read from and written to on its own loop.
+     */
+    private class Participant implements SessionEventLoop.Handler {
+        private final int routingID; // routing ID allocated by the coordinator
+        private final SocketChannel channel; // connection to the user
+        private final SessionEventLoop loop; // loop serving this participant
+        private SelectionKey key; // key with the loop's selector (null until registered)
+
+        private ByteBuffer readBuffer; // bytes read but not yet decoded (in write mode)
+        private final OutgoingBacklog backlog; // frames waiting to be written out
+        private final Runnable lostHandler; // tells the coordinator the connection is gone
+        private final AtomicBoolean flushScheduled; // true if a flush is already queued on the loop
+        private EncodedFrame current; // frame currently being written (null if none)
+        private ByteBuffer writing; // what is left of the current frame
+
+        private volatile boolean closed; // true once the connection has been closed
+        private final CompletableFuture<Void> exited; // completed when the connection is closed
+
+        Participant(int id, SocketChannel ch, SessionEventLoop l, OutgoingBacklog b, Runnable onLost) {
+            routingID = id;
+            channel = ch;
+            loop = l;
+            key = null;
+            readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+            backlog = b;
+            lostHandler = onLost;
+            flushScheduled = new AtomicBoolean(false);
+            current = null;
+            writing = null;
+            closed = false;
+            exited = new CompletableFuture<Void>();
+        }
+
+        /**
+         * registers the connection with the loop, then routes whatever the reader had
+         * already read off of it. Runs on the loop.
+         *
+         * @param leftover bytes read before the hand-over
+         */
+        void attach(byte[] leftover) {
+            try {
+                key = loop.register(channel, SelectionKey.OP_READ, this);
+                readBuffer = ensureRoom(readBuffer, leftover.length);
+                readBuffer.put(leftover);
+                decodeAll();
+                flush(); // whatever was queued up before we were registered.
+            } catch (IOException e) {
+                System.out.println(engineID + " error attaching participant " + routingID + " --> "
+                                + e.getMessage());
+                close();
+            }
+        }
+
+        public void handleReady(SelectionKey readyKey) {
+            if (readyKey.isValid() && readyKey.isReadable()) {
+                read();
+            }
+            if (readyKey.isValid() && readyKey.isWritable()) {
+                flush();
+            }
+        }
+
+        /**
+         * reads (up to a buffer's worth of) whatever has arrived, routing every
+         * complete Message. Anything more is left for the next time round, so that a
+         * participant sending non-stop can't keep the loop from writing to everyone
+         * else.
+         */
+        private void read() {
+            try {
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                if (n > 0) {
+                    decodeAll();
+                    readBuffer = ensureRoom(readBuffer, 1);
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.out.println(engineID + " error reading from participant " + routingID + " --> "
+                                    + e.getMessage());
+                }
+                close();
+            }
+        }
+
+        /**
+         * decodes and routes every complete Message sitting in the read buffer,
+         * leaving any partial one for later.
+         *
+         * @throws IOException if a Message is malformed
+         */
+        private void decodeAll() throws IOException {
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                int start = readBuffer.position();
+                int length = 0;
+                boolean complete = false;
+                for (int shift = 0; readBuffer.hasRemaining(); shift += 7) {
+                    if (shift > 28) {
+                        throw new IOException("malformed message length");
+                    }
+                    int b = readBuffer.get() & 0xFF;
+                    length |= (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) {
+                        complete = true;
+                        break;
+                    }
+                }
+                if (length > WireFormat.MAX_MESSAGE_LENGTH) {
+                    throw new IOException("bad message length " + length);
+                }
+                if (!complete || readBuffer.remaining() < length) {
+                    // keep the partial Message, making sure the rest of it will fit.
+                    int frameSize = readBuffer.position() - start + length;
+                    readBuffer.position(start);
+                    readBuffer.compact();
+                    readBuffer = ensureRoom(readBuffer, complete ? frameSize - readBuffer.position() : 1);
+                    return;
+                }
+                Message msg = MessageDecoder.decode(readBuffer.array(), readBuffer.position(), length);
+                readBuffer.position(readBuffer.position() + length);
+                route(this, msg);
+            }
+            readBuffer.clear();
+        }
+
+        /**
+         * queues a frame up to be written out. May be called from any thread.
+         *
+         * @param frame frame holding one reference for this participant
+         */
+        void deliver(EncodedFrame frame) {
+            if (closed) {
+                frame.release();
+                return;
+            }
+            if (backlog.offer(frame, false) && flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+        }
+
+        /**
+         * writes out as many queued frames as the connection will take. Runs on the
+         * loop.
+         */
+        private void flush() {
+            flushScheduled.set(false);
+            if (closed || key == null) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (current == null) {
+                        current = backlog.poll();
+                        if (current == null) {
+                            break;
+                        }
+                        writing = current.asByteBuffer();
+                    }
+                    channel.write(writing);
+                    if (writing.hasRemaining()) {
+                        // the connection is backed up; carry on once it is writable again.
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    Message msg = current.getMessage();
+                    current.release();
+                    current = null;
+                    writing = null;
+                    if (msg instanceof ExitRoomMessage) {
+                        // the user has been told they are out; nothing more goes to them.
+                        close();
+                        return;
+                    }
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                System.out.println(engineID + " error writing to participant " + routingID + " --> "
+                                + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * closes the connection and drops whatever was still waiting to go out, then
+         * lets the coordinator know. Runs on the loop.
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more to be done.
+            }
+            if (current != null) {
+                current.release();
+                current = null;
+                writing = null;
+            }
+            backlog.discard();
+            exited.complete(null);
+            lostHandler.run();
+        }
+    }
+
+    /**
+     * EventLoopSessionEngine constructor.
+     *
+     * @param id       used when logging (typically the coordinator's worker ID)
+     * @param roomLock the room's fan-out lock
+     * @param log      where the room's broadcasts are kept (null if they aren't)
+     * @param ring     the room's last few broadcasts (null if not kept)
+     */
+    public EventLoopSessionEngine(String id, Object roomLock, RoomHistory log, ReplayRing ring) {
+        engineID = id;
+        participants = new ConcurrentHashMap<Integer, Participant>();
+        members = Collections.emptyList();
+        fanOutLock = roomLock;
+        history = log;
+        recent = ring;
+    }
+
+    /**
+     * checks whether the event-loop engine was selected at launch (and can be used
+     * with the wire format in effect).
+     *
+     * @return true if rooms should be served by event loops
+     */
+    public static boolean isSelected() {
+        return selected;
+    }
+
+    /**
+     * picks a loop for a new participant, starting the loops up on first use.
+     *
+     * @return the loop
+     * @throws IOException if the loops could not be started
+     */
+    private static synchronized SessionEventLoop nextLoop() throws IOException {
+        if (loops == null) {
+            SessionEventLoop[] started = new SessionEventLoop[Constants.SESSION_EVENT_LOOP_COUNT];
+            for (int i = 0; i < started.length; i++) {
+                started[i] = new SessionEventLoop(i);
+                started[i].setDaemon(true);
+                started[i].start();
+            }
+            loops = started;
+        }
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * the pool searches are run on, starting it up on first use.
+     *
+     * @return the pool
+     */
+    private static synchronized ExecutorService searchers() {
+        if (searchers == null) {
+            searchers = Executors.newFixedThreadPool(Constants.SEARCH_POOL_SIZE, Worker.threadFactory("ELS-", true));
+        }
+        return searchers;
+    }
+
+    /**
+     * takes a participant's connection over. The streams must not be used again
+     * afterwards; anything written to them so far is flushed out first, and
+     * anything already read off of the connection (but not yet decoded) is routed
+     * as though it had just arrived. May be called holding the room's fan-out
+     * lock, in which case no broadcast reaches the participant until it is let go
+     * of.
+     *
+     * @param routingID routing ID allocated to the participant
+     * @param socket    connection to the participant
+     * @param in        input stream created over the connection
+     * @param out       output stream created over the connection
+     * @param backlog   where frames for the participant are to wait (the engine
+     *                      takes over its disconnect handler)
+     * @param onLost    run (on the loop) once the connection has been closed, for
+     *                      whatever reason
+     * @throws IOException if the connection can't be taken over
+     */
+    public void addParticipant(int routingID, Socket socket, MessageReader in, MessageWriter out,
+                    OutgoingBacklog backlog, Runnable onLost) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null || !in.isBinary()) {
+            throw new IOException("connection can't be served by an event loop");
+        }
+        out.flush();
+        byte[] leftover = in.drainBuffered();
+        channel.configureBlocking(false);
+
+        Participant p = new Participant(routingID, channel, nextLoop(), backlog, onLost);
+        backlog.setDisconnectHandler(() -> p.loop.execute(p::close));
+        synchronized (participants) {
+            participants.put(routingID, p);
+            ArrayList<Participant> next = new ArrayList<Participant>(members);
+            next.add(p);
+            members = Collections.unmodifiableList(next);
+        }
+        p.loop.execute(() -> p.attach(leftover));
+    }
+
+    /**
+     * queues a frame up to go out to a participant, just as it is.
+     *
+     * @param routingID routing ID of the participant
+     * @param frame     frame holding one reference for the participant
+     */
+    public void deliver(int routingID, EncodedFrame frame) {
+        Participant p = participants.get(routingID);
+        if (p == null) {
+            frame.release();
+            return;
+        }
+        p.deliver(frame);
+    }
+
+    /**
+     * routes a Message as though the given participant had sent it. Used by the
+     * coordinator to interject Welcome, Join/Exit notices, and so on.
+     *
+     * @param routingID routing ID of the participant
+     * @param msg       message to route
+     */
+    public void inject(int routingID, Message msg) {
+        Participant p = participants.get(routingID);
+        if (p == null) {
+            return;
+        }
+        p.loop.execute(() -> route(p, msg));
+    }
+
+    /**
+     * takes a participant out of the room. Waits (up to a limit) for their
+     * connection to be closed, which happens once their ExitRoomMessage has been
+     * written out, so the ERM should be injected first.
+     *
+     * @param routingID routing ID of the participant
+     */
+    public void removeParticipant(int routingID) {
+        Participant p = participants.get(routingID);
+        if (p == null) {
+            return;
+        }
+        try {
+            p.exited.get(Constants.SESSION_EXIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            System.out.println(engineID + " participant " + routingID + " slow to exit; closing.");
+        } catch (Exception e) {
+            System.out.println(engineID + " Error! --> " + e.getMessage());
+        }
+        synchronized (participants) {
+            participants.remove(routingID);
+            ArrayList<Participant> next = new ArrayList<Participant>(members);
+            next.remove(p);
+            members = Collections.unmodifiableList(next);
+        }
+        p.loop.execute(p::close);
+    }
+
+    /**
+     * number of participants currently being served.
+     *
+     * @return participant count
+     */
+    public int getParticipantCount() {
+        return participants.size();
+    }
+
+    /**
+     * routes a Message for the given participant. Runs on that participant's
+     * loop.
+     *
+     * @param from participant the Message is routed for
+     * @param msg  the Message
+     */
+    private void route(Participant from, Message msg) {
+        try {
+            if (msg.isSingleShot()) {
+                if (msg instanceof HistoryPageMessage && history != null) {
+                    // a page is one index lookup and a short read of mapped memory; fine to do on the loop.
+                    history.readPage((HistoryPageMessage) msg);
+                } else if (msg instanceof SearchMessage && history != null) {
+                    int routingID = from.routingID;
+                    searchers().execute(() -> {
+                        history.search((SearchMessage) msg);
+                        try {
+                            deliver(routingID, EncodedFrame.encode(msg, 1));
+                        } catch (IOException e) {
+                            System.out.println(engineID + " Error! --> " + e.getMessage());
+                        }
+                    });
+                    return;
+                }
+                from.deliver(EncodedFrame.encode(msg, 1));
+                return;
+            }
+
+            // the membership snapshot never changes, so it is read without locking.
+            List<Participant> snapshot = members;
+            ArrayList<Participant> recipients = recipientsOf(from, snapshot);
+            if (recipients.isEmpty() && history == null && recent == null) {
+                return;
+            }
+
+            EncodedFrame frame = EncodedFrame.encode(msg, recipients.size() + (history == null ? 0 : 1));
+            byte[] payload = recent == null ? null : frame.copyPayload();
+            synchronized (fanOutLock) {
+                if (members != snapshot) {
+                    // someone joined or left as we encoded; go by who is in the room now.
+                    ArrayList<Participant> current = recipientsOf(from, members);
+                    if (current.size() > recipients.size()) {
+                        frame.retain(current.size() - recipients.size());
+                    }
+                    for (int i = current.size(); i < recipients.size(); i++) {
+                        frame.release();
+                    }
+                    recipients = current;
+                }
+                long offset = history == null ? -1 : history.record(frame);
+                if (recent != null) {
+                    recent.add(payload, offset);
+                }
+                for (Participant p : recipients) {
+                    p.deliver(frame);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(engineID + " error routing for participant " + from.routingID + " --> "
+                            + e.getMessage());
+        }
+    }
+
+    /**
+     * everyone in a membership snapshot a broadcast goes to.
+     *
+     * @param from     participant the broadcast is routed for
+     * @param snapshot membership snapshot
+     * @return everyone else still connected
+     */
+    private static ArrayList<Participant> recipientsOf(Participant from, List<Participant> snapshot) {
+        ArrayList<Participant> recipients = new ArrayList<Participant>(snapshot.size());
+        for (Participant p : snapshot) {
+            if (p != from && !p.closed) {
+                recipients.add(p);
+            }
+        }
+        return recipients;
+    }
+
+    /**
+     * makes sure a buffer (in write mode) has room for at least n more bytes,
+     * swapping it for a larger one if not.
+     *
+     * @param buffer the buffer
+     * @param n      number of bytes needed
+     * @return the buffer, or its replacement
+     */
+    private static ByteBuffer ensureRoom(ByteBuffer buffer, int n) {
+        if (buffer.remaining() >= n) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + n));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
@@ -1,13 +1,17 @@
 package io.session;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.List;
 
+import io.EncodedFrame;
+import io.history.ReplayRing;
+import io.history.RoomHistory;
 import messages.ExitRoomMessage;
+import messages.HistoryPageMessage;
 import messages.Message;
-import messages.SimpleMessage;
+import messages.SearchMessage;
+import misc.MpscRingBuffer;
 import misc.Worker;
 
 /**
@@ -37,46 +41,74 @@ import misc.Worker;
  * 
  * --------------
  *
- * When an InputWorker has finished placing a newly received message in its
- * outgoing queue, it then places its worker ID number in the chat session task
- * queue.
+ * Each MessageRouter serves a single sender: it is the only one to take
+ * Messages out of that sender's incoming queue (into which the sender's
+ * SessionInputWorker, and at times the SessionCoordinator, place them), and it
+ * forwards them strictly in the order they were placed there. Different senders
+ * are routed by different routers, and so in parallel.
  *
- * MessageRouters take tasks (i.e., routing ID numbers) from the task queue,
- * which indicate by way of routing ID which queue has messages waiting to be
- * forwarded.
+ * Messages are passed along through MpscRingBuffers, which take care of our
+ * race condition problems for us (and of waking MessageRouters and
+ * OutputWorkers up), at least for message passing.
  *
- * By employing ABQs, practically all of our race condition problems are handled
- * by the Java API, at least for message passing.
+ * Messages are encoded into an EncodedFrame once, here, no matter how many
+ * users they are being forwarded to; every OutputWorker then writes out the very
+ * same bytes. Recipients are taken from the room's RoutingTable, whose
+ * membership snapshot is read without any locking. Encoding is done in
+ * parallel; putting the frame into every recipient's queue is done holding a
+ * lock shared by every router in the room, so that all users in a room see
+ * broadcasts in one and the same order.
+ *
+ * Should the room keep a history, each broadcast frame is also handed to it
+ * (holding the lock, so that the history is in that same order). It is written
+ * out later, by the history's writer, so delivery never waits on the disk. The
+ * same goes for the room's ReplayRing, which keeps the last few broadcasts in
+ * memory for users joining later on (their copy is made before the lock is
+ * taken). Pages of the history asked for by our sender, as they scroll back,
+ * are read here too (without the lock), then sent back like any other
+ * single-shot Message, as are searches of the history (which only hold our own
+ * sender up).
+ *
+ * Users are let into the room holding that lock too (see SessionCoordinator),
+ * so that every broadcast either makes it into a joiner's replay or reaches
+ * them live, never both or neither. Should the membership have changed between
+ * the snapshot being read and the lock being taken, the broadcast goes by the
+ * latest one.
+ *
+ * Nothing is ever waited for holding the lock: under the block backpressure
+ * policy, a router first waits (without the lock) for every recipient's
+ * backlog to have room for the frame, then queues it without blocking. A slow
+ * recipient thus slows down the senders whose broadcasts are waiting on it,
+ * but not joins, nor anyone's broadcast that is already on its way; should its
+ * backlog have filled up again by the time the lock is taken, the frame is
+ * dropped for that recipient alone (and they are told of the gap).
  */
 public class MessageRouter extends Worker {
 
-    private ArrayBlockingQueue<Integer> taskQueue; // where ID numbers representing tasks are placed
-    private HashMap<Integer, ArrayBlockingQueue<Message>> incomingMsgQueueMap; // list of incoming message queues
-    private HashMap<Integer, ArrayBlockingQueue<Message>> outgoingMsgQueueMap; // list of outgoing message queues
-    private HashMap<Integer, Object> newMessageNotifierMap; // list of objects to notify on for messages to be sent.
-    private HashSet<Integer> activeWorkerIDs; // a set of the worker IDs corresponding to active ChatUsers.
+    private RoutingTable.Route sender; // route of the sender this router serves
+    private RoutingTable routingTable; // routes to everyone in the room
+    private final Object fanOutLock; // shared by every router in the room; held while broadcasting
+    private final RoomHistory history; // where the room's broadcasts are kept (null if they aren't)
+    private final ReplayRing recent; // the room's last few broadcasts, for joiners (null if not kept)
 
     /**
      * constructs the MessageRouter.
      * 
-     * @param workerNumber number unique to the worker of its class
-     * @param tasks        task queue
-     * @param in           incoming message queue
-     * @param out          outgoing message queue
-     * @param notifiers    objects to notify when there are messages to be sent
-     * @param workerIds    active worker IDs (i.e., routing numbers)
+     * @param route    route of the sender to serve (whose routing number is also
+     *                     unique to the worker of its class)
+     * @param table    routes to everyone in the room
+     * @param roomLock lock shared by every router in the room
+     * @param log      where the room's broadcasts are kept (null if they aren't)
+     * @param ring     the room's last few broadcasts (null if not kept)
      */
-    public MessageRouter(int workerNumber, ArrayBlockingQueue<Integer> tasks,
-                    HashMap<Integer, ArrayBlockingQueue<Message>> in, HashMap<Integer, ArrayBlockingQueue<Message>> out,
-                    HashMap<Integer, Object> notifiers, HashSet<Integer> workerIds) {
-        super("MR-" + Integer.toString(workerNumber));
-        taskQueue = tasks;
-        incomingMsgQueueMap = in;
-        outgoingMsgQueueMap = out;
-        newMessageNotifierMap = notifiers;
-        activeWorkerIDs = workerIds;
-        // activeWorkerIDs.add(0); // operating on the assumption that the host is
-        // active.
+    public MessageRouter(RoutingTable.Route route, RoutingTable table, Object roomLock, RoomHistory log,
+                    ReplayRing ring) {
+        super("MR-" + Integer.toString(route.getRoutingID()));
+        sender = route;
+        routingTable = table;
+        fanOutLock = roomLock;
+        history = log;
+        recent = ring;
     }
 
     /**
@@ -85,60 +117,36 @@ public class MessageRouter extends Worker {
     public void run() {
         turnOn();
 
+        MpscRingBuffer<Message> msgQueue = sender.getIncoming();
+        ArrayList<Message> messagesToFwd = new ArrayList<Message>();
+
         while (true) {
-            Integer task = null;
             try {
-                task = taskQueue.take(); // take a task from the task queue
-                // execute the task (i.e., forward the messages)
-
-                ArrayList<Message> messagesToFwd = new ArrayList<Message>();
-                ArrayBlockingQueue<Message> msgQueue = incomingMsgQueueMap.get(task);
-                // retrieve the messages to be forwarded
-
-                /**
-                 * if we circle back and there are more messages to forward, get it done. if the
-                 * message queue is empty, however, we wait for another task from the task
-                 * queue.
-                 */
-                while (!msgQueue.isEmpty()) {
-
-                    msgQueue.drainTo(messagesToFwd);
-
-                    // forward the messages and notify the appropriate OutputWorker(s)
-                    for (Message msg : messagesToFwd) {
-                        if (msg.isSingleShot()) {
-                            /**
-                             * in this case, we only send the Message to the one queue, associated by
-                             * routing number. NOTE we ensure that the final ExitRoomMessage is sent out
-                             * before the MessageRouter is shut down by getting it to shut itself down upon
-                             * detecting an ERM.
-                             */
-                            if (msg instanceof ExitRoomMessage) {
-                                turnOff();
-                            }
-                            outgoingMsgQueueMap.get(task).add(msg);
-                            synchronized (newMessageNotifierMap.get(task)) {
-                                newMessageNotifierMap.get(task).notify();
-                            }
-                        } else {
-                            if (msg instanceof SimpleMessage) {
-                                System.out.println("here");
-                            }
-                            /**
-                             * in this case we put the Message into everyone's queue EXCEPT for the one
-                             * queue associated by task number.
-                             */
-                            for (Integer i : activeWorkerIDs) {
-                                if (task == i)
-                                    continue;
-                                ArrayBlockingQueue<Message> outgoing = outgoingMsgQueueMap.get(i);
-                                outgoing.add(msg);
+                // wait for messages from our sender (or to be shut down), then forward them in order.
+                messagesToFwd.clear();
+                while (msgQueue.drainTo(messagesToFwd) == 0 && isRunning) {
+                    msgQueue.await();
+                }
 
-                                synchronized (newMessageNotifierMap.get(i)) {
-                                    newMessageNotifierMap.get(i).notify();
-                                }
-                            }
+                // forward the messages and notify the appropriate OutputWorker(s)
+                for (Message msg : messagesToFwd) {
+                    if (msg.isSingleShot()) {
+                        /**
+                         * in this case, we only send the Message to the one queue, associated by
+                         * routing number. NOTE we ensure that the final ExitRoomMessage is sent out
+                         * before the MessageRouter is shut down by getting it to shut itself down upon
+                         * detecting an ERM.
+                         */
+                        if (msg instanceof ExitRoomMessage) {
+                            turnOff();
+                        } else if (msg instanceof HistoryPageMessage && history != null) {
+                            history.readPage((HistoryPageMessage) msg); // our sender scrolling back.
+                        } else if (msg instanceof SearchMessage && history != null) {
+                            history.search((SearchMessage) msg); // our sender searching.
                         }
+                        sender.getOutgoing().offer(EncodedFrame.encode(msg, 1), true);
+                    } else {
+                        forward(msg);
                     }
                 }
 
@@ -155,4 +163,61 @@ public class MessageRouter extends Worker {
             }
         }
     }
+
+    /**
+     * puts a Message into everyone's queue EXCEPT for our sender's. The frame
+     * holds one reference per queue it goes into (plus one for the history).
+     * 
+     * @param msg the Message
+     * @throws IOException if the Message can't be encoded
+     */
+    private void forward(Message msg) throws IOException {
+        List<RoutingTable.Route> members = routingTable.members();
+        int recipients = countRecipients(members);
+        if (recipients == 0 && history == null && recent == null) {
+            return;
+        }
+
+        EncodedFrame frame = EncodedFrame.encode(msg, history == null ? recipients : recipients + 1);
+        byte[] payload = recent == null ? null : frame.copyPayload();
+        for (RoutingTable.Route route : members) {
+            if (route != sender) {
+                route.getOutgoing().awaitRoom(frame); // a recipient that can't keep up only holds us up.
+            }
+        }
+        synchronized (fanOutLock) {
+            List<RoutingTable.Route> current = routingTable.members();
+            if (current != members) {
+                // someone joined or left as we encoded; go by who is in the room now.
+                int now = countRecipients(current);
+                if (now > recipients) {
+                    frame.retain(now - recipients);
+                }
+                for (int i = now; i < recipients; i++) {
+                    frame.release();
+                }
+                members = current;
+            }
+            long offset = history == null ? -1 : history.record(frame);
+            if (recent != null) {
+                recent.add(payload, offset);
+            }
+            for (RoutingTable.Route route : members) {
+                if (route != sender) {
+                    // a recipient that still can't keep up is dealt with by their backlog's policy.
+                    route.getOutgoing().offer(frame, false); // wakes the OutputWorker up if need be
+                }
+            }
+        }
+    }
+
+    /**
+     * number of users in a membership snapshot a broadcast goes to.
+     * 
+     * @param members membership snapshot
+     * @return everyone but our sender
+     */
+    private int countRecipients(List<RoutingTable.Route> members) {
+        return members.contains(sender) ? members.size() - 1 : members.size();
+    }
 }
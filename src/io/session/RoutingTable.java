@@ -0,0 +1,136 @@
+package io.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.OutgoingBacklog;
+import messages.Message;
+import misc.MpscRingBuffer;
+
+/**
+ * the routes to every user in one chat room; each SessionCoordinator keeps one
+ * of its own, shared with the MessageRouters it dispatches.
+ *
+ * Routes are looked up by routing ID. For broadcasting, the table also keeps an
+ * immutable snapshot of the room's membership, which is swapped for a new one
+ * whenever a user joins or leaves. Routers read the snapshot without taking any
+ * lock and may iterate it at their leisure; they simply won't see a join or
+ * exit that happens meanwhile until their next broadcast.
+ *
+ * Joins and exits are made by the coordinator only (add() and remove() are
+ * synchronized nonetheless, so the snapshot is never built from a stale one).
+ */
+public class RoutingTable {
+
+    /**
+     * the pathways to and from a single user.
+     */
+    public static final class Route {
+        private final int routingID; // routing ID allocated to the user
+        private final String alias; // name of the user
+        private final MpscRingBuffer<Message> incoming; // Messages from the user (null if served by an event loop)
+        private final OutgoingBacklog outgoing; // frames waiting to go out to the user
+
+        /**
+         * Route constructor.
+         *
+         * @param id  routing ID allocated to the user
+         * @param ali name of the user
+         * @param in  Messages from the user (null if served by an event loop)
+         * @param out frames waiting to go out to the user
+         */
+        public Route(int id, String ali, MpscRingBuffer<Message> in, OutgoingBacklog out) {
+            routingID = id;
+            alias = ali;
+            incoming = in;
+            outgoing = out;
+        }
+
+        public int getRoutingID() {
+            return routingID;
+        }
+
+        public String getAlias() {
+            return alias;
+        }
+
+        public MpscRingBuffer<Message> getIncoming() {
+            return incoming;
+        }
+
+        public OutgoingBacklog getOutgoing() {
+            return outgoing;
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Route> routes; // routing ID -> route
+    private volatile List<Route> members; // current membership snapshot (never modified once published)
+
+    /**
+     * RoutingTable constructor.
+     */
+    public RoutingTable() {
+        routes = new ConcurrentHashMap<Integer, Route>();
+        members = Collections.emptyList();
+    }
+
+    /**
+     * adds a user to the room.
+     *
+     * @param route the user's route
+     */
+    public synchronized void add(Route route) {
+        routes.put(route.getRoutingID(), route);
+        ArrayList<Route> next = new ArrayList<Route>(members);
+        next.add(route);
+        members = Collections.unmodifiableList(next);
+    }
+
+    /**
+     * takes a user out of the room.
+     *
+     * @param routingID routing ID of the user
+     * @return the user's route, or null if they weren't in the room
+     */
+    public synchronized Route remove(int routingID) {
+        Route route = routes.remove(routingID);
+        if (route == null) {
+            return null;
+        }
+        ArrayList<Route> next = new ArrayList<Route>(members);
+        next.remove(route);
+        members = Collections.unmodifiableList(next);
+        return route;
+    }
+
+    /**
+     * looks a user's route up.
+     *
+     * @param routingID routing ID of the user
+     * @return the route, or null if they aren't in the room
+     */
+    public Route get(int routingID) {
+        return routes.get(routingID);
+    }
+
+    /**
+     * the room's membership as of right now. The list never changes; joins and
+     * exits that happen afterwards show up in the next one.
+     *
+     * @return membership snapshot, in order of joining
+     */
+    public List<Route> members() {
+        return members;
+    }
+
+    /**
+     * number of users in the room.
+     *
+     * @return user count
+     */
+    public int size() {
+        return members.size();
+    }
+}
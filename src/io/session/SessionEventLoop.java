@@ -0,0 +1,136 @@
+package io.session;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import misc.Worker;
+
+/**
+ * a single selector thread, serving the connections of any number of chat
+ * participants (see EventLoopSessionEngine).
+ *
+ * Each cycle, the loop waits for at least one of its connections to become
+ * ready (or for a task to be submitted), runs every task submitted so far, and
+ * then hands each ready connection to the Handler attached to it, running any
+ * tasks submitted along the way after each (so that, say, what one connection's
+ * handler queued up to be written goes out before the next connection is read
+ * from).
+ *
+ * Tasks and handlers all run on the loop's own thread, one at a time, so
+ * anything only ever touched from a single loop needs no locking. They must
+ * never block, though, as every other connection on the loop would be held up.
+ */
+public class SessionEventLoop extends Worker {
+
+    /**
+     * attached to every channel registered with a loop.
+     */
+    public interface Handler {
+        /**
+         * called on the loop's thread when the channel is ready for the operations
+         * of interest.
+         *
+         * @param key the channel's key
+         */
+        public void handleReady(SelectionKey key);
+    }
+
+    private final Selector selector; // the selector all of this loop's channels are registered with
+    private final ConcurrentLinkedQueue<Runnable> tasks; // submitted from other threads, run on this one
+
+    /**
+     * SessionEventLoop constructor.
+     *
+     * @param workerNum number unique to this worker
+     * @throws IOException if a selector could not be opened
+     */
+    public SessionEventLoop(int workerNum) throws IOException {
+        super("SEL-" + Integer.toString(workerNum));
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+    }
+
+    /**
+     * queues up a task to be run on this loop's thread, waking the loop up if need
+     * be.
+     *
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * registers a channel with this loop. Only to be called on the loop's thread
+     * (i.e., from within a task).
+     *
+     * @param channel non-blocking channel to register
+     * @param ops     operations of interest
+     * @param handler handler to call when the channel is ready
+     * @return the channel's key
+     * @throws ClosedChannelException if the channel has been closed
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+                    throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * this loop's main line of execution.
+     */
+    public void run() {
+        turnOn();
+        while (isRunning) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.out.println(workerID + " Error selecting --> " + e.getMessage());
+                break;
+            }
+
+            runTasks();
+
+            Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+            while (ready.hasNext()) {
+                SelectionKey key = ready.next();
+                ready.remove();
+                try {
+                    ((Handler) key.attachment()).handleReady(key);
+                } catch (Exception e) {
+                    System.out.println(workerID + " Error! --> " + e.getMessage());
+                }
+                runTasks();
+            }
+        }
+        proclaimShutdown();
+    }
+
+    /**
+     * runs every task submitted so far.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.out.println(workerID + " Error! --> " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * stops the loop. Channels still registered are left for their owners to
+     * close.
+     */
+    public void shutDown() {
+        turnOff();
+        selector.wakeup();
+    }
+}
@@ -1,19 +1,24 @@
 package io.session;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.util.concurrent.ArrayBlockingQueue;
 
 import io.InputWorker;
+import io.MessageReader;
 import messages.Message;
-import misc.ValidateInput;
+import misc.MpscRingBuffer;
 
 /**
  * A special type of InputWorker that solely works with the SessionCoordinator.
+ * Messages it reads in are picked up by its user's MessageRouter.
+ *
+ * Should the connection be hung up on or go bad while the worker is still
+ * running (that is, without the coordinator having let the user out first), the
+ * hang-up handler is run, so the coordinator can let them out.
  */
 public class SessionInputWorker extends InputWorker {
 
-    private ArrayBlockingQueue<Integer> taskQueue; // used to queue up tasks for MessageRouters
+    private volatile Runnable hangUpHandler = null; // run when the connection is lost under us
 
     /**
      * SIW constructor.
@@ -21,12 +26,19 @@ public class SessionInputWorker extends InputWorker {
      * @param workerNumber unique number assigned to this worker within its class.
      * @param input        stream to read messages from
      * @param msgQueue     queue where newly received messages are to be placed
-     * @param tq           task queue, shared amongst all SIWs and BWs
      */
-    public SessionInputWorker(int workerNumber, ObjectInputStream input, ArrayBlockingQueue<Message> msgQueue,
-                    ArrayBlockingQueue<Integer> tq) {
+    public SessionInputWorker(int workerNumber, MessageReader input, MpscRingBuffer<Message> msgQueue) {
         super("SIW-" + Integer.toString(workerNumber), input, msgQueue);
-        taskQueue = tq;
+    }
+
+    /**
+     * sets what should happen when the connection is lost while this worker is
+     * still running (typically, the user is let out of the room).
+     *
+     * @param handler what to run (on this worker's thread)
+     */
+    public void setHangUpHandler(Runnable handler) {
+        hangUpHandler = handler;
     }
 
     /**
@@ -37,17 +49,13 @@ public class SessionInputWorker extends InputWorker {
 
         while (true) {
             try {
-                // wait for a message, validate it, and enqueue it.
-                Object obj = in.readObject();
-                Message msg = ValidateInput.validateMessage(obj);
+                // wait for a message and enqueue it (waking our MessageRouter up).
+                Message msg = in.readMessage();
                 messageQueue.put(msg);
 
-                // operating on the precondition that all worker ID strings follow a format.
-                int workerNum = Integer.parseInt(workerID.split("-")[1]);
-
-                // queue up the task for a MessageRouter.
-                taskQueue.put(workerNum);
-
+            } catch (EOFException e) {
+                // the user hung up (after their ExitRoomMessage, say); nothing more will come.
+                hungUp();
             } catch (IOException e) {
                 if (isRunning) {
                     /*
@@ -56,6 +64,7 @@ public class SessionInputWorker extends InputWorker {
                      */
                     System.out.println(workerID + " bad error, please verify. --> " + e.getMessage());
                 }
+                hungUp(); // the connection is no good (reset, say); reading it again would only fail again.
             } catch (Exception e) {
                 System.out.println(workerID + " Error! --> " + e.getMessage());
             }
@@ -70,4 +79,20 @@ public class SessionInputWorker extends InputWorker {
             }
         }
     }
+
+    /**
+     * stops this worker once its connection is gone, letting the hang-up handler
+     * know unless we were already being shut down.
+     */
+    private void hungUp() {
+        boolean wasRunning;
+        synchronized (runLock) {
+            wasRunning = isRunning;
+            isRunning = false;
+        }
+        Runnable handler = hangUpHandler;
+        if (wasRunning && handler != null) {
+            handler.run();
+        }
+    }
 }
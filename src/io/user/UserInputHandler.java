@@ -1,7 +1,7 @@
 package io.user;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.concurrent.ArrayBlockingQueue;
 
 import javax.swing.SwingUtilities;
 
@@ -9,9 +9,15 @@ import main.AppStateValue;
 import main.ApplicationState;
 import messages.ExitNotifyMessage;
 import messages.ExitRoomMessage;
+import messages.HistoryPageMessage;
 import messages.JoinNotifyMessage;
 import messages.Message;
+import messages.MessageDecoder;
+import messages.ReplayMessage;
+import messages.SearchMessage;
 import messages.WelcomeMessage;
+import misc.Constants;
+import misc.MpscRingBuffer;
 import misc.Worker;
 import ui.ChatWindow;
 
@@ -21,8 +27,7 @@ import ui.ChatWindow;
 public class UserInputHandler extends Worker {
 
     private ChatWindow chatWindowRef; // used to carry out appropriate message reactions.
-    private ArrayBlockingQueue<Message> messageQueue; // for pulling in new messages.
-    private Object inNotifier; // waited on for new messages to pull from the queue.
+    private MpscRingBuffer<Message> messageQueue; // for pulling in new messages (waited on when empty).
     private Object mainNotifier; // used to notify the main() subroutine of application state changes.
     private ApplicationState appState; // state of the application.
 
@@ -31,17 +36,15 @@ public class UserInputHandler extends Worker {
      * 
      * @param workerNum routing number that associates this worker with a user
      * @param chatWin   chat window reference object
-     * @param msgQueue  message queue
-     * @param inNotif   notified by UserInputWorker (receiver of messages)
+     * @param msgQueue  message queue (filled by UserInputWorker)
      * @param mainNotif to notify main() of state changes.
      * @param state     state of the application
      */
-    public UserInputHandler(int workerNum, ChatWindow chatWin, ArrayBlockingQueue<Message> msgQueue, Object inNotif,
-                    Object mainNotif, ApplicationState state) {
+    public UserInputHandler(int workerNum, ChatWindow chatWin, MpscRingBuffer<Message> msgQueue, Object mainNotif,
+                    ApplicationState state) {
         super("UIH-" + Integer.toString(workerNum));
         chatWindowRef = chatWin;
         messageQueue = msgQueue;
-        inNotifier = inNotif;
         mainNotifier = mainNotif;
         appState = state;
         isRunning = false;
@@ -57,11 +60,9 @@ public class UserInputHandler extends Worker {
         while (isRunning) {
 
             // no need to wait if we have messages to process.
-            if (messageQueue.size() == 0) {
+            if (messageQueue.isEmpty()) {
                 try {
-                    synchronized (inNotifier) {
-                        inNotifier.wait(); // (notified by UserInputWorker)
-                    }
+                    messageQueue.await(); // (woken by UserInputWorker's enqueue)
                 } catch (InterruptedException e) {
                     if (isRunning) {
                         System.out.println(workerID + " --> bad interrupt! Investigation needed.");
@@ -155,6 +156,61 @@ public class UserInputHandler extends Worker {
             return; // NOTE ERMs are the one message where we don't add a line to the feed.
 
         }
+        /**
+         * what was said before we joined, sent right after our WelcomeMessage. It's
+         * only shown; joins and exits among it are old news (the WelcomeMessage told us
+         * who is here now). We can scroll back from there.
+         */
+        else if (msg instanceof ReplayMessage) {
+            ReplayMessage rpm = (ReplayMessage) msg;
+            ArrayList<String> lines = contentOf(rpm.getEncodedMessages());
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    chatWindowRef.addReplayToFeed(rpm.getContent(), lines, rpm.getFirstOffset());
+                }
+            });
+            return;
+        }
+        /**
+         * older lines for the chat feed, asked for as we scrolled back. Old news, just
+         * like the above.
+         */
+        else if (msg instanceof HistoryPageMessage) {
+            HistoryPageMessage hpm = (HistoryPageMessage) msg;
+            ArrayList<String> lines = contentOf(hpm.getEncodedMessages());
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    chatWindowRef.addPageToFeed(lines, hpm.getFirstOffset());
+                }
+            });
+            return;
+        }
+        /**
+         * what our search of the room's history turned up, newest first. Shown just
+         * below the search, each line numbered by its history offset; none of it is
+         * kept (it's all further up, or will be once we scroll back far enough).
+         */
+        else if (msg instanceof SearchMessage) {
+            SearchMessage sm = (SearchMessage) msg;
+            ArrayList<String> lines = contentOf(sm.getEncodedMessages());
+            ArrayList<String> found = new ArrayList<>(lines.size() + 1);
+            if (sm.getSearchedUpTo() < 0) {
+                found.add("This room's history can't be searched.");
+            } else {
+                found.add(lines.size() + (lines.size() == 1 ? " match" : " matches") + " for: " + sm.getQuery());
+            }
+            for (int i = 0; i < lines.size() && i < sm.getOffsets().size(); i++) {
+                found.add("#" + sm.getOffsets().get(i) + " " + lines.get(i));
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    for (String line : found) {
+                        chatWindowRef.addLineToFeed(line);
+                    }
+                }
+            });
+            return;
+        }
         /**
          * indicates that a ChatUser has left the session we are currently in.
          */
@@ -168,10 +224,32 @@ public class UserInputHandler extends Worker {
             });
         }
 
+        // broadcasts (but not gap notices) are kept in the room's history, so we can scroll back past them.
+        boolean isKept = !msg.isSingleShot() && !Constants.GAP_MARKER_ALIAS.equals(msg.getAssociatedSenderAlias());
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
-                chatWindowRef.addLineToFeed(msg.getContent());
+                chatWindowRef.addLineToFeed(msg.getContent(), isKept);
             }
         });
     }
+
+    /**
+     * decodes Messages that were said earlier on, as carried by ReplayMessages,
+     * HistoryPageMessages and SearchMessages, into lines for the chat feed.
+     * 
+     * @param encoded the Messages, oldest first
+     * @return their lines, oldest first (as many as could be decoded)
+     */
+    private ArrayList<String> contentOf(ArrayList<byte[]> encoded) {
+        ArrayList<String> lines = new ArrayList<>(encoded.size());
+        try {
+            for (byte[] payload : encoded) {
+                lines.add(MessageDecoder.decode(payload, 0, payload.length).getContent());
+            }
+        } catch (IOException e) {
+            System.out.println(workerID + " Error! --> could not show what was said earlier (" + e.getMessage()
+                            + ")");
+        }
+        return lines;
+    }
 }
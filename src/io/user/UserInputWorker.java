@@ -1,12 +1,11 @@
 package io.user;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.util.concurrent.ArrayBlockingQueue;
 
 import io.InputWorker;
+import io.MessageReader;
 import messages.Message;
-import misc.ValidateInput;
+import misc.MpscRingBuffer;
 
 /**
  * A special type of InputWorker that works solely for ChatUsers by receiving
@@ -14,29 +13,16 @@ import misc.ValidateInput;
  */
 public class UserInputWorker extends InputWorker {
 
-    private Object inNotifier; // to notify UserInputHandler of newly received messages to process.
-
     /**
      * constructor for UserInputWorker.
      * 
-     * @param workerNum        unique number assigned to this worker its class
-     * @param input            reader used to read in messages
-     * @param msgQueue         where newly received messages are placed
-     * @param incomingNotifier to notify UserInputHandler of messages to process.
+     * @param workerNum unique number assigned to this worker its class
+     * @param input     reader used to read in messages
+     * @param msgQueue  where newly received messages are placed (UserInputHandler
+     *                      sleeps on it while there are none)
      */
-    public UserInputWorker(int workerNum, ObjectInputStream input, ArrayBlockingQueue<Message> msgQueue,
-                    Object incomingNotifier) {
+    public UserInputWorker(int workerNum, MessageReader input, MpscRingBuffer<Message> msgQueue) {
         super("UIW-" + Integer.toString(workerNum), input, msgQueue);
-        inNotifier = incomingNotifier;
-    }
-
-    /**
-     * getter for UserInputWorker's notifier object.
-     * 
-     * @return return UserInputWorker's notifier
-     */
-    public Object getNotifier() {
-        return inNotifier;
     }
 
     /**
@@ -46,12 +32,10 @@ public class UserInputWorker extends InputWorker {
         turnOn();
 
         while (true) {
-            Object obj = null;
             Message msg = null;
             try {
-                // read in a message and validate it.
-                obj = in.readObject();
-                msg = ValidateInput.validateMessage(obj);
+                // read in a message.
+                msg = in.readMessage();
 
             } catch (IOException e) {
                 /**
@@ -64,14 +48,9 @@ public class UserInputWorker extends InputWorker {
                 System.out.println("UserInputWorker Error! --> " + e.getMessage());
             }
 
-            // enqueue the newly received message.
+            // enqueue the newly received message (this wakes the InputHandler up if need be).
             messageQueue.add(msg);
 
-            synchronized (inNotifier) {
-                inNotifier.notify(); // sends a signal to the InputHandler that there is a message to be
-                                     // handled.
-            }
-
             // check to see if it's time to exit.
             synchronized (runLock) {
                 if (!isRunning) {
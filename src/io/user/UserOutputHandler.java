@@ -1,6 +1,9 @@
 package io.user;
 
+import messages.SearchMessage;
 import messages.SimpleMessage;
+import misc.Constants;
+import misc.Signal;
 import misc.Worker;
 import net.ChatUser;
 import ui.ChatWindow;
@@ -8,12 +11,15 @@ import ui.ChatWindow;
 /**
  * this class is responsible for passing along user-supplied information (i.e.,
  * SimpleMessages) to the user's OutputWorker.
+ *
+ * Text starting with Constants.SEARCH_COMMAND is sent as a SearchMessage instead,
+ * the rest of it being the query (see io.history.SearchQuery).
  */
 public class UserOutputHandler extends Worker {
 
     private ChatUser chatUser; // reference object for triggering the sending messages.
     private ChatWindow chatWindow; // reference window for updating chat feed.
-    private Object notifier; // UOH waits on this for various events to pop up for it to handle
+    private Signal notifier; // UOH waits on this for various events to pop up for it to handle
 
     /**
      * constructor for UserOutputHandler.
@@ -23,7 +29,7 @@ public class UserOutputHandler extends Worker {
      * @param user      reference to the user attached to the chat window.
      * @param chatWin   reference object to the chat window.
      */
-    public UserOutputHandler(int workerNum, Object notif, ChatUser user, ChatWindow chatWin) {
+    public UserOutputHandler(int workerNum, Signal notif, ChatUser user, ChatWindow chatWin) {
         super("UOH-" + Integer.toString(workerNum));
         chatUser = user;
         chatWindow = chatWin;
@@ -39,9 +45,7 @@ public class UserOutputHandler extends Worker {
 
         while (isRunning) {
             try {
-                synchronized (notifier) {
-                    notifier.wait(); // wait for a ChatWindow "Send" event to fire
-                }
+                notifier.await(); // wait for a ChatWindow "Send" event to fire
             } catch (InterruptedException e) {
                 if (isRunning) {
                     System.out.println(workerID + " bad interrupt! Investigation needed.");
@@ -58,9 +62,14 @@ public class UserOutputHandler extends Worker {
                 continue; // empty-string messages aren't sent (this doesn't include " ")
             }
 
-            // package the text into a message, and push it out.
-            SimpleMessage outgoing = new SimpleMessage(chatUser.getAlias(), toSend);
-            chatUser.pushOutgoingMessage(outgoing);
+            // package the text into a message, and push it out; a search goes to the room's history instead.
+            if (toSend.startsWith(Constants.SEARCH_COMMAND)) {
+                chatUser.pushOutgoingMessage(new SearchMessage(chatUser.getAlias(), chatUser.getCurrentRoomName(),
+                                toSend.substring(Constants.SEARCH_COMMAND.length()), Constants.SEARCH_MAX_RESULTS));
+            } else {
+                SimpleMessage outgoing = new SimpleMessage(chatUser.getAlias(), toSend);
+                chatUser.pushOutgoingMessage(outgoing);
+            }
 
             synchronized (runLock) {
                 if (!isRunning) {
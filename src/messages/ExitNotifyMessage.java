@@ -5,6 +5,8 @@ package messages;
  * them in the loop of a particular user having left the room.
  */
 public class ExitNotifyMessage extends Message {
+
+    private static final long serialVersionUID = -7578581806568923504L;
     private String userLeaving; // alias of the user that left.
     private String roomBeingLeft; // room that is being left.
 
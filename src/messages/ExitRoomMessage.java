@@ -9,6 +9,8 @@ package messages;
  */
 public class ExitRoomMessage extends Message {
 
+    private static final long serialVersionUID = -7866447032945953973L;
+
     private String userExiting; // name (i.e., alias) of the user exiting the room
     private String roomName; // name of the room being exited
 
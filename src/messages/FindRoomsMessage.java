@@ -0,0 +1,195 @@
+package messages;
+
+import java.util.ArrayList;
+
+/**
+ * a query for one page of the rooms on the Registry, for when there are far too
+ * many rooms to list them all (see ListRoomsMessage).
+ *
+ * when sent to the Registry, this message describes which rooms are wanted:
+ * those whose name or host alias matches the query text (by prefix or
+ * substring, ignoring case), whose guest count falls within a given range, in a
+ * given order, starting after a given cursor.
+ *
+ * when sent back, it carries one page of matching rooms, as CSV listings (same
+ * format as ListRoomsMessage), along with the cursor to ask for the next page
+ * with (null if there are no more) and the version of the room directory the
+ * page was taken from.
+ *
+ * A query may also ask to watch the rooms on the page it brings back (one of
+ * ListRoomsMessage's WATCH_ constants). From then on, until asked to stop or
+ * until another page is watched, the Registry pushes changes to those rooms
+ * alone, as ListRoomsMessages carrying nothing else (see net.RoomWatchers).
+ *
+ * NOTE cursors mark a position in the chosen order, not a snapshot; rooms that
+ * move around between pages (say, when sorted by size) may be seen twice or
+ * not at all.
+ */
+public class FindRoomsMessage extends Message {
+
+    private static final long serialVersionUID = -4969348369101663662L;
+
+    public static final int MATCH_PREFIX = 0; // name or host alias starts with the query text
+    public static final int MATCH_SUBSTRING = 1; // name or host alias contains the query text
+
+    public static final int SORT_NAME = 0; // alphabetically, by room name
+    public static final int SORT_SIZE = 1; // largest rooms first
+    public static final int SORT_ACTIVITY = 2; // most recently joined (or left) first
+
+    private String query; // text to match ("" matches every room)
+    private int matchMode; // one of the MATCH_ constants above
+    private int minGuests; // fewest guests a room may have
+    private int maxGuests; // most guests a room may have (0 for no limit)
+    private int sortOrder; // one of the SORT_ constants above
+    private String cursor; // where the previous page left off (null for the first page)
+    private int pageSize; // most rooms wanted
+    private int watchRequest; // one of ListRoomsMessage's WATCH_ constants
+
+    private ArrayList<String> listings; // the page of rooms found (response only)
+    private String nextCursor; // where this page leaves off (null if there are no more; response only)
+    private long directoryVersion; // version of the directory the page was taken from (response only)
+
+    /**
+     * FRM constructor.
+     *
+     * @param text    text to match against room names and host aliases ("" for
+     *                    every room)
+     * @param match   MATCH_PREFIX or MATCH_SUBSTRING
+     * @param min     fewest guests a room may have
+     * @param max     most guests a room may have (0 for no limit)
+     * @param sort    one of the SORT_ constants
+     * @param after   cursor handed back with the previous page (null for the first
+     *                    page)
+     * @param pageLen most rooms wanted
+     */
+    public FindRoomsMessage(String text, int match, int min, int max, int sort, String after, int pageLen) {
+        super();
+        query = text == null ? "" : text;
+        matchMode = match;
+        minGuests = min;
+        maxGuests = max;
+        sortOrder = sort;
+        cursor = after;
+        pageSize = pageLen;
+        watchRequest = ListRoomsMessage.WATCH_NONE;
+        listings = new ArrayList<String>();
+        nextCursor = null;
+        directoryVersion = 0;
+    }
+
+    /**
+     * FRM constructor, for the first page of every room in the given order.
+     *
+     * @param sort    one of the SORT_ constants
+     * @param pageLen most rooms wanted
+     */
+    public FindRoomsMessage(int sort, int pageLen) {
+        this("", MATCH_PREFIX, 0, 0, sort, null, pageLen);
+    }
+
+    /**
+     * setter for the watch request: whether to start (or stop) having changes to
+     * the rooms on the page pushed to us.
+     *
+     * @param watch one of ListRoomsMessage's WATCH_ constants
+     */
+    public void setWatchRequest(int watch) {
+        watchRequest = watch;
+    }
+
+    /**
+     * setter for the page found.
+     *
+     * @param page    CSV listings of the rooms found
+     * @param next    cursor for the next page (null if there are no more)
+     * @param version version of the directory the page was taken from
+     */
+    public void setPage(ArrayList<String> page, String next, long version) {
+        listings = page;
+        nextCursor = next;
+        directoryVersion = version;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public int getMatchMode() {
+        return matchMode;
+    }
+
+    public int getMinGuests() {
+        return minGuests;
+    }
+
+    public int getMaxGuests() {
+        return maxGuests;
+    }
+
+    public int getSortOrder() {
+        return sortOrder;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getWatchRequest() {
+        return watchRequest;
+    }
+
+    /**
+     * getter for the page of rooms found.
+     *
+     * @return CSV listings
+     */
+    public ArrayList<String> getListings() {
+        return listings;
+    }
+
+    /**
+     * getter for the cursor to ask for the next page with.
+     *
+     * @return cursor, or null if there are no more pages
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * getter for the version of the directory the page was taken from; changes
+     * since then can be asked for with a ListRoomsMessage.
+     *
+     * @return directory version
+     */
+    public long getDirectoryVersion() {
+        return directoryVersion;
+    }
+
+    /**
+     * can be used to debug.
+     *
+     * @return String representation of the query (and page, if any)
+     */
+    @Override
+    public String getContent() {
+        String result = getFormattedStamp() + " Room search for \"" + query + "\" (sort " + sortOrder + ", after "
+                        + cursor + "):\n\n";
+        for (String s : listings) {
+            result += s + '\n';
+        }
+        return result;
+    }
+
+    /**
+     * The purpose of this method is moot. Here to make the compiler happy.
+     */
+    @Override
+    public String getAssociatedSenderAlias() {
+        return "";
+    }
+}
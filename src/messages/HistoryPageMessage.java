@@ -0,0 +1,117 @@
+package messages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * asks a room for a page of what was said in it before a given point; sent by a
+ * ChatUser over its session connection as the user scrolls back through the
+ * chat feed, and answered by whoever routes for that user (see
+ * io.history.RoomHistory.readPage()).
+ *
+ * when sent back, it holds the Messages found, oldest first, each still in the
+ * binary wire format (as with ReplayMessages), along with the history offset of
+ * the first of them, which is what the next page is asked for before.
+ */
+public class HistoryPageMessage extends Message {
+
+    private static final long serialVersionUID = -7331040524427706224L;
+    private String alias; // user asking
+    private String roomName; // name of the room
+    private long before; // history offset the page ends at (not included)
+    private int maxMessages; // most Messages wanted
+    private long firstOffset; // history offset of the first Message in the page (response only; -1 if none kept)
+    private ArrayList<byte[]> encodedMessages; // the Messages, oldest first (response only)
+
+    /**
+     * HPM constructor.
+     *
+     * @param a    alias of the user asking
+     * @param room name of the room
+     * @param end  history offset the page ends at (not included)
+     * @param max  most Messages wanted
+     */
+    public HistoryPageMessage(String a, String room, long end, int max) {
+        super();
+        alias = a;
+        roomName = room;
+        before = end;
+        maxMessages = max;
+        firstOffset = -1;
+        encodedMessages = new ArrayList<byte[]>();
+        markSingleShot(); // only ever goes back to the user asking.
+    }
+
+    /**
+     * setter for the page found.
+     *
+     * @param first   history offset of the first Message in the page (before
+     *                    itself, if the page is empty)
+     * @param encoded the Messages, oldest first, each in the binary wire format
+     */
+    public void setPage(long first, ArrayList<byte[]> encoded) {
+        firstOffset = first;
+        encodedMessages = encoded;
+    }
+
+    public String getRoomName() {
+        return roomName;
+    }
+
+    public long getBefore() {
+        return before;
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * offset of the first Message in the page; anything older can be found below
+     * it.
+     *
+     * @return first offset, or -1 if the room keeps no history
+     */
+    public long getFirstOffset() {
+        return firstOffset;
+    }
+
+    /**
+     * getter for the Messages, still encoded.
+     *
+     * @return the Messages, oldest first
+     */
+    public ArrayList<byte[]> getEncodedMessages() {
+        return encodedMessages;
+    }
+
+    /**
+     * decodes the Messages.
+     *
+     * @return the Messages, oldest first
+     * @throws IOException if a Message is malformed
+     */
+    public ArrayList<Message> getMessages() throws IOException {
+        ArrayList<Message> messages = new ArrayList<Message>(encodedMessages.size());
+        for (byte[] payload : encodedMessages) {
+            messages.add(MessageDecoder.decode(payload, 0, payload.length));
+        }
+        return messages;
+    }
+
+    /**
+     * for debugging purposes only. no user-facing application here.
+     *
+     * @return String-based message that can be used to debug the app.
+     */
+    @Override
+    public String getContent() {
+        return getFormattedStamp() + " Page of " + roomName + " before " + before + ": "
+                        + encodedMessages.size() + " messages from " + firstOffset + ".";
+    }
+
+    @Override
+    public String getAssociatedSenderAlias() {
+        return alias;
+    }
+}
@@ -9,6 +9,8 @@ package messages;
  */
 public class HostChangeMessage extends Message {
 
+    private static final long serialVersionUID = 3466693105784840170L;
+
     private String newHost; // alias of the new room host
     private boolean isToNewHost; // true if message is meant for new host, false otherwise.
 
@@ -27,6 +29,24 @@ public class HostChangeMessage extends Message {
             markSingleShot();
     }
 
+    /**
+     * getter for the new host.
+     * 
+     * @return alias of the new room host
+     */
+    public String getNewHost() {
+        return newHost;
+    }
+
+    /**
+     * getter for isToNewHost.
+     * 
+     * @return true if this message is meant for the new host
+     */
+    public boolean isToNewHost() {
+        return isToNewHost;
+    }
+
     /**
      * string representation of what it would look like to print the contents of
      * this Message out.
@@ -8,6 +8,8 @@ package messages;
  */
 public class JoinNotifyMessage extends Message {
 
+    private static final long serialVersionUID = 2529543131237720227L;
+
     private String userThatJoined; // alias of the user that just joined
     private String roomJoined; // name of the room being joined
 
@@ -5,6 +5,8 @@ package messages;
  * ChatUsers wishing to join the room that the SC is in charge of.
  */
 public class JoinRoomMessage extends Message {
+
+    private static final long serialVersionUID = 200618917783379131L;
     private String userAlias; // alias of the user requesting to join the room.
     private String roomName; // name of the room requested to be joined.
 
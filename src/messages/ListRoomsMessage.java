@@ -1,6 +1,7 @@
 package messages;
 
 import java.util.ArrayList;
+import java.util.Map;
 
 /**
  * when sent from a RoomsListFetcher to a Registry's RequestHandler, this
@@ -10,31 +11,235 @@ import java.util.ArrayList;
  * contain the room listings in the form of an ArrayList<String>, where each
  * String adheres to the following CSV format:
  * 
- * "room name,host name, # of guests,<ip>:<port number>"
+ * "room name,host name, # of guests,<ip>:<port number>/<room key>"
+ * 
+ * where ip and port are those of the session gateway, and the room key names
+ * the room within it.
+ *
+ * Listings are versioned. A request carries the version of the listings the
+ * client already has (0 if none), and the response either carries the listings
+ * in full, or, if the client isn't too far behind, only what has changed since:
+ * the listings of rooms opened or changed, plus the names of rooms closed. Either
+ * way, applyTo() brings the client's copy up to date.
+ *
+ * A request may also ask to watch the listings (see net.RoomWatchers). From then
+ * on, until asked to stop, the Registry pushes further changes to the client as
+ * they happen, in the form of unsolicited LRMs (request ID 0) over the same
+ * connection.
  */
 public class ListRoomsMessage extends Message {
 
+    private static final long serialVersionUID = -6898007431540669393L;
+
+    public static final int WATCH_NONE = 0; // just the listings, thanks
+    public static final int WATCH_START = 1; // the listings, then keep pushing changes
+    public static final int WATCH_STOP = 2; // the listings, and stop pushing changes
+
     private ArrayList<String> roomDataCsvList; // list of CSV-style room data listings (outlined above)
+    private ArrayList<String> removedRooms; // names of rooms closed (deltas only)
+    private long listingVersion; // version the client has (request) or of the listings carried (response)
+    private long sinceVersion; // version the changes carried were made since (deltas only)
+    private boolean isDelta; // true if carrying only the changes since the version requested
+    private int watchRequest; // one of the WATCH_ constants above
+    private transient byte[] encodedListings; // the same listings, pre-encoded (null if not; see MessageEncoder)
 
     /**
-     * LRM constructor. Respondent may use the setter to initialize the room
-     * listings.
+     * LRM constructor, for requesting the listings in full. Respondent may use the
+     * setters to initialize the room listings.
      */
     public ListRoomsMessage() {
+        this(0);
+    }
+
+    /**
+     * LRM constructor, for requesting what has changed since the given version of
+     * the listings.
+     * 
+     * @param knownVersion version of the listings the client already has (0 for
+     *                     none)
+     */
+    public ListRoomsMessage(long knownVersion) {
+        this(knownVersion, WATCH_NONE);
+    }
+
+    /**
+     * LRM constructor, for requesting what has changed since the given version of
+     * the listings, and for starting or stopping pushed changes.
+     * 
+     * @param knownVersion version of the listings the client already has (0 for
+     *                     none)
+     * @param watch        one of WATCH_NONE, WATCH_START or WATCH_STOP
+     */
+    public ListRoomsMessage(long knownVersion, int watch) {
         roomDataCsvList = null;
+        removedRooms = new ArrayList<String>();
+        listingVersion = knownVersion;
+        sinceVersion = 0;
+        isDelta = false;
+        watchRequest = watch;
+        encodedListings = null;
     }
 
     /**
-     * setter for room listings.
+     * setter for room listings (in full).
      * 
      * @param listings current list of rooms that can be joined.
      */
     public void setListings(ArrayList<String> listings) {
         roomDataCsvList = listings;
+        encodedListings = null;
+    }
+
+    /**
+     * setter for the full room listings as of the given version, already encoded
+     * (see MessageEncoder.encodeStringList()) so they can be written out as they
+     * are. Neither may be modified afterwards.
+     * 
+     * @param version  version of the listings
+     * @param listings current list of rooms that can be joined.
+     * @param encoded  the very same listings, encoded (may be null)
+     */
+    public void setListings(long version, ArrayList<String> listings, byte[] encoded) {
+        roomDataCsvList = listings;
+        removedRooms = new ArrayList<String>();
+        listingVersion = version;
+        sinceVersion = 0;
+        isDelta = false;
+        encodedListings = encoded;
+    }
+
+    /**
+     * setter for the changes made to the room listings between two versions.
+     * Neither list may be modified afterwards.
+     * 
+     * @param since   the version the changes were made since
+     * @param version the version the changes bring the listings up to
+     * @param changed listings of the rooms opened or changed
+     * @param removed names of the rooms closed
+     */
+    public void setChanges(long since, long version, ArrayList<String> changed, ArrayList<String> removed) {
+        roomDataCsvList = changed;
+        removedRooms = removed;
+        listingVersion = version;
+        sinceVersion = since;
+        isDelta = true;
+        encodedListings = null;
+    }
+
+    /**
+     * restores the versioning details of a decoded LRM.
+     * 
+     * @param version listing version
+     * @param since   version the changes were made since
+     * @param delta   whether the LRM carries changes only
+     * @param watch   watch request
+     * @param removed names of the rooms closed
+     */
+    void restoreVersion(long version, long since, boolean delta, int watch, ArrayList<String> removed) {
+        listingVersion = version;
+        sinceVersion = since;
+        isDelta = delta;
+        watchRequest = watch;
+        removedRooms = removed == null ? new ArrayList<String>() : removed;
+    }
+
+    /**
+     * checks whether this (response) can be applied to a copy of the listings
+     * that is at the given version: full listings can, unless older than the copy,
+     * while changes need the copy to be no older than what they were made since.
+     * 
+     * @param copyVersion version of the copy (0 if there is none)
+     * @return true if applyTo() would bring the copy forward
+     */
+    public boolean appliesTo(long copyVersion) {
+        if (!isDelta) {
+            return listingVersion >= copyVersion;
+        }
+        return sinceVersion <= copyVersion && listingVersion > copyVersion;
+    }
+
+    /**
+     * brings a client's copy of the listings, keyed on room name, up to date with
+     * this response: a full listing replaces the copy outright, while changes are
+     * applied in place.
+     * 
+     * @param listings the client's copy of the listings (room name -> CSV)
+     */
+    public void applyTo(Map<String, String> listings) {
+        if (!isDelta) {
+            listings.clear();
+        }
+        if (roomDataCsvList != null) {
+            for (String csv : roomDataCsvList) {
+                listings.put(roomNameOf(csv), csv);
+            }
+        }
+        for (String roomName : removedRooms) {
+            listings.remove(roomName);
+        }
+    }
+
+    /**
+     * extracts the room name from a CSV listing.
+     * 
+     * @param csv room listing
+     * @return the room's name
+     */
+    public static String roomNameOf(String csv) {
+        int comma = csv.indexOf(',');
+        return comma < 0 ? csv : csv.substring(0, comma);
+    }
+
+    /**
+     * getter for the listing version; in a request, that of the listings the client
+     * already has, and in a response, that of the listings carried.
+     * 
+     * @return listing version
+     */
+    public long getVersion() {
+        return listingVersion;
+    }
+
+    /**
+     * whether this (response) carries only what has changed since the version
+     * requested.
+     * 
+     * @return true if a delta
+     */
+    public boolean isDelta() {
+        return isDelta;
+    }
+
+    /**
+     * getter for the version the changes carried were made since (deltas only).
+     * 
+     * @return earlier listing version
+     */
+    public long getSinceVersion() {
+        return sinceVersion;
+    }
+
+    /**
+     * getter for the watch request (one of the WATCH_ constants).
+     * 
+     * @return watch request
+     */
+    public int getWatchRequest() {
+        return watchRequest;
+    }
+
+    /**
+     * getter for the names of the rooms closed (deltas only).
+     * 
+     * @return names of closed rooms
+     */
+    public ArrayList<String> getRemovedRooms() {
+        return removedRooms;
     }
 
     /**
-     * getter for room listings.
+     * getter for room listings. If this is a delta, only the rooms opened or
+     * changed are listed.
      * 
      * @return current list of rooms available to be joined.
      */
@@ -42,6 +247,15 @@ public class ListRoomsMessage extends Message {
         return roomDataCsvList;
     }
 
+    /**
+     * getter for the pre-encoded room listings.
+     * 
+     * @return encoded listings, or null if there are none
+     */
+    public byte[] getEncodedListings() {
+        return encodedListings;
+    }
+
     /**
      * can be used to debug.
      * 
@@ -53,6 +267,9 @@ public class ListRoomsMessage extends Message {
         for (String s : roomDataCsvList) {
             result += s + '\n';
         }
+        for (String s : removedRooms) {
+            result += "(closed) " + s + '\n';
+        }
         return result;
     }
 
@@ -0,0 +1,78 @@
+package messages;
+
+/**
+ * asks the Registry about a single room by name; sent before joining a room to
+ * make sure it is still open, without having to fetch any listings.
+ *
+ * when sent back, it says whether the room is open and, if so, where to
+ * connect to it and how many guests it has.
+ */
+public class LookupRoomMessage extends Message {
+
+    private static final long serialVersionUID = 6821203893070149611L;
+    private String roomName; // name of the room looked up
+    private boolean isOpen; // true if the room is open (response only)
+    private String connectInfo; // "ip:port/roomKey" of the room (response only; null if closed)
+    private int guestCount; // number of users in the room (response only)
+
+    /**
+     * LKM constructor.
+     *
+     * @param room name of the room to look up
+     */
+    public LookupRoomMessage(String room) {
+        super();
+        roomName = room;
+        isOpen = false;
+        connectInfo = null;
+        guestCount = 0;
+    }
+
+    /**
+     * setter for the result of the lookup.
+     *
+     * @param open  true if the room is open
+     * @param info  connect info of the room (null if closed)
+     * @param count number of users in the room
+     */
+    public void setResult(boolean open, String info, int count) {
+        isOpen = open;
+        connectInfo = info;
+        guestCount = count;
+    }
+
+    public String getRoomName() {
+        return roomName;
+    }
+
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    public String getConnectInfo() {
+        return connectInfo;
+    }
+
+    public int getGuestCount() {
+        return guestCount;
+    }
+
+    /**
+     * for debugging purposes only. no user-facing application here.
+     *
+     * @return String-based message that can be used to debug the app.
+     */
+    @Override
+    public String getContent() {
+        return getFormattedStamp() + " Lookup of " + roomName + ": "
+                        + (isOpen ? guestCount + " users at " + connectInfo : "not open") + ".";
+    }
+
+    /**
+     * The purpose of this method is moot. Here to make the compiler happy.
+     */
+    @Override
+    public String getAssociatedSenderAlias() {
+        return "";
+    }
+}
@@ -10,6 +10,15 @@ import misc.TimeStampGenerator;
  */
 public abstract class Message implements Serializable {
 
+    /**
+     * pinned, here and in every subclass, to what the JVM computed for the classes
+     * older clients were built with, since those still speak to the Registry over
+     * Object streams (see MessageFraming). Fields added since are compatible
+     * changes; they are simply left at their defaults when read from such a
+     * client. Classes older clients never had are pinned to their value at the time.
+     */
+    private static final long serialVersionUID = 2410432319370982157L;
+
     /**
      * used in message-routing logic to determine which users should receive which
      * messages. SingleShot == false means that everyone BUT the associated alias of
@@ -24,12 +33,20 @@ public abstract class Message implements Serializable {
 
     private String timestamp; // time at which this message was created.
 
+    /**
+     * used to pair responses up with the requests that prompted them when several
+     * requests share one connection (see RegistryChannel). 0 means the message is
+     * not part of a request/response exchange.
+     */
+    private long requestID;
+
     /**
      * Message constructor.
      */
     Message() {
         timestamp = TimeStampGenerator.now();
         isSingleShot = false;
+        requestID = 0;
     }
 
     /**
@@ -67,6 +84,39 @@ public abstract class Message implements Serializable {
         return isSingleShot;
     }
 
+    /**
+     * getter for the request ID.
+     * 
+     * @return request ID, or 0 if this message is uncorrelated.
+     */
+    public long getRequestID() {
+        return requestID;
+    }
+
+    /**
+     * setter for the request ID. Responders copy the ID of the request over to
+     * their response.
+     * 
+     * @param id request ID
+     */
+    public void setRequestID(long id) {
+        requestID = id;
+    }
+
+    /**
+     * used by MessageDecoder to restore the header fields of a Message it has just
+     * rebuilt, as constructors stamp messages with the current time.
+     * 
+     * @param stamp      timestamp the message was originally created with
+     * @param singleShot whether or not the message was single shot
+     * @param id         request ID
+     */
+    void restoreHeader(String stamp, boolean singleShot, long id) {
+        timestamp = stamp;
+        isSingleShot = singleShot;
+        requestID = id;
+    }
+
     /**
      * A simple print method. to be implemented by all subclasses. bear in mind
      * that, to some subclasses, this method will be absolutely useless, thus the
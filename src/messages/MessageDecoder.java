@@ -0,0 +1,308 @@
+package messages;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * reads Messages written by a MessageEncoder back in. See WireFormat for the
+ * layout.
+ *
+ * Like the encoder, a decoder reuses its scratch buffer from one Message to the
+ * next, so it should only ever be used by one thread at a time.
+ */
+public class MessageDecoder {
+
+    private InputStream in; // where encoded messages are read from (null if only decoding arrays)
+    private byte[] buffer; // holds the payload currently being decoded
+    private int position; // next byte of buffer to be decoded
+    private int limit; // end of the payload within buffer
+
+    /**
+     * MessageDecoder constructor.
+     *
+     * @param input stream encoded messages will be read from
+     */
+    public MessageDecoder(InputStream input) {
+        in = input;
+        buffer = new byte[256];
+        position = 0;
+        limit = 0;
+    }
+
+    /**
+     * decodes a standalone payload (as produced by MessageEncoder.encode()).
+     *
+     * @param bytes  array holding the payload
+     * @param offset start of the payload
+     * @param length length of the payload
+     * @return the decoded Message
+     * @throws IOException if the payload is malformed
+     */
+    public static Message decode(byte[] bytes, int offset, int length) throws IOException {
+        MessageDecoder decoder = new MessageDecoder(null);
+        decoder.buffer = bytes;
+        decoder.position = offset;
+        decoder.limit = offset + length;
+        return decoder.decodePayload();
+    }
+
+    /**
+     * reads and checks the stream header. Must be called once, before the first
+     * Message.
+     *
+     * @throws IOException if the header is missing or of an unknown version
+     */
+    public void readStreamHeader() throws IOException {
+        for (byte b : WireFormat.STREAM_MAGIC) {
+            if (readStreamByte() != (b & 0xFF)) {
+                throw new IOException("not a binary message stream");
+            }
+        }
+        int version = readStreamByte();
+        if (version != WireFormat.VERSION) {
+            throw new IOException("unsupported message stream version " + version);
+        }
+    }
+
+    /**
+     * blocking read of a single Message.
+     *
+     * @return the decoded Message
+     * @throws IOException on stream failure or a malformed message
+     */
+    public Message readMessage() throws IOException {
+        int length = 0;
+        for (int shift = 0;; shift += 7) {
+            if (shift > 28) {
+                throw new IOException("malformed message length");
+            }
+            int b = readStreamByte();
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > WireFormat.MAX_MESSAGE_LENGTH) {
+            throw new IOException("bad message length " + length);
+        }
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(buffer.length * 2, length)];
+        }
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, read, length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        position = 0;
+        limit = length;
+        return decodePayload();
+    }
+
+    /**
+     * reads one byte straight off of the stream.
+     *
+     * @return the byte read
+     * @throws IOException
+     */
+    private int readStreamByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    /**
+     * decodes the payload sitting between position and limit.
+     *
+     * @return the decoded Message
+     * @throws IOException if the payload is malformed
+     */
+    private Message decodePayload() throws IOException {
+        int version = takeByte();
+        if (version != WireFormat.VERSION) {
+            throw new IOException("unsupported message version " + version);
+        }
+        byte type = (byte) takeByte();
+        int flags = takeByte();
+        long requestID = takeVarLong();
+        String timestamp = takeString();
+
+        Message msg;
+        switch (type) {
+            case WireFormat.TYPE_SIMPLE:
+                msg = new SimpleMessage(takeString(), takeString());
+                break;
+            case WireFormat.TYPE_NEW_USER:
+                msg = new NewUserMessage(takeString());
+                break;
+            case WireFormat.TYPE_NEW_ROOM:
+                msg = new NewRoomMessage(takeString(), takeString());
+                break;
+            case WireFormat.TYPE_LIST_ROOMS:
+                ListRoomsMessage lrm = new ListRoomsMessage();
+                long listingVersion = takeVarLong();
+                long sinceVersion = takeVarLong();
+                boolean isDelta = takeByte() != 0;
+                int watch = takeByte();
+                lrm.setListings(takeStringList());
+                lrm.restoreVersion(listingVersion, sinceVersion, isDelta, watch, takeStringList());
+                msg = lrm;
+                break;
+            case WireFormat.TYPE_JOIN_ROOM:
+                msg = new JoinRoomMessage(takeString(), takeString());
+                break;
+            case WireFormat.TYPE_EXIT_ROOM:
+                msg = new ExitRoomMessage(takeString(), takeString());
+                break;
+            case WireFormat.TYPE_WELCOME:
+                String user = takeString();
+                String room = takeString();
+                boolean hosting = takeByte() != 0;
+                ArrayList<String> participants = takeStringList();
+                msg = participants == null ? new WelcomeMessage(user, room, hosting)
+                                : new WelcomeMessage(user, room, hosting, participants);
+                break;
+            case WireFormat.TYPE_JOIN_NOTIFY:
+                msg = new JoinNotifyMessage(takeString(), takeString());
+                break;
+            case WireFormat.TYPE_EXIT_NOTIFY:
+                msg = new ExitNotifyMessage(takeString(), takeString());
+                break;
+            case WireFormat.TYPE_HOST_CHANGE:
+                msg = new HostChangeMessage(takeString(), takeByte() != 0);
+                break;
+            case WireFormat.TYPE_SESSION_CONNECT:
+                msg = new SessionConnectMessage(takeString(), takeString());
+                break;
+            case WireFormat.TYPE_FIND_ROOMS:
+                FindRoomsMessage frm = new FindRoomsMessage(takeString(), takeByte(), (int) takeVarLong(),
+                                (int) takeVarLong(), takeByte(), takeString(), (int) takeVarLong());
+                frm.setPage(takeStringList(), takeString(), takeVarLong());
+                if (position < limit) {
+                    frm.setWatchRequest(takeByte()); // added on the end; older senders leave it off.
+                }
+                msg = frm;
+                break;
+            case WireFormat.TYPE_LOOKUP_ROOM:
+                LookupRoomMessage lkm = new LookupRoomMessage(takeString());
+                lkm.setResult(takeByte() != 0, takeString(), (int) takeVarLong());
+                msg = lkm;
+                break;
+            case WireFormat.TYPE_ROSTER_UPDATE:
+                msg = new RosterUpdateMessage(takeString(), takeStringList(), takeStringList(), (int) takeVarLong());
+                break;
+            case WireFormat.TYPE_REPLAY:
+                msg = new ReplayMessage(takeString(), takeVarLong() - 1, takeBytesList());
+                break;
+            case WireFormat.TYPE_HISTORY_PAGE:
+                HistoryPageMessage hpm = new HistoryPageMessage(takeString(), takeString(), takeVarLong() - 1,
+                                (int) takeVarLong());
+                hpm.setPage(takeVarLong() - 1, takeBytesList());
+                msg = hpm;
+                break;
+            case WireFormat.TYPE_SEARCH:
+                SearchMessage sm = new SearchMessage(takeString(), takeString(), takeString(), (int) takeVarLong());
+                sm.setResults(takeVarLong() - 1, takeLongList(), takeBytesList());
+                msg = sm;
+                break;
+            default:
+                throw new IOException("unknown message type " + type);
+        }
+
+        msg.restoreHeader(timestamp, (flags & WireFormat.FLAG_SINGLE_SHOT) != 0, requestID);
+        return msg;
+    }
+
+    private int takeByte() throws IOException {
+        if (position >= limit) {
+            throw new IOException("truncated message");
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private long takeVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = takeByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /**
+     * reads a length (or size) field, which is stored off by one so that 0 can
+     * stand for null.
+     *
+     * @return the length, or -1 for null
+     * @throws IOException if the field is malformed
+     */
+    private int takeLength() throws IOException {
+        long value = takeVarLong();
+        if (value > limit - position + 1) {
+            throw new IOException("truncated message");
+        }
+        return (int) value - 1;
+    }
+
+    private String takeString() throws IOException {
+        int length = takeLength();
+        if (length < 0) {
+            return null;
+        }
+        String s = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return s;
+    }
+
+    private ArrayList<String> takeStringList() throws IOException {
+        int size = takeLength();
+        if (size < 0) {
+            return null;
+        }
+        ArrayList<String> list = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(takeString());
+        }
+        return list;
+    }
+
+    private ArrayList<Long> takeLongList() throws IOException {
+        int size = takeLength();
+        if (size < 0) {
+            return null;
+        }
+        ArrayList<Long> list = new ArrayList<Long>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(takeVarLong());
+        }
+        return list;
+    }
+
+    private ArrayList<byte[]> takeBytesList() throws IOException {
+        int size = takeLength();
+        if (size < 0) {
+            return null;
+        }
+        ArrayList<byte[]> list = new ArrayList<byte[]>(size);
+        for (int i = 0; i < size; i++) {
+            int length = takeLength();
+            if (length < 0) {
+                throw new IOException("malformed message");
+            }
+            list.add(Arrays.copyOfRange(buffer, position, position + length));
+            position += length;
+        }
+        return list;
+    }
+}
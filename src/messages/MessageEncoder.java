@@ -0,0 +1,452 @@
+package messages;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * writes Messages out in the compact binary format outlined in WireFormat.
+ *
+ * Bodies, by type:
+ *
+ * SimpleMessage --> alias, text
+ *
+ * NewUserMessage --> alias
+ *
+ * NewRoomMessage --> host, room name
+ *
+ * ListRoomsMessage --> listing version, since version, isDelta, watch request,
+ * listings, removed rooms
+ *
+ * JoinRoomMessage --> user joining, room
+ *
+ * ExitRoomMessage --> user exiting, room
+ *
+ * WelcomeMessage --> user joining, room, isHost, participants
+ *
+ * JoinNotifyMessage --> user joined, room
+ *
+ * ExitNotifyMessage --> user leaving, room
+ *
+ * HostChangeMessage --> new host, isToNewHost
+ *
+ * SessionConnectMessage --> room key, alias
+ *
+ * FindRoomsMessage --> query, match mode, min guests, max guests, sort order,
+ * cursor, page size, listings, next cursor, directory version, watch request
+ * (the last of which may be left off; see MessageDecoder)
+ *
+ * LookupRoomMessage --> room name, isOpen, connect info, guest count
+ *
+ * RosterUpdateMessage --> room name, joined, left, participant count
+ *
+ * ReplayMessage --> room name, first offset + 1, encoded messages
+ *
+ * HistoryPageMessage --> user asking, room name, before + 1, max messages, first
+ * offset + 1, encoded messages
+ *
+ * SearchMessage --> user asking, room name, query, max results, searched offset
+ * + 1, offsets, encoded messages
+ *
+ * Each payload is built up in a scratch buffer that is reused from one Message
+ * to the next, so an encoder should only ever be used by one thread at a time.
+ */
+public class MessageEncoder {
+
+    private OutputStream out; // where encoded messages are written (null if only encoding to arrays)
+    private byte[] buffer; // scratch space payloads are built up in
+    private int count; // number of bytes of buffer currently in use
+
+    /**
+     * MessageEncoder constructor.
+     *
+     * @param output stream encoded messages will be written to
+     */
+    public MessageEncoder(OutputStream output) {
+        out = output;
+        buffer = new byte[256];
+        count = 0;
+    }
+
+    /**
+     * encodes a single Message into a standalone payload (no length prefix).
+     *
+     * @param msg message to encode
+     * @return payload bytes
+     * @throws IOException if msg is of a type with no binary encoding
+     */
+    public static byte[] encode(Message msg) throws IOException {
+        MessageEncoder encoder = new MessageEncoder(null);
+        encoder.encodePayload(msg);
+        return Arrays.copyOf(encoder.buffer, encoder.count);
+    }
+
+    /**
+     * encodes a list of strings on its own, exactly as it would appear within a
+     * Message. Used to encode what many Messages share just once.
+     *
+     * @param list list to encode (may be null)
+     * @return encoded list
+     * @throws IOException if the list is too large
+     */
+    public static byte[] encodeStringList(ArrayList<String> list) throws IOException {
+        MessageEncoder encoder = new MessageEncoder(null);
+        encoder.putStringList(list);
+        if (encoder.count > WireFormat.MAX_MESSAGE_LENGTH) {
+            throw new IOException("encoded list too large (" + encoder.count + " bytes)");
+        }
+        return Arrays.copyOf(encoder.buffer, encoder.count);
+    }
+
+    /**
+     * writes the stream header out. Must be called once, before the first Message.
+     *
+     * @throws IOException
+     */
+    public void writeStreamHeader() throws IOException {
+        out.write(WireFormat.STREAM_MAGIC);
+        out.write(WireFormat.VERSION);
+    }
+
+    /**
+     * writes a Message out, length prefix and all.
+     *
+     * @param msg message to write
+     * @throws IOException
+     */
+    public void writeMessage(Message msg) throws IOException {
+        encodePayload(msg);
+        int length = count;
+        while ((length & ~0x7F) != 0) {
+            out.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(buffer, 0, count);
+    }
+
+    /**
+     * encodes a Message into the scratch buffer, exactly as writeMessage() would
+     * write it out (length prefix and all). The bytes stay put until the next
+     * Message is encoded, and can be copied out with copyEncoded().
+     *
+     * @param msg message to encode
+     * @return number of bytes copyEncoded() will produce
+     * @throws IOException if msg is of a type with no binary encoding
+     */
+    public int encodeFramed(Message msg) throws IOException {
+        encodePayload(msg);
+        int prefixLength = 1;
+        for (int length = count; (length & ~0x7F) != 0; length >>>= 7) {
+            prefixLength++;
+        }
+        return prefixLength + count;
+    }
+
+    /**
+     * copies the Message last encoded by encodeFramed() out.
+     *
+     * @param dest   array to copy into
+     * @param offset where in dest to start
+     */
+    public void copyEncoded(byte[] dest, int offset) {
+        int length = count;
+        while ((length & ~0x7F) != 0) {
+            dest[offset++] = (byte) ((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        dest[offset++] = (byte) length;
+        System.arraycopy(buffer, 0, dest, offset, count);
+    }
+
+    /**
+     * flushes the underlying stream.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * encodes a Message into the scratch buffer, replacing whatever was there.
+     *
+     * @param msg message to encode
+     * @throws IOException if msg is of a type with no binary encoding
+     */
+    private void encodePayload(Message msg) throws IOException {
+        count = 0;
+        putByte(WireFormat.VERSION);
+        putByte(typeOf(msg));
+        putByte(msg.isSingleShot() ? WireFormat.FLAG_SINGLE_SHOT : 0);
+        putVarLong(msg.getRequestID());
+        putString(msg.getTimestamp());
+
+        if (msg instanceof SimpleMessage) {
+            SimpleMessage sm = (SimpleMessage) msg;
+            putString(sm.getAssociatedSenderAlias());
+            putString(sm.getText());
+        } else if (msg instanceof NewUserMessage) {
+            putString(((NewUserMessage) msg).getAlias());
+        } else if (msg instanceof NewRoomMessage) {
+            NewRoomMessage nrm = (NewRoomMessage) msg;
+            putString(nrm.getHost());
+            putString(nrm.getRoomName());
+        } else if (msg instanceof ListRoomsMessage) {
+            ListRoomsMessage lrm = (ListRoomsMessage) msg;
+            putVarLong(lrm.getVersion());
+            putVarLong(lrm.getSinceVersion());
+            putByte(lrm.isDelta() ? 1 : 0);
+            putByte(lrm.getWatchRequest());
+            if (lrm.getEncodedListings() != null) {
+                putBytes(lrm.getEncodedListings());
+            } else {
+                putStringList(lrm.getListings());
+            }
+            putStringList(lrm.getRemovedRooms());
+        } else if (msg instanceof JoinRoomMessage) {
+            JoinRoomMessage jrm = (JoinRoomMessage) msg;
+            putString(jrm.getUserJoining());
+            putString(jrm.getRoom());
+        } else if (msg instanceof ExitRoomMessage) {
+            ExitRoomMessage erm = (ExitRoomMessage) msg;
+            putString(erm.getExitingUser());
+            putString(erm.getAssociatedRoom());
+        } else if (msg instanceof WelcomeMessage) {
+            WelcomeMessage wm = (WelcomeMessage) msg;
+            putString(wm.getAssociatedReceivingAlias());
+            putString(wm.getAssociatedRoomName());
+            putByte(wm.isHosting() ? 1 : 0);
+            putStringList(wm.getParticipants());
+        } else if (msg instanceof JoinNotifyMessage) {
+            JoinNotifyMessage jnm = (JoinNotifyMessage) msg;
+            putString(jnm.getUserJoined());
+            putString(jnm.getRoomJoined());
+        } else if (msg instanceof ExitNotifyMessage) {
+            ExitNotifyMessage enm = (ExitNotifyMessage) msg;
+            putString(enm.getUserLeaving());
+            putString(enm.getRoomLeft());
+        } else if (msg instanceof HostChangeMessage) {
+            HostChangeMessage hcm = (HostChangeMessage) msg;
+            putString(hcm.getNewHost());
+            putByte(hcm.isToNewHost() ? 1 : 0);
+        } else if (msg instanceof SessionConnectMessage) {
+            SessionConnectMessage scm = (SessionConnectMessage) msg;
+            putString(scm.getRoomKey());
+            putString(scm.getAssociatedSenderAlias());
+        } else if (msg instanceof FindRoomsMessage) {
+            FindRoomsMessage frm = (FindRoomsMessage) msg;
+            putString(frm.getQuery());
+            putByte(frm.getMatchMode());
+            putVarLong(frm.getMinGuests());
+            putVarLong(frm.getMaxGuests());
+            putByte(frm.getSortOrder());
+            putString(frm.getCursor());
+            putVarLong(frm.getPageSize());
+            putStringList(frm.getListings());
+            putString(frm.getNextCursor());
+            putVarLong(frm.getDirectoryVersion());
+            putByte(frm.getWatchRequest());
+        } else if (msg instanceof LookupRoomMessage) {
+            LookupRoomMessage lkm = (LookupRoomMessage) msg;
+            putString(lkm.getRoomName());
+            putByte(lkm.isOpen() ? 1 : 0);
+            putString(lkm.getConnectInfo());
+            putVarLong(lkm.getGuestCount());
+        } else if (msg instanceof RosterUpdateMessage) {
+            RosterUpdateMessage rum = (RosterUpdateMessage) msg;
+            putString(rum.getRoomName());
+            putStringList(rum.getJoined());
+            putStringList(rum.getLeft());
+            putVarLong(rum.getParticipantCount());
+        } else if (msg instanceof ReplayMessage) {
+            ReplayMessage rpm = (ReplayMessage) msg;
+            putString(rpm.getRoomName());
+            putVarLong(rpm.getFirstOffset() + 1);
+            putBytesList(rpm.getEncodedMessages());
+        } else if (msg instanceof HistoryPageMessage) {
+            HistoryPageMessage hpm = (HistoryPageMessage) msg;
+            putString(hpm.getAssociatedSenderAlias());
+            putString(hpm.getRoomName());
+            putVarLong(hpm.getBefore() + 1);
+            putVarLong(hpm.getMaxMessages());
+            putVarLong(hpm.getFirstOffset() + 1);
+            putBytesList(hpm.getEncodedMessages());
+        } else if (msg instanceof SearchMessage) {
+            SearchMessage sm = (SearchMessage) msg;
+            putString(sm.getAssociatedSenderAlias());
+            putString(sm.getRoomName());
+            putString(sm.getQuery());
+            putVarLong(sm.getMaxResults());
+            putVarLong(sm.getSearchedUpTo() + 1);
+            putLongList(sm.getOffsets());
+            putBytesList(sm.getEncodedMessages());
+        }
+
+        if (count > WireFormat.MAX_MESSAGE_LENGTH) {
+            throw new IOException("encoded message too large (" + count + " bytes)");
+        }
+    }
+
+    /**
+     * type tag of the given Message.
+     *
+     * @param msg message in question
+     * @return type tag
+     * @throws IOException if msg is of a type with no binary encoding
+     */
+    private static byte typeOf(Message msg) throws IOException {
+        if (msg instanceof SimpleMessage) {
+            return WireFormat.TYPE_SIMPLE;
+        } else if (msg instanceof NewUserMessage) {
+            return WireFormat.TYPE_NEW_USER;
+        } else if (msg instanceof NewRoomMessage) {
+            return WireFormat.TYPE_NEW_ROOM;
+        } else if (msg instanceof ListRoomsMessage) {
+            return WireFormat.TYPE_LIST_ROOMS;
+        } else if (msg instanceof JoinRoomMessage) {
+            return WireFormat.TYPE_JOIN_ROOM;
+        } else if (msg instanceof ExitRoomMessage) {
+            return WireFormat.TYPE_EXIT_ROOM;
+        } else if (msg instanceof WelcomeMessage) {
+            return WireFormat.TYPE_WELCOME;
+        } else if (msg instanceof JoinNotifyMessage) {
+            return WireFormat.TYPE_JOIN_NOTIFY;
+        } else if (msg instanceof ExitNotifyMessage) {
+            return WireFormat.TYPE_EXIT_NOTIFY;
+        } else if (msg instanceof HostChangeMessage) {
+            return WireFormat.TYPE_HOST_CHANGE;
+        } else if (msg instanceof SessionConnectMessage) {
+            return WireFormat.TYPE_SESSION_CONNECT;
+        } else if (msg instanceof FindRoomsMessage) {
+            return WireFormat.TYPE_FIND_ROOMS;
+        } else if (msg instanceof LookupRoomMessage) {
+            return WireFormat.TYPE_LOOKUP_ROOM;
+        } else if (msg instanceof RosterUpdateMessage) {
+            return WireFormat.TYPE_ROSTER_UPDATE;
+        } else if (msg instanceof ReplayMessage) {
+            return WireFormat.TYPE_REPLAY;
+        } else if (msg instanceof HistoryPageMessage) {
+            return WireFormat.TYPE_HISTORY_PAGE;
+        } else if (msg instanceof SearchMessage) {
+            return WireFormat.TYPE_SEARCH;
+        }
+        throw new IOException("no binary encoding for " + msg.getClass().getName());
+    }
+
+    /**
+     * makes sure there is room for n more bytes in the scratch buffer.
+     *
+     * @param n number of bytes about to be written
+     */
+    private void ensureCapacity(int n) {
+        if (count + n > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + n));
+        }
+    }
+
+    private void putByte(int b) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) b;
+    }
+
+    private void putBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void putVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[count++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[count++] = (byte) value;
+    }
+
+    /**
+     * writes a string out. Pure ASCII strings (by far the most common case) are
+     * copied over char by char; anything else goes through the UTF-8 encoder.
+     *
+     * @param s string to write (may be null)
+     */
+    private void putString(String s) {
+        if (s == null) {
+            putVarLong(0);
+            return;
+        }
+        int length = s.length();
+        boolean isAscii = true;
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) >= 0x80) {
+                isAscii = false;
+                break;
+            }
+        }
+        if (isAscii) {
+            putVarLong(length + 1);
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                buffer[count++] = (byte) s.charAt(i);
+            }
+        } else {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            putVarLong(utf8.length + 1);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, buffer, count, utf8.length);
+            count += utf8.length;
+        }
+    }
+
+    /**
+     * writes a list of strings out.
+     *
+     * @param list list to write (may be null)
+     */
+    private void putStringList(ArrayList<String> list) {
+        if (list == null) {
+            putVarLong(0);
+            return;
+        }
+        putVarLong(list.size() + 1);
+        for (String s : list) {
+            putString(s);
+        }
+    }
+
+    /**
+     * writes a list of byte arrays out (each array as a length, then its bytes).
+     *
+     * @param list list to write (may be null)
+     */
+    private void putBytesList(ArrayList<byte[]> list) {
+        if (list == null) {
+            putVarLong(0);
+            return;
+        }
+        putVarLong(list.size() + 1);
+        for (byte[] bytes : list) {
+            putVarLong(bytes.length + 1);
+            putBytes(bytes);
+        }
+    }
+
+    /**
+     * writes a list of non-negative longs out.
+     *
+     * @param list list to write (may be null)
+     */
+    private void putLongList(ArrayList<Long> list) {
+        if (list == null) {
+            putVarLong(0);
+            return;
+        }
+        putVarLong(list.size() + 1);
+        for (long value : list) {
+            putVarLong(value);
+        }
+    }
+}
@@ -6,6 +6,8 @@ package messages;
  * typically sent by a RoomSetupWorker & received by the Registry.
  */
 public class NewRoomMessage extends Message {
+
+    private static final long serialVersionUID = -6374850591561895677L;
     private String hostAlias; // alias of the user requesting the new room, soon-to-be room host.
     private String roomName; // requested name of the room-to-be.
 
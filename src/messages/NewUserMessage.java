@@ -6,6 +6,8 @@ package messages;
  */
 public class NewUserMessage extends Message {
 
+    private static final long serialVersionUID = -5161576358065307387L;
+
     private String alias; // name of the new user.
 
     /**
@@ -0,0 +1,95 @@
+package messages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * what was said in a room just before a user joined it. Sent by a
+ * SessionCoordinator to the user joining, right after their WelcomeMessage, and
+ * received by a ChatUser.
+ *
+ * The Messages are carried just as the room keeps them, each in the binary wire
+ * format (see io.history.ReplayRing), oldest first, and are only decoded by
+ * whoever displays them. They are there to be read, and nothing more; join and
+ * exit notices among them say nothing about who is in the room now (the
+ * WelcomeMessage does that).
+ */
+public class ReplayMessage extends Message {
+
+    private static final long serialVersionUID = 5087972504290267781L;
+    private String roomName; // name of the room
+    private long firstOffset; // history offset of the first Message replayed (-1 if unknown)
+    private ArrayList<byte[]> encodedMessages; // the Messages, oldest first
+
+    /**
+     * RM constructor.
+     *
+     * @param room    name of the room
+     * @param first   history offset of the first Message replayed (-1 if unknown)
+     * @param encoded the Messages, oldest first, each in the binary wire format
+     */
+    public ReplayMessage(String room, long first, ArrayList<byte[]> encoded) {
+        super();
+        roomName = room;
+        firstOffset = first;
+        encodedMessages = encoded;
+        markSingleShot(); // only ever meant for the user joining.
+    }
+
+    public String getRoomName() {
+        return roomName;
+    }
+
+    /**
+     * offset of the first Message replayed within the room's history; anything
+     * older can be found below it (see HistoryPageMessage). Rooms that keep a
+     * history send a replay even with nothing to replay, just for this.
+     *
+     * @return first offset, or -1 if the room keeps no history
+     */
+    public long getFirstOffset() {
+        return firstOffset;
+    }
+
+    /**
+     * getter for the Messages, still encoded.
+     *
+     * @return the Messages, oldest first
+     */
+    public ArrayList<byte[]> getEncodedMessages() {
+        return encodedMessages;
+    }
+
+    /**
+     * decodes the Messages.
+     *
+     * @return the Messages, oldest first
+     * @throws IOException if a Message is malformed
+     */
+    public ArrayList<Message> getMessages() throws IOException {
+        ArrayList<Message> messages = new ArrayList<Message>(encodedMessages.size());
+        for (byte[] payload : encodedMessages) {
+            messages.add(MessageDecoder.decode(payload, 0, payload.length));
+        }
+        return messages;
+    }
+
+    /**
+     * heading shown above the Messages replayed.
+     *
+     * @return String-based message to be printed.
+     */
+    @Override
+    public String getContent() {
+        return getFormattedStamp() + " Earlier in " + roomName + " (" + encodedMessages.size() + " messages):";
+    }
+
+    /**
+     * NOTE as with WelcomeMessages, the sender is the SessionCoordinator, so there
+     * is no meaningful sender alias.
+     */
+    @Override
+    public String getAssociatedSenderAlias() {
+        return "";
+    }
+}
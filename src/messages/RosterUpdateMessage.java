@@ -0,0 +1,76 @@
+package messages;
+
+import java.util.ArrayList;
+
+/**
+ * sent by a SessionCoordinator to the Registry to keep it informed of who is in
+ * its room. Rather than one message per join or exit, each of these carries
+ * every change made over a short window (see RosterPublisher): the users who
+ * have joined and left since the last update, and the room's participant count
+ * as of the end of the window.
+ *
+ * A user who joins and leaves within the same window appears in neither list.
+ * A count of 0 means the room has closed.
+ *
+ * The Registry replies with a SimpleMessage of the form "OK; <i>count</i> users
+ * now chatting."
+ */
+public class RosterUpdateMessage extends Message {
+
+    private static final long serialVersionUID = 1805430508828938511L;
+    private String roomName; // name of the room
+    private ArrayList<String> joined; // aliases of the users who have joined since the last update
+    private ArrayList<String> left; // aliases of the users who have left since the last update
+    private int participantCount; // number of users in the room, once the above are applied
+
+    /**
+     * RUM constructor.
+     *
+     * @param room  name of the room
+     * @param ins   aliases of the users who have joined since the last update
+     * @param outs  aliases of the users who have left since the last update
+     * @param count number of users in the room, once the above are applied
+     */
+    public RosterUpdateMessage(String room, ArrayList<String> ins, ArrayList<String> outs, int count) {
+        super();
+        roomName = room;
+        joined = ins;
+        left = outs;
+        participantCount = count;
+    }
+
+    public String getRoomName() {
+        return roomName;
+    }
+
+    public ArrayList<String> getJoined() {
+        return joined;
+    }
+
+    public ArrayList<String> getLeft() {
+        return left;
+    }
+
+    public int getParticipantCount() {
+        return participantCount;
+    }
+
+    /**
+     * for debugging purposes only. no user-facing application here.
+     *
+     * @return String-based message that can be used to debug the app.
+     */
+    @Override
+    public String getContent() {
+        return getFormattedStamp() + " " + roomName + " roster: +" + joined + " -" + left + ", " + participantCount
+                        + " users now chatting.";
+    }
+
+    /**
+     * The purpose of this method is moot. Here to make the compiler happy.
+     */
+    @Override
+    public String getAssociatedSenderAlias() {
+        return "";
+    }
+}
@@ -0,0 +1,132 @@
+package messages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * asks a room for the Messages said in it that match a query (see
+ * io.history.SearchQuery for what a query may hold); sent by a ChatUser over its
+ * session connection, and answered by whoever routes for that user (see
+ * io.history.RoomHistory.search()).
+ *
+ * when sent back, it holds the Messages matched, newest first, each still in
+ * the binary wire format (as with HistoryPageMessages) and along with its
+ * history offset, and how far into the history the search reached: Messages
+ * said after that hadn't been indexed yet.
+ */
+public class SearchMessage extends Message {
+
+    private static final long serialVersionUID = -839961193606020457L;
+    private String alias; // user asking
+    private String roomName; // name of the room
+    private String query; // what to look for
+    private int maxResults; // most Messages wanted
+    private long searchedUpTo; // history offset the search reached (response only; -1 if the room can't be searched)
+    private ArrayList<Long> offsets; // history offset of each Message matched (response only)
+    private ArrayList<byte[]> encodedMessages; // the Messages matched, newest first (response only)
+
+    /**
+     * SM constructor.
+     *
+     * @param a    alias of the user asking
+     * @param room name of the room
+     * @param q    what to look for
+     * @param max  most Messages wanted
+     */
+    public SearchMessage(String a, String room, String q, int max) {
+        super();
+        alias = a;
+        roomName = room;
+        query = q;
+        maxResults = max;
+        searchedUpTo = -1;
+        offsets = new ArrayList<Long>();
+        encodedMessages = new ArrayList<byte[]>();
+        markSingleShot(); // only ever goes back to the user asking.
+    }
+
+    /**
+     * setter for the Messages matched.
+     *
+     * @param upTo    history offset the search reached (-1 if the room can't be
+     *                    searched)
+     * @param at      history offset of each Message, newest first
+     * @param encoded the Messages, newest first, each in the binary wire format
+     */
+    public void setResults(long upTo, ArrayList<Long> at, ArrayList<byte[]> encoded) {
+        searchedUpTo = upTo;
+        offsets = at;
+        encodedMessages = encoded;
+    }
+
+    public String getRoomName() {
+        return roomName;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    /**
+     * how far into the room's history the search reached; Messages from there on
+     * were not searched.
+     *
+     * @return searched offset, or -1 if the room can't be searched
+     */
+    public long getSearchedUpTo() {
+        return searchedUpTo;
+    }
+
+    /**
+     * getter for the history offsets of the Messages matched, which pages of
+     * scrollback (see HistoryPageMessage) can be asked for around.
+     *
+     * @return the offsets, newest first
+     */
+    public ArrayList<Long> getOffsets() {
+        return offsets;
+    }
+
+    /**
+     * getter for the Messages matched, still encoded.
+     *
+     * @return the Messages, newest first
+     */
+    public ArrayList<byte[]> getEncodedMessages() {
+        return encodedMessages;
+    }
+
+    /**
+     * decodes the Messages matched.
+     *
+     * @return the Messages, newest first
+     * @throws IOException if a Message is malformed
+     */
+    public ArrayList<Message> getMessages() throws IOException {
+        ArrayList<Message> messages = new ArrayList<Message>(encodedMessages.size());
+        for (byte[] payload : encodedMessages) {
+            messages.add(MessageDecoder.decode(payload, 0, payload.length));
+        }
+        return messages;
+    }
+
+    /**
+     * for debugging purposes only. no user-facing application here.
+     *
+     * @return String-based message that can be used to debug the app.
+     */
+    @Override
+    public String getContent() {
+        return getFormattedStamp() + " Search of " + roomName + " for \"" + query + "\": "
+                        + encodedMessages.size() + " matches up to " + searchedUpTo + ".";
+    }
+
+    @Override
+    public String getAssociatedSenderAlias() {
+        return alias;
+    }
+}
@@ -0,0 +1,54 @@
+package messages;
+
+/**
+ * the first message sent over every new connection to the SessionGateway. It
+ * names the room (by room key) that the connection is meant for, allowing the
+ * gateway to hand the connection off to the right SessionCoordinator.
+ */
+public class SessionConnectMessage extends Message {
+
+    private static final long serialVersionUID = 4783764407377999422L;
+
+    private String roomKey; // key of the room being connected to
+    private String alias; // alias of the user connecting
+
+    /**
+     * SCM constructor.
+     * 
+     * @param key  key of the room being connected to
+     * @param user alias of the user connecting
+     */
+    public SessionConnectMessage(String key, String user) {
+        super();
+        roomKey = key;
+        alias = user;
+        markSingleShot();
+    }
+
+    /**
+     * getter for the room key.
+     * 
+     * @return key of the room being connected to
+     */
+    public String getRoomKey() {
+        return roomKey;
+    }
+
+    /**
+     * for debugging purposes only.
+     * 
+     * @return String-based text describing the connection attempt.
+     */
+    @Override
+    public String getContent() {
+        return getFormattedStamp() + " " + alias + " is connecting to room " + roomKey + ".";
+    }
+
+    /**
+     * sender is the user connecting.
+     */
+    @Override
+    public String getAssociatedSenderAlias() {
+        return alias;
+    }
+}
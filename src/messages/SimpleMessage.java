@@ -8,6 +8,8 @@ package messages;
  */
 public class SimpleMessage extends Message {
 
+    private static final long serialVersionUID = -5362875836324989003L;
+
     private String alias; // associated sender alias.
     private String text; // message content.
 
@@ -23,6 +25,15 @@ public class SimpleMessage extends Message {
         text = t;
     }
 
+    /**
+     * unformatted accessor for text content of the message.
+     * 
+     * @return text exactly as the sender typed it
+     */
+    public String getText() {
+        return text;
+    }
+
     /**
      * formatted accessor for text content of the message.
      * 
@@ -7,6 +7,8 @@ import java.util.ArrayList;
  * Typically sent by a SessionCoordinator & received by a ChatUser.
  */
 public class WelcomeMessage extends Message {
+
+    private static final long serialVersionUID = -7783691309087786753L;
     private String userJoining; // alias of the user joining the room.
     private String roomJoined; // name of room that has been joined. Used to set chat window title.
     private boolean isHost; // true if the user joining is the host of their room, false otherwise.
@@ -0,0 +1,72 @@
+package messages;
+
+/**
+ * constants describing the compact binary encoding of Messages (see
+ * MessageEncoder and MessageDecoder).
+ *
+ * A binary stream opens with STREAM_MAGIC followed by the VERSION byte. After
+ * that, each Message travels as a varint length followed by that many bytes of
+ * payload. A payload is laid out as follows:
+ *
+ * [version][type tag][flags][varint requestID][string timestamp][body...]
+ *
+ * where strings are a varint of (UTF-8 byte length + 1), 0 being reserved for
+ * null, followed by the UTF-8 bytes, and lists of strings are a varint of (size +
+ * 1) followed by each string. Lists of byte arrays are laid out the same
+ * way as lists of strings. The body of each type is outlined in
+ * MessageEncoder.
+ */
+public final class WireFormat {
+
+    /**
+     * opens every binary stream. Chosen so it can never be mistaken for the start
+     * of an Object stream (0xACED).
+     */
+    public static final byte[] STREAM_MAGIC = { 'C', 'W' };
+
+    public static final byte VERSION = 3; // bump whenever the layout of a payload changes
+    public static final int MAX_MESSAGE_LENGTH = 1 << 20; // payloads larger than this are refused
+
+    /**
+     * flag bits.
+     */
+    static final int FLAG_SINGLE_SHOT = 1;
+
+    /**
+     * type tags, one per concrete Message class. NOTE never reuse or renumber a tag;
+     * retired tags should simply be left out.
+     */
+    static final byte TYPE_SIMPLE = 1;
+    static final byte TYPE_NEW_USER = 2;
+    static final byte TYPE_NEW_ROOM = 3;
+    static final byte TYPE_LIST_ROOMS = 4;
+    static final byte TYPE_JOIN_ROOM = 5;
+    static final byte TYPE_EXIT_ROOM = 6;
+    static final byte TYPE_WELCOME = 7;
+    static final byte TYPE_JOIN_NOTIFY = 8;
+    static final byte TYPE_EXIT_NOTIFY = 9;
+    static final byte TYPE_HOST_CHANGE = 10;
+    static final byte TYPE_SESSION_CONNECT = 11;
+    static final byte TYPE_FIND_ROOMS = 12;
+    static final byte TYPE_LOOKUP_ROOM = 13;
+    static final byte TYPE_ROSTER_UPDATE = 14;
+    static final byte TYPE_REPLAY = 15;
+    static final byte TYPE_HISTORY_PAGE = 16;
+    static final byte TYPE_SEARCH = 17;
+
+    private WireFormat() {
+    }
+
+    /**
+     * checks whether the given payload is in the binary format (as opposed to a
+     * serialized Java object).
+     *
+     * @param bytes  array holding the payload
+     * @param offset start of the payload
+     * @param length length of the payload
+     * @return true if the payload begins with a known version byte
+     */
+    public static boolean isBinaryPayload(byte[] bytes, int offset, int length) {
+        return length > 0 && bytes[offset] == VERSION;
+    }
+}
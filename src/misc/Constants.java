@@ -13,19 +13,149 @@ public final class Constants {
     public static final String CLIENT_IP = "localhost";
     public static final String REGISTRY_IP = "localhost";
     public static final String COORDINATOR_IP = "localhost";
-    public static final int MSG_QUEUE_LENGTH = 10; // length of any given message queue in the application.
+    public static final int MSG_QUEUE_LENGTH = 16; // length of any given message queue (ring buffers hold powers of 2)
     public static final int REGISTRY_PORT = 8000;
-    public static final int SESSION_PORT_PREFIX = 9000; // 9000, 9001, 9002, ..., etc
+    public static final int SESSION_GATEWAY_PORT = 9000; // all chat sessions are reached through this port
+    public static final int SESSION_GATEWAY_BACKLOG = 1024; // connections allowed to wait on the gateway's accept loop
+    public static final int SESSION_HANDSHAKE_THREADS = 4; // threads reading the first message of new connections
+    public static final int SESSION_HANDSHAKE_TIMEOUT_MS = 5000; // time allowed for that first message
+    public static final long SESSION_HOST_TIMEOUT_MS = 60000; // time a new room's host has to arrive, or it closes
+    public static final long SESSION_RESTORED_HOST_TIMEOUT_MS = 600000; // as above, for a room reopened on recovery
     public static final int KC_RETURN = 10; // keycode of "Enter"
     public static final String UID_PREFIX = "U0";
     public static final String SID_PREFIX = "S0";
 
+    /**
+     * Registry front end configuration. The front end can be selected at launch
+     * with -Dchatter.registry.mode=selector|threaded.
+     */
+    public static final String REGISTRY_MODE_PROPERTY = "chatter.registry.mode";
+    public static final String REGISTRY_MODE_SELECTOR = "selector"; // NIO event loops + bounded worker pool
+    public static final String REGISTRY_MODE_THREADED = "threaded"; // one RequestHandler thread per request
+    public static final int REGISTRY_SELECTOR_COUNT = 2; // number of selector-based event loops
+    public static final int REGISTRY_WORKER_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    public static final int REGISTRY_DISPATCH_QUEUE_LENGTH = 1024; // requests allowed to wait for a worker
+    public static final long REGISTRY_REQUEST_TIMEOUT_MS = 5000; // how long a RegistryChannel request may take
+    public static final long REGISTRY_LEGACY_REQUEST_TIMEOUT_MS = 10000; // time allowed for a legacy request to arrive
+    public static final int REGISTRY_MAX_LEGACY_REQUEST_SIZE = 64 * 1024; // larger legacy requests are refused
+    public static final int REGISTRY_ROOM_CHANGE_LOG_LENGTH = 1024; // room changes kept for listing deltas
+    public static final long REGISTRY_WATCH_INTERVAL_MS = 250; // how often room changes are pushed to watchers
+    public static final long SESSION_ROSTER_INTERVAL_MS = 50; // how often joins and exits are sent to the Registry
+    public static final int REGISTRY_MAX_PAGE_SIZE = 200; // most rooms handed out per page of search results
+    public static final int ROOM_SELECT_PAGE_SIZE = 50; // rooms shown per page on the room select screen
+    public static final long ROOM_LOOKUP_TTL_MS = 2000; // how long a room lookup (open or not) is trusted for
+    public static final int ROOM_LOOKUP_CACHE_SIZE = 64; // most room lookups remembered at once
+
+    /**
+     * Registry journal (see RegistryJournal). The directory it is kept in can be
+     * given at launch with -Dchatter.registry.journal=path.
+     */
+    public static final String REGISTRY_JOURNAL_PROPERTY = "chatter.registry.journal";
+    public static final String REGISTRY_JOURNAL_DIR = "registry-journal"; // relative to the working directory
+    public static final long REGISTRY_SNAPSHOT_INTERVAL_MS = 60000; // how often the Registry's state is snapshotted
+
+    /**
+     * execution mode switch. Selects what Worker threads (and worker pools) run on
+     * with -Dchatter.threads=platform|virtual. Virtual threads need Java 21+.
+     */
+    public static final String THREAD_MODE_PROPERTY = "chatter.threads";
+    public static final String THREAD_MODE_PLATFORM = "platform"; // one OS thread per Worker
+    public static final String THREAD_MODE_VIRTUAL = "virtual"; // Workers multiplexed onto carrier threads
+
+    /**
+     * session engine switch. Selects how chat sessions are served with
+     * -Dchatter.session.engine=threaded|eventloop. The threaded engine gives each
+     * participant their own input, output and routing workers; the event-loop
+     * engine serves every participant on the node from a small, shared pool of
+     * selector loops (it requires the binary wire format).
+     */
+    public static final String SESSION_ENGINE_PROPERTY = "chatter.session.engine";
+    public static final String SESSION_ENGINE_THREADED = "threaded"; // three workers per participant
+    public static final String SESSION_ENGINE_EVENTLOOP = "eventloop"; // shared selector loops
+    public static final int SESSION_EVENT_LOOP_COUNT = Runtime.getRuntime().availableProcessors();
+    public static final long SESSION_EXIT_TIMEOUT_MS = 5000; // time allowed for a leaving user's ERM to go out
+
+    /**
+     * backpressure configuration; what a room does about users who can't keep up
+     * (see io.BackpressurePolicy for the details).
+     */
+    public static final int SESSION_BACKLOG_LENGTH = 256; // most frames queued up for any one user
+    public static final String BACKPRESSURE_PROPERTY = "chatter.backpressure";
+    public static final String BACKPRESSURE_BLOCK = "block"; // wait for room, up to a timeout
+    public static final String BACKPRESSURE_DROP_OLDEST = "drop-oldest"; // drop & tell the user about the gap
+    public static final String BACKPRESSURE_COALESCE = "coalesce"; // merge queued chat, then drop
+    public static final String BACKPRESSURE_DISCONNECT = "disconnect"; // cut the user off
+    public static final String BACKPRESSURE_TIMEOUT_PROPERTY = "chatter.backpressure.timeout.ms";
+    public static final String BACKPRESSURE_MAX_BYTES_PROPERTY = "chatter.backpressure.max.bytes";
+    public static final String BACKPRESSURE_MAX_AGE_PROPERTY = "chatter.backpressure.max.age.ms";
+    public static final long BACKPRESSURE_TIMEOUT_MS = 500; // default time a sender waits under "block"
+    public static final long BACKPRESSURE_MAX_BYTES = 256 * 1024; // default byte limit of a backlog
+    public static final long BACKPRESSURE_MAX_AGE_MS = 0; // default age limit of a backlog (none)
+    public static final String GAP_MARKER_ALIAS = "(server)"; // sender of "you missed N messages" notices
+
+    /**
+     * room history configuration; every Message broadcast in a room is kept on
+     * disk (see io.history.HistoryStore for the details). Turned off with
+     * -Dchatter.history=off.
+     */
+    public static final String HISTORY_PROPERTY = "chatter.history";
+    public static final String HISTORY_DIR_PROPERTY = "chatter.history.dir";
+    public static final String HISTORY_DIR = "room-history"; // relative to the working directory
+    public static final String HISTORY_FSYNC_PROPERTY = "chatter.history.fsync";
+    public static final String HISTORY_FSYNC_ALWAYS = "always"; // after every batch written
+    public static final String HISTORY_FSYNC_INTERVAL = "interval"; // every HISTORY_FSYNC_INTERVAL_MS
+    public static final String HISTORY_FSYNC_NEVER = "never"; // left to the OS
+    public static final long HISTORY_FSYNC_INTERVAL_MS = 1000;
+    public static final String HISTORY_SEGMENT_BYTES_PROPERTY = "chatter.history.segment.bytes";
+    public static final int HISTORY_SEGMENT_BYTES = 4 * 1024 * 1024; // size of each history segment file
+    public static final int HISTORY_INDEX_INTERVAL_BYTES = 4096; // history bytes between sparse index entries
+    public static final int HISTORY_QUEUE_LENGTH = 4096; // broadcasts a room may have waiting to be written
+    public static final int HISTORY_WRITER_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static final int HISTORY_PAGE_MAX_MESSAGES = 200; // most Messages sent back per page of scrollback
+    public static final int HISTORY_PAGE_MAX_BYTES = 64 * 1024; // most bytes of Messages sent back per page
+
+    /**
+     * room history search configuration; each room's history is indexed as it is
+     * written (see io.history.SearchIndex). Turned off with -Dchatter.search=off
+     * (and along with history).
+     */
+    public static final String SEARCH_PROPERTY = "chatter.search";
+    public static final String SEARCH_DIR = "search"; // within each room's history directory
+    public static final int SEARCH_INDEXER_COUNT = 1; // threads indexing every room's history
+    public static final int SEARCH_BATCH_MESSAGES = 1024; // Messages read from the history at a time
+    public static final int SEARCH_FLUSH_MESSAGES = 8192; // Messages indexed in memory before being flushed
+    public static final long SEARCH_FLUSH_INTERVAL_MS = 5000; // most time a Message stays indexed in memory only
+    public static final int SEARCH_MERGE_FACTOR = 4; // index segments of a size merged at once
+    public static final int SEARCH_MAX_RESULTS = 50; // most Messages sent back per search
+    public static final int SEARCH_POOL_SIZE = 2; // threads searching on behalf of the event loop
+    public static final String SEARCH_COMMAND = "/search "; // typed into the chat box, followed by a query
+
+    /**
+     * join-time replay configuration; users joining a room are sent what was said
+     * just before they arrived (see io.history.ReplayRing). Turned off with
+     * -Dchatter.replay.messages=0.
+     */
+    public static final String REPLAY_MESSAGES_PROPERTY = "chatter.replay.messages";
+    public static final int REPLAY_MESSAGES = 100; // most Messages replayed (and kept in memory) per room
+    public static final String REPLAY_MINUTES_PROPERTY = "chatter.replay.minutes";
+    public static final int REPLAY_MINUTES = 30; // Messages older than this are no longer kept in memory
+    public static final int REPLAY_MAX_BYTES = 64 * 1024; // most bytes of Messages replayed at once
+
+    /**
+     * wire format switch. Selects how Messages are written with
+     * -Dchatter.wire.format=binary|java. Readers accept either, so the switch only
+     * matters when talking to builds that predate the binary format.
+     */
+    public static final String WIRE_FORMAT_PROPERTY = "chatter.wire.format";
+    public static final String WIRE_FORMAT_BINARY = "binary"; // compact encoding, see messages.WireFormat
+    public static final String WIRE_FORMAT_JAVA = "java"; // plain Java serialization
+
     /**
      * column numbers for accessing values in the RoomSelectTable data.
      */
     public static final int ROOM_NAME_TABLE_COLUMN = 0;
     public static final int GUEST_COUNT_TABLE_COLUMN = 2;
-    public static final int IP_PORT_TABLE_COLUMN = 3;
+    public static final int IP_PORT_TABLE_COLUMN = 3; // "<ip>:<port>/<room key>"
 
     /**
      * [RecordSeparator] special ASCII character, impossible to type. Great
@@ -0,0 +1,382 @@
+package misc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.UnaryOperator;
+
+/**
+ * a bounded, lock-free, multi-producer/single-consumer queue. Takes the place of
+ * the fair ArrayBlockingQueue + Signal pairs workers used to hand Messages to
+ * one another with.
+ *
+ * Producers claim a slot with a single CAS and publish into it; no locks are
+ * taken on either side. The consumer drains in batches, and when there is
+ * nothing to drain it parks itself in await(). Producers only ever unpark the
+ * consumer when it is actually parked, so a busy consumer is never disturbed.
+ *
+ * Each slot carries a sequence number saying whose turn it is: the producer
+ * that claimed position p waits for sequence p, then publishes sequence p + 1
+ * for the consumer, who hands the slot back with sequence p + capacity.
+ *
+ * NOTE only one thread may consume (poll, drainTo, await) at any given time.
+ * Capacity is rounded up to the next power of two.
+ */
+public class MpscRingBuffer<E> {
+
+    private static final int PUT_YIELDS = 64; // times a producer yields on a full buffer before napping
+    private static final long PUT_BACKOFF_NANOS = 50_000; // how long it then naps between attempts
+
+    private final Object[] slots; // the elements
+    private final AtomicLongArray sequences; // turn of each slot (see above)
+    private final int mask; // capacity - 1
+    private final AtomicLong tail; // next position to be claimed by a producer
+    private volatile long head; // next position to be consumed (written by the consumer only)
+
+    private volatile Thread waiter; // the consumer, while parked (null otherwise)
+    private volatile boolean wakeRequested; // set by wakeConsumer(), cleared by the await() it ends
+
+    /**
+     * MpscRingBuffer constructor.
+     *
+     * @param requestedCapacity minimum number of elements the buffer can hold
+     */
+    public MpscRingBuffer(int requestedCapacity) {
+        if (requestedCapacity < 1 || requestedCapacity > (1 << 30)) {
+            throw new IllegalArgumentException("bad ring buffer capacity " + requestedCapacity);
+        }
+        int capacity = Integer.highestOneBit(requestedCapacity);
+        if (capacity < requestedCapacity) {
+            capacity <<= 1;
+        }
+        slots = new Object[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+        tail = new AtomicLong(0);
+        head = 0;
+        waiter = null;
+        wakeRequested = false;
+    }
+
+    /**
+     * number of elements the buffer can hold.
+     *
+     * @return capacity
+     */
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * adds an element if there is room for it. May be called by any thread.
+     *
+     * @param e element to add
+     * @return true if added, false if the buffer was full
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long pos = tail.get();
+        int index;
+        while (true) {
+            index = (int) pos & mask;
+            long turn = sequences.get(index) - pos;
+            if (turn == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (turn < 0) {
+                return false; // the consumer has yet to free this slot up.
+            } else {
+                pos = tail.get(); // another producer got here first.
+            }
+        }
+        slots[index] = e;
+        /**
+         * NOTE a full (volatile) write, rather than a lazy one, so that it can't be
+         * reordered with the read of waiter below; otherwise the consumer could check
+         * the buffer, find it empty, and park, just as we decide it isn't parked.
+         */
+        sequences.set(index, pos + 1);
+
+        Thread parked = waiter;
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+        return true;
+    }
+
+    /**
+     * adds an element, ArrayBlockingQueue style.
+     *
+     * @param e element to add
+     * @throws IllegalStateException if the buffer is full
+     */
+    public void add(E e) {
+        if (!offer(e)) {
+            throw new IllegalStateException("Queue full");
+        }
+    }
+
+    /**
+     * adds an element, waiting for room if need be. Producers waiting on a full
+     * buffer yield (and eventually nap briefly) between attempts rather than
+     * queueing up on a lock.
+     *
+     * @param e element to add
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void put(E e) throws InterruptedException {
+        for (int attempt = 0; !offer(e); attempt++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (attempt < PUT_YIELDS) {
+                Thread.yield(); // the consumer is likely mid-drain; let it finish.
+            } else {
+                LockSupport.parkNanos(this, PUT_BACKOFF_NANOS);
+            }
+        }
+    }
+
+    /**
+     * like put(), but gives up after the given time (for a consumer that may
+     * never make room again).
+     *
+     * @param e      element to add
+     * @param millis maximum time to wait
+     * @return true if added, false if the buffer stayed full
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean offer(E e, long millis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        for (int attempt = 0; !offer(e); attempt++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            if (attempt < PUT_YIELDS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(this, PUT_BACKOFF_NANOS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * takes the next element out. Consumer only.
+     *
+     * @return the element, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long pos = head;
+        int index = (int) pos & mask;
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        E e = (E) slots[index];
+        slots[index] = null;
+        sequences.lazySet(index, pos + slots.length);
+        head = pos + 1;
+        return e;
+    }
+
+    /**
+     * looks at the next element without taking it out. Consumer only.
+     *
+     * @return the element, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long pos = head;
+        int index = (int) pos & mask;
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        return (E) slots[index];
+    }
+
+    /**
+     * replaces everything currently in the buffer with a list of the same length or
+     * shorter, in place; elements added meanwhile stay put, behind the replacement.
+     * Used to merge or throw away queued elements without losing the order of what
+     * comes after them. Consumer only.
+     *
+     * @param rewriter given the elements in order, returns their replacement (no
+     *                     longer than what it was given)
+     * @return number of slots freed up
+     */
+    @SuppressWarnings("unchecked")
+    public int rewrite(UnaryOperator<List<E>> rewriter) {
+        long start = head;
+        long end = start;
+        while (end - start < slots.length && sequences.get((int) end & mask) == end + 1) {
+            end++;
+        }
+        List<E> current = new ArrayList<E>((int) (end - start));
+        for (long pos = start; pos < end; pos++) {
+            current.add((E) slots[(int) pos & mask]);
+        }
+        List<E> replacement = rewriter.apply(current);
+        int freed = current.size() - replacement.size();
+        if (freed < 0) {
+            throw new IllegalArgumentException("replacement is longer than what it replaces");
+        }
+
+        // the replacement goes at the back of the range, so the slots freed up are at the front.
+        for (int i = 0; i < replacement.size(); i++) {
+            slots[(int) (start + freed + i) & mask] = replacement.get(i);
+        }
+        for (long pos = start; pos < start + freed; pos++) {
+            slots[(int) pos & mask] = null;
+            sequences.lazySet((int) pos & mask, pos + slots.length);
+        }
+        head = start + freed;
+        return freed;
+    }
+
+    /**
+     * takes every available element out. Consumer only.
+     *
+     * @param c where to put the elements
+     * @return number of elements taken
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * takes up to maxElements elements out. Consumer only.
+     *
+     * @param c           where to put the elements
+     * @param maxElements most elements to take
+     * @return number of elements taken
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = poll()) != null) {
+            c.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * checks whether there is anything to consume. Exact for the consumer; merely a
+     * hint for anybody else.
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        long pos = head;
+        return sequences.get((int) pos & mask) != pos + 1;
+    }
+
+    /**
+     * number of elements in the buffer (claimed slots included). Merely a hint
+     * while producers are active.
+     *
+     * @return size
+     */
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, slots.length));
+    }
+
+    /**
+     * parks the consumer until there is something to consume, or until
+     * wakeConsumer() is called. Returns straight away if either is already the
+     * case. Consumer only.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void await() throws InterruptedException {
+        awaitNanos(0);
+    }
+
+    /**
+     * like await(), but gives up after the given time.
+     *
+     * @param millis maximum time to wait
+     * @return true if there is something to consume
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean await(long millis) throws InterruptedException {
+        awaitNanos(Math.max(1, TimeUnit.MILLISECONDS.toNanos(millis)));
+        return !isEmpty();
+    }
+
+    /**
+     * wakes the consumer up, whether or not there is anything to consume (for
+     * instance, so it notices it has been told to shut down). If the consumer isn't
+     * waiting, its next await() returns straight away.
+     */
+    public void wakeConsumer() {
+        wakeRequested = true;
+        Thread parked = waiter;
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+    }
+
+    /**
+     * waits for something to consume. A wakeConsumer() is only used up when it is
+     * what ended the wait; one that comes along while there is something to
+     * consume anyway is kept for the next wait, so it can't go unnoticed.
+     *
+     * @param timeout maximum time to wait, in nanoseconds (0 for no limit)
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void awaitNanos(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout;
+        boolean isWoken = false; // true if ended by wakeConsumer()
+        try {
+            while (isEmpty()) {
+                if (wakeRequested) {
+                    isWoken = true;
+                    break;
+                }
+                waiter = Thread.currentThread();
+                // check again now that producers can see us, in case we just missed one.
+                if (!isEmpty()) {
+                    break;
+                }
+                if (wakeRequested) {
+                    isWoken = true;
+                    break;
+                }
+                if (timeout == 0) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waiter = null;
+            if (isWoken) {
+                wakeRequested = false;
+            }
+        }
+    }
+}
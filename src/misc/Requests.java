@@ -6,6 +6,7 @@ package misc;
  * the potential requests that the Registry 
  * can expect to receive at any given time.
  */
+@Deprecated
 public class Requests {
     public static final String NEW_USER_REQ = "NEW_USER_REQUEST"; // new user request.
     public static final String NEW_ROOM_REQ = "NEW_ROOM_REQUEST"; // request for a new chat room.
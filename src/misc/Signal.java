@@ -0,0 +1,92 @@
+package misc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * a simple wake-up signal shared between a waiting Worker and whoever has work
+ * for it. Takes the place of the synchronized/wait()/notify() pattern used
+ * between workers, for two reasons:
+ * 
+ * i) wait() inside a synchronized block pins a virtual thread to its carrier,
+ * whereas parking on a Condition does not, and ii) a signal that fires while
+ * nobody is waiting is remembered, so the next await() returns straight away
+ * rather than missing it.
+ * 
+ * NOTE a signal only carries "something happened", not how many times. Waiters
+ * should re-check whatever they are waiting on (typically a queue) after every
+ * wake-up.
+ */
+public class Signal {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition raised = lock.newCondition();
+    private boolean isRaised = false; // true if signalled since the last await() returned
+
+    /**
+     * wakes up a waiting thread, or, if nobody is waiting, the next one to wait.
+     */
+    public void signal() {
+        lock.lock();
+        try {
+            isRaised = true;
+            raised.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * wakes up every waiting thread.
+     */
+    public void signalAll() {
+        lock.lock();
+        try {
+            isRaised = true;
+            raised.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * waits until signalled.
+     * 
+     * @throws InterruptedException
+     */
+    public void await() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!isRaised) {
+                raised.await();
+            }
+            isRaised = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * waits until signalled, or until the timeout elapses.
+     * 
+     * @param timeoutMs maximum time to wait, in milliseconds
+     * @return true if signalled, false if the timeout elapsed first
+     * @throws InterruptedException
+     */
+    public boolean await(long timeoutMs) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (!isRaised) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = raised.awaitNanos(remaining);
+            }
+            isRaised = false;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
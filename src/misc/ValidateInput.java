@@ -1,6 +1,8 @@
 package misc;
 
+import messages.FindRoomsMessage;
 import messages.ListRoomsMessage;
+import messages.LookupRoomMessage;
 import messages.Message;
 import messages.SimpleMessage;
 
@@ -111,4 +113,36 @@ public interface ValidateInput {
         return (ListRoomsMessage) obj;
     }
 
+    /**
+     * message validation function for FindRoomsMessages.
+     * 
+     * @param obj Object/Message in question for validation
+     * @return the casted FindRoomsMessage
+     * @throws ClassCastException
+     */
+    public static FindRoomsMessage validateFindRoomsMessage(Object obj) throws ClassCastException {
+        if (!(obj instanceof FindRoomsMessage)) {
+            ClassCastException e = new ClassCastException("Bad Cast from " + obj.toString() + " to FindRoomsMessage!");
+            e.printStackTrace();
+            throw e;
+        }
+        return (FindRoomsMessage) obj;
+    }
+
+    /**
+     * message validation function for LookupRoomMessages.
+     * 
+     * @param obj Object/Message in question for validation
+     * @return the casted LookupRoomMessage
+     * @throws ClassCastException
+     */
+    public static LookupRoomMessage validateLookupRoomMessage(Object obj) throws ClassCastException {
+        if (!(obj instanceof LookupRoomMessage)) {
+            ClassCastException e = new ClassCastException("Bad Cast from " + obj.toString() + " to LookupRoomMessage!");
+            e.printStackTrace();
+            throw e;
+        }
+        return (LookupRoomMessage) obj;
+    }
+
 }
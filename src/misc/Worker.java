@@ -1,26 +1,186 @@
 package misc;
 
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * this class represents a thread-based worker entity, all subclasses having
- * 
+ *
  * i) a worker ID of some sort, and ii) shut-off signalling capability
- * 
+ *
  * more desired functionality may arise with time, but for now, i) and ii) is
  * all that can be thought of.
+ *
+ * NOTE Workers used to extend Thread directly. They now own the thread they run
+ * on instead, so that the thread can be either a platform thread or a virtual
+ * thread, as selected at launch with -Dchatter.threads=platform|virtual (see
+ * Constants.THREAD_MODE_PROPERTY). start(), join(), interrupt() and friends are
+ * kept so Workers can be handled just as before.
+ *
+ * Virtual threads need Java 21 or newer; on older runtimes, virtual mode falls
+ * back to platform threads (with a warning printed once).
  */
-public abstract class Worker extends Thread {
+public abstract class Worker implements Runnable {
     protected String workerID; // unique to each worker
     protected volatile boolean isRunning; // boolean flag
     protected final Object runLock = new Object(); // lock for synchronizing on above flag
 
+    private Thread thread; // the thread this worker runs on (null until started)
+    private boolean isDaemon = false; // applied to platform threads when started
+
+    private static final Method ofVirtualMethod; // Thread.ofVirtual() (null if unavailable)
+    private static final Method builderNameMethod; // Thread.Builder.name(String)
+    private static final Method builderUnstartedMethod; // Thread.Builder.unstarted(Runnable)
+    private static final boolean useVirtualThreads; // resolved execution mode
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null; // pre-21 runtime.
+        }
+        ofVirtualMethod = ofVirtual;
+        builderNameMethod = name;
+        builderUnstartedMethod = unstarted;
+
+        String mode = System.getProperty(Constants.THREAD_MODE_PROPERTY, Constants.THREAD_MODE_PLATFORM);
+        boolean wantsVirtual = mode.equalsIgnoreCase(Constants.THREAD_MODE_VIRTUAL);
+        if (wantsVirtual && ofVirtualMethod == null) {
+            System.out.println("Virtual threads are not supported by this runtime ("
+                            + System.getProperty("java.version") + "); using platform threads.");
+        }
+        useVirtualThreads = wantsVirtual && ofVirtualMethod != null;
+    }
+
     /**
      * constructor for Worker.
-     * 
+     *
      * @param wid worker ID string
      */
     public Worker(String wid) {
         workerID = wid;
         isRunning = false;
+        thread = null;
+    }
+
+    /**
+     * checks which execution mode is in effect.
+     *
+     * @return true if Workers (and worker pools) run on virtual threads
+     */
+    public static boolean isVirtualMode() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * creates an unstarted thread according to the execution mode in effect.
+     *
+     * @param task   what the thread is to run
+     * @param name   name of the thread
+     * @param daemon whether a platform thread should be a daemon (virtual threads
+     *                   always are)
+     * @return the thread
+     */
+    public static Thread newThread(Runnable task, String name, boolean daemon) {
+        if (useVirtualThreads) {
+            try {
+                Object builder = ofVirtualMethod.invoke(null);
+                builder = builderNameMethod.invoke(builder, name);
+                return (Thread) builderUnstartedMethod.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Error creating virtual thread " + name + " --> " + e.getMessage());
+            }
+        }
+        Thread t = new Thread(task, name);
+        t.setDaemon(daemon);
+        return t;
+    }
+
+    /**
+     * thread factory for worker pools, following the execution mode in effect.
+     *
+     * @param prefix prefix of thread names (a counter is appended)
+     * @param daemon whether platform threads should be daemons
+     * @return the factory
+     */
+    public static ThreadFactory threadFactory(String prefix, boolean daemon) {
+        AtomicInteger threadNum = new AtomicInteger(0);
+        return r -> newThread(r, prefix + threadNum.getAndIncrement(), daemon);
+    }
+
+    /**
+     * starts this worker on a thread of its own.
+     */
+    public void start() {
+        thread = newThread(this, workerID, isDaemon);
+        thread.start();
+    }
+
+    /**
+     * marks this worker as a daemon. Must be called before start().
+     *
+     * @param daemon true if the worker should not keep the JVM alive
+     */
+    public void setDaemon(boolean daemon) {
+        isDaemon = daemon;
+    }
+
+    /**
+     * waits for this worker's thread to finish. Returns straight away if the
+     * worker was never started.
+     *
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /**
+     * waits up to the given time for this worker's thread to finish.
+     *
+     * @param millis maximum time to wait
+     * @throws InterruptedException
+     */
+    public void join(long millis) throws InterruptedException {
+        if (thread != null) {
+            thread.join(millis);
+        }
+    }
+
+    /**
+     * interrupts this worker's thread.
+     */
+    public void interrupt() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * checks whether this worker's thread is alive.
+     *
+     * @return true if started and not yet finished
+     */
+    public boolean isAlive() {
+        return thread != null && thread.isAlive();
+    }
+
+    /**
+     * the thread this worker runs on.
+     *
+     * @return the thread (null until started)
+     */
+    public Thread getThread() {
+        return thread;
     }
 
     /**
@@ -35,7 +195,7 @@ public abstract class Worker extends Thread {
      * method will likely be called by an entity other than the thread itself, and
      * the thread itself must read the boolean every loop cycle to determine whether
      * or not it should exit.
-     * 
+     *
      * We have a race condition during instances where an external thread tries to
      * shut off the Worker as it is in the process of reading the variable.
      */
@@ -47,7 +207,7 @@ public abstract class Worker extends Thread {
 
     /**
      * getter method for WID.
-     * 
+     *
      * @return workerID
      */
     public String getID() {
@@ -1,16 +1,20 @@
 package net;
 
+import io.BackpressurePolicy;
+import io.MessageReader;
+import io.MessageStreams;
+import io.MessageWriter;
+import io.OutgoingBacklog;
 import io.OutputWorker;
 import io.user.*;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
-import java.util.concurrent.ArrayBlockingQueue;
 import main.ApplicationState;
 import messages.JoinRoomMessage;
 import messages.Message;
+import messages.SessionConnectMessage;
 import messages.SimpleMessage;
 import misc.Constants;
+import misc.MpscRingBuffer;
 import misc.ValidateInput;
 import ui.ChatWindow;
 
@@ -23,8 +27,9 @@ public class ChatUser extends Thread {
     private String alias; // user-chosen screen name; userID is attached at the end to ensure uniqueness.
     private String roomName; // name of the room that this user is currently in or trying to join (can be "")
 
-    private String sessionIP; // ip address of a chat session's server socket.
-    private int sessionPort; // port of the chat session's server socket.
+    private String sessionIP; // ip address of the session gateway.
+    private int sessionPort; // port of the session gateway.
+    private String sessionKey; // key of the room within the gateway.
     private Socket sessionSocket; // socket for the session.
 
     private boolean isHost; // true if hosting, false if not
@@ -35,16 +40,6 @@ public class ChatUser extends Thread {
     private Object chatUserLock; // notified by outside forces to communicate with this user.
     private Object mainAppNotifier; // used to notify main() of changes in state.
 
-    /*
-     * Used as a comms mechanism between UserOutputHandler and OutputWorker.
-     */
-    private static final Object outgoingMsgNotifier = new Object();
-
-    /*
-     * Used as a comms mechanism between UserInputWorker & UserInputHandler.
-     */
-    private static final Object incomingMsgNotifier = new Object();
-
     private UserInputWorker inputWorker; // receives incoming messages and passes them to the handler.
 
     private OutputWorker outputWorker; // sends outgoing messages to SeshCoordinator.
@@ -53,8 +48,8 @@ public class ChatUser extends Thread {
 
     private ChatWindow chatWindowRef; // a reference object to the front-facing chat window.
 
-    private ObjectInputStream in; // input stream
-    private ObjectOutputStream out; // output stream
+    private MessageReader in; // input stream
+    private MessageWriter out; // output stream
 
     private ApplicationState appState; // state of the application
 
@@ -71,6 +66,7 @@ public class ChatUser extends Thread {
         sessionIP = "";
         roomName = "";
         sessionPort = -1;
+        sessionKey = "";
         sessionSocket = null;
         isHost = false;
         isRunning = false;
@@ -99,8 +95,12 @@ public class ChatUser extends Thread {
              * for more info:
              * https://stackoverflow.com/questions/14110986/new-objectinputstream-blocks
              */
-            out = new ObjectOutputStream(sessionSocket.getOutputStream());
-            in = new ObjectInputStream(sessionSocket.getInputStream());
+            out = MessageStreams.openWriter(sessionSocket.getOutputStream());
+            in = MessageStreams.openReader(sessionSocket.getInputStream());
+
+            // first things first, tell the gateway which room we are after.
+            out.writeMessage(new SessionConnectMessage(sessionKey, alias));
+            out.flush();
 
             if (!isHost) {
                 /**
@@ -109,10 +109,10 @@ public class ChatUser extends Thread {
                  */
 
                 JoinRoomMessage msg = new JoinRoomMessage(alias, roomName);
-                out.writeObject(msg);
+                out.writeMessage(msg);
                 out.flush();
                 // read the response (should just read "OK")
-                Object obj = in.readObject();
+                Object obj = in.readMessage();
 
                 SimpleMessage response = ValidateInput.validateSimpleMessage(obj);
 
@@ -177,14 +177,14 @@ public class ChatUser extends Thread {
                 /**
                  * set up the message queue, and fire up the workers.
                  */
-                ArrayBlockingQueue<Message> msgQueue = new ArrayBlockingQueue<Message>(Constants.MSG_QUEUE_LENGTH,
-                                true);
+                MpscRingBuffer<Message> msgQueue = new MpscRingBuffer<Message>(Constants.MSG_QUEUE_LENGTH);
+                OutgoingBacklog outgoingQueue = new OutgoingBacklog(alias, BackpressurePolicy.blocking(),
+                                Constants.MSG_QUEUE_LENGTH);
 
-                outputWorker = new OutputWorker(userID, out, msgQueue, outgoingMsgNotifier);
+                outputWorker = new OutputWorker(userID, out, outgoingQueue);
                 outputWorker.start();
-                inputHandler = new UserInputHandler(workerIdNum, chatWindowRef, msgQueue, incomingMsgNotifier,
-                                mainAppNotifier, appState);
-                inputWorker = new UserInputWorker(workerIdNum, in, msgQueue, incomingMsgNotifier);
+                inputHandler = new UserInputHandler(workerIdNum, chatWindowRef, msgQueue, mainAppNotifier, appState);
+                inputWorker = new UserInputWorker(workerIdNum, in, msgQueue);
                 inputWorker.start();
                 inputHandler.start();
 
@@ -244,15 +244,17 @@ public class ChatUser extends Thread {
      * connect with the SessionCoordinator for the sake of entering and
      * participating in a chat session.
      * 
-     * @param seshInetAddr inet address we are connecting to
-     * @param seshPort     port of the SessionCoordinator we are connecting to
+     * @param seshInetAddr inet address of the session gateway
+     * @param seshPort     port of the session gateway
+     * @param seshKey      key of the room within the gateway
      * @param nameOfRoom   name of the room being joined
      */
-    public void initSessionInfo(String seshInetAddr, int seshPort, String nameOfRoom) {
+    public void initSessionInfo(String seshInetAddr, int seshPort, String seshKey, String nameOfRoom) {
 
         // if the given address is 0.0.0.0, just use localhost instead.
         sessionIP = seshInetAddr.startsWith("0.0.0.0") ? "localhost" : seshInetAddr;
         sessionPort = seshPort;
+        sessionKey = seshKey;
         roomName = nameOfRoom;
     }
 
@@ -273,9 +275,10 @@ public class ChatUser extends Thread {
      * @param seshSock Socket connecting this user to the session they are joining.
      * @deprecated initSessionInfo() should be used instead.
      */
+    @Deprecated
     public void initSessionSocket(Socket seshSock) {
         sessionSocket = seshSock;
-        initSessionInfo(sessionSocket.getInetAddress().toString(), seshSock.getLocalPort(), "");
+        initSessionInfo(sessionSocket.getInetAddress().toString(), seshSock.getLocalPort(), "", "");
     }
 
     /**
@@ -381,6 +384,15 @@ public class ChatUser extends Thread {
         return sessionPort;
     }
 
+    /**
+     * getter for session key
+     * 
+     * @return key of the room within the session gateway
+     */
+    public String getSessionKey() {
+        return sessionKey;
+    }
+
     /**
      * this method is responsible for triggering the graceful shutdown of all
      * threaded workers responsible for ChatUser IO. NOTE UserOutputHandler is
@@ -392,12 +404,7 @@ public class ChatUser extends Thread {
         outputWorker.turnOff();
 
         inputHandler.interrupt();
-        synchronized (inputWorker.getNotifier()) {
-            inputWorker.getNotifier().notify();
-        }
-        synchronized (outputWorker.getNotifier()) {
-            outputWorker.getNotifier().notify();
-        }
+        outputWorker.wakeUp();
         try {
             inputWorker.join();
             inputHandler.join();
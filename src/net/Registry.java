@@ -1,20 +1,31 @@
 package net;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import io.MessageFraming;
+import io.history.HistoryStore;
 import misc.Constants;
 import misc.ValidateInput;
+import misc.Worker;
 import messages.NewUserMessage;
 import messages.SimpleMessage;
 import messages.ExitRoomMessage;
+import messages.FindRoomsMessage;
 import messages.JoinRoomMessage;
 import messages.ListRoomsMessage;
+import messages.LookupRoomMessage;
 import messages.Message;
+import messages.RosterUpdateMessage;
 import messages.NewRoomMessage;
 
 import java.io.ObjectInputStream;
@@ -22,7 +33,8 @@ import java.io.ObjectOutputStream;
 
 /**
  * This class acts as one of the central units of processing within the Chatter
- * app. All requests are internally handled by the RequestHandler.
+ * app. Requests are received by a RegistryServer (or, in thread-per-request
+ * mode, a RequestHandler) and serviced by processRequest().
  */
 public class Registry {
     private static volatile int userCount = 0; // number of currently active ChatUsers.
@@ -30,35 +42,89 @@ public class Registry {
 
     private static boolean running = false; // whether or not the Registry is running.
 
+    private static int requestHandlerCount = 0; // used to number RequestHandlers.
+
     private static volatile int sessionCount = 0; // number of currently active chat sessions.
     private static Object sessionCountLock = new Object(); // for safe R/W ops on session count.
 
     /**
-     * Map of data array objects representing all the current chat rooms that are
-     * open and available to be joined. Entries are keyed on room names, which are
-     * unique.
+     * all the current chat rooms that are open and available to be joined, along
+     * with their listings. Keyed on room names, which are unique.
      */
-    private static HashMap<String, String[]> roomListArrayMap;
+    private static RoomDirectory rooms;
+    private static final Set<String> roomsOpening = ConcurrentHashMap.newKeySet(); // names held while being set up
+    private static RoomWatchers watchers; // pushes room changes to clients watching the listings
+    private static RosterPublisher rosters; // keeps the directory informed of joins and exits, for every room
 
-    // Same as above, but in single-string CSV format.
-    private static HashMap<String, String> roomListCsvMap;
+    private static SessionGateway gateway; // the one endpoint through which all sessions are reached.
+    private static RegistryJournal journal; // keeps the above on disk, should the Registry go down.
+    private static HistoryStore histories; // every room's history (null if not kept)
 
-    // map for tracking users in each of the rooms.
-    private static HashMap<String, HashSet<String>> roomUsers;
+    public static void main(String[] args) {
 
-    // for race conditions in accessing aforementioned hashmaps.
-    private static Object roomListDataLock = new Object();
+        // bringing back whatever state was kept when the Registry last ran.
+        String journalDir = System.getProperty(Constants.REGISTRY_JOURNAL_PROPERTY, Constants.REGISTRY_JOURNAL_DIR);
+        journal = new RegistryJournal(new File(journalDir), Constants.REGISTRY_SNAPSHOT_INTERVAL_MS);
+        RegistryJournal.Recovery recovery;
+        try {
+            recovery = journal.recover();
+        } catch (IOException e) {
+            System.out.println("Registry could not recover its state from " + journalDir + " --> " + e.getMessage());
+            return;
+        }
 
-    private static HashMap<String, SessionCoordinator> coordinators; // pool of coordinators (key -> room name)
+        // initializing data structures
+        rooms = new RoomDirectory(journal);
+        watchers = new RoomWatchers(rooms, Constants.REGISTRY_WATCH_INTERVAL_MS);
+        watchers.start();
+        rosters = new RosterPublisher(Constants.SESSION_ROSTER_INTERVAL_MS);
+        rosters.start();
+        histories = HistoryStore.fromProperties();
 
-    public static void main(String[] args) {
+        try {
+            gateway = new SessionGateway(Constants.SESSION_GATEWAY_PORT);
+            gateway.start();
+            System.out.println("Session gateway listening on port " + Constants.SESSION_GATEWAY_PORT);
+        } catch (IOException e) {
+            System.out.println("Registry could not open the session gateway --> " + e.getMessage());
+            return;
+        }
 
-        // initializing data structures
-        roomListArrayMap = new HashMap<String, String[]>();
-        roomListCsvMap = new HashMap<String, String>();
-        roomUsers = new HashMap<String, HashSet<String>>();
-        coordinators = new HashMap<String, SessionCoordinator>();
+        restore(recovery);
+        journal.attach(rooms, () -> userCount, () -> sessionCount);
+        journal.checkpoint(); // so the next recovery needn't replay this one.
+        journal.start();
+        System.out.println(recovery.describe());
 
+        /**
+         * NOTE the thread-per-request front end is kept around behind a switch so the
+         * two designs can be compared against one another under load.
+         */
+        String mode = System.getProperty(Constants.REGISTRY_MODE_PROPERTY, Constants.REGISTRY_MODE_SELECTOR);
+        if (mode.equals(Constants.REGISTRY_MODE_THREADED)) {
+            runThreadPerRequest();
+            return;
+        }
+
+        try {
+            RegistryServer server = new RegistryServer(Constants.REGISTRY_PORT, Constants.REGISTRY_SELECTOR_COUNT,
+                            Constants.REGISTRY_WORKER_POOL_SIZE, Constants.REGISTRY_DISPATCH_QUEUE_LENGTH);
+            System.out.println("Server Registry (selector mode) listening on port " + Constants.REGISTRY_PORT);
+            running = true;
+            server.start();
+            server.join();
+        } catch (IOException e) {
+            System.out.println("Registry IO Error!! --> " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.out.println("Registry interrupted while serving --> " + e.getMessage());
+        }
+    }
+
+    /**
+     * the original Registry front end; accepts a connection and spins up a new
+     * RequestHandler thread to service it.
+     */
+    private static void runThreadPerRequest() {
         try {
 
             Socket socket; // socket for accepted connections.
@@ -69,7 +135,7 @@ public class Registry {
             while (running) {
                 socket = serverSocket.accept();
                 System.out.println("Connection received by Registry");
-                RequestHandler handler = new RequestHandler(socket);
+                RequestHandler handler = new RequestHandler(requestHandlerCount++, socket);
                 handler.start();
                 System.out.println("Connection passed off to RequestHandler");
             }
@@ -83,254 +149,359 @@ public class Registry {
     }
 
     /**
-     * the purpose of this thread-based class is to be instantiated whenever the
-     * Registry receives a new incoming connection. the resulting Socket for that
-     * connection is passed off to this RequestHandler.
+     * puts back the state recovered from the journal. UID and room key numbering
+     * picks up where it left off, and every room that was open is opened once
+     * more, under the same room key (so the connect info its users were given
+     * still leads to it), and with the same history.
      * 
-     * The nature of the desired request will determine the RequestHandler's course
-     * of action.
+     * NOTE the rooms' sessions ran in this process, so they went down with it; a
+     * reopened room holds only its host until users rejoin it, the host first (as
+     * with any new room). Until the host is back, the room is kept unlisted and
+     * can't be joined; should they not be back within
+     * SESSION_RESTORED_HOST_TIMEOUT_MS, the room is closed.
      * 
+     * @param recovery the state recovered
      */
-    private static class RequestHandler extends Thread {
-        private Socket socket; // connected socket
-        private ObjectInputStream in; // for reading messages
-        private ObjectOutputStream out; // for writing messages
+    private static void restore(RegistryJournal.Recovery recovery) {
+        userCount = recovery.getUsersIssued();
+        sessionCount = recovery.getSessionsIssued();
+        for (RegistryJournal.RecoveredRoom room : recovery.getRooms()) {
+            String roomKey = room.getRoomKey();
+            int sessionNum;
+            try {
+                sessionNum = Integer.parseInt(roomKey.substring(Constants.SID_PREFIX.length()));
+            } catch (RuntimeException e) {
+                System.out.println("Registry could not reopen " + room.getRoomName() + " (bad room key " + roomKey
+                                + ")");
+                continue;
+            }
+            sessionCount = Math.max(sessionCount, sessionNum + 1);
+            openRoom(sessionNum, roomKey, room.getHostAlias(), room.getRoomName(), true);
+        }
+    }
 
+    /**
+     * services a single request, regardless of which front end received it.
+     * 
+     * @param msg     the request message
+     * @param watcher the connection the request came in over, should the sender
+     *                    wish to watch the room listings (null if the connection
+     *                    can't carry pushed changes)
+     * @return response to be written back to the requesting entity, or null if the
+     *         request was not of a recognized type.
+     */
+    static Message processRequest(Message msg, RoomWatchers.Watcher watcher) {
         /**
-         * constructor.
+         * NOTE this style of programming obviously violates DRY.
          * 
-         * @param sock - connection socket to be used for servicing a request.
+         * That said, I made a point of wanting to finish this project in 8-10 weeks,
+         * and so I am sacrificing a bit of code quality to get things done on time.
          */
-        public RequestHandler(Socket sock) {
-            socket = sock;
+        if (msg instanceof NewUserMessage) {
+            return handleMessage((NewUserMessage) msg);
+        } else if (msg instanceof NewRoomMessage) {
+            return handleMessage((NewRoomMessage) msg);
+        } else if (msg instanceof ListRoomsMessage) {
+            return handleMessage((ListRoomsMessage) msg, watcher);
+        } else if (msg instanceof FindRoomsMessage) {
+            return handleMessage((FindRoomsMessage) msg, watcher);
+        } else if (msg instanceof LookupRoomMessage) {
+            return handleMessage((LookupRoomMessage) msg);
+        } else if (msg instanceof RosterUpdateMessage) {
+            return handleMessage((RosterUpdateMessage) msg);
+        } else if (msg instanceof JoinRoomMessage) {
+            return handleMessage((JoinRoomMessage) msg);
+        } else if (msg instanceof ExitRoomMessage) {
+            return handleMessage((ExitRoomMessage) msg);
         }
+        System.out.println("Unexpected Object Type Received by Registry.. That's not good.");
+        return null;
+    }
+
+    /**
+     * message handler for NewUserMessages.
+     * 
+     * @param msg contains info for setting up a new user.
+     * @return response containing the new user's UID
+     */
+    private static Message handleMessage(NewUserMessage msg) {
+        String alias = msg.getAssociatedSenderAlias();
+        int uidNum = -1;
+
+        // safely incrementing and accessing usercount for UID number.
+        synchronized (userCountLock) {
+            userCount++;
+            uidNum = userCount;
+            journal.usersIssued(uidNum);
+        }
+        journal.sync(); // a UID must never be handed out twice, even across restarts.
+
+        String uid = Constants.UID_PREFIX + String.valueOf(uidNum);
+        String content = "OK; UID is " + uid;
+        return new SimpleMessage(alias, content);
 
         /**
-         * message handler for NewUserMessages.
-         * 
-         * @param msg contains info for setting up a new user.
+         * NOTE I never added any data structure for tracking all users across all
+         * rooms. This is something I could add if/when I come back to working on this.
          */
-        public void handleMessage(NewUserMessage msg) {
-            String alias = msg.getAssociatedSenderAlias();
-            int uidNum = -1;
-
-            // safely incrementing and accessing usercount for UID number.
-            synchronized (userCountLock) {
-                userCount++;
-                uidNum = userCount;
-            }
+    }
 
-            String uid = Constants.UID_PREFIX + String.valueOf(uidNum);
-            String content = "OK; UID is " + uid;
-            SimpleMessage response = new SimpleMessage(alias, content);
-            try {
-                out.writeObject(response);
-                out.flush();
-            } catch (Exception e) {
-                System.out.println("RRH handleMessage(NUM) error --> " + e.getMessage());
-            }
+    /**
+     * message handler for NewRoomMessages.
+     * 
+     * @param msg contains info for setting up a new room
+     * @return response containing the session connect info
+     */
+    private static Message handleMessage(NewRoomMessage msg) {
 
-            /**
-             * NOTE I never added any data structure for tracking all users across all
-             * rooms. This is something I could add if/when I come back to working on this.
-             */
-        }
+        String hostAlias = msg.getHost();
+        String roomName = msg.getRoomName();
 
         /**
-         * message handler for NewRoomMessages.
-         * 
-         * @param msg contains info for setting up a new room
+         * NOTE the name is held before anything is set up for the room, so that asking
+         * for one already taken costs nothing: no session number is issued (and
+         * journaled), and no history is opened.
          */
-        public void handleMessage(NewRoomMessage msg) {
-
-            String hostAlias = msg.getHost();
-            String roomName = msg.getRoomName();
-            String participantCountStr = "1"; // new rooms initially only contain the host.
+        if (!roomsOpening.add(roomName)) {
+            return new SimpleMessage(hostAlias, "ERROR; a room named " + roomName + " is already open.");
+        }
+        String sessionInfoContent;
+        try {
+            // checked only once the name is held, as whoever held it last lists the room before letting go.
+            if (rooms.get(roomName) != null) {
+                return new SimpleMessage(hostAlias, "ERROR; a room named " + roomName + " is already open.");
+            }
 
-            // determining the session port.
+            // determining the room key.
             /*
              * we lock, as other rooms could be being created simultaneously, creating a
              * race condition.
              */
-            int sessionPort = -1;
+            int sessionNum = -1;
             synchronized (sessionCountLock) {
-                sessionPort = Constants.SESSION_PORT_PREFIX + sessionCount;
+                sessionNum = sessionCount++;
+                journal.sessionsIssued(sessionCount);
             }
+            String roomKey = Constants.SID_PREFIX + sessionNum;
 
-            /**
-             * SessionCoordinator setup.
-             */
-            ServerSocket serverSocket = null;
-            try {
-                serverSocket = new ServerSocket(sessionPort);
-            } catch (Exception e) {
-                System.out.println("handleMessage(NRM) error creating ServerSocket --> " + e.getMessage());
-            }
-            SessionCoordinator seshCoord = new SessionCoordinator(sessionCount, serverSocket, hostAlias, roomName);
-            coordinators.put(roomName, seshCoord);
-            seshCoord.start();
+            sessionInfoContent = openRoom(sessionNum, roomKey, hostAlias, roomName, false);
+        } finally {
+            roomsOpening.remove(roomName);
+        }
+        if (sessionInfoContent == null) {
+            return new SimpleMessage(hostAlias, "ERROR; a room named " + roomName + " is already open.");
+        }
+        journal.sync();
 
-            /**
-             * information derivation.
-             */
-            String ipString = serverSocket.getInetAddress().getHostAddress();
-            String portStr = Integer.toString(sessionPort);
-            String sessionInfoContent = ipString + ":" + portStr;
+        // send back a SimpleMessage containing the session connect information (ip,
+        // port number and room key).
+        String content = "OK; ConnectInfo is " + sessionInfoContent; // NOTE format will be used User-side.
+        return new SimpleMessage(hostAlias, content);
+    }
 
-            /**
-             * tracking room listing data.
-             */
-            String[] roomListValues = { roomName, hostAlias, participantCountStr, sessionInfoContent };
-            String roomListCsv = "";
-            for (String s : roomListValues)
-                roomListCsv += s + ",";
-            roomListCsv = roomListCsv.substring(0, roomListCsv.length() - 1); // trim off the last ","
-            HashSet<String> roomUserSet = new HashSet<String>();
-            roomUserSet.add(hostAlias);
-
-            // putting away the "book keeping" data
-            synchronized (roomListDataLock) {
-                roomListArrayMap.put(roomName, roomListValues);
-                roomListCsvMap.put(roomName, roomListCsv);
-                roomUsers.put(roomName, roomUserSet);
-            }
+    /**
+     * sets up a room's SessionCoordinator and lists the room in the directory.
+     * 
+     * @param sessionNum number of the room's session
+     * @param roomKey    key the room is reached by
+     * @param hostAlias  alias of the host
+     * @param roomName   name of the room
+     * @param isRestored true if the room is being reopened on recovery (and so is
+     *                       kept unlisted until its host is back)
+     * @return the room's connect info, or null if a room by that name is already
+     *         open (callers other than restore() hold the name, so it can't be)
+     */
+    private static String openRoom(int sessionNum, String roomKey, String hostAlias, String roomName,
+                    boolean isRestored) {
+        /**
+         * SessionCoordinator setup. NOTE no socket is bound here; the room is reached
+         * through the gateway by its room key.
+         */
+        SessionCoordinator seshCoord = new SessionCoordinator(sessionNum, roomKey, gateway, hostAlias, roomName,
+                        rosters, histories, isRestored);
 
-            // send back a SimpleMessage containing the session connect information (ip and
-            // port number).
-            String content = "OK; ConnectInfo is " + sessionInfoContent; // NOTE format will be used User-side.
-            SimpleMessage response = new SimpleMessage(hostAlias, content);
+        /**
+         * information derivation. Format is "ip:port/roomKey".
+         */
+        String sessionInfoContent = gateway.getConnectInfo() + "/" + roomKey;
 
-            try {
-                out.writeObject(response);
-                out.flush();
-                socket.close(); // NOTE this closes both associated streams as well.
-            } catch (Exception e) {
-                System.out.println("handleMessage(NRM) error --> " + e.getMessage());
-            }
-            sessionCount++;
+        // putting away the "book keeping" data (new rooms initially only contain the host).
+        if (!rooms.add(new RoomDirectory.Room(roomName, hostAlias, sessionInfoContent, seshCoord, !isRestored))) {
+            seshCoord.discard();
+            return null;
         }
+        gateway.register(roomKey, seshCoord);
+        seshCoord.start();
+        return sessionInfoContent;
+    }
 
-        /**
-         * message handler function for LRMs.
-         * 
-         * @param msg the ListRoomsMessage to handle
-         */
-        public void handleMessage(ListRoomsMessage msg) {
-            ArrayList<String> listings = null;
-            synchronized (roomListDataLock) {
-                listings = new ArrayList<String>(roomListCsvMap.values());
-            }
-            msg.setListings(listings);
-            try {
-                out.writeObject(msg);
-                out.flush();
-                socket.close(); // NOTE this closes both associated streams as well.
-            } catch (Exception e) {
-                System.out.println("handleMessage(LRM) error --> " + e.getMessage());
-            }
+    /**
+     * message handler function for LRMs. Also starts or stops pushing room changes
+     * to the sender, if asked to (and if their connection can carry them).
+     * 
+     * @param msg     the ListRoomsMessage to handle
+     * @param watcher the connection the LRM came in over (may be null)
+     * @return the same LRM, now carrying the current room listings (or what has
+     *         changed since the version the client has)
+     */
+    private static Message handleMessage(ListRoomsMessage msg, RoomWatchers.Watcher watcher) {
+        // full listings (and their encoding) are shared by every response until a room changes.
+        RoomDirectory.Listing listing = rooms.getListingSince(msg.getVersion());
+        if (listing.isDelta()) {
+            msg.setChanges(listing.getSinceVersion(), listing.getVersion(), listing.getListings(),
+                            listing.getRemovedRooms());
+        } else {
+            msg.setListings(listing.getVersion(), listing.getListings(), listing.getEncoded());
         }
 
-        /**
-         * message handler for JRMs.
-         * 
-         * @param msg the JoinRoomMessage to be handled
-         * 
-         *                NOTE JRMs are actually initially sent to SessionCoordinators;
-         *                they are simply forwarded to the Registry for the sake of book
-         *                keeping.
-         */
-        public void handleMessage(JoinRoomMessage msg) throws NumberFormatException {
-            String roomName = msg.getRoom();
-            String alias = msg.getUserJoining();
-            int participantCount = -1;
-            synchronized (roomListDataLock) {
-
-                // update room listing array (incrementing participant count by 1)
-                String[] roomListingArray = roomListArrayMap.get(roomName);
-                participantCount = Integer.parseInt(roomListingArray[Constants.GUEST_COUNT_TABLE_COLUMN]);
-                participantCount++;
-                roomListingArray[Constants.GUEST_COUNT_TABLE_COLUMN] = Integer.toString(participantCount);
-                roomListArrayMap.put(roomName, roomListingArray);
-
-                // update room listing CSV (simply using the array we just updated to re-format
-                // CSV version)
-                String roomListingCsv = "";
-                for (String arg : roomListingArray)
-                    roomListingCsv += arg;
-                roomListingCsv = roomListingCsv.substring(0, roomListingCsv.length() - 1); // remove last ","
-                roomListCsvMap.put(roomName, roomListingCsv);
-
-                // update set of room users
-                roomUsers.get(roomName).add(alias);
+        if (watcher != null && msg.getWatchRequest() == ListRoomsMessage.WATCH_START) {
+            watchers.subscribe(watcher, listing.getVersion());
+        } else if (watcher != null && msg.getWatchRequest() == ListRoomsMessage.WATCH_STOP) {
+            watchers.unsubscribe(watcher);
+        }
+        return msg;
+    }
+
+    /**
+     * message handler for FRMs. Also starts or stops pushing changes to the rooms
+     * on the page to the sender, if asked to (and if their connection can carry
+     * them).
+     * 
+     * @param msg     the FindRoomsMessage to handle
+     * @param watcher the connection the FRM came in over (may be null)
+     * @return the same FRM, now carrying the page of rooms found
+     */
+    private static Message handleMessage(FindRoomsMessage msg, RoomWatchers.Watcher watcher) {
+        RoomDirectory.Page page = rooms.find(msg.getQuery(), msg.getMatchMode(), msg.getMinGuests(),
+                        msg.getMaxGuests(), msg.getSortOrder(), msg.getCursor(), msg.getPageSize());
+        msg.setPage(page.getListings(), page.getNextCursor(), page.getVersion());
+
+        if (watcher != null && msg.getWatchRequest() == ListRoomsMessage.WATCH_START) {
+            HashSet<String> watched = new HashSet<String>();
+            for (String csv : page.getListings()) {
+                watched.add(ListRoomsMessage.roomNameOf(csv));
             }
+            watchers.subscribe(watcher, page.getVersion(), watched);
+        } else if (watcher != null && msg.getWatchRequest() == ListRoomsMessage.WATCH_STOP) {
+            watchers.unsubscribe(watcher);
+        }
+        return msg;
+    }
 
-            // build and write the SimpleMessage response.
-            String responseContent = "OK; " + participantCount + " users now chatting.";
-            SimpleMessage response = new SimpleMessage(alias, responseContent);
+    /**
+     * message handler for LKMs. A single lookup in the directory; no listings are
+     * built.
+     * 
+     * @param msg the LookupRoomMessage to handle
+     * @return the same LKM, now saying whether the room is open (and if so, how to
+     *         reach it)
+     */
+    private static Message handleMessage(LookupRoomMessage msg) {
+        RoomDirectory.Room room = rooms.get(msg.getRoomName());
+        if (room == null || !room.isListed()) {
+            msg.setResult(false, null, 0);
+        } else {
+            msg.setResult(true, room.getConnectInfo(), room.getGuestCount());
+        }
+        return msg;
+    }
 
-            try {
-                out.writeObject(response);
-                out.flush();
-                socket.close(); // NOTE this closes both associated streams as well.
-            } catch (Exception e) {
-                System.out.println("handleMessage(JRM) error --> " + e.getMessage());
-            }
+    /**
+     * message handler for JRMs.
+     * 
+     * @param msg the JoinRoomMessage to be handled
+     * @return response containing the updated participant count
+     * 
+     *         NOTE JRMs are actually initially sent to SessionCoordinators; they are
+     *         simply forwarded to the Registry for the sake of book keeping.
+     */
+    private static Message handleMessage(JoinRoomMessage msg) {
+        String roomName = msg.getRoom();
+        String alias = msg.getUserJoining();
+        RoomDirectory.Room room = rooms.get(roomName);
+        if (room == null || !room.isListed()) {
+            return new SimpleMessage(alias, "ERROR; no room named " + roomName + " is open.");
+        }
+        int participantCount = rooms.join(room, alias);
+        journal.sync();
+
+        // build the SimpleMessage response.
+        String responseContent = "OK; " + participantCount + " users now chatting.";
+        return new SimpleMessage(alias, responseContent);
+    }
+
+    /**
+     * message handler for RUMs, which SessionCoordinators send in place of
+     * forwarding each JRM and ERM, once per batch of joins and exits.
+     * 
+     * @param msg the RosterUpdateMessage to be handled
+     * @return response containing the updated participant count
+     */
+    private static Message handleMessage(RosterUpdateMessage msg) {
+        String roomName = msg.getRoomName();
+        RoomDirectory.Room room = rooms.get(roomName);
+        if (room == null) {
+            return new SimpleMessage(roomName, "ERROR; no room named " + roomName + " is open.");
+        }
+        int participantCount = rooms.applyRoster(room, msg.getJoined(), msg.getLeft(), msg.getParticipantCount());
+        journal.sync();
+
+        String responseContent = "OK; " + participantCount + " users now chatting.";
+        return new SimpleMessage(roomName, responseContent);
+    }
+
+    /**
+     * Handler method for catering to ExitRoomMessages. Note that these messages are
+     * sent by ExitRoomWorkers to SessionCoordinators, who then forward them here.
+     * ERMs are forwarded to the Registry for the sake of book-keeping.
+     * 
+     * @param msg ERM to be handled
+     * @return response containing the updated participant count
+     */
+    private static Message handleMessage(ExitRoomMessage msg) {
+        String alias = msg.getExitingUser();
+        String roomName = msg.getAssociatedRoom();
+        RoomDirectory.Room room = rooms.get(roomName);
+        if (room == null) {
+            return new SimpleMessage(alias, "ERROR; no room named " + roomName + " is open.");
         }
 
         /**
-         * Handler method for catering to ExitRoomMessages. Note that these messages are
-         * sent by ExitRoomWorkers to SessionCoordinators, who then forward them here.
-         * ERMs are forwarded to the Registry for the sake of book-keeping.
-         * 
-         * @param msg ERM to be handled
-         * @throws NumberFormatException
+         * decrementing participant count. If it is decremented to 0, the room is taken
+         * out of the directory, as that would indicate it has closed.
          */
-        public void handleMessage(ExitRoomMessage msg) throws NumberFormatException {
-            String alias = msg.getExitingUser();
-            String roomName = msg.getAssociatedRoom();
-            int participantCount = -1;
-
-            /**
-             * decrementing participant count.
-             * 
-             * If it is decremented to 0, we can remove some HashMap entries, as that would
-             * indicate a room has closed.
-             */
-            synchronized (roomListDataLock) {
-                String[] roomListingArray = roomListArrayMap.get(roomName);
-                participantCount = Integer.parseInt(roomListingArray[Constants.GUEST_COUNT_TABLE_COLUMN]);
-                participantCount--;
-
-                if (participantCount == 0) {
-                    roomListArrayMap.remove(roomName);
-                    roomListCsvMap.remove(roomName);
-                    roomUsers.remove(roomName);
-                }
-                /**
-                 * if the room is still open, we should adjust the participant count listing.
-                 */
-                else {
-                    roomListingArray[Constants.GUEST_COUNT_TABLE_COLUMN] = Integer.toString(participantCount);
-                    String csvString = "";
-                    for (String arg : roomListingArray) {
-                        csvString += arg + ",";
-                    }
-                    csvString = csvString.substring(0, csvString.length() - 1);
-                    roomListCsvMap.put(roomName, csvString);
-                    roomUsers.get(roomName).remove(alias);
-                }
+        int participantCount = rooms.leave(room, alias);
+        journal.sync();
 
-                String responseContent = "OK; " + participantCount + " users now chatting.";
-                SimpleMessage response = new SimpleMessage(alias, responseContent);
+        String responseContent = "OK; " + participantCount + " users now chatting.";
+        return new SimpleMessage(alias, responseContent);
+    }
 
-                try {
-                    out.writeObject(response);
-                    out.flush();
-                    socket.close(); // NOTE this closes both associated streams as well.
-                } catch (Exception e) {
-                    System.out.println("handleMessage(JRM) error --> " + e.getMessage());
-                }
-            }
+    /**
+     * the purpose of this thread-based class is to be instantiated whenever the
+     * Registry receives a new incoming connection. the resulting Socket for that
+     * connection is passed off to this RequestHandler.
+     * 
+     * The nature of the desired request will determine the RequestHandler's course
+     * of action.
+     * 
+     * NOTE only used when the Registry runs in thread-per-request mode; see
+     * RegistryServer for the default front end.
+     */
+    private static class RequestHandler extends Worker {
+        private Socket socket; // connected socket
+        private ObjectInputStream in; // for reading messages
+        private ObjectOutputStream out; // for writing messages
+
+        /**
+         * constructor.
+         * 
+         * @param handlerNum - number unique to this handler.
+         * @param sock       - connection socket to be used for servicing a request.
+         */
+        public RequestHandler(int handlerNum, Socket sock) {
+            super("RH-" + Integer.toString(handlerNum));
+            socket = sock;
         }
 
         public void run() {
@@ -338,29 +509,29 @@ public class Registry {
             try {
                 // NOTE order of constructor calls is crucial here. See ChatUser.java for deets.
                 out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
-
-                Object obj = in.readObject();
-                Message msg = ValidateInput.validateMessage(obj);
 
                 /**
-                 * NOTE this style of programming obviously violates DRY.
-                 * 
-                 * That said, I made a point of wanting to finish this project in 8-10 weeks,
-                 * and so I am sacrificing a bit of code quality to get things done on time.
+                 * RegistryChannels open with a preamble and then send any number of framed
+                 * requests. They expect the Object stream header too, which is why the OOS is
+                 * still created above.
                  */
-                if (msg instanceof NewUserMessage) {
-                    handleMessage((NewUserMessage) msg);
-                } else if (msg instanceof NewRoomMessage) {
-                    handleMessage((NewRoomMessage) msg);
-                } else if (msg instanceof ListRoomsMessage) {
-                    handleMessage((ListRoomsMessage) msg);
-                } else if (msg instanceof JoinRoomMessage) {
-                    handleMessage((JoinRoomMessage) msg);
-                } else if (msg instanceof ExitRoomMessage) {
-                    handleMessage((ExitRoomMessage) msg);
-                } else {
-                    System.out.println("Unexpected Object Type Received by RequestHandler.. That's not good.");
+                BufferedInputStream buffered = new BufferedInputStream(socket.getInputStream());
+                buffered.mark(MessageFraming.CHANNEL_PREAMBLE.length);
+                byte[] preamble = buffered.readNBytes(MessageFraming.CHANNEL_PREAMBLE.length);
+                if (MessageFraming.startsWithPreamble(preamble, 0, preamble.length)) {
+                    serveFrames(new DataInputStream(buffered), socket.getOutputStream());
+                    socket.close();
+                    return;
+                }
+                buffered.reset();
+                in = new ObjectInputStream(buffered);
+
+                Object obj = in.readObject();
+                Message msg = ValidateInput.validateMessage(obj);
+                Message response = processRequest(msg, null);
+                if (response != null) {
+                    out.writeObject(response);
+                    out.flush();
                 }
 
                 // closes associated streams automatically.
@@ -372,5 +543,32 @@ public class Registry {
                 System.out.println("RequestHandler Error! -->" + e.getMessage());
             }
         }
+
+        /**
+         * services framed requests one after the other until the other side hangs up.
+         * 
+         * @param frameIn  stream to read request frames from
+         * @param frameOut stream to write response frames to
+         * @throws IOException
+         * @throws ClassNotFoundException
+         */
+        private void serveFrames(DataInputStream frameIn, OutputStream frameOut)
+                        throws IOException, ClassNotFoundException {
+            while (true) {
+                Message msg;
+                try {
+                    msg = MessageFraming.readFrame(frameIn);
+                } catch (EOFException e) {
+                    return; // channel closed.
+                }
+                // NOTE changes aren't pushed in this mode; watchers have to make do with refreshing.
+                Message response = processRequest(msg, null);
+                if (response != null) {
+                    response.setRequestID(msg.getRequestID());
+                    frameOut.write(MessageFraming.encodeFrame(response));
+                    frameOut.flush();
+                }
+            }
+        }
     }
-}
\ No newline at end of file
+}
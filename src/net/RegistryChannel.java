@@ -0,0 +1,319 @@
+package net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import io.MessageFraming;
+import messages.Message;
+import misc.Constants;
+import misc.Worker;
+
+/**
+ * a long-lived, multiplexed connection to the Registry.
+ *
+ * Rather than opening a new Socket (and a new pair of Object streams) for every
+ * request, entities that talk to the Registry share one of these. Each request
+ * is stamped with a unique request ID before being written out as a frame (see
+ * MessageFraming); a ResponseReader picks responses up as they arrive and
+ * completes whichever request shares the response's ID. Several requests can
+ * therefore be in flight at once, and may be answered in any order.
+ *
+ * If the connection drops, requests that were awaiting a response fail, and the
+ * next request transparently opens a fresh connection.
+ *
+ * The Registry may also push Messages down the connection unprompted (request
+ * ID 0, such as room listing changes; see RoomWatchers); these are handed to
+ * the push listener, if one is set. Whatever was being pushed stops when the
+ * connection drops, and has to be asked for again.
+ *
+ * Clients share a single channel (see getShared()); each SessionCoordinator
+ * opens one of its own.
+ */
+public class RegistryChannel {
+
+    private static RegistryChannel shared; // channel shared by all client-side Registry interactions
+    private static final Object sharedLock = new Object(); // for safe lazy init of the above
+
+    private String host; // Registry address
+    private int port; // Registry port
+    private String channelName; // used to name the reader and for console printing
+
+    private Socket socket; // current connection (null if not connected)
+    private OutputStream out; // frames are written here
+    private ResponseReader reader; // reads responses for the current connection
+    private final ReentrantLock connectionLock = new ReentrantLock(); // guards the three fields above and writes
+
+    private final AtomicLong nextRequestID = new AtomicLong(1); // 0 is reserved for uncorrelated messages
+    private final ConcurrentHashMap<Long, CompletableFuture<Message>> pendingRequests = new ConcurrentHashMap<>();
+    private volatile Consumer<Message> pushListener; // handed Messages pushed by the Registry (may be null)
+
+    /**
+     * RegistryChannel constructor. The connection is opened lazily on first use.
+     *
+     * @param name       name of this channel, used for console printing
+     * @param registryIP Registry address
+     * @param regPort    Registry port
+     */
+    public RegistryChannel(String name, String registryIP, int regPort) {
+        channelName = name;
+        host = registryIP;
+        port = regPort;
+        socket = null;
+        out = null;
+        reader = null;
+    }
+
+    /**
+     * getter for the channel shared by all client-side Registry interactions.
+     *
+     * @return the shared channel
+     */
+    public static RegistryChannel getShared() {
+        synchronized (sharedLock) {
+            if (shared == null) {
+                shared = new RegistryChannel("RC-client", Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * sends a request without waiting on the response.
+     *
+     * @param request message to send to the Registry
+     * @return future completed with the Registry's response
+     */
+    public CompletableFuture<Message> send(Message request) {
+        long requestID = nextRequestID.getAndIncrement();
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        pendingRequests.put(requestID, future);
+        request.setRequestID(requestID);
+
+        try {
+            byte[] frame = MessageFraming.encodeFrame(request);
+            try {
+                write(frame);
+            } catch (IOException e) {
+                /**
+                 * a failed write means the frame never made it out, so it is safe to retry
+                 * once over a fresh connection.
+                 */
+                pendingRequests.remove(requestID);
+                disconnect(null, e);
+                pendingRequests.put(requestID, future);
+                write(frame);
+            }
+        } catch (IOException e) {
+            pendingRequests.remove(requestID);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * sends a request and waits on the response.
+     *
+     * @param request message to send to the Registry
+     * @return the Registry's response
+     * @throws IOException if the request could not be completed in time
+     */
+    public Message request(Message request) throws IOException {
+        CompletableFuture<Message> future = send(request);
+        try {
+            return future.get(Constants.REGISTRY_REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IOException("Registry request failed --> " + e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            pendingRequests.remove(request.getRequestID());
+            throw new IOException("Registry request timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting on the Registry");
+        }
+    }
+
+    /**
+     * sets who gets handed the Messages the Registry pushes unprompted. The
+     * listener is called on the channel's reader thread, so it should be quick
+     * about it.
+     *
+     * @param listener the listener (null for none)
+     */
+    public void setPushListener(Consumer<Message> listener) {
+        pushListener = listener;
+    }
+
+    /**
+     * number of requests currently awaiting a response.
+     *
+     * @return in-flight request count
+     */
+    public int getInFlightCount() {
+        return pendingRequests.size();
+    }
+
+    /**
+     * closes the channel. Any request awaiting a response fails.
+     */
+    public void close() {
+        disconnect(null, new IOException(channelName + " closed"));
+    }
+
+    /**
+     * writes a frame out, connecting first if need be.
+     *
+     * @param frame encoded frame
+     * @throws IOException
+     */
+    private void write(byte[] frame) throws IOException {
+        connectionLock.lock();
+        try {
+            if (socket == null) {
+                connect();
+            }
+            out.write(frame);
+            out.flush();
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    /**
+     * opens a fresh connection. Caller must hold connectionLock.
+     *
+     * @throws IOException
+     */
+    private void connect() throws IOException {
+        Socket s = new Socket(host, port);
+        s.setTcpNoDelay(true);
+        OutputStream o = new BufferedOutputStream(s.getOutputStream());
+        o.write(MessageFraming.CHANNEL_PREAMBLE);
+        o.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        try {
+            // the Registry greets every connection with an Object stream header; skip it.
+            in.readInt();
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+
+        socket = s;
+        out = o;
+        reader = new ResponseReader(in, s);
+        reader.start();
+    }
+
+    /**
+     * drops the current connection (if any) and fails every request awaiting a
+     * response over it.
+     *
+     * @param expected only disconnect if this is still the current connection (null
+     *                     to disconnect regardless)
+     * @param cause    reason for disconnecting
+     */
+    private void disconnect(Socket expected, IOException cause) {
+        connectionLock.lock();
+        try {
+            if (expected != null && socket != expected) {
+                return; // someone has already moved on to a fresh connection.
+            }
+            if (socket != null) {
+                reader.turnOff();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.out.println(channelName + " error closing connection --> " + e.getMessage());
+                }
+                socket = null;
+                out = null;
+                reader = null;
+            }
+        } finally {
+            connectionLock.unlock();
+        }
+        for (Long requestID : pendingRequests.keySet()) {
+            CompletableFuture<Message> future = pendingRequests.remove(requestID);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * reads responses off of a connection and completes the matching requests.
+     */
+    private class ResponseReader extends Worker {
+        private DataInputStream in; // response frames are read from here
+        private Socket readSocket; // the connection being read from
+
+        /**
+         * ResponseReader constructor.
+         *
+         * @param input stream to read frames from
+         * @param sock  the connection being read from
+         */
+        ResponseReader(DataInputStream input, Socket sock) {
+            super(channelName + "-reader");
+            in = input;
+            readSocket = sock;
+            setDaemon(true);
+        }
+
+        /**
+         * this worker's main line of execution.
+         */
+        public void run() {
+            turnOn();
+            while (isRunning) {
+                try {
+                    Message response = MessageFraming.readFrame(in);
+                    Consumer<Message> listener = pushListener;
+                    if (response.getRequestID() == 0 && listener != null) {
+                        deliverPush(listener, response);
+                        continue;
+                    }
+                    CompletableFuture<Message> future = pendingRequests.remove(response.getRequestID());
+                    if (future != null) {
+                        future.complete(response);
+                    } else {
+                        System.out.println(workerID + " dropping unmatched response --> " + response.getContent());
+                    }
+                } catch (IOException | ClassNotFoundException e) {
+                    if (isRunning) {
+                        disconnect(readSocket, new IOException("connection to Registry lost", e));
+                    }
+                    break;
+                }
+            }
+        }
+
+        /**
+         * hands a pushed Message to the listener. Whatever goes wrong in there stays
+         * in there; the connection carries on regardless.
+         *
+         * @param listener the push listener
+         * @param msg      the pushed Message
+         */
+        private void deliverPush(Consumer<Message> listener, Message msg) {
+            try {
+                listener.accept(msg);
+            } catch (RuntimeException e) {
+                System.out.println(workerID + " Error! --> " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,976 @@
+package net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import misc.Worker;
+
+/**
+ * keeps the Registry's state on disk, so that it can be brought back should
+ * the Registry go down: every room opened, joined, left or closed, and how many
+ * UIDs and room keys have been handed out (so none is ever handed out twice).
+ *
+ * Changes are appended to a write-ahead log as they are made, by whichever
+ * thread makes them, into a buffer in memory. This worker writes out whatever
+ * has built up in the buffer and forces it to disk, over and over; changes made
+ * while it waits on the disk are written out together the next time round, so
+ * a burst of changes costs a handful of fsyncs rather than one apiece (group
+ * commit). Those that need to know their changes are safe, such as the Registry
+ * before answering a request, wait for them with sync().
+ *
+ * Every so often (see Constants.REGISTRY_SNAPSHOT_INTERVAL_MS), the log is cut
+ * over to a new segment and the whole of the state is written out to a snapshot
+ * file, after which the older segments are deleted. The snapshot is written on a
+ * thread of its own, so group commit carries on meanwhile. On startup, recover() reads
+ * the latest snapshot back in and replays the segments that follow it.
+ *
+ * NOTE snapshots are taken while changes carry on being made, so a snapshot may
+ * already include some of the changes in the segments that follow it. Replaying
+ * a change twice is harmless, as each record carries the room's guest count as
+ * it stood after the change, rather than by how much it changed.
+ *
+ * Each log record is framed by its length and a CRC32 checksum of its contents.
+ * A record cut short or mangled by a crash (which can only be the last in its
+ * segment) ends the replay of that segment.
+ */
+public class RegistryJournal extends Worker {
+
+    private static final byte ROOM_OPENED = 1; // name, host, connect info
+    private static final byte USER_JOINED = 2; // room name, alias, guest count
+    private static final byte USER_LEFT = 3; // room name, alias, guest count
+    private static final byte ROSTER_APPLIED = 4; // room name, guest count, joined aliases, left aliases
+    private static final byte USERS_ISSUED = 5; // UIDs handed out thus far
+    private static final byte SESSIONS_ISSUED = 6; // room keys handed out thus far
+
+    private static final int SNAPSHOT_MAGIC = 0x43485253; // "CHRS"
+    private static final int SNAPSHOT_FORMAT = 1; // bumped whenever the snapshot layout changes
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024; // anything longer is taken to be garbage
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+
+    /**
+     * a room as recovered from disk.
+     */
+    public static final class RecoveredRoom {
+        private final String roomName; // name of the room
+        private final String hostAlias; // alias of the host
+        private final String connectInfo; // "ip:port/roomKey", as last handed out
+        private int guestCount; // number of users in the room
+        private final LinkedHashSet<String> users; // aliases of the users in the room
+
+        RecoveredRoom(String name, String host, String info, int count) {
+            roomName = name;
+            hostAlias = host;
+            connectInfo = info;
+            guestCount = count;
+            users = new LinkedHashSet<String>();
+        }
+
+        public String getRoomName() {
+            return roomName;
+        }
+
+        public String getHostAlias() {
+            return hostAlias;
+        }
+
+        public String getConnectInfo() {
+            return connectInfo;
+        }
+
+        /**
+         * the key the room was reached by, taken from its connect info.
+         *
+         * @return room key
+         */
+        public String getRoomKey() {
+            return connectInfo.substring(connectInfo.lastIndexOf('/') + 1);
+        }
+
+        public int getGuestCount() {
+            return guestCount;
+        }
+
+        public LinkedHashSet<String> getUsers() {
+            return users;
+        }
+    }
+
+    /**
+     * the Registry's state as recovered from disk, and what it took to recover it.
+     */
+    public static final class Recovery {
+        private final LinkedHashMap<String, RecoveredRoom> rooms; // room name -> room, in the order opened
+        private int usersIssued; // UIDs handed out
+        private int sessionsIssued; // room keys handed out
+        private int snapshotRooms; // rooms read from the snapshot
+        private long recordsReplayed; // log records replayed on top of the snapshot
+        private long bytesReplayed; // size of those records
+        private long snapshotNanos; // time taken to read the snapshot
+        private long elapsedNanos; // time taken in all
+
+        Recovery() {
+            rooms = new LinkedHashMap<String, RecoveredRoom>();
+            usersIssued = 0;
+            sessionsIssued = 0;
+            snapshotRooms = 0;
+            recordsReplayed = 0;
+            bytesReplayed = 0;
+            snapshotNanos = 0;
+            elapsedNanos = 0;
+        }
+
+        public Collection<RecoveredRoom> getRooms() {
+            return rooms.values();
+        }
+
+        public int getUsersIssued() {
+            return usersIssued;
+        }
+
+        public int getSessionsIssued() {
+            return sessionsIssued;
+        }
+
+        public long getRecordsReplayed() {
+            return recordsReplayed;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * one-line summary, handy for console printing.
+         *
+         * @return summary
+         */
+        public String describe() {
+            double replaySeconds = Math.max(elapsedNanos - snapshotNanos, 1) / 1e9;
+            return rooms.size() + " rooms recovered in " + String.format("%.1f", elapsedNanos / 1e6) + " ms ("
+                            + snapshotRooms + " from the snapshot in " + String.format("%.1f", snapshotNanos / 1e6)
+                            + " ms, then " + recordsReplayed + " log records / " + bytesReplayed + " bytes at "
+                            + String.format("%.0f", recordsReplayed / replaySeconds) + " records/s)";
+        }
+    }
+
+    private final File directory; // where the log segments and the snapshot are kept
+    private final long snapshotIntervalMillis; // how often a snapshot is taken
+    private final ReentrantLock appendLock; // guards everything below, up to the segment
+    private final Condition hasAppended; // signalled when records are appended with none pending, or on shut down
+    private final Condition hasSynced; // signalled when records are forced to disk, or the log fails
+    private ByteArrayOutputStream pending; // records appended but not yet written out
+    private ByteArrayOutputStream spare; // the other buffer, swapped in while pending is written out
+    private final ByteArrayOutputStream record; // the record being appended
+    private final DataOutputStream recordOut; // writes into the above
+    private final CRC32 crc; // checksums the record being appended
+    private long appendedCount; // records appended thus far
+    private long durableCount; // records forced to disk thus far
+    private long snapshotCount; // records appended as of the latest snapshot
+    private boolean isFailed; // true once the log could not be written; nothing more is kept
+    private long segmentNumber; // number of the segment being written to
+    private FileChannel segment; // segment being written to (null until recover() is called)
+    private RoomDirectory rooms; // directory to snapshot (null until attached)
+    private IntSupplier usersIssued; // UIDs handed out thus far
+    private IntSupplier sessionsIssued; // room keys handed out thus far
+    private volatile long syncCount; // fsyncs thus far (written by this worker only)
+    private Thread snapshotter; // writing out the latest snapshot (null until the first; this worker's only)
+
+    /**
+     * RegistryJournal constructor. Nothing is read or written until recover() is
+     * called.
+     *
+     * @param dir      where the log segments and the snapshot are kept (created
+     *                     if need be)
+     * @param interval how often a snapshot is taken, in ms
+     */
+    public RegistryJournal(File dir, long interval) {
+        super("RJ-0");
+        directory = dir;
+        snapshotIntervalMillis = Math.max(1, interval);
+        appendLock = new ReentrantLock();
+        hasAppended = appendLock.newCondition();
+        hasSynced = appendLock.newCondition();
+        pending = new ByteArrayOutputStream(64 * 1024);
+        spare = new ByteArrayOutputStream(64 * 1024);
+        record = new ByteArrayOutputStream(256);
+        recordOut = new DataOutputStream(record);
+        crc = new CRC32();
+        appendedCount = 0;
+        durableCount = 0;
+        snapshotCount = 0;
+        isFailed = false;
+        segmentNumber = 0;
+        segment = null;
+        rooms = null;
+        syncCount = 0;
+        snapshotter = null;
+        setDaemon(true);
+    }
+
+    /**
+     * reads the latest snapshot back in and replays the log segments that follow
+     * it, then opens a new segment for what comes next. Must be called (once)
+     * before anything is appended.
+     *
+     * @return the state recovered (empty if nothing has been kept yet)
+     * @throws IOException if the snapshot could not be read, or the new segment
+     *                         could not be opened
+     */
+    public Recovery recover() throws IOException {
+        long start = System.nanoTime();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+        Recovery recovery = new Recovery();
+        long firstSegment = readSnapshot(recovery);
+        recovery.snapshotNanos = System.nanoTime() - start;
+        long lastSegment = firstSegment - 1;
+        for (long number : listSegments()) {
+            if (number >= firstSegment) {
+                replaySegment(number, recovery);
+            }
+            lastSegment = Math.max(lastSegment, number);
+        }
+        appendLock.lock();
+        try {
+            segmentNumber = lastSegment + 1;
+            segment = openSegment(segmentNumber);
+        } finally {
+            appendLock.unlock();
+        }
+        recovery.elapsedNanos = System.nanoTime() - start;
+        return recovery;
+    }
+
+    /**
+     * hands over what is needed to take snapshots. Must be called before the
+     * first snapshot is taken.
+     *
+     * @param dir      directory to snapshot
+     * @param users    UIDs handed out thus far
+     * @param sessions room keys handed out thus far
+     */
+    public void attach(RoomDirectory dir, IntSupplier users, IntSupplier sessions) {
+        rooms = dir;
+        usersIssued = users;
+        sessionsIssued = sessions;
+    }
+
+    /**
+     * logs a room being opened. Caller must hold the room's lock.
+     *
+     * @param roomName name of the room
+     * @param host     alias of the host
+     * @param info     "ip:port/roomKey"
+     */
+    public void roomOpened(String roomName, String host, String info) {
+        appendLock.lock();
+        try {
+            try {
+                recordOut.writeByte(ROOM_OPENED);
+                recordOut.writeUTF(roomName);
+                recordOut.writeUTF(host);
+                recordOut.writeUTF(info);
+            } catch (IOException e) {
+                // not thrown by in-memory streams.
+            }
+            endRecord();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * logs a user joining a room. Caller must hold the room's lock.
+     *
+     * @param roomName name of the room
+     * @param alias    the user
+     * @param count    the room's guest count, now that they've joined
+     */
+    public void userJoined(String roomName, String alias, int count) {
+        logMember(USER_JOINED, roomName, alias, count);
+    }
+
+    /**
+     * logs a user leaving a room. A count of 0 closes the room. Caller must hold
+     * the room's lock.
+     *
+     * @param roomName name of the room
+     * @param alias    the user
+     * @param count    the room's guest count, now that they've left
+     */
+    public void userLeft(String roomName, String alias, int count) {
+        logMember(USER_LEFT, roomName, alias, count);
+    }
+
+    private void logMember(byte type, String roomName, String alias, int count) {
+        appendLock.lock();
+        try {
+            try {
+                recordOut.writeByte(type);
+                recordOut.writeUTF(roomName);
+                recordOut.writeUTF(alias);
+                recordOut.writeInt(count);
+            } catch (IOException e) {
+                // not thrown by in-memory streams.
+            }
+            endRecord();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * logs a batch of joins and exits to a room (see RosterUpdateMessage). A count
+     * of 0 closes the room. Caller must hold the room's lock.
+     *
+     * @param roomName name of the room
+     * @param joined   aliases of the users who have joined
+     * @param left     aliases of the users who have left
+     * @param count    the room's guest count, once the above are applied
+     */
+    public void rosterApplied(String roomName, Collection<String> joined, Collection<String> left, int count) {
+        appendLock.lock();
+        try {
+            try {
+                recordOut.writeByte(ROSTER_APPLIED);
+                recordOut.writeUTF(roomName);
+                recordOut.writeInt(count);
+                writeAliases(recordOut, joined);
+                writeAliases(recordOut, left);
+            } catch (IOException e) {
+                // not thrown by in-memory streams.
+            }
+            endRecord();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * logs how many UIDs have been handed out.
+     *
+     * @param count UIDs handed out thus far
+     */
+    public void usersIssued(int count) {
+        logCounter(USERS_ISSUED, count);
+    }
+
+    /**
+     * logs how many room keys have been handed out.
+     *
+     * @param count room keys handed out thus far
+     */
+    public void sessionsIssued(int count) {
+        logCounter(SESSIONS_ISSUED, count);
+    }
+
+    private void logCounter(byte type, int count) {
+        appendLock.lock();
+        try {
+            try {
+                recordOut.writeByte(type);
+                recordOut.writeInt(count);
+            } catch (IOException e) {
+                // not thrown by in-memory streams.
+            }
+            endRecord();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * frames the record just written into the record buffer and appends it to
+     * those pending. Caller must hold the append lock.
+     */
+    private void endRecord() {
+        if (segment == null || isFailed) {
+            record.reset(); // not keeping anything (yet, or any more).
+            return;
+        }
+        byte[] bytes = record.toByteArray();
+        int length = bytes.length;
+        crc.reset();
+        crc.update(bytes, 0, length);
+        int checksum = (int) crc.getValue();
+        pending.write(length >>> 24);
+        pending.write(length >>> 16);
+        pending.write(length >>> 8);
+        pending.write(length);
+        pending.write(checksum >>> 24);
+        pending.write(checksum >>> 16);
+        pending.write(checksum >>> 8);
+        pending.write(checksum);
+        pending.write(bytes, 0, length);
+        record.reset();
+        if (appendedCount++ == durableCount) {
+            hasAppended.signal(); // the worker may be waiting for something to write.
+        }
+    }
+
+    /**
+     * waits until every change logged thus far is safely on disk (or the log has
+     * failed).
+     *
+     * NOTE this parks on a Condition rather than wait()ing on a monitor, so a
+     * virtual thread waiting here leaves its carrier free (see misc.Signal).
+     */
+    public void sync() {
+        appendLock.lock();
+        try {
+            long target = appendedCount;
+            while (durableCount < target && !isFailed) {
+                try {
+                    hasSynced.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * this worker's main line of execution.
+     */
+    public void run() {
+        turnOn();
+        long nextSnapshot = System.currentTimeMillis() + snapshotIntervalMillis;
+        while (isRunning) {
+            ByteArrayOutputStream batch;
+            long target;
+            appendLock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                while (isRunning && appendedCount == durableCount && now < nextSnapshot) {
+                    try {
+                        hasAppended.await(nextSnapshot - now, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    now = System.currentTimeMillis();
+                }
+                batch = takePending();
+                target = appendedCount;
+            } finally {
+                appendLock.unlock();
+            }
+            write(batch, target);
+
+            if (System.currentTimeMillis() >= nextSnapshot) {
+                if (snapshotter == null || !snapshotter.isAlive()) { // one snapshot at a time
+                    long firstSegment = cutOver();
+                    if (firstSegment >= 0) {
+                        snapshotter = Worker.newThread(() -> finishCheckpoint(firstSegment), workerID + "-snapshot",
+                                        true);
+                        snapshotter.start();
+                    }
+                }
+                nextSnapshot = System.currentTimeMillis() + snapshotIntervalMillis;
+            }
+        }
+        ByteArrayOutputStream batch;
+        long target;
+        appendLock.lock();
+        try {
+            batch = takePending();
+            target = appendedCount;
+        } finally {
+            appendLock.unlock();
+        }
+        write(batch, target);
+        proclaimShutdown();
+    }
+
+    /**
+     * swaps the spare buffer in for the pending one, so that records can carry on
+     * being appended while those pending are written out. Caller must hold the
+     * append lock.
+     *
+     * @return the records pending
+     */
+    private ByteArrayOutputStream takePending() {
+        ByteArrayOutputStream batch = pending;
+        pending = spare;
+        spare = batch;
+        return batch;
+    }
+
+    /**
+     * writes a batch of records out to the current segment and forces them to
+     * disk, then lets those waiting on them know.
+     *
+     * @param batch  the records (emptied once written)
+     * @param target number of records appended, as of the last one in the batch
+     */
+    private void write(ByteArrayOutputStream batch, long target) {
+        if (batch.size() > 0 && !isFailed) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray(), 0, batch.size());
+                while (buffer.hasRemaining()) {
+                    segment.write(buffer);
+                }
+                segment.force(false);
+                syncCount++;
+            } catch (IOException e) {
+                System.out.println(workerID + " Error! --> journal could not be written (" + e.getMessage()
+                                + "); changes are no longer being kept.");
+                appendLock.lock();
+                try {
+                    isFailed = true;
+                    hasSynced.signalAll();
+                } finally {
+                    appendLock.unlock();
+                }
+            }
+        }
+        batch.reset();
+        appendLock.lock();
+        try {
+            durableCount = Math.max(durableCount, target);
+            hasSynced.signalAll();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * cuts the log over to a new segment, writes the whole of the state out to a
+     * new snapshot and deletes the segments the snapshot makes redundant, all on
+     * the calling thread. Called before this worker is started; once it is, it
+     * takes snapshots itself (see run()). Does nothing if nothing has changed
+     * since the last snapshot.
+     */
+    public void checkpoint() {
+        long firstSegment = cutOver();
+        if (firstSegment >= 0) {
+            finishCheckpoint(firstSegment);
+        }
+    }
+
+    /**
+     * cuts the log over to a new segment: everything appended up to now is written
+     * out to the current segment, which the next snapshot will cover, and what
+     * comes after goes in a new one. Called by this worker (or before it is
+     * started), as nobody else writes to the segment.
+     *
+     * NOTE the append lock is only held to take the pending records and, once the
+     * new segment is open, to swap it in, never while waiting on the disk; records
+     * appended meanwhile are written out to the new segment the next time round.
+     *
+     * @return first segment not covered by the next snapshot, or -1 if there is
+     *         to be no snapshot
+     */
+    private long cutOver() {
+        ByteArrayOutputStream batch;
+        long target;
+        appendLock.lock();
+        try {
+            if (isFailed || rooms == null || appendedCount == snapshotCount) {
+                return -1;
+            }
+            batch = takePending();
+            target = appendedCount;
+        } finally {
+            appendLock.unlock();
+        }
+        write(batch, target);
+        if (isFailed) {
+            return -1; // (only ever set by write(), on this thread) the old segment is the last.
+        }
+
+        FileChannel next;
+        try {
+            next = openSegment(segmentNumber + 1);
+        } catch (IOException e) {
+            System.out.println(workerID + " Error! --> could not start a new journal segment (" + e.getMessage()
+                            + "); snapshot skipped.");
+            return -1;
+        }
+        FileChannel old;
+        long firstSegment;
+        appendLock.lock();
+        try {
+            old = segment;
+            segment = next;
+            firstSegment = ++segmentNumber;
+            snapshotCount = target;
+        } finally {
+            appendLock.unlock();
+        }
+        try {
+            old.close();
+        } catch (IOException e) {
+            // everything in it has been forced already.
+        }
+        return firstSegment;
+    }
+
+    /**
+     * writes the snapshot following a cut-over and deletes the segments it makes
+     * redundant. Run by this worker's snapshot thread, so that group commit carries
+     * on while the whole of the state is written out (or on the caller's thread by
+     * checkpoint()).
+     *
+     * @param firstSegment first segment not covered by the snapshot
+     */
+    private void finishCheckpoint(long firstSegment) {
+        try {
+            writeSnapshot(firstSegment);
+        } catch (IOException e) {
+            System.out.println(workerID + " Error! --> snapshot could not be written (" + e.getMessage() + ").");
+            return;
+        }
+        for (long number : listSegments()) {
+            if (number < firstSegment) {
+                new File(directory, segmentName(number)).delete();
+            }
+        }
+    }
+
+    /**
+     * writes the state out to a new snapshot, replacing the old one only once the
+     * new one is safely on disk.
+     *
+     * NOTE each room is copied out holding its lock, so that it is caught between
+     * changes, never part way through one.
+     *
+     * @param firstSegment first segment not covered by the snapshot
+     * @throws IOException if the snapshot could not be written
+     */
+    private void writeSnapshot(long firstSegment) throws IOException {
+        File temp = new File(directory, SNAPSHOT_FILE + ".tmp");
+        FileOutputStream file = new FileOutputStream(temp);
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 64 * 1024),
+                        new CRC32());
+        try (DataOutputStream out = new DataOutputStream(checked)) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_FORMAT);
+            out.writeLong(firstSegment);
+            out.writeInt(usersIssued.getAsInt());
+            out.writeInt(sessionsIssued.getAsInt());
+            ArrayList<String> users = new ArrayList<String>();
+            for (RoomDirectory.Room room : rooms.getRooms()) {
+                int count;
+                synchronized (room) {
+                    if (rooms.get(room.getRoomName()) != room) {
+                        continue; // closed as we got to it.
+                    }
+                    count = room.getGuestCount();
+                    users.clear();
+                    users.addAll(room.getUsers());
+                }
+                out.writeBoolean(true);
+                out.writeUTF(room.getRoomName());
+                out.writeUTF(room.getHostAlias());
+                out.writeUTF(room.getConnectInfo());
+                out.writeInt(count);
+                writeAliases(out, users);
+            }
+            out.writeBoolean(false);
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), new File(directory, SNAPSHOT_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+    }
+
+    /**
+     * reads the snapshot (if there is one) into a recovery.
+     *
+     * @param recovery where the state goes
+     * @return first segment not covered by the snapshot (0 if there is none)
+     * @throws IOException if there is a snapshot but it could not be read
+     */
+    private long readSnapshot(Recovery recovery) throws IOException {
+        File file = new File(directory, SNAPSHOT_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        CheckedInputStream checked = new CheckedInputStream(
+                        new BufferedInputStream(new FileInputStream(file), 64 * 1024), new CRC32());
+        try (DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_FORMAT) {
+                throw new IOException(file + " is not a snapshot this Registry can read");
+            }
+            long firstSegment = in.readLong();
+            recovery.usersIssued = in.readInt();
+            recovery.sessionsIssued = in.readInt();
+            while (in.readBoolean()) {
+                String roomName = in.readUTF();
+                RecoveredRoom room = new RecoveredRoom(roomName, in.readUTF(), in.readUTF(), in.readInt());
+                readAliases(in, room.users);
+                recovery.rooms.put(roomName, room);
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IOException(file + " is corrupt (checksum mismatch)");
+            }
+            recovery.snapshotRooms = recovery.rooms.size();
+            return firstSegment;
+        }
+    }
+
+    /**
+     * replays one log segment on top of a recovery, up to its end or to the first
+     * record cut short or mangled, whichever comes first.
+     *
+     * @param number   the segment
+     * @param recovery where the state goes
+     */
+    private void replaySegment(long number, Recovery recovery) {
+        File file = new File(directory, segmentName(number));
+        CRC32 check = new CRC32();
+        byte[] payload = new byte[256];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            while (true) {
+                int length;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                        throw new IOException("bad record length " + length);
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    in.readFully(payload, 0, length);
+                } catch (EOFException e) {
+                    return; // end of the segment (or a record cut short by a crash).
+                }
+                check.reset();
+                check.update(payload, 0, length);
+                if ((int) check.getValue() != checksum) {
+                    System.out.println(workerID + " Error! --> " + file.getName() + " is mangled after record "
+                                    + recovery.recordsReplayed + "; skipping the rest of it.");
+                    return;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(payload, 0, length)), recovery);
+                recovery.recordsReplayed++;
+                recovery.bytesReplayed += 8 + length;
+            }
+        } catch (IOException e) {
+            if (e instanceof EOFException) {
+                return;
+            }
+            System.out.println(workerID + " Error! --> " + file.getName() + " could not be replayed in full ("
+                            + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * applies a single log record to a recovery.
+     *
+     * @param in       the record's contents
+     * @param recovery where the state goes
+     * @throws IOException if the record is malformed
+     */
+    private static void apply(DataInputStream in, Recovery recovery) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case ROOM_OPENED: {
+            String roomName = in.readUTF();
+            String host = in.readUTF();
+            RecoveredRoom room = new RecoveredRoom(roomName, host, in.readUTF(), 1);
+            room.users.add(host);
+            recovery.rooms.remove(roomName); // keeps rooms in the order opened.
+            recovery.rooms.put(roomName, room);
+            break;
+        }
+        case USER_JOINED:
+        case USER_LEFT: {
+            RecoveredRoom room = recovery.rooms.get(in.readUTF());
+            String alias = in.readUTF();
+            int count = in.readInt();
+            if (room == null) {
+                break;
+            }
+            room.guestCount = count;
+            if (count <= 0) {
+                recovery.rooms.remove(room.roomName);
+            } else if (type == USER_JOINED) {
+                room.users.add(alias);
+            } else {
+                room.users.remove(alias);
+            }
+            break;
+        }
+        case ROSTER_APPLIED: {
+            RecoveredRoom room = recovery.rooms.get(in.readUTF());
+            int count = in.readInt();
+            ArrayList<String> joined = new ArrayList<String>();
+            ArrayList<String> left = new ArrayList<String>();
+            readAliases(in, joined);
+            readAliases(in, left);
+            if (room == null) {
+                break;
+            }
+            room.guestCount = count;
+            if (count <= 0) {
+                recovery.rooms.remove(room.roomName);
+            } else {
+                room.users.removeAll(left);
+                room.users.addAll(joined);
+            }
+            break;
+        }
+        case USERS_ISSUED:
+            recovery.usersIssued = Math.max(recovery.usersIssued, in.readInt());
+            break;
+        case SESSIONS_ISSUED:
+            recovery.sessionsIssued = Math.max(recovery.sessionsIssued, in.readInt());
+            break;
+        default:
+            throw new IOException("unknown record type " + type);
+        }
+    }
+
+    private static void writeAliases(DataOutputStream out, Collection<String> aliases) throws IOException {
+        out.writeInt(aliases.size());
+        for (String alias : aliases) {
+            out.writeUTF(alias);
+        }
+    }
+
+    private static void readAliases(DataInputStream in, Collection<String> aliases) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            aliases.add(in.readUTF());
+        }
+    }
+
+    /**
+     * numbers of the log segments on disk, lowest first.
+     *
+     * @return segment numbers
+     */
+    private long[] listSegments() {
+        String[] names = directory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        ArrayList<Long> numbers = new ArrayList<Long>();
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    numbers.add(Long.parseLong(
+                                    name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours.
+                }
+            }
+        }
+        return numbers.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    private static String segmentName(long number) {
+        return SEGMENT_PREFIX + String.format("%010d", number) + SEGMENT_SUFFIX;
+    }
+
+    /**
+     * opens a log segment for appending, creating it if need be.
+     *
+     * @param number the segment
+     * @return the segment
+     * @throws IOException if it could not be opened
+     */
+    private FileChannel openSegment(long number) throws IOException {
+        FileChannel channel = FileChannel.open(new File(directory, segmentName(number)).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        syncDirectory();
+        return channel;
+    }
+
+    /**
+     * forces the directory's entries (files created, renamed or deleted) to disk,
+     * where the platform allows it.
+     */
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // not supported here; the files themselves are still forced.
+        }
+    }
+
+    /**
+     * stops this worker, once everything logged thus far has been written out.
+     */
+    public void shutDown() {
+        turnOff();
+        appendLock.lock();
+        try {
+            hasAppended.signal();
+        } finally {
+            appendLock.unlock();
+        }
+        try {
+            join();
+            if (snapshotter != null) {
+                snapshotter.join(); // leave no snapshot half written.
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        appendLock.lock();
+        try {
+            try {
+                if (segment != null) {
+                    segment.close();
+                }
+            } catch (IOException e) {
+                // nothing more to be done.
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * one-line summary, handy for console printing.
+     *
+     * @return summary
+     */
+    public String describe() {
+        appendLock.lock();
+        try {
+            return workerID + " " + directory + " segment=" + segmentNumber + " records=" + appendedCount
+                            + " fsyncs=" + syncCount + (isFailed ? " FAILED" : "");
+        } finally {
+            appendLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,796 @@
+package net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.MessageFraming;
+import messages.Message;
+import misc.Constants;
+import misc.Worker;
+
+/**
+ * non-blocking front end for the Registry.
+ *
+ * Rather than handing every accepted Socket to a brand new RequestHandler
+ * thread, RegistryServer accepts connections on a single thread (this one) and
+ * spreads them across a small, fixed number of Selector-based EventLoops. The
+ * EventLoops perform all reads and writes; once a complete request has been
+ * read, it is dispatched to a bounded pool of worker threads which run
+ * Registry.processRequest() and hand the encoded response back to the
+ * connection's EventLoop for writing.
+ *
+ * Two kinds of connection are understood:
+ *
+ * i) legacy connections speak to the Registry via a pair of Object streams,
+ * one request per connection, and are closed once the response has been
+ * written out. An Object stream says nothing of its length, so a request is
+ * only known to have arrived once it decodes; rather than trying again after
+ * every read, we read whatever is on offer first. Connections whose request
+ * doesn't make sense, grows too large, or takes too long to arrive are closed.
+ *
+ * ii) framed connections (see MessageFraming and RegistryChannel) open with a
+ * preamble and stay open, carrying any number of requests, several of which may
+ * be in flight at once. Responses are written back as soon as they are ready,
+ * and are matched up with their requests client-side by request ID. Framed
+ * connections may also carry room listing changes pushed out by RoomWatchers.
+ *
+ * NOTE when the dispatch queue fills up, the connection holds on to the
+ * request and stops reading until the pool has room for it again; the client's
+ * further requests back up into the socket buffers, and eventually the client
+ * itself. Nothing is turned away, and the loop carries on serving its other
+ * connections. (Servicing the request on the EventLoop that read it instead
+ * would hold up every connection that loop looks after, and a slow request, one
+ * waiting on the journal, say, would stall them all.)
+ */
+public class RegistryServer extends Worker {
+
+    /**
+     * every Object stream begins with this header. We write it out as soon as a
+     * connection is accepted, as the client's ObjectInputStream constructor blocks
+     * until it has been received.
+     */
+    private static final byte[] STREAM_HEADER = { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+
+    private static final int READ_BUFFER_SIZE = 2048; // initial size of a connection's read buffer
+    private static final int MAX_REQUEST_SIZE = MessageFraming.MAX_FRAME_LENGTH; // larger requests are refused
+    private static final int MAX_LEGACY_REQUEST_SIZE = Constants.REGISTRY_MAX_LEGACY_REQUEST_SIZE; // ... legacy ones
+    private static final int BLOCK_HEADER_SIZE = 5; // longest Object stream block data header
+    private static final long HELD_RETRY_MS = 10; // longest a loop goes without retrying held requests
+
+    private ServerSocketChannel acceptChannel; // listens for new connections
+    private Selector acceptSelector; // used solely for accepting
+    private EventLoop[] eventLoops; // loops in charge of all connection reads and writes
+    private ThreadPoolExecutor dispatchPool; // bounded pool of workers that service requests
+    private int nextLoop; // round-robin index used when handing off accepted connections
+
+    private final AtomicLong acceptedCount = new AtomicLong(); // connections accepted thus far
+    private final AtomicLong requestCount = new AtomicLong(); // requests dispatched thus far
+    private final AtomicLong overflowCount = new AtomicLong(); // requests held back (pool was full)
+
+    /**
+     * RegistryServer constructor. Binds the listening port immediately.
+     *
+     * @param port        port to listen on
+     * @param loopCount   number of Selector-based EventLoops
+     * @param poolSize    number of dispatch workers
+     * @param queueLength max number of requests allowed to wait for a worker
+     * @throws IOException if the port could not be bound
+     */
+    public RegistryServer(int port, int loopCount, int poolSize, int queueLength) throws IOException {
+        super("RS-0");
+        acceptSelector = Selector.open();
+        acceptChannel = ServerSocketChannel.open();
+        acceptChannel.bind(new InetSocketAddress(port));
+        acceptChannel.configureBlocking(false);
+        acceptChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        eventLoops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            eventLoops[i] = new EventLoop(i);
+        }
+
+        dispatchPool = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(queueLength), Worker.threadFactory("RSW-", true));
+        nextLoop = 0;
+    }
+
+    /**
+     * main line of execution; accepts connections and hands them to EventLoops.
+     */
+    public void run() {
+        turnOn();
+        for (EventLoop loop : eventLoops) {
+            loop.start();
+        }
+
+        while (isRunning) {
+            try {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+
+                SocketChannel channel;
+                while ((channel = acceptChannel.accept()) != null) {
+                    acceptedCount.incrementAndGet();
+                    eventLoops[nextLoop].register(channel);
+                    nextLoop = (nextLoop + 1) % eventLoops.length;
+                }
+            } catch (IOException e) {
+                if (isRunning) {
+                    System.out.println(workerID + " Error accepting connection --> " + e.getMessage());
+                }
+            }
+        }
+
+        // tear everything down.
+        for (EventLoop loop : eventLoops) {
+            loop.shutDown();
+        }
+        dispatchPool.shutdown();
+        try {
+            acceptChannel.close();
+            acceptSelector.close();
+        } catch (IOException e) {
+            System.out.println(workerID + " error closing accept channel --> " + e.getMessage());
+        }
+        proclaimShutdown();
+    }
+
+    /**
+     * signals the server to stop accepting connections and shut down.
+     */
+    public void shutDown() {
+        turnOff();
+        acceptSelector.wakeup();
+    }
+
+    /**
+     * number of accepted connections that are still waiting to be registered with
+     * an EventLoop.
+     *
+     * @return accept queue depth
+     */
+    public int getAcceptQueueDepth() {
+        int depth = 0;
+        for (EventLoop loop : eventLoops) {
+            depth += loop.pendingRegistrations.size();
+        }
+        return depth;
+    }
+
+    /**
+     * number of fully read requests waiting for a dispatch worker.
+     *
+     * @return dispatch queue depth
+     */
+    public int getDispatchQueueDepth() {
+        return dispatchPool.getQueue().size();
+    }
+
+    /**
+     * getter for the number of connections accepted since startup.
+     *
+     * @return accepted connection count
+     */
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    /**
+     * getter for the number of requests dispatched since startup.
+     *
+     * @return dispatched request count
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * getter for the number of times a request had to be held back (and its
+     * connection's reading paused) because the dispatch queue was full.
+     *
+     * @return overflow count
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * one-line summary of the server's load, handy for console printing.
+     *
+     * @return load summary
+     */
+    public String describeLoad() {
+        return workerID + " accepted=" + getAcceptedCount() + " requests=" + getRequestCount() + " acceptQ="
+                        + getAcceptQueueDepth() + " dispatchQ=" + getDispatchQueueDepth() + " active="
+                        + dispatchPool.getActiveCount() + " held=" + getOverflowCount();
+    }
+
+    /**
+     * attempts to read a complete legacy request out of the given buffer.
+     *
+     * @param buffer buffer (in write mode) holding everything read so far
+     * @return the request, or null if more bytes are required
+     * @throws IOException            if the bytes do not form a valid request
+     * @throws ClassNotFoundException if an unknown class was received
+     */
+    private static Message decodeLegacyRequest(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+        if (buffer.position() <= STREAM_HEADER.length) {
+            return null;
+        }
+        ByteArrayInputStream source = new ByteArrayInputStream(buffer.array(), 0, buffer.position());
+        try {
+            return MessageFraming.readObjectMessage(source);
+        } catch (EOFException e) {
+            return null; // the request has only partially arrived.
+        } catch (StreamCorruptedException e) {
+            /**
+             * NOTE an Object stream cut short in the middle of a block of data reports
+             * itself as corrupted rather than as having ended: it won't read a block
+             * header that hasn't fully arrived. So it's only cut short if there was
+             * nothing left to read but part of a header; otherwise the bytes really are
+             * garbled.
+             */
+            if (source.available() < BLOCK_HEADER_SIZE) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * serializes a response for a legacy connection. The stream header is trimmed
+     * off, as it was already written when the connection was accepted.
+     *
+     * @param msg response message
+     * @return buffer ready to be written
+     * @throws IOException
+     */
+    private static ByteBuffer encodeLegacyResponse(Message msg) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(msg);
+        out.flush();
+        byte[] encoded = bytes.toByteArray();
+        return ByteBuffer.wrap(encoded, STREAM_HEADER.length, encoded.length - STREAM_HEADER.length);
+    }
+
+    /**
+     * a Selector-based loop that owns a subset of the Registry's connections.
+     */
+    private class EventLoop extends Worker {
+        private Selector selector; // selector over this loop's connections
+
+        // accepted channels waiting to be registered with the selector.
+        private final ConcurrentLinkedQueue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+
+        // connections that have had output queued up by a dispatch worker.
+        private final ConcurrentLinkedQueue<Connection> pendingFlushes = new ConcurrentLinkedQueue<>();
+
+        // legacy connections whose request has yet to arrive in full, soonest due first (loop only).
+        private final ArrayDeque<Connection> partialRequests = new ArrayDeque<>();
+
+        // connections holding a request the pool had no room for, first held first (loop only).
+        private final ArrayDeque<Connection> heldRequests = new ArrayDeque<>();
+        private volatile boolean isHolding; // true while heldRequests isn't empty
+
+        /**
+         * EventLoop constructor.
+         *
+         * @param loopNum number unique to this loop
+         */
+        EventLoop(int loopNum) throws IOException {
+            super("RSL-" + Integer.toString(loopNum));
+            selector = Selector.open();
+        }
+
+        /**
+         * hands a freshly accepted channel over to this loop.
+         *
+         * @param channel accepted channel
+         */
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * asks this loop to write out whatever has been queued for the connection.
+         *
+         * @param conn connection with pending output
+         */
+        void requestFlush(Connection conn) {
+            pendingFlushes.add(conn);
+            selector.wakeup();
+        }
+
+        /**
+         * keeps an eye on a legacy connection until its request has arrived, closing
+         * it should that take too long. Must only be called by this loop.
+         *
+         * @param conn connection whose request is on its way
+         */
+        void awaitRequest(Connection conn) {
+            partialRequests.add(conn); // NOTE every deadline is as far off, so the queue stays in order.
+        }
+
+        /**
+         * keeps a connection whose request the pool had no room for until it does.
+         * Must only be called by this loop.
+         *
+         * @param conn connection holding a request
+         */
+        void hold(Connection conn) {
+            heldRequests.add(conn);
+            isHolding = true;
+        }
+
+        /**
+         * lets this loop know the pool has finished a request, and so may have room
+         * for the ones it is holding. May be called by any thread.
+         */
+        void poolHasRoom() {
+            if (isHolding) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * hands held requests to the pool, first held first, for as long as it has
+         * room for them.
+         *
+         * @return milliseconds until they should be tried again (0 if none are held)
+         */
+        private long dispatchHeld() {
+            Connection conn;
+            while ((conn = heldRequests.peek()) != null) {
+                if (conn.key.isValid() && !conn.resume()) {
+                    return HELD_RETRY_MS; // still no room.
+                }
+                heldRequests.poll();
+            }
+            isHolding = false;
+            return 0;
+        }
+
+        /**
+         * closes the legacy connections whose request is overdue.
+         *
+         * @return milliseconds until the next one is due (0 if none are waited on)
+         */
+        private long closeOverdue() {
+            long now = System.nanoTime();
+            Connection conn;
+            while ((conn = partialRequests.peek()) != null) {
+                if (!conn.isRequestPending || !conn.channel.isOpen()) {
+                    partialRequests.poll(); // it arrived (or the client hung up).
+                    continue;
+                }
+                long remaining = conn.requestDeadline - now;
+                if (remaining > 0) {
+                    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+                }
+                partialRequests.poll();
+                System.out.println(workerID + " legacy request took too long to arrive; closing connection.");
+                conn.close();
+            }
+            return 0;
+        }
+
+        /**
+         * signals this loop to shut down.
+         */
+        void shutDown() {
+            turnOff();
+            selector.wakeup();
+        }
+
+        /**
+         * this loop's main line of execution.
+         */
+        public void run() {
+            turnOn();
+            while (isRunning) {
+                try {
+                    long overdueIn = closeOverdue();
+                    long retryIn = dispatchHeld();
+                    if (overdueIn == 0 || (retryIn != 0 && retryIn < overdueIn)) {
+                        overdueIn = retryIn;
+                    }
+                    selector.select(overdueIn);
+                } catch (IOException e) {
+                    System.out.println(workerID + " Error! --> " + e.getMessage());
+                    break;
+                }
+
+                SocketChannel channel;
+                while ((channel = pendingRegistrations.poll()) != null) {
+                    try {
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(true);
+                        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                        Connection conn = new Connection(this, channel, key);
+                        key.attach(conn);
+                        conn.outgoing.add(ByteBuffer.wrap(STREAM_HEADER));
+                        conn.flush();
+                    } catch (IOException e) {
+                        System.out.println(workerID + " error registering connection --> " + e.getMessage());
+                        closeQuietly(channel);
+                    }
+                }
+
+                Connection conn;
+                while ((conn = pendingFlushes.poll()) != null) {
+                    conn.flush();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection c = (Connection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        c.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        c.flush();
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.out.println(workerID + " error closing selector --> " + e.getMessage());
+            }
+            proclaimShutdown();
+        }
+    }
+
+    /**
+     * per-connection state. All fields other than the outgoing queue and the
+     * closeWhenFlushed and isPushPending flags are only ever touched by the owning
+     * EventLoop.
+     */
+    private class Connection implements RoomWatchers.Watcher {
+        private static final int MODE_UNKNOWN = 0; // not enough bytes read to tell yet
+        private static final int MODE_LEGACY = 1; // one Object-stream request, then close
+        private static final int MODE_FRAMED = 2; // persistent, multiplexed frames
+
+        private EventLoop loop; // loop that owns this connection
+        private SocketChannel channel; // underlying channel
+        private SelectionKey key; // registration with the loop's selector
+        private ByteBuffer readBuffer; // everything read in (and not yet consumed) so far
+        private int mode; // one of the MODE_ constants above
+
+        // buffers waiting to be written out, in order.
+        private final ConcurrentLinkedQueue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+        private volatile boolean closeWhenFlushed; // true once a legacy response has been queued
+        private volatile boolean isPushPending; // true while pushed room changes are waiting to go out
+        private boolean isRequestPending; // true while a legacy request is still arriving
+        private long requestDeadline; // System.nanoTime() by which it must have arrived (legacy only)
+        private Message heldRequest; // request the pool had no room for (reading is paused meanwhile)
+
+        /**
+         * Connection constructor.
+         *
+         * @param owner owning loop
+         * @param ch    accepted channel
+         * @param k     selection key of the channel
+         */
+        Connection(EventLoop owner, SocketChannel ch, SelectionKey k) {
+            loop = owner;
+            channel = ch;
+            key = k;
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            mode = MODE_UNKNOWN;
+            closeWhenFlushed = false;
+            isPushPending = false;
+            isRequestPending = false;
+            requestDeadline = 0;
+            heldRequest = null;
+        }
+
+        /**
+         * reads whatever is available and dispatches any requests that are complete.
+         */
+        void onReadable() {
+            try {
+                if (readMore() < 0) {
+                    close(); // client hung up.
+                    return;
+                }
+
+                if (mode == MODE_UNKNOWN) {
+                    if (readBuffer.position() < MessageFraming.CHANNEL_PREAMBLE.length) {
+                        return;
+                    }
+                    if (MessageFraming.startsWithPreamble(readBuffer.array(), 0, readBuffer.position())) {
+                        mode = MODE_FRAMED;
+                        consume(MessageFraming.CHANNEL_PREAMBLE.length);
+                    } else {
+                        mode = MODE_LEGACY;
+                        isRequestPending = true;
+                        requestDeadline = System.nanoTime()
+                                        + TimeUnit.MILLISECONDS.toNanos(Constants.REGISTRY_LEGACY_REQUEST_TIMEOUT_MS);
+                        loop.awaitRequest(this);
+                    }
+                }
+
+                if (mode == MODE_LEGACY) {
+                    /**
+                     * NOTE each attempt at decoding goes over the whole request again, so we only
+                     * try once we've read all that's there; a request sent in one go is decoded
+                     * just the once, however many reads it takes.
+                     */
+                    int count;
+                    while ((count = readMore()) > 0) {
+                        // keep reading.
+                    }
+                    if (count < 0) {
+                        close(); // client hung up.
+                        return;
+                    }
+                    Message request = decodeLegacyRequest(readBuffer);
+                    if (request != null) {
+                        // one request per connection; nothing more to read.
+                        isRequestPending = false;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        if (!dispatch(request)) {
+                            loop.hold(this);
+                        }
+                    }
+                } else {
+                    readFrames();
+                }
+            } catch (Exception e) {
+                System.out.println(loop.getID() + " bad request, closing connection --> " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * reads whatever is available into the read buffer, making room first if it
+         * is full.
+         *
+         * @return number of bytes read (-1 if the client hung up)
+         * @throws IOException if the request has grown too large, or on a failed read
+         */
+        private int readMore() throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                int limit = mode == MODE_LEGACY ? MAX_LEGACY_REQUEST_SIZE : MAX_REQUEST_SIZE + 4;
+                if (readBuffer.capacity() >= limit) {
+                    throw new IOException("request exceeds " + limit + " bytes");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, limit));
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+            return channel.read(readBuffer);
+        }
+
+        /**
+         * dispatches every complete frame sitting in the read buffer.
+         *
+         * @throws IOException            on a malformed frame
+         * @throws ClassNotFoundException if a frame names an unknown class
+         */
+        private void readFrames() throws IOException, ClassNotFoundException {
+            byte[] bytes = readBuffer.array();
+            int offset = 0;
+            int available = readBuffer.position();
+            while (available - offset >= 4) {
+                int length = ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+                if (length < 0 || length > MAX_REQUEST_SIZE) {
+                    throw new IOException("bad frame length " + length);
+                }
+                if (available - offset - 4 < length) {
+                    break; // wait for the rest of the frame.
+                }
+                Message request = MessageFraming.decodePayload(bytes, offset + 4, length);
+                offset += 4 + length;
+                if (!dispatch(request)) {
+                    // the rest waits, in the buffer, until the pool has room for this one.
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    loop.hold(this);
+                    break;
+                }
+            }
+            consume(offset);
+        }
+
+        /**
+         * hands the held request to the pool if it now has room for it, then picks up
+         * where reading left off. Must only be called by the owning loop.
+         *
+         * @return false if the pool still has no room
+         */
+        boolean resume() {
+            Message request = heldRequest;
+            heldRequest = null;
+            if (!dispatch(request)) {
+                return false;
+            }
+            if (mode == MODE_FRAMED) {
+                try {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    readFrames(); // requests read in behind the held one (which may be held in turn).
+                } catch (Exception e) {
+                    System.out.println(loop.getID() + " bad request, closing connection --> " + e.getMessage());
+                    close();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * discards the first n bytes of the read buffer.
+         *
+         * @param n number of bytes consumed
+         */
+        private void consume(int n) {
+            readBuffer.flip();
+            readBuffer.position(n);
+            readBuffer.compact();
+        }
+
+        /**
+         * hands a request off to the dispatch pool, or, if the pool's queue is full,
+         * holds on to it (see resume()).
+         *
+         * @param request request to be serviced
+         * @return false if the request is being held
+         */
+        private boolean dispatch(Message request) {
+            try {
+                dispatchPool.execute(() -> service(request));
+            } catch (RejectedExecutionException e) {
+                overflowCount.incrementAndGet();
+                heldRequest = request;
+                return false;
+            }
+            requestCount.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * services the request. Runs on a dispatch worker.
+         *
+         * @param msg the request
+         */
+        void service(Message msg) {
+            Message response = null;
+            try {
+                response = Registry.processRequest(msg, mode == MODE_FRAMED ? this : null);
+            } catch (Exception e) {
+                System.out.println(loop.getID() + " error servicing request --> " + e.getMessage());
+            }
+            respond(msg, response);
+            for (EventLoop l : eventLoops) {
+                l.poolHasRoom();
+            }
+        }
+
+        /**
+         * queues up the response to a request and has the loop write it out. May be
+         * called by any thread.
+         *
+         * @param msg      the request
+         * @param response the response (null if there is none)
+         */
+        private void respond(Message msg, Message response) {
+            try {
+                if (response != null) {
+                    response.setRequestID(msg.getRequestID());
+                    if (mode == MODE_FRAMED) {
+                        outgoing.add(ByteBuffer.wrap(MessageFraming.encodeFrame(response)));
+                    } else {
+                        outgoing.add(encodeLegacyResponse(response));
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println(loop.getID() + " error encoding response --> " + e.getMessage());
+            }
+            if (mode == MODE_LEGACY) {
+                closeWhenFlushed = true;
+            }
+            loop.requestFlush(this);
+        }
+
+        /**
+         * writes out as much queued output as the socket will accept. Must only be
+         * called by the owning loop.
+         */
+        void flush() {
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                ByteBuffer buf;
+                while ((buf = outgoing.peek()) != null) {
+                    channel.write(buf);
+                    if (buf.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    outgoing.poll();
+                }
+                isPushPending = false;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closeWhenFlushed) {
+                    close();
+                }
+            } catch (IOException e) {
+                System.out.println(loop.getID() + " error writing response --> " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * queues up room changes pushed out by RoomWatchers, unless the last ones have
+         * yet to go out. May be called by any thread.
+         *
+         * @param frame encoded frame
+         * @return false if the frame was not queued up
+         */
+        @Override
+        public boolean push(byte[] frame) {
+            if (isPushPending || !channel.isOpen()) {
+                return false;
+            }
+            isPushPending = true;
+            outgoing.add(ByteBuffer.wrap(frame));
+            loop.requestFlush(this);
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        /**
+         * closes the connection.
+         */
+        void close() {
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * closes a channel, ignoring any errors (we're done with it either way).
+     *
+     * @param channel channel to close
+     */
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more to be done.
+        }
+    }
+}
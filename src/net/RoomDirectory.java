@@ -0,0 +1,717 @@
+package net;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import messages.FindRoomsMessage;
+import messages.MessageEncoder;
+import misc.Constants;
+
+/**
+ * every chat room open on the Registry, keyed on room name (which is unique).
+ *
+ * Rooms are kept in a concurrent map, and their guest counts in atomic
+ * counters, so creating, joining and leaving rooms takes no Registry-wide lock.
+ *
+ * Room listings (as handed out in response to ListRoomsMessages) are served
+ * from an immutable snapshot, CSV strings and pre-encoded bytes alike. Every
+ * change to the directory bumps its version; the snapshot is only rebuilt when
+ * it is next asked for and found to be out of date, so any number of changes
+ * in between cost a single rebuild, and listing requests in between cost
+ * nothing but a volatile read.
+ *
+ * The most recent changes are also kept in a bounded log, so that a client
+ * holding the listings as of some version can be sent just what has changed
+ * since (see getListingSince()). Clients too far behind for the log to cover
+ * are sent the full listings instead.
+ *
+ * For clients that would rather not hold every listing, rooms can be searched
+ * a page at a time (see find()). The directory keeps sorted indexes of its open
+ * rooms for this (by name, by host alias, by guest count and by latest change),
+ * brought up to date along with the change log whenever a room changes.
+ *
+ * A room reopened on recovery is kept unlisted (left out of the listings and
+ * searches, though it still holds its name) until its host is back; see
+ * applyRoster().
+ *
+ * Should the directory be given a RegistryJournal, every change is also logged
+ * to it, holding the room's lock, so that the changes to any one room are
+ * logged in the order they were made (and snapshots can catch each room between
+ * changes).
+ */
+public class RoomDirectory {
+
+    /**
+     * everything the Registry knows about a single room.
+     */
+    public static final class Room {
+        private final String roomName; // name of the room
+        private final String hostAlias; // alias of the host
+        private final String connectInfo; // "ip:port/roomKey", as given to users
+        private final SessionCoordinator coordinator; // coordinator running the room
+        private final AtomicInteger guestCount; // number of users in the room
+        private final Set<String> users; // aliases of the users in the room
+        private final String lowerName; // name of the room, in lower case (for searching)
+        private final String lowerHost; // alias of the host, in lower case (for searching)
+        private final String nameKey; // key in the name index (unique, sorts case-insensitively)
+        private final String hostKey; // key in the host index (unique, sorts by host, then by name)
+        private int indexedCount; // guest count as indexed (-1 if not indexed); guarded by changes
+        private long indexedChange; // latest change as indexed; guarded by changes
+        private volatile boolean isListed; // false while a room reopened on recovery waits on its host
+
+        /**
+         * Room constructor. New rooms only contain the host.
+         *
+         * @param name  name of the room
+         * @param host  alias of the host
+         * @param info  "ip:port/roomKey"
+         * @param coord coordinator running the room
+         */
+        public Room(String name, String host, String info, SessionCoordinator coord) {
+            this(name, host, info, coord, true);
+        }
+
+        /**
+         * as above, for a room that may be kept unlisted until its host is back.
+         *
+         * @param name   name of the room
+         * @param host   alias of the host
+         * @param info   "ip:port/roomKey"
+         * @param coord  coordinator running the room
+         * @param listed false to keep the room unlisted
+         */
+        public Room(String name, String host, String info, SessionCoordinator coord, boolean listed) {
+            roomName = name;
+            hostAlias = host;
+            connectInfo = info;
+            coordinator = coord;
+            guestCount = new AtomicInteger(1);
+            users = ConcurrentHashMap.newKeySet();
+            users.add(host);
+            lowerName = name.toLowerCase(Locale.ROOT);
+            lowerHost = host.toLowerCase(Locale.ROOT);
+            nameKey = lowerName + '\0' + name;
+            hostKey = lowerHost + '\0' + nameKey;
+            indexedCount = -1;
+            indexedChange = 0;
+            isListed = listed;
+        }
+
+        public String getRoomName() {
+            return roomName;
+        }
+
+        public String getHostAlias() {
+            return hostAlias;
+        }
+
+        public String getConnectInfo() {
+            return connectInfo;
+        }
+
+        public SessionCoordinator getCoordinator() {
+            return coordinator;
+        }
+
+        public int getGuestCount() {
+            return guestCount.get();
+        }
+
+        public Set<String> getUsers() {
+            return Collections.unmodifiableSet(users);
+        }
+
+        public boolean isListed() {
+            return isListed;
+        }
+
+        /**
+         * the room's listing, in CSV format: name, host, guest count (see
+         * Constants.GUEST_COUNT_TABLE_COLUMN), connect info.
+         *
+         * @return CSV listing
+         */
+        public String toCsv() {
+            return roomName + "," + hostAlias + "," + guestCount.get() + "," + connectInfo;
+        }
+    }
+
+    /**
+     * the room listings as of a given version of the directory, either in full or
+     * as the changes made since some earlier version. Never modified once built.
+     */
+    public static final class Listing {
+        private final long version; // directory version the listing was built from
+        private final long sinceVersion; // earlier version the changes were made since (deltas only)
+        private final boolean isDelta; // true if only the changes since an earlier version
+        private final ArrayList<String> listings; // one CSV string per room (added or updated rooms if a delta)
+        private final ArrayList<String> removedRooms; // names of the rooms closed (deltas only)
+        private final byte[] encoded; // the listings, pre-encoded (see MessageEncoder.encodeStringList())
+
+        Listing(long v, long since, boolean delta, ArrayList<String> l, ArrayList<String> r, byte[] e) {
+            version = v;
+            sinceVersion = since;
+            isDelta = delta;
+            listings = l;
+            removedRooms = r;
+            encoded = e;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getSinceVersion() {
+            return sinceVersion;
+        }
+
+        public boolean isDelta() {
+            return isDelta;
+        }
+
+        /**
+         * the listings, one CSV string per room, shared by every response built from
+         * this listing. Must not be modified. If this is a delta, only the rooms that
+         * were opened or changed are listed.
+         *
+         * @return CSV listings
+         */
+        public ArrayList<String> getListings() {
+            return listings;
+        }
+
+        /**
+         * names of the rooms closed since the earlier version (always empty unless
+         * this is a delta). Must not be modified.
+         *
+         * @return names of closed rooms
+         */
+        public ArrayList<String> getRemovedRooms() {
+            return removedRooms;
+        }
+
+        /**
+         * the listings in binary form, shared by every response built from this
+         * listing. Must not be modified.
+         *
+         * @return encoded listings (null if they could not be encoded, or if this is
+         *         a delta)
+         */
+        public byte[] getEncoded() {
+            return encoded;
+        }
+    }
+
+    /**
+     * one page of search results (see find()).
+     */
+    public static final class Page {
+        private final ArrayList<String> listings; // one CSV string per room found
+        private final String nextCursor; // where the page leaves off (null if there are no more)
+        private final long version; // directory version the page was taken from
+
+        Page(ArrayList<String> l, String next, long v) {
+            listings = l;
+            nextCursor = next;
+            version = v;
+        }
+
+        public ArrayList<String> getListings() {
+            return listings;
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * key of the guest count and latest change indexes: rooms are ranked highest
+     * first, then by name.
+     */
+    private static final class RankKey implements Comparable<RankKey> {
+        private final long rank; // guest count, or version of the latest change
+        private final String nameKey; // the room's name key (breaks ties)
+
+        RankKey(long r, String key) {
+            rank = r;
+            nameKey = key;
+        }
+
+        @Override
+        public int compareTo(RankKey other) {
+            int byRank = Long.compare(other.rank, rank);
+            return byRank != 0 ? byRank : nameKey.compareTo(other.nameKey);
+        }
+
+        /**
+         * the key as a cursor (see find()).
+         *
+         * @return cursor
+         */
+        String toCursor() {
+            return rank + ":" + nameKey;
+        }
+
+        /**
+         * reads a key back in from a cursor.
+         *
+         * @param cursor cursor made by toCursor()
+         * @return the key, or null if the cursor is malformed
+         */
+        static RankKey fromCursor(String cursor) {
+            int colon = cursor.indexOf(':');
+            try {
+                return new RankKey(Long.parseLong(cursor.substring(0, Math.max(0, colon))),
+                                cursor.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * a single entry of the change log.
+     */
+    private static final class Change {
+        private final long version; // directory version the change brought about
+        private final String roomName; // name of the room changed
+        private final String csv; // the room's listing after the change (null if it was closed)
+
+        Change(long v, String name, String c) {
+            version = v;
+            roomName = name;
+            csv = c;
+        }
+    }
+
+    public static final String HOST_SEARCH_PREFIX = "host:"; // query text searching host aliases starts with this
+
+    private final ConcurrentHashMap<String, Room> rooms; // room name -> room
+    private final AtomicLong version; // bumped on every change
+    private volatile Listing listing; // latest listing built (possibly out of date)
+    private final Object rebuildLock; // held while rebuilding the listing
+    private final ArrayDeque<Change> changes; // most recent changes, oldest first (guarded by itself)
+    private long oldestDeltaVersion; // earliest version deltas can still be built from (guarded by changes)
+    private final ConcurrentSkipListMap<String, Room> byName; // name key -> open room
+    private final ConcurrentSkipListMap<String, Room> byHost; // host key -> open room
+    private final ConcurrentSkipListMap<RankKey, Room> byCount; // (guest count, name key) -> open room
+    private final ConcurrentSkipListMap<RankKey, Room> byActivity; // (latest change, name key) -> open room
+    private final RegistryJournal journal; // changes are logged here (null if they aren't kept)
+
+    /**
+     * RoomDirectory constructor, for a directory whose changes aren't kept.
+     */
+    public RoomDirectory() {
+        this(null);
+    }
+
+    /**
+     * RoomDirectory constructor.
+     *
+     * @param log where changes are logged (null if they aren't kept)
+     */
+    public RoomDirectory(RegistryJournal log) {
+        journal = log;
+        rooms = new ConcurrentHashMap<String, Room>();
+        version = new AtomicLong(0);
+        listing = new Listing(0, 0, false, new ArrayList<String>(), new ArrayList<String>(),
+                        encode(new ArrayList<String>()));
+        rebuildLock = new Object();
+        changes = new ArrayDeque<Change>();
+        oldestDeltaVersion = 0;
+        byName = new ConcurrentSkipListMap<String, Room>();
+        byHost = new ConcurrentSkipListMap<String, Room>();
+        byCount = new ConcurrentSkipListMap<RankKey, Room>();
+        byActivity = new ConcurrentSkipListMap<RankKey, Room>();
+    }
+
+    /**
+     * adds a newly opened room.
+     *
+     * @param room the room
+     * @return false if a room by that name is already open
+     */
+    public boolean add(Room room) {
+        synchronized (room) {
+            if (rooms.putIfAbsent(room.getRoomName(), room) != null) {
+                return false;
+            }
+            if (journal != null) {
+                journal.roomOpened(room.roomName, room.hostAlias, room.connectInfo);
+            }
+        }
+        recordChange(room);
+        return true;
+    }
+
+    /**
+     * looks a room up.
+     *
+     * @param roomName name of the room
+     * @return the room, or null if there is no such room
+     */
+    public Room get(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    /**
+     * records a user joining a room.
+     *
+     * @param room  the room
+     * @param alias alias of the user
+     * @return the room's new guest count
+     */
+    public int join(Room room, String alias) {
+        int count;
+        synchronized (room) {
+            room.users.add(alias);
+            count = room.guestCount.incrementAndGet();
+            if (journal != null) {
+                journal.userJoined(room.roomName, alias, count);
+            }
+        }
+        recordChange(room);
+        return count;
+    }
+
+    /**
+     * records a user leaving a room, closing the room if they were the last one
+     * in it.
+     *
+     * @param room  the room
+     * @param alias alias of the user
+     * @return the room's new guest count
+     */
+    public int leave(Room room, String alias) {
+        int count;
+        synchronized (room) {
+            count = room.guestCount.decrementAndGet();
+            if (journal != null) {
+                journal.userLeft(room.roomName, alias, count); // before a room of the same name can reopen.
+            }
+            if (count <= 0) {
+                rooms.remove(room.getRoomName(), room);
+            } else {
+                room.users.remove(alias);
+            }
+        }
+        recordChange(room);
+        return count;
+    }
+
+    /**
+     * records a batch of joins and exits to a room (see RosterUpdateMessage) as a
+     * single change, closing the room if it has emptied. An unlisted room is listed
+     * once its host is among those who have joined.
+     *
+     * @param room   the room
+     * @param joined aliases of the users who have joined
+     * @param left   aliases of the users who have left
+     * @param count  number of users in the room, as counted by its coordinator
+     * @return the room's new guest count
+     */
+    public int applyRoster(Room room, Collection<String> joined, Collection<String> left, int count) {
+        synchronized (room) {
+            room.guestCount.set(count);
+            if (journal != null) {
+                journal.rosterApplied(room.roomName, joined, left, count); // before a room of the same name can reopen.
+            }
+            if (count <= 0) {
+                rooms.remove(room.getRoomName(), room);
+            } else {
+                room.users.removeAll(left);
+                room.users.addAll(joined);
+                if (!room.isListed && joined.contains(room.hostAlias)) {
+                    room.isListed = true;
+                }
+            }
+        }
+        recordChange(room);
+        return count;
+    }
+
+    /**
+     * every open room, as a live view (rooms opened or closed while it is being
+     * walked may or may not be seen).
+     *
+     * @return open rooms
+     */
+    public Collection<Room> getRooms() {
+        return Collections.unmodifiableCollection(rooms.values());
+    }
+
+    /**
+     * current version of the directory; bumped on every change.
+     *
+     * @return version
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * number of rooms open.
+     *
+     * @return room count
+     */
+    public int size() {
+        return rooms.size();
+    }
+
+    /**
+     * the current room listings. Unless something has changed since the last
+     * call, this is the very same Listing as last time.
+     *
+     * @return the listings
+     */
+    public Listing getListing() {
+        Listing current = listing;
+        if (current.version == version.get()) {
+            return current;
+        }
+        synchronized (rebuildLock) {
+            // somebody else may have rebuilt it while we waited.
+            current = listing;
+            long latest = version.get();
+            if (current.version == latest) {
+                return current;
+            }
+            ArrayList<String> csv = new ArrayList<String>(rooms.size());
+            for (Room room : rooms.values()) {
+                if (room.isListed) {
+                    csv.add(room.toCsv());
+                }
+            }
+            current = new Listing(latest, 0, false, csv, new ArrayList<String>(), encode(csv));
+            listing = current;
+            return current;
+        }
+    }
+
+    /**
+     * what has changed since the given version of the listings: the rooms opened
+     * or changed since, and the names of those closed since, each room appearing
+     * once at most. If the change log no longer reaches back that far (or the
+     * version is one this directory never had), or if the changes would outweigh
+     * the listings themselves, the full listings are returned instead.
+     *
+     * @param since version of the listings the client already has (0 for none)
+     * @return the changes, or the full listings
+     */
+    public Listing getListingSince(long since) {
+        long latest = version.get();
+        if (since == latest) {
+            return new Listing(latest, since, true, new ArrayList<String>(), new ArrayList<String>(), null);
+        }
+        if (since <= 0 || since > latest) {
+            return getListing();
+        }
+        // latest change of each room, newest first.
+        LinkedHashMap<String, String> latestChanges = new LinkedHashMap<String, String>();
+        synchronized (changes) {
+            if (since < oldestDeltaVersion) {
+                return getListing();
+            }
+            latest = changes.isEmpty() ? latest : changes.peekLast().version;
+            Iterator<Change> it = changes.descendingIterator();
+            while (it.hasNext()) {
+                Change change = it.next();
+                if (change.version <= since) {
+                    break;
+                }
+                if (!latestChanges.containsKey(change.roomName)) {
+                    latestChanges.put(change.roomName, change.csv);
+                }
+            }
+        }
+        if (latestChanges.size() >= rooms.size()) {
+            return getListing(); // cheaper to send the lot (and likely already built).
+        }
+        ArrayList<String> changed = new ArrayList<String>();
+        ArrayList<String> removed = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : latestChanges.entrySet()) {
+            if (entry.getValue() == null) {
+                removed.add(entry.getKey());
+            } else {
+                changed.add(entry.getValue());
+            }
+        }
+        Collections.reverse(changed); // so new rooms are listed in the order they were opened.
+        return new Listing(latest, since, true, changed, removed, null);
+    }
+
+    /**
+     * bumps the version, re-indexes the room and logs its listing as it now
+     * stands, once the room has been changed.
+     *
+     * NOTE the listing is taken under the same lock the change is logged under, so
+     * whichever change to a room is logged last also carries its latest state.
+     *
+     * @param room the room changed
+     */
+    private void recordChange(Room room) {
+        String roomName = room.getRoomName();
+        synchronized (changes) {
+            Room current = rooms.get(roomName);
+            if (current != null && !current.isListed) {
+                current = null; // as far as the listings go, it isn't open.
+            }
+            long v = version.incrementAndGet();
+            reindex(room, room == current, v);
+            changes.addLast(new Change(v, roomName, current == null ? null : current.toCsv()));
+            if (changes.size() > Constants.REGISTRY_ROOM_CHANGE_LOG_LENGTH) {
+                oldestDeltaVersion = changes.removeFirst().version;
+            }
+        }
+    }
+
+    /**
+     * brings a room's index entries up to date. Caller must hold the changes lock.
+     *
+     * NOTE entries are only ever removed if they still belong to this very room, as
+     * a room of the same name may have been opened since this one closed.
+     *
+     * @param room   the room
+     * @param isOpen false if the room has closed (or is unlisted)
+     * @param v      version of the room's latest change
+     */
+    private void reindex(Room room, boolean isOpen, long v) {
+        if (room.indexedCount >= 0) {
+            byCount.remove(new RankKey(room.indexedCount, room.nameKey), room);
+            byActivity.remove(new RankKey(room.indexedChange, room.nameKey), room);
+            if (!isOpen) {
+                byName.remove(room.nameKey, room);
+                byHost.remove(room.hostKey, room);
+                room.indexedCount = -1;
+            }
+        }
+        if (!isOpen) {
+            return;
+        }
+        room.indexedCount = room.guestCount.get();
+        room.indexedChange = v;
+        byName.put(room.nameKey, room);
+        byHost.put(room.hostKey, room);
+        byCount.put(new RankKey(room.indexedCount, room.nameKey), room);
+        byActivity.put(new RankKey(v, room.nameKey), room);
+    }
+
+    /**
+     * finds one page of open rooms. The query text is matched against room names,
+     * ignoring case, unless it starts with "host:", in which case what follows is
+     * matched against host aliases instead.
+     *
+     * Wherever the indexes allow it, only the rooms that could possibly match are
+     * looked at: a prefix search sorted by name (or host) walks just the range of
+     * names (or hosts) with that prefix, and a guest count range sorted by size
+     * walks just the rooms within that range. Otherwise, rooms are walked in the
+     * order asked for, skipping those that don't match, until the page is full.
+     *
+     * Results are taken from the live indexes rather than a snapshot, so a room
+     * that changes while the search is under way may be missed.
+     *
+     * @param text     query text ("" matches every room)
+     * @param match    FindRoomsMessage.MATCH_PREFIX or MATCH_SUBSTRING
+     * @param min      fewest guests a room may have
+     * @param max      most guests a room may have (0 for no limit)
+     * @param sort     one of the FindRoomsMessage.SORT_ constants
+     * @param cursor   cursor handed back with the previous page (null for the first
+     *                     page)
+     * @param pageSize most rooms wanted (capped at REGISTRY_MAX_PAGE_SIZE)
+     * @return the page
+     */
+    public Page find(String text, int match, int min, int max, int sort, String cursor, int pageSize) {
+        long v = version.get();
+        int limit = Math.max(1, Math.min(pageSize, Constants.REGISTRY_MAX_PAGE_SIZE));
+        boolean isHostSearch = text.regionMatches(true, 0, HOST_SEARCH_PREFIX, 0, HOST_SEARCH_PREFIX.length());
+        String needle = (isHostSearch ? text.substring(HOST_SEARCH_PREFIX.length()) : text).toLowerCase(Locale.ROOT);
+        boolean isPrefix = match != FindRoomsMessage.MATCH_SUBSTRING;
+
+        // pick the index to walk, and where to start walking it.
+        Iterator<? extends Map.Entry<?, Room>> it;
+        if (sort == FindRoomsMessage.SORT_SIZE || sort == FindRoomsMessage.SORT_ACTIVITY) {
+            NavigableMap<RankKey, Room> index = sort == FindRoomsMessage.SORT_SIZE ? byCount : byActivity;
+            RankKey after = cursor == null ? null : RankKey.fromCursor(cursor);
+            RankKey first = sort == FindRoomsMessage.SORT_SIZE && max > 0 ? new RankKey(max, "") : null;
+            if (after != null && (first == null || after.compareTo(first) >= 0)) {
+                index = index.tailMap(after, false);
+            } else if (first != null) {
+                index = index.tailMap(first, true);
+            }
+            it = index.entrySet().iterator();
+        } else {
+            NavigableMap<String, Room> index = isHostSearch ? byHost : byName;
+            String first = isPrefix ? needle : "";
+            if (cursor != null && cursor.compareTo(first) >= 0) {
+                index = index.tailMap(cursor, false);
+            } else {
+                index = index.tailMap(first, true);
+            }
+            it = index.entrySet().iterator();
+        }
+
+        ArrayList<String> found = new ArrayList<String>(limit);
+        String lastCursor = null;
+        String nextCursor = null;
+        while (it.hasNext()) {
+            Map.Entry<?, Room> entry = it.next();
+            Room room = entry.getValue();
+            String field = isHostSearch ? room.lowerHost : room.lowerName;
+            if (sort == FindRoomsMessage.SORT_NAME && isPrefix && !field.startsWith(needle)) {
+                break; // walked past the range of matching names.
+            }
+            if (sort == FindRoomsMessage.SORT_SIZE && ((RankKey) entry.getKey()).rank < min) {
+                break; // walked past the smallest rooms wanted.
+            }
+            int count = room.getGuestCount();
+            if (count < min || (max > 0 && count > max)) {
+                continue;
+            }
+            if (isPrefix ? !field.startsWith(needle) : !field.contains(needle)) {
+                continue;
+            }
+            if (found.size() == limit) {
+                // there's at least one more; the next page picks up after the last room on this one.
+                nextCursor = lastCursor;
+                break;
+            }
+            found.add(room.toCsv());
+            lastCursor = entry.getKey() instanceof RankKey ? ((RankKey) entry.getKey()).toCursor()
+                            : (String) entry.getKey();
+        }
+        return new Page(found, nextCursor, v);
+    }
+
+    /**
+     * pre-encodes listings.
+     *
+     * @param csv the listings
+     * @return encoded listings, or null if they could not be encoded
+     */
+    private static byte[] encode(ArrayList<String> csv) {
+        try {
+            return MessageEncoder.encodeStringList(csv);
+        } catch (IOException e) {
+            System.out.println("Room listings could not be encoded --> " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package net;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import messages.LookupRoomMessage;
+import misc.Constants;
+import misc.ValidateInput;
+
+/**
+ * remembers recent room lookups (see LookupRoomMessage) for a short while, so
+ * that checking on the same room again and again, such as when a user keeps
+ * trying to join it, costs at most one round trip to the Registry per
+ * ROOM_LOOKUP_TTL_MS. Rooms found to be closed are remembered too.
+ *
+ * Entries can also be dropped early, by whoever learns that a room has changed
+ * (see invalidate()). Only the most recently used ROOM_LOOKUP_CACHE_SIZE
+ * lookups are kept.
+ */
+public class RoomLookupCache {
+
+    /**
+     * a lookup, and when it stops being trusted.
+     */
+    private static final class Entry {
+        private final LookupRoomMessage result; // the Registry's answer
+        private final long expiresAt; // System.nanoTime() after which the answer is stale
+
+        Entry(LookupRoomMessage r, long e) {
+            result = r;
+            expiresAt = e;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries; // room name -> lookup, least recently used first
+    private final long ttlNanos; // how long a lookup is trusted for
+
+    /**
+     * RoomLookupCache constructor.
+     *
+     * @param ttlMillis how long a lookup is trusted for, in ms
+     * @param capacity  most lookups remembered at once
+     */
+    public RoomLookupCache(long ttlMillis, int capacity) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+        ttlNanos = ttlMillis * 1000000L;
+    }
+
+    /**
+     * RoomLookupCache constructor, with the default TTL and capacity.
+     */
+    public RoomLookupCache() {
+        this(Constants.ROOM_LOOKUP_TTL_MS, Constants.ROOM_LOOKUP_CACHE_SIZE);
+    }
+
+    /**
+     * looks a room up, asking the Registry only if we haven't done so recently.
+     *
+     * @param roomName name of the room
+     * @return the lookup; see LookupRoomMessage.isOpen()
+     * @throws IOException if the Registry could not be reached
+     */
+    public LookupRoomMessage lookup(String roomName) throws IOException {
+        long now = System.nanoTime();
+        synchronized (entries) {
+            Entry entry = entries.get(roomName);
+            if (entry != null && now - entry.expiresAt < 0) {
+                return entry.result;
+            }
+        }
+
+        Object obj = RegistryChannel.getShared().request(new LookupRoomMessage(roomName));
+        LookupRoomMessage result = ValidateInput.validateLookupRoomMessage(obj);
+        synchronized (entries) {
+            entries.put(roomName, new Entry(result, now + ttlNanos));
+        }
+        return result;
+    }
+
+    /**
+     * forgets what we know of a room, so the next lookup asks the Registry.
+     *
+     * @param roomName name of the room
+     */
+    public void invalidate(String roomName) {
+        synchronized (entries) {
+            entries.remove(roomName);
+        }
+    }
+
+    /**
+     * forgets every lookup.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+}
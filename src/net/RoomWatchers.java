@@ -0,0 +1,287 @@
+package net;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.MessageFraming;
+import messages.ListRoomsMessage;
+import misc.Worker;
+
+/**
+ * pushes room listing changes out to the clients watching the room directory
+ * (i.e., those sitting on the room select screen), so they needn't poll for
+ * them.
+ *
+ * Rather than pushing every room opened, closed or joined the moment it
+ * happens, this worker wakes up at a fixed interval and, if the directory has
+ * changed since, sends each watcher whatever has changed since the version it
+ * was last sent (see RoomDirectory.getListingSince()). Changes are thereby
+ * coalesced into one batch per watcher per interval, no matter how busy the
+ * directory is. Watchers that were sent the same version (which, after the
+ * first round, is nearly all of them) share the very same batch, built and
+ * encoded just once.
+ *
+ * Most watchers only watch the rooms on the page they are looking at (see
+ * FindRoomsMessage). Each is sent only the changes to those rooms, filtered out
+ * of the shared batch before anything is encoded; a round in which none of
+ * their rooms changed sends them nothing at all. Their batches say they follow
+ * on from the version the watcher was last actually sent, so the changes they
+ * weren't sent in between don't look like a gap.
+ *
+ * A watcher that hasn't finished taking in its last batch is skipped for the
+ * round; it is simply sent a larger batch later on.
+ */
+public class RoomWatchers extends Worker {
+
+    /**
+     * the connection a watcher is watching over.
+     */
+    public interface Watcher {
+
+        /**
+         * queues a frame up to be written out to the watcher, unless the last one
+         * pushed has yet to go out. Must not block.
+         *
+         * @param frame encoded frame (see MessageFraming)
+         * @return false if the frame was not queued up
+         */
+        boolean push(byte[] frame);
+
+        /**
+         * checks whether the connection is still open.
+         *
+         * @return false once the connection is gone
+         */
+        boolean isOpen();
+    }
+
+    /**
+     * a single watcher, and how up to date they are.
+     */
+    private static final class Subscription {
+        private final Watcher watcher; // connection to push changes over
+        private final Set<String> rooms; // names of the rooms watched (null for every room)
+        private volatile long version; // version of the listings the watcher is up to date with
+        private volatile long sentVersion; // version of the listings last sent to the watcher
+
+        Subscription(Watcher w, long v, Set<String> r) {
+            watcher = w;
+            rooms = r;
+            version = v;
+            sentVersion = v;
+        }
+    }
+
+    /**
+     * a batch of changes, ready to be pushed (or filtered, then pushed).
+     */
+    private static final class Batch {
+        private final RoomDirectory.Listing listing; // what has changed
+        private byte[] frame; // the batch, encoded (null until a watcher of every room needs it)
+
+        Batch(RoomDirectory.Listing l) {
+            listing = l;
+            frame = null;
+        }
+    }
+
+    private final RoomDirectory directory; // directory being watched
+    private final ConcurrentHashMap<Watcher, Subscription> subscriptions; // everybody watching
+    private final long intervalMillis; // how often changes are pushed out
+    private volatile long pushCount; // batches pushed thus far (written by this worker only)
+
+    /**
+     * RoomWatchers constructor.
+     *
+     * @param dir      directory to watch
+     * @param interval how often changes are pushed out, in ms
+     */
+    public RoomWatchers(RoomDirectory dir, long interval) {
+        super("RW-0");
+        directory = dir;
+        subscriptions = new ConcurrentHashMap<Watcher, Subscription>();
+        intervalMillis = Math.max(1, interval);
+        pushCount = 0;
+        setDaemon(true);
+    }
+
+    /**
+     * starts (or restarts) pushing changes to every room to a watcher.
+     *
+     * @param watcher the watcher's connection
+     * @param version version of the listings the watcher has
+     */
+    public void subscribe(Watcher watcher, long version) {
+        subscriptions.put(watcher, new Subscription(watcher, version, null));
+    }
+
+    /**
+     * starts pushing changes to the given rooms alone to a watcher, in place of
+     * whatever they were watching before.
+     *
+     * @param watcher the watcher's connection
+     * @param version version of the listings the rooms were taken from
+     * @param rooms   names of the rooms to watch (not to be modified afterwards)
+     */
+    public void subscribe(Watcher watcher, long version, Set<String> rooms) {
+        subscriptions.put(watcher, new Subscription(watcher, version, rooms));
+    }
+
+    /**
+     * stops pushing changes to a watcher.
+     *
+     * @param watcher the watcher's connection
+     */
+    public void unsubscribe(Watcher watcher) {
+        subscriptions.remove(watcher);
+    }
+
+    /**
+     * number of clients watching.
+     *
+     * @return watcher count
+     */
+    public int size() {
+        return subscriptions.size();
+    }
+
+    /**
+     * this worker's main line of execution.
+     */
+    public void run() {
+        turnOn();
+        while (isRunning) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!subscriptions.isEmpty()) {
+                pushChanges();
+            }
+        }
+        proclaimShutdown();
+    }
+
+    /**
+     * pushes out one round of changes.
+     */
+    private void pushChanges() {
+        long latest = directory.getVersion();
+        HashMap<Long, Batch> batches = new HashMap<Long, Batch>(); // version watchers have -> what they need
+
+        Iterator<Subscription> it = subscriptions.values().iterator();
+        while (it.hasNext()) {
+            Subscription sub = it.next();
+            if (!sub.watcher.isOpen()) {
+                it.remove();
+                continue;
+            }
+            if (sub.version == latest) {
+                continue;
+            }
+            Batch batch = batches.get(sub.version);
+            if (batch == null) {
+                batch = new Batch(directory.getListingSince(sub.version));
+                batches.put(sub.version, batch);
+            }
+            RoomDirectory.Listing listing = batch.listing;
+            if (listing.getVersion() == sub.version) {
+                continue;
+            }
+            byte[] frame;
+            try {
+                if (sub.rooms == null) {
+                    if (batch.frame == null) {
+                        batch.frame = encode(listing, listing.getListings(), listing.getRemovedRooms(),
+                                        listing.getSinceVersion());
+                    }
+                    frame = batch.frame;
+                } else {
+                    frame = encodeFor(sub, listing);
+                    if (frame == null) {
+                        sub.version = listing.getVersion(); // none of their rooms changed.
+                        continue;
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println(workerID + " Error! --> " + e.getMessage());
+                return;
+            }
+            if (sub.watcher.push(frame)) {
+                sub.version = listing.getVersion();
+                sub.sentVersion = listing.getVersion();
+                pushCount++;
+            }
+        }
+    }
+
+    /**
+     * filters what has changed down to the rooms a watcher is watching, and
+     * encodes it.
+     *
+     * @param sub     the watcher's subscription
+     * @param listing what has changed since the version they are up to date with
+     * @return the batch, encoded, or null if none of their rooms changed
+     * @throws IOException if the batch could not be encoded
+     */
+    private byte[] encodeFor(Subscription sub, RoomDirectory.Listing listing) throws IOException {
+        ArrayList<String> changed = new ArrayList<String>();
+        for (String csv : listing.getListings()) {
+            if (sub.rooms.contains(ListRoomsMessage.roomNameOf(csv))) {
+                changed.add(csv);
+            }
+        }
+        ArrayList<String> removed = new ArrayList<String>();
+        if (listing.isDelta()) {
+            for (String roomName : listing.getRemovedRooms()) {
+                if (sub.rooms.contains(roomName)) {
+                    removed.add(roomName);
+                }
+            }
+            if (changed.isEmpty() && removed.isEmpty()) {
+                return null;
+            }
+        }
+        // NOTE a full listing is always sent; whichever of their rooms it leaves out have closed.
+        return encode(listing, changed, removed, sub.sentVersion);
+    }
+
+    /**
+     * encodes a batch of changes.
+     *
+     * @param listing what has changed
+     * @param changed listings of the rooms opened or changed (or every room, if a
+     *                    full listing)
+     * @param removed names of the rooms closed (deltas only)
+     * @param since   version the changes follow on from (deltas only)
+     * @return the batch, encoded
+     * @throws IOException if the batch could not be encoded
+     */
+    private static byte[] encode(RoomDirectory.Listing listing, ArrayList<String> changed, ArrayList<String> removed,
+                    long since) throws IOException {
+        ListRoomsMessage lrm = new ListRoomsMessage();
+        if (listing.isDelta()) {
+            lrm.setChanges(since, listing.getVersion(), changed, removed);
+        } else if (changed == listing.getListings()) {
+            lrm.setListings(listing.getVersion(), changed, listing.getEncoded());
+        } else {
+            lrm.setListings(listing.getVersion(), changed, null);
+        }
+        lrm.setRequestID(0); // pushed, not in answer to any request.
+        return MessageFraming.encodeFrame(lrm);
+    }
+
+    /**
+     * one-line summary, handy for console printing.
+     *
+     * @return summary
+     */
+    public String describe() {
+        return workerID + " watchers=" + size() + " pushed=" + pushCount + " every " + intervalMillis + "ms";
+    }
+}
@@ -0,0 +1,241 @@
+package net;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import messages.Message;
+import messages.RosterUpdateMessage;
+import messages.SimpleMessage;
+import misc.Constants;
+import misc.Worker;
+
+/**
+ * keeps the Registry informed of who is in each room on this node, on behalf of
+ * the rooms' SessionCoordinators.
+ *
+ * Coordinators record joins and exits here and carry straight on; nothing waits
+ * on the Registry. This worker wakes up at a fixed interval and sends each room
+ * with changes pending one RosterUpdateMessage covering all of them, over a
+ * channel shared by every room. A burst of joins to a room thereby costs one
+ * round trip to the Registry rather than one apiece.
+ *
+ * The Registry's acknowledgements are picked up as they arrive, on the
+ * channel's reader thread. Each room has at most one update in flight at a
+ * time, so that the Registry (which may service requests in any order) applies
+ * them in the order they were made; changes made meanwhile wait for the next
+ * round. Should an update fail to reach the Registry, its changes are folded
+ * back in with those still pending, to be sent again.
+ */
+public class RosterPublisher extends Worker {
+
+    /**
+     * a room's changes not yet published.
+     *
+     * NOTE a join and an exit by the same user cancel each other out, so a user is
+     * never in both sets.
+     */
+    private static final class Pending {
+        private final String roomName; // name of the room
+        private LinkedHashSet<String> joined; // users who have joined since the last update
+        private LinkedHashSet<String> left; // users who have left since the last update
+        private int participantCount; // number of users in the room as of the latest change
+        private boolean isDirty; // true if there are changes to publish
+        private boolean isInFlight; // true while an update is awaiting its acknowledgement
+
+        Pending(String room) {
+            roomName = room;
+            joined = new LinkedHashSet<String>();
+            left = new LinkedHashSet<String>();
+            participantCount = 0;
+            isDirty = false;
+            isInFlight = false;
+        }
+
+        /**
+         * folds a join or exit in with the changes pending.
+         *
+         * @param alias  the user
+         * @param isJoin true if the user joined, false if they left
+         */
+        void record(String alias, boolean isJoin) {
+            LinkedHashSet<String> opposite = isJoin ? left : joined;
+            if (!opposite.remove(alias)) {
+                (isJoin ? joined : left).add(alias);
+            }
+        }
+    }
+
+    private final RegistryChannel channel; // carries every room's updates
+    private final ConcurrentHashMap<String, Pending> rooms; // room name -> changes not yet published
+    private final long intervalMillis; // how often updates are sent out
+    private volatile long updateCount; // updates sent thus far (written by this worker only)
+    private final AtomicLong changeCount; // joins and exits recorded thus far
+
+    /**
+     * RosterPublisher constructor.
+     *
+     * @param interval how often updates are sent out, in ms
+     */
+    public RosterPublisher(long interval) {
+        super("RP-0");
+        channel = new RegistryChannel("RC-" + workerID, Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
+        rooms = new ConcurrentHashMap<String, Pending>();
+        intervalMillis = Math.max(1, interval);
+        updateCount = 0;
+        changeCount = new AtomicLong();
+        setDaemon(true);
+    }
+
+    /**
+     * records a user joining a room.
+     *
+     * @param roomName name of the room
+     * @param alias    the user
+     * @param count    number of users in the room, now that they've joined
+     */
+    public void joined(String roomName, String alias, int count) {
+        record(roomName, alias, true, count);
+    }
+
+    /**
+     * records a user leaving a room. A count of 0 closes the room.
+     *
+     * @param roomName name of the room
+     * @param alias    the user
+     * @param count    number of users in the room, now that they've left
+     */
+    public void left(String roomName, String alias, int count) {
+        record(roomName, alias, false, count);
+    }
+
+    /**
+     * folds a join or exit in with the room's pending changes.
+     *
+     * @param roomName name of the room
+     * @param alias    the user
+     * @param isJoin   true if the user joined, false if they left
+     * @param count    number of users in the room as of the change
+     */
+    private void record(String roomName, String alias, boolean isJoin, int count) {
+        while (true) {
+            Pending pending = rooms.computeIfAbsent(roomName, Pending::new);
+            synchronized (pending) {
+                if (rooms.get(roomName) != pending) {
+                    continue; // retired as we got to it; the room has reopened.
+                }
+                pending.record(alias, isJoin);
+                pending.participantCount = count;
+                pending.isDirty = true;
+            }
+            changeCount.incrementAndGet();
+            return;
+        }
+    }
+
+    /**
+     * this worker's main line of execution.
+     */
+    public void run() {
+        turnOn();
+        while (isRunning) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+            for (Pending pending : rooms.values()) {
+                publish(pending);
+            }
+        }
+        proclaimShutdown();
+    }
+
+    /**
+     * sends a room's pending changes to the Registry, unless there are none or an
+     * update is already in flight.
+     *
+     * @param pending the room's pending changes
+     */
+    private void publish(Pending pending) {
+        RosterUpdateMessage update;
+        synchronized (pending) {
+            if (!pending.isDirty || pending.isInFlight) {
+                return;
+            }
+            update = new RosterUpdateMessage(pending.roomName, new ArrayList<String>(pending.joined),
+                            new ArrayList<String>(pending.left), pending.participantCount);
+            pending.joined = new LinkedHashSet<String>();
+            pending.left = new LinkedHashSet<String>();
+            pending.isDirty = false;
+            pending.isInFlight = true;
+        }
+        updateCount++;
+        CompletableFuture<Message> ack = channel.send(update);
+        ack.whenComplete((response, error) -> onAcknowledged(pending, update, response, error));
+    }
+
+    /**
+     * handles the Registry's acknowledgement of an update. Runs on the channel's
+     * reader thread (or on this worker, if the update never went out).
+     *
+     * @param pending  the room's pending changes
+     * @param update   the update acknowledged
+     * @param response the Registry's response (null if the update failed)
+     * @param error    why the update failed (null if it didn't)
+     */
+    private void onAcknowledged(Pending pending, RosterUpdateMessage update, Message response, Throwable error) {
+        synchronized (pending) {
+            pending.isInFlight = false;
+            if (error != null) {
+                System.out.println(workerID + " Error! --> " + pending.roomName + " roster update failed ("
+                                + error.getMessage() + "); will retry.");
+                requeue(pending, update);
+                return;
+            }
+            if (!(response instanceof SimpleMessage) || !response.getContent().contains("OK;")) {
+                System.out.println(workerID + " Error! --> " + pending.roomName + " roster update refused: "
+                                + (response == null ? null : response.getContent()));
+            }
+            if (!pending.isDirty && update.getParticipantCount() <= 0) {
+                rooms.remove(pending.roomName, pending); // the room has closed.
+            }
+        }
+    }
+
+    /**
+     * folds a failed update's changes back in with those still pending (which were
+     * made after it). Caller must hold the pending changes' lock.
+     *
+     * @param pending the room's pending changes
+     * @param update  the update that failed
+     */
+    private static void requeue(Pending pending, RosterUpdateMessage update) {
+        LinkedHashSet<String> laterJoins = pending.joined;
+        LinkedHashSet<String> laterExits = pending.left;
+        pending.joined = new LinkedHashSet<String>(update.getJoined());
+        pending.left = new LinkedHashSet<String>(update.getLeft());
+        for (String alias : laterJoins) {
+            pending.record(alias, true);
+        }
+        for (String alias : laterExits) {
+            pending.record(alias, false);
+        }
+        if (!pending.isDirty) {
+            pending.participantCount = update.getParticipantCount();
+        }
+        pending.isDirty = true;
+    }
+
+    /**
+     * one-line summary, handy for console printing.
+     *
+     * @return summary
+     */
+    public String describe() {
+        return workerID + " rooms=" + rooms.size() + " changes=" + changeCount.get() + " updates=" + updateCount
+                        + " every " + intervalMillis + "ms";
+    }
+}
@@ -1,27 +1,41 @@
 package net;
 
-import java.net.ServerSocket;
-import java.util.concurrent.ArrayBlockingQueue;
-
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.BackpressurePolicy;
+import io.EncodedFrame;
+import io.MessageReader;
+import io.MessageWriter;
+import io.OutgoingBacklog;
 import io.OutputWorker;
+import io.history.HistoryStore;
+import io.history.ReplayRing;
+import io.history.RoomHistory;
 import io.session.SessionInputWorker;
+import io.session.EventLoopSessionEngine;
 import io.session.MessageRouter;
+import io.session.RoutingTable;
 
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import misc.Constants;
-import misc.ValidateInput;
+import misc.MpscRingBuffer;
 import misc.Worker;
 import messages.ExitNotifyMessage;
 import messages.ExitRoomMessage;
 import messages.JoinNotifyMessage;
 import messages.JoinRoomMessage;
 import messages.Message;
+import messages.MessageDecoder;
+import messages.ReplayMessage;
 import messages.SimpleMessage;
 import messages.WelcomeMessage;
 
@@ -37,180 +51,400 @@ import messages.WelcomeMessage;
  * the SC; namely, SessionInputWorker, OutputWorker, and MessageRouter.
  * 
  * SIW and OW read from and write to sockets, pushing to and pulling from
- * Message-based thread-safe queues (i.e., ArrayBlockingQueues). MessageRouter
- * is the entity that connects their workflows together.
- * 
- * All SIWs also have access to a singular global task queue. In this context,
- * tasks are seen as routing numbers. Every I/O pipeline that gets opened up for
- * a ChatUser is assigned a routing number; a task with a given routing number X
- * indicates that the SIW's queue that corresponds with said routing number has
- * one or more Messages that require forwarding.
+ * Message-based thread-safe queues (i.e., MpscRingBuffers). MessageRouter is
+ * the entity that connects their workflows together.
  * 
- * MessageRouters wait around for work to do. When a SIW pushes a newly received
- * Message into their incoming message queue, they also push a task (i.e., their
- * routing number) into the global task queue. A MessageRouter picks this up,
- * goes to check the incoming message queue that corresponds with said routing
- * number, and forwards those Message(s) to all other outgoing queues in a
- * 1-to-N format, skipping of course the outgoing queue that corresponds with
- * the originally tasked routing number, as that would lead to users sending
- * Messages to themselves, which is undesirable (with single-shot messages, the
- * routed user is the only receiver. This is explained in Message.java).
+ * Every I/O pipeline that gets opened up for a ChatUser is assigned a routing
+ * number, and its own MessageRouter; its queues are kept in the room's own
+ * RoutingTable. Each MessageRouter waits around on the
+ * incoming message queue that corresponds with its routing number. When the SIW
+ * pushes a newly received Message into that queue, the MessageRouter picks it
+ * up and forwards it to all other outgoing queues in a 1-to-N format, skipping
+ * of course the outgoing queue that corresponds with its own routing number, as
+ * that would lead to users sending Messages to themselves, which is undesirable
+ * (with single-shot messages, the routed user is the only receiver. This is
+ * explained in Message.java). As only the one MessageRouter ever routes a
+ * user's Messages, they are always forwarded in the order they were sent; and
+ * as MessageRouters forward holding the room's routingLock, every user in the
+ * room receives Messages in the same order.
  * 
  * When these Messages are forwarded and pushed into their correspondent
  * outgoing message queues, the appropriate OutputWorkers wake up, see there is
  * work to do, and write these messages out one by one via their provided
  * Socket, which then gets received by every other user in the chat.
+ * 
+ * As each user is let in, they are sent their WelcomeMessage followed by a
+ * ReplayMessage holding what was said just before they arrived: the room's
+ * last few broadcasts, kept in memory by its ReplayRing, topped up from the
+ * room's history on disk should the ring come up short (as it does for a while
+ * after the room reopens). The replay is put together before the user is let
+ * in; letting them in (and queueing their welcome and replay up) is then done
+ * holding the routingLock, so that whatever is broadcast meanwhile is either
+ * part of the replay or reaches them live, and the welcome comes first.
+ * 
+ * Users whose connection is lost without them having left (hung up on, reset,
+ * or cut off by the backpressure policy) are let out the same way as those who
+ * leave, through the same queue (see connectionLost()), so that the room lets
+ * go of them and everyone else is told, whichever way they went.
+ * 
+ * NOTE coordinators do not listen for connections themselves; all rooms are
+ * reached through the node's SessionGateway, which hands each connection meant
+ * for this room over via handOff().
+ * 
+ * NOTE when the event-loop session engine is selected (see
+ * EventLoopSessionEngine), none of the above workers are dispatched; each user's
+ * connection is instead handed to the engine, and the Messages the coordinator
+ * would otherwise push into a user's incoming queue are injected into the engine.
  */
 public class SessionCoordinator extends Worker {
 
-    private static final int BACKLOG = 20; // maximum # of messages allowed in a queue at one time
+    private final RoutingTable routingTable; // this room's routes, shared with its MessageRouters
 
-    private static HashMap<Integer, ArrayBlockingQueue<Message>> incomingMsgQueueMap; // incoming message queues
-    private static HashMap<Integer, ArrayBlockingQueue<Message>> outgoingMsgQueueMap; // outgoing message queues
-    private static ArrayBlockingQueue<Integer> taskQueue; // the singular task queue
-
-    private ArrayList<Socket> chatRoomUserSockets; // sockets of all the users in the given chat room.
-    private static HashMap<Integer, Object> newMessageNotifiers; // waited on by OutputWorkers for new messages
+    private HashMap<Integer, Socket> chatRoomUserSockets; // sockets of all the users in the given chat room.
 
     private HashMap<Integer, SessionInputWorker> inputWorkers; // workers responsible for reading in new messages.
     private HashMap<Integer, OutputWorker> outputWorkers; // workers responsible for writing outgoing messages.
     private HashMap<Integer, MessageRouter> messageRouters; // workers responsible for forwarding messages (in -> out)
-
-    private ServerSocket connectionReceiver; // socket used to receive new connections to the chat session.
-    private int nextRoutingID; // value of the next routing ID number
+    private final Object routingLock; // held by this room's MessageRouters while forwarding
+    private EventLoopSessionEngine eventEngine; // serves users in place of the above (null if threaded)
+    private BackpressurePolicy backpressurePolicy; // what to do when a user can't keep up with the room
+
+    private LinkedBlockingQueue<IncomingConnection> handOffs; // connections handed over by the SessionGateway.
+    private SessionGateway gateway; // gateway through which this room is reached.
+    private String roomKey; // key under which this room is registered with the gateway.
+    private final AtomicInteger nextRoutingID; // value of the next routing ID number
+    private final AtomicBoolean isAwaitingHost; // true until the host's connection has been handed over
+    private long hostTimeoutMillis; // how long the host has to arrive before the room is given up on
+    private boolean isRestored; // true if the room was reopened on recovery (see the constructor)
+    private volatile boolean isClosed; // true once the room has shut down
     private String roomName; // id of the session this coordinator is in charge of.
     private String hostAlias; // host alias String.
 
+    private RosterPublisher roster; // used to keep the Registry informed of joins and exits
+    private RoomHistory history; // every Message broadcast in the room, kept on disk (null if not kept)
+    private ReplayRing recent; // the room's last few broadcasts, replayed to joiners (null if not kept)
+
     private ArrayList<String> participantList; // names of all the users currently in the chat session
     private HashSet<Integer> activeRoutingIDs; // routing IDs corresponding to users currently in the chat.
     private HashMap<String, Integer> aliasWorkerNumberMappings; // maps alias Strings to the ID number allocated to
                                                                 // workers responsible for said user.
 
+    /**
+     * a connection handed over by the SessionGateway, streams and all, along with
+     * what it asked for and, for joins, what has been readied for the user ahead of
+     * them being let in (see handOff()).
+     */
+    private static class IncomingConnection {
+        private Socket socket; // connection to the user (or ExitRoomWorker; null for a lost connection)
+        private MessageReader in; // input stream
+        private MessageWriter out; // output stream
+        private Message request; // first message read off the connection (null for the host's)
+        private int routingID; // routing ID allocated to the user (joins only)
+        private MpscRingBuffer<Message> incoming; // Messages from the user (null if served by the event loop)
+        private OutgoingBacklog outgoing; // frames waiting to go out to the user (joins only)
+        private OutputWorker outputWorker; // already running (null if served by the event loop)
+
+        IncomingConnection(Socket sock, MessageReader input, MessageWriter output) {
+            socket = sock;
+            in = input;
+            out = output;
+            request = null;
+            routingID = -1;
+            incoming = null;
+            outgoing = null;
+            outputWorker = null;
+        }
+    }
+
+    /**
+     * what a user is sent as they are let in: their welcome, then what was said
+     * just before they arrived (see prepareGreeting()).
+     */
+    private static class Greeting {
+        private final EncodedFrame welcome; // the user's WelcomeMessage
+        private final EncodedFrame replay; // the user's ReplayMessage (null if there's nothing to replay)
+        private final long replayedUpTo; // ring sequence the replay goes up to (not included)
+
+        Greeting(EncodedFrame welcomeFrame, EncodedFrame replayFrame, long upTo) {
+            welcome = welcomeFrame;
+            replay = replayFrame;
+            replayedUpTo = upTo;
+        }
+    }
+
     /**
      * constructor for the SessionCoordinator.
      * 
      * @param workerNum  number unique to this worker.
-     * @param serveSock  server socket that will be used to accept incoming user
-     *                       connections to the chat room
+     * @param key        key under which the room is registered with the gateway
+     * @param gate       gateway through which users will reach the chat room
      * @param hostAli    alias of the intended chat room host
      * @param nameOfRoom name of the room
+     * @param publisher  keeps the Registry informed of who is in the room
+     * @param histories  where the room's history is kept (null if it isn't)
+     * @param restored   true if the room is being reopened on recovery, and so
+     *                       picks its history back up; its host, who has yet to
+     *                       come back, is given longer to (see
+     *                       SESSION_RESTORED_HOST_TIMEOUT_MS), and their return is
+     *                       reported to the Registry, which only lists the room
+     *                       from then on
      */
-    public SessionCoordinator(int workerNum, ServerSocket serveSock, String hostAli, String nameOfRoom) {
+    public SessionCoordinator(int workerNum, String key, SessionGateway gate, String hostAli, String nameOfRoom,
+                    RosterPublisher publisher, HistoryStore histories, boolean restored) {
         super("SC-" + Integer.toString(workerNum));
-        connectionReceiver = serveSock;
-        incomingMsgQueueMap = new HashMap<Integer, ArrayBlockingQueue<Message>>();
-        outgoingMsgQueueMap = new HashMap<Integer, ArrayBlockingQueue<Message>>();
-        taskQueue = new ArrayBlockingQueue<Integer>(BACKLOG, true);
-        chatRoomUserSockets = new ArrayList<Socket>();
-        newMessageNotifiers = new HashMap<Integer, Object>();
+        roomKey = key;
+        gateway = gate;
+        handOffs = new LinkedBlockingQueue<IncomingConnection>();
+        routingTable = new RoutingTable();
+        chatRoomUserSockets = new HashMap<Integer, Socket>();
         inputWorkers = new HashMap<Integer, SessionInputWorker>();
         outputWorkers = new HashMap<Integer, OutputWorker>();
         messageRouters = new HashMap<Integer, MessageRouter>();
-        nextRoutingID = 0;
+        routingLock = new Object();
+        history = null;
+        if (histories != null) {
+            try {
+                history = restored ? histories.reopen(roomKey) : histories.open(roomKey);
+            } catch (IOException e) {
+                System.out.println(workerID + " Error! --> room history could not be opened (" + e.getMessage()
+                                + "); the room won't keep one.");
+            }
+        }
+        recent = ReplayRing.fromProperties();
+        eventEngine = EventLoopSessionEngine.isSelected()
+                        ? new EventLoopSessionEngine(workerID, routingLock, history, recent)
+                        : null;
+        backpressurePolicy = BackpressurePolicy.fromProperties();
+        nextRoutingID = new AtomicInteger(0);
+        isAwaitingHost = new AtomicBoolean(true);
+        hostTimeoutMillis = restored ? Constants.SESSION_RESTORED_HOST_TIMEOUT_MS : Constants.SESSION_HOST_TIMEOUT_MS;
+        isRestored = restored;
+        isClosed = false;
         roomName = nameOfRoom;
         hostAlias = hostAli;
         participantList = new ArrayList<String>();
         activeRoutingIDs = new HashSet<>();
         aliasWorkerNumberMappings = new HashMap<String, Integer>();
+        roster = publisher;
+    }
+
+    /**
+     * lets go of what was taken up when the coordinator was built (its history),
+     * for a room that won't be opened after all. Only to be called in place of
+     * start().
+     */
+    public void discard() {
+        isClosed = true;
+        if (history != null) {
+            history.close();
+        }
+    }
+
+    /**
+     * overrides the backpressure policy given at launch for this room. Applies to
+     * users joining from here on.
+     * 
+     * @param policy the room's policy
+     */
+    public void setBackpressurePolicy(BackpressurePolicy policy) {
+        backpressurePolicy = policy;
     }
 
     /**
-     * used to compare the participant count received from the Registry with what we
-     * have. The SM content format is as follows: "OK; <i>participantCount</i> users
-     * now chatting."
+     * sums up the outgoing backlog of every user in the room, one line per user
+     * (how much is waiting to go out to them, and how much has been dropped or
+     * merged because they fell behind). May be called from any thread.
      * 
-     * @param msg SimpleMessage containing the participant count.
-     * @return true if the counts match, false otherwise
-     * @throw IndexOutOfBoundsException, NumberFormatException
+     * @return backlog summary
      */
-    public boolean checkParticipantCount(SimpleMessage msg) throws IndexOutOfBoundsException, NumberFormatException {
-        String[] args = msg.getContent().split(";");
-        String chunkOfInterest = args[1].substring(1); // trim first space.
-        int registryParticipantCount = Integer.parseInt(chunkOfInterest.split(" ")[0]);
+    public String describeBacklogs() {
+        StringBuilder summary = new StringBuilder();
+        for (RoutingTable.Route route : routingTable.members()) {
+            summary.append(route.getAlias()).append(": ").append(route.getOutgoing().describe()).append('\n');
+        }
+        return summary.toString();
+    }
 
-        return activeRoutingIDs.size() == registryParticipantCount;
+    /**
+     * called by the SessionGateway to pass along a connection meant for this room.
+     * 
+     * This is the first stage of the join pipeline, and runs on the gateway's
+     * handshake threads, several connections at a time: the connection's first
+     * message is read and, if it's a join request, the user is answered and
+     * readied (see prepareUser()). Only then is the connection queued up for this
+     * coordinator, which lets users in (and out) one at a time, in the order they
+     * were queued; so the room's roster, and the Welcome and JoinNotify messages
+     * that go with it, change in one order only.
+     * 
+     * NOTE the first connection let in is the host's, who sends nothing more until
+     * welcomed. Until then, connections made under any other alias are turned
+     * away; otherwise whoever got in first would be taken for the host (as might
+     * happen in a room reopened on recovery, should a user come back before the
+     * host does).
+     * 
+     * @param socket connection to the user
+     * @param in     input stream (already created by the gateway)
+     * @param out    output stream (already created by the gateway)
+     * @param alias  alias the user connected under (see SessionConnectMessage)
+     */
+    public void handOff(Socket socket, MessageReader in, MessageWriter out, String alias) {
+        IncomingConnection conn = new IncomingConnection(socket, in, out);
+        if (isAwaitingHost.get()) {
+            if (!hostAlias.equals(alias) || !isAwaitingHost.compareAndSet(true, false)) {
+                try {
+                    out.writeMessage(new SimpleMessage(alias, "ERR; " + roomName + " is waiting on its host"));
+                    out.flush();
+                } catch (Exception e) {
+                    // they'll find out once the connection is closed.
+                }
+                abandon(conn);
+                return;
+            }
+        } else {
+            try {
+                socket.setSoTimeout(Constants.SESSION_HANDSHAKE_TIMEOUT_MS);
+                conn.request = in.readMessage();
+                socket.setSoTimeout(0);
+                if (conn.request instanceof JoinRoomMessage) {
+                    prepareUser(conn, ((JoinRoomMessage) conn.request).getUserJoining(), false);
+                }
+            } catch (Exception e) {
+                System.out.println(workerID + " Error! --> " + e.getMessage());
+                abandon(conn);
+                return;
+            }
+        }
+        handOffs.add(conn);
+        if (isClosed && handOffs.remove(conn)) {
+            abandon(conn); // the room shut down as we got here.
+        }
+    }
+
+    /**
+     * called when a user's connection is lost without them having left: puts an
+     * exit for them through the same steps as one sent by an ExitRoomWorker, bar
+     * the reply. May be called from any thread, and any number of times; exits
+     * for users who have already left are ignored.
+     * 
+     * @param routingID routing ID allocated to the user
+     * @param alias     name of the user
+     */
+    public void connectionLost(int routingID, String alias) {
+        IncomingConnection conn = new IncomingConnection(null, null, null);
+        conn.routingID = routingID;
+        conn.request = new ExitRoomMessage(alias, roomName);
+        handOffs.add(conn);
+        if (isClosed) {
+            handOffs.remove(conn); // the room has shut down; there's nobody left to tell.
+        }
+    }
+
+    /**
+     * shuts down a leaving user's router and writer without waiting for their ERM
+     * to go through, and closes the connection, so that whatever they were blocked
+     * on gives way.
+     * 
+     * @param mr     the user's MessageRouter
+     * @param ow     the user's OutputWorker
+     * @param q      the router's incoming queue
+     * @param socket connection to the user
+     */
+    private void forceClose(MessageRouter mr, OutputWorker ow, MpscRingBuffer<Message> q, Socket socket) {
+        mr.turnOff();
+        q.wakeConsumer();
+        ow.turnOff();
+        ow.wakeUp();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing more to be done.
+        }
+    }
+
+    /**
+     * closes a connection that won't be let in after all, along with whatever was
+     * readied for it.
+     * 
+     * @param conn the connection
+     */
+    private void abandon(IncomingConnection conn) {
+        if (conn.outputWorker != null) {
+            conn.outputWorker.turnOff();
+            conn.outputWorker.wakeUp();
+        }
+        if (conn.socket == null) {
+            return; // a lost connection; nothing to close.
+        }
+        try {
+            conn.socket.close();
+        } catch (IOException e) {
+            // nothing more to be done.
+        }
+    }
+
+    /**
+     * getter for the room key.
+     * 
+     * @return key under which this room is registered with the gateway
+     */
+    public String getRoomKey() {
+        return roomKey;
     }
 
     public void run() {
         /**
          * the first thing that SessionCoordinator needs to do is set up the host of the
-         * room.
+         * room. Should they never arrive, the room is closed, on the Registry as well
+         * (which keeps the close in its journal).
          */
-        initializeHost(hostAlias);
+        if (!initializeHost(hostAlias)) {
+            System.out.println(workerID + " host never arrived; shutting down.");
+            closeRoom();
+            roster.left(roomName, hostAlias, 0);
+            return;
+        }
+        if (isRestored) {
+            roster.joined(roomName, hostAlias, activeRoutingIDs.size()); // the Registry lists the room once more.
+        }
 
         /**
          * SessionCoordinator's main responsibility is to wait for & handle Join and
          * Exit messages.
          */
         while (true) {
-            Socket socket = null;
-            Object obj = null;
+            IncomingConnection conn = null;
             Message msg = null;
-            ObjectInputStream in = null;
-            ObjectOutputStream out = null;
-
-            // Registry communication fields. (We keep them informed with Joins and Exits)
-            Socket rSocket = null;
-            ObjectInputStream rIn = null;
-            ObjectOutputStream rOut = null;
+            MessageWriter out = null;
             try {
                 /**
-                 * new connection incoming; let's handle it & see what they want.
+                 * new connection incoming (its request already read in; see handOff()); let's
+                 * see what they want.
                  */
-                socket = connectionReceiver.accept();
-                // NOTE order of constructor calls is crucial here! Reference ChatUser.java for
-                // more details.
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
-                obj = in.readObject();
-                msg = ValidateInput.validateMessage(obj);
+                conn = handOffs.take();
+                out = conn.out;
+                msg = conn.request;
 
             } catch (Exception e) {
                 System.out.println(workerID + " Error! --> " + e.getMessage());
             }
 
             /**
-             * in the case of a JoinRoom request, we simply initialize the user. everything
-             * is taken care of in that function.
+             * in the case of a JoinRoom request, we simply let the (already readied) user
+             * in. everything is taken care of in that function.
              */
             if (msg instanceof JoinRoomMessage) {
 
                 JoinRoomMessage jrm = (JoinRoomMessage) msg;
                 String alias = jrm.getUserJoining();
-                initializeUser(alias, socket, false, in, out);
+                initializeUser(conn, alias, false);
 
                 /**
-                 * communicate the user join with the Registry for participant count tracking.
+                 * let the Registry know of the join, for participant count tracking. This
+                 * doesn't wait on the Registry; joins made in quick succession are sent along
+                 * together.
                  */
-                try {
-                    rSocket = new Socket(Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
-
-                    // NOTE order of constructor calls is crucial here! Reference ChatUser.java for
-                    // more details.
-                    rOut = new ObjectOutputStream(rSocket.getOutputStream());
-                    rIn = new ObjectInputStream(rSocket.getInputStream());
-
-                    // simply forward the join request.
-                    rOut.writeObject(jrm);
-                    rOut.flush();
-
-                    // we expect to receive a simple "OK" with the new participant count included.
-                    obj = rIn.readObject();
-                    msg = ValidateInput.validateMessage(obj);
-                    if (!(msg instanceof SimpleMessage)) {
-                        rSocket.close();
-                        throw new ClassCastException("Unexpected response from Registry.");
-                    }
-                    SimpleMessage sm = (SimpleMessage) msg;
-
-                    // Confirm that the participant count matches what we have.
-                    if (!checkParticipantCount(sm)) {
-                        System.out.println("Bad participant count received from Registry! Breaking.");
-                        break;
-                    }
-
-                } catch (Exception e) {
-                    System.out.println(workerID + " error communicating Reg for JRM --> " + e.getMessage());
+                if (aliasWorkerNumberMappings.containsKey(alias)) {
+                    roster.joined(roomName, alias, activeRoutingIDs.size());
                 }
             }
 
@@ -221,108 +455,106 @@ public class SessionCoordinator extends Worker {
                 ExitRoomMessage erm = (ExitRoomMessage) msg;
 
                 String alias = erm.getExitingUser();
-                int routingNum = aliasWorkerNumberMappings.get(alias);
-                ArrayBlockingQueue<Message> q = incomingMsgQueueMap.get(routingNum);
-
-                // if there is more than one user currently, notify others of the exit.
-                if (activeRoutingIDs.size() > 1) {
-
-                    String roomName = erm.getAssociatedRoom();
-                    ExitNotifyMessage enm = new ExitNotifyMessage(alias, roomName);
-                    q.add(enm);
+                Integer routingID = aliasWorkerNumberMappings.get(alias);
+                boolean isLost = conn.socket == null; // see connectionLost()
+                if (routingID == null || (isLost && routingID != conn.routingID)) {
+                    abandon(conn); // they have left already (lost connections may be reported more than once).
+                    continue;
                 }
-
-                /**
-                 * NOTE Here, the SimpleMessage response is being written to the ExitRoomWorker,
-                 * and the ERM is being forwarded to the exiting ChatUser's InputHandler.
-                 * 
-                 * Perhaps a tad overcomplicated, but this is how I was able to get the exit
-                 * procedure to work within the context of my code base.
-                 */
-                String responseText = "OK";
-                SimpleMessage response = new SimpleMessage(alias, responseText);
-                try {
-                    out.writeObject(response);
-                    out.flush();
-                    q.add(erm);
-                } catch (Exception e) {
-                    System.out.println(workerID + " error replying to ERM --> " + e.getMessage());
+                int routingNum = routingID;
+                if (isLost) {
+                    System.out.println(workerID + " lost " + alias + "'s connection; letting them out.");
                 }
-                taskQueue.add(routingNum);
 
-                // ensure proper shut down of workers associated with user leaving
-                // shutDownWorkers(routingNum);
-                MessageRouter mr = messageRouters.remove(routingNum);
-                OutputWorker ow = outputWorkers.remove(routingNum);
+                if (eventEngine != null) {
+                    exitEventLoopUser(alias, routingNum, erm, out);
+                } else {
+                    MpscRingBuffer<Message> q = routingTable.get(routingNum).getIncoming();
+                    boolean isQueued = true; // false if the user's router couldn't take the ERM in time
+
+                    /**
+                     * NOTE the user's incoming queue may be full (they may have been flooding the
+                     * room as they were cut off), so the notice and the ERM are only given so long
+                     * to get in; a router that never makes room is shut down regardless, below.
+                     */
+                    try {
+                        // if there is more than one user currently, notify others of the exit.
+                        if (activeRoutingIDs.size() > 1) {
+
+                            String roomName = erm.getAssociatedRoom();
+                            ExitNotifyMessage enm = new ExitNotifyMessage(alias, roomName);
+                            if (!q.offer(enm, Constants.SESSION_EXIT_TIMEOUT_MS)) {
+                                System.out.println(workerID + " couldn't tell the room " + alias + " left.");
+                            }
+                        }
+
+                        /**
+                         * NOTE Here, the SimpleMessage response is being written to the ExitRoomWorker,
+                         * and the ERM is being forwarded to the exiting ChatUser's InputHandler.
+                         * 
+                         * Perhaps a tad overcomplicated, but this is how I was able to get the exit
+                         * procedure to work within the context of my code base.
+                         */
+                        String responseText = "OK";
+                        SimpleMessage response = new SimpleMessage(alias, responseText);
+                        if (out != null) {
+                            out.writeMessage(response);
+                            out.flush();
+                        }
+                        isQueued = q.offer(erm, Constants.SESSION_EXIT_TIMEOUT_MS);
+                    } catch (Exception e) {
+                        System.out.println(workerID + " error replying to ERM --> " + e.getMessage());
+                    }
 
-                /**
-                 * NOTE both of these workers have code that allows them to self-detect when to
-                 * shut themselves done based on checking messages as they are sent out.
-                 * 
-                 * For instance, if an outgoing message is an ERM, they know to shut down, no
-                 * interrupt required.
-                 */
-                try {
-                    mr.join();
-                    ow.join();
-                } catch (Exception e) {
-                    System.out.println("Error joining on MR and OW in shut down procedure.");
-                }
-                Socket s = chatRoomUserSockets.remove(routingNum);
-                SessionInputWorker siw = inputWorkers.remove(routingNum);
-                siw.turnOff();
-                try {
-                    s.close();
-                    siw.join();
-                } catch (Exception e) {
-                    System.out.println("Error joining on SIW in shut down procedure.");
+                    // ensure proper shut down of workers associated with user leaving
+                    // shutDownWorkers(routingNum);
+                    MessageRouter mr = messageRouters.remove(routingNum);
+                    OutputWorker ow = outputWorkers.remove(routingNum);
+                    Socket s = chatRoomUserSockets.remove(routingNum);
+
+                    /**
+                     * NOTE both of these workers have code that allows them to self-detect when to
+                     * shut themselves done based on checking messages as they are sent out.
+                     * 
+                     * For instance, if an outgoing message is an ERM, they know to shut down, no
+                     * interrupt required. Should the ERM not have made it in, or not make it out in
+                     * time (the user having stopped reading, say), they are shut down and the
+                     * connection closed from under them, as the event loop does.
+                     */
+                    try {
+                        if (isQueued) {
+                            mr.join(Constants.SESSION_EXIT_TIMEOUT_MS);
+                            ow.join(Constants.SESSION_EXIT_TIMEOUT_MS);
+                        }
+                        if (mr.isAlive() || ow.isAlive()) {
+                            System.out.println(workerID + " " + alias + "'s workers slow to exit; closing.");
+                            forceClose(mr, ow, q, s);
+                            mr.join(Constants.SESSION_EXIT_TIMEOUT_MS);
+                            ow.join(Constants.SESSION_EXIT_TIMEOUT_MS);
+                        }
+                    } catch (Exception e) {
+                        System.out.println("Error joining on MR and OW in shut down procedure.");
+                    }
+                    // whatever the others sent meanwhile won't be going out.
+                    routingTable.remove(routingNum).getOutgoing().discard();
+                    SessionInputWorker siw = inputWorkers.remove(routingNum);
+                    siw.turnOff();
+                    try {
+                        s.close();
+                        siw.join();
+                    } catch (Exception e) {
+                        System.out.println("Error joining on SIW in shut down procedure.");
+                    }
                 }
 
-                incomingMsgQueueMap.remove(routingNum);
-                outgoingMsgQueueMap.remove(routingNum);
-                newMessageNotifiers.remove(routingNum);
-
-                participantList.remove(routingNum);
+                participantList.remove(alias);
                 aliasWorkerNumberMappings.remove(alias);
                 activeRoutingIDs.remove(routingNum);
 
                 /**
-                 * communicate participant changes with Registry.
+                 * let the Registry know of the exit (as with joins, without waiting on it).
                  */
-                try {
-                    rSocket = new Socket(Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
-                    rOut = new ObjectOutputStream(rSocket.getOutputStream());
-                    rIn = new ObjectInputStream(rSocket.getInputStream());
-
-                    // forward the ERM
-                    rOut.writeObject(erm);
-                    rOut.flush();
-
-                    // read the reply
-                    obj = rIn.readObject();
-                    msg = ValidateInput.validateMessage(obj);
-                    if (!(msg instanceof SimpleMessage)) {
-                        rSocket.close();
-                        throw new ClassCastException("Unexpected response from Registry");
-                    }
-                    SimpleMessage sm = (SimpleMessage) msg;
-                    if (!checkParticipantCount(sm)) {
-                        System.out.println("Non-matching participant count received from Registry..");
-                        break;
-                    }
-
-                } catch (Exception e) {
-                    System.out.println(workerID + " connecting to Registry for ERM --> " + e.getMessage());
-                }
-            }
-
-            // in any case, close the registry socket and associated streams.
-            if (rSocket.isConnected()) {
-                try {
-                    rSocket.close();
-                } catch (Exception e) {
-                    System.out.println(workerID + " error closing comms with Registry --> " + e.getMessage());
-                }
+                roster.left(roomName, alias, activeRoutingIDs.size());
             }
 
             /*
@@ -330,11 +562,7 @@ public class SessionCoordinator extends Worker {
              */
             if (activeRoutingIDs.size() == 0) {
                 System.out.println(workerID + " room empty; shutting down.");
-                try {
-                    connectionReceiver.close();
-                } catch (Exception e) {
-                    System.out.println(workerID + " error closing ServerSocket --> " + e.getMessage());
-                }
+                closeRoom();
                 break;
             }
 
@@ -342,6 +570,22 @@ public class SessionCoordinator extends Worker {
 
     } // end of run()
 
+    /**
+     * takes the room off the gateway and lets go of its history, turning away
+     * whoever was handed over meanwhile.
+     */
+    private void closeRoom() {
+        gateway.deregister(roomKey);
+        isClosed = true;
+        if (history != null) {
+            history.close();
+        }
+        IncomingConnection late;
+        while ((late = handOffs.poll()) != null) {
+            abandon(late);
+        }
+    }
+
     /**
      * takes the necessary steps to shut down workers associated with the provided
      * digit.
@@ -350,6 +594,7 @@ public class SessionCoordinator extends Worker {
      * 
      * @deprecated other measures were taken to shut SC workers down.
      */
+    @Deprecated
     public void shutDownWorkers(int routingID) {
         if (routingID < 0 || routingID >= activeRoutingIDs.size())
             throw new IndexOutOfBoundsException();
@@ -377,157 +622,342 @@ public class SessionCoordinator extends Worker {
     }
 
     /**
-     * this method is called to initialized a particular user to the chat room.
-     * 
-     * @param alias          name of the user
-     * @param socket         socket that is connected to the user
-     * @param initialMessage first message to be sent to all users in the room.
-     *                           Hosts receive a special version.
-     * @param in             input stream
-     * @param out            output stream
+     * readies a user to be let into the chat room: answers their JoinRoomWorker,
+     * allocates them a routing ID, and sets up their queues (and, unless they'll be
+     * served by the event loop, their OutputWorker, which is started right away, as
+     * it has nothing to send until the user is let in). Nothing here touches the
+     * room itself, so users can be readied several at a time (see handOff()).
      * 
-     *                           NOTE while it isn't completely necessary, we pass
-     *                           the input/output streams in as parameters, as they
-     *                           were already created previously and it makes no
-     *                           sense to re-create the stream objects.
+     * @param conn      connection to the user
+     * @param alias     name of the user
+     * @param isHosting true if the user is hosting the room
      */
-    public void initializeUser(String alias, Socket socket, boolean isHosting, ObjectInputStream in,
-                    ObjectOutputStream out) {
-
+    private void prepareUser(IncomingConnection conn, String alias, boolean isHosting) {
+        Socket socket = conn.socket;
         if (!isHosting) {
             /**
              * if isHosting is false, this message is sent to a JoinRoomWorker; all they
              * expect in return is a SimpleMessage with the text "OK". (ChatUser's
-             * WelcomeMessage is handled and sent later in the function)
+             * WelcomeMessage is handled and sent later, once they're let in)
              */
             String responseMsgContent = "OK";
             SimpleMessage responseMsg = new SimpleMessage(alias, responseMsgContent);
 
             try {
-                out.writeObject(responseMsg);
-                out.flush();
+                conn.out.writeMessage(responseMsg);
+                conn.out.flush();
             } catch (Exception e) {
                 System.out.println(workerID + " error responding to JoinRequest --> " + e.getMessage());
             }
         }
 
-        int routingIdNumber = nextRoutingID++;
+        conn.routingID = nextRoutingID.getAndIncrement();
+        conn.outgoing = new OutgoingBacklog(alias, backpressurePolicy, Constants.SESSION_BACKLOG_LENGTH);
+        if (eventEngine != null) {
+            return;
+        }
 
         /**
          * in any case, we need to initialize some field variables to open up some
          * communications pathways, both for hosts and non-hosts alike.
          */
-        ArrayBlockingQueue<Message> incoming = new ArrayBlockingQueue<Message>(Constants.MSG_QUEUE_LENGTH, true);
-        ArrayBlockingQueue<Message> outgoing = new ArrayBlockingQueue<Message>(Constants.MSG_QUEUE_LENGTH, true);
-        newMessageNotifiers.put(routingIdNumber, new Object());
+        conn.incoming = new MpscRingBuffer<Message>(Constants.MSG_QUEUE_LENGTH);
+        int routingID = conn.routingID;
+        conn.outgoing.setDisconnectHandler(() -> {
+            try {
+                socket.close(); // the user's workers wind down once their socket is gone...
+            } catch (IOException e) {
+                // nothing more to be done.
+            }
+            connectionLost(routingID, alias); // ... and the room lets go of them.
+        });
+        conn.outputWorker = new OutputWorker("S" + Integer.toString(conn.routingID), conn.out, conn.outgoing);
+        conn.outputWorker.start();
+    }
 
-        SessionInputWorker inputWorker = new SessionInputWorker(routingIdNumber, in, incoming, taskQueue);
-        String workerCode = "S" + Integer.toString(routingIdNumber);
+    /**
+     * this method is called to let a (readied) user into the chat room. It is the
+     * second stage of the join pipeline, and runs on this coordinator only.
+     * 
+     * @param conn      connection to the user, as readied by prepareUser()
+     * @param alias     name of the user
+     * @param isHosting true if the user is hosting the room
+     */
+    private void initializeUser(IncomingConnection conn, String alias, boolean isHosting) {
+        int routingIdNumber = conn.routingID;
+        Socket socket = conn.socket;
+
+        if (eventEngine != null) {
+            initializeEventLoopUser(alias, routingIdNumber, socket, isHosting, conn.in, conn.out, conn.outgoing);
+            return;
+        }
 
-        OutputWorker outputWorker = new OutputWorker(workerCode, out, outgoing,
-                        newMessageNotifiers.get(routingIdNumber));
-        MessageRouter messageRouter = new MessageRouter(routingIdNumber, taskQueue, incomingMsgQueueMap,
-                        outgoingMsgQueueMap, newMessageNotifiers, activeRoutingIDs);
+        MpscRingBuffer<Message> incoming = conn.incoming;
+        SessionInputWorker inputWorker = new SessionInputWorker(routingIdNumber, conn.in, incoming);
+        inputWorker.setHangUpHandler(() -> connectionLost(routingIdNumber, alias));
+        RoutingTable.Route route = new RoutingTable.Route(routingIdNumber, alias, incoming, conn.outgoing);
+        MessageRouter messageRouter = new MessageRouter(route, routingTable, routingLock, history, recent);
+        Greeting greeting = prepareGreeting(welcomeFor(alias, isHosting));
+
+        // let the user in, welcome and all (see the class description).
+        synchronized (routingLock) {
+            routingTable.add(route);
+            greet(greeting, frame -> route.getOutgoing().offer(frame, false)); // never waits on the lock
+        }
 
         // perform book-keeping
-        incomingMsgQueueMap.put(routingIdNumber, incoming);
-        outgoingMsgQueueMap.put(routingIdNumber, outgoing);
-        chatRoomUserSockets.add(socket);
+        chatRoomUserSockets.put(routingIdNumber, socket);
         inputWorkers.put(routingIdNumber, inputWorker);
-        outputWorkers.put(routingIdNumber, outputWorker);
+        outputWorkers.put(routingIdNumber, conn.outputWorker);
         messageRouters.put(routingIdNumber, messageRouter);
         activeRoutingIDs.add(routingIdNumber);
         aliasWorkerNumberMappings.put(alias, routingIdNumber);
 
-        WelcomeMessage welcoming = null;
-        if (isHosting) {
-            // in this case, we queue up the sending of a single host-centric
-            // WelcomeMessage.
-            welcoming = new WelcomeMessage(alias, roomName, isHosting);
+        if (!isHosting) {
             /**
-             * NOTE we perform a bit of a hack here. We bypass the reception of a message
-             * and simply pretend we receive the message, when really, as Coordinator, we
-             * are interjecting and passing a special request into the incoming queue for a
-             * MessageRouter to handle.
+             * the user has been welcomed already; all that's left is to let everyone else
+             * know of them, which their MessageRouter does, as though they had sent the
+             * JoinNotifyMessage themselves (JoinNotifyMessages go to everyone BUT the user
+             * they're about).
              */
-            incoming.add(welcoming);
-            boolean taskQueued = false;
-            while (true) {
-                taskQueued = taskQueue.add(routingIdNumber);
-                if (taskQueued)
-                    break;
-                else {
-                    try {
-                        Thread.sleep(500);
-                    } catch (Exception e) {
-                        System.out.println("Task queue sleep interrupted --> " + e.getMessage());
-                    }
+            incoming.add(new JoinNotifyMessage(alias, roomName));
+        }
+
+        // fire up the rest of the worker threads for the user that just joined.
+        inputWorker.start();
+        messageRouter.start();
+
+        participantList.add(alias);
+    }
+
+    /**
+     * the WelcomeMessage for a user being let in. Hosts are simply welcomed; anyone
+     * else is also told who is in the room already.
+     * 
+     * @param alias     name of the user
+     * @param isHosting true if the user is hosting the room
+     * @return the WelcomeMessage
+     */
+    private WelcomeMessage welcomeFor(String alias, boolean isHosting) {
+        if (isHosting) {
+            return new WelcomeMessage(alias, roomName, isHosting);
+        }
+        ArrayList<String> pListCopy = new ArrayList<>();
+        for (String p : participantList)
+            pListCopy.add(p);
+        return new WelcomeMessage(alias, roomName, isHosting, pListCopy);
+    }
+
+    /**
+     * puts a user's greeting together, ahead of them being let in: their welcome,
+     * and a replay of the room's last Constants.REPLAY_MESSAGES broadcasts (or as
+     * many as there have been). These are taken from the ReplayRing and, should
+     * it hold fewer, topped up with older ones read back from the room's history.
+     * Broadcasts can carry on meanwhile, as nothing here holds the routingLock;
+     * those that end up being missed are caught up on in greet(). The replay's
+     * first offset is where the user can scroll back from (see
+     * HistoryPageMessage).
+     * 
+     * @param welcoming the user's WelcomeMessage
+     * @return the greeting
+     */
+    private Greeting prepareGreeting(WelcomeMessage welcoming) {
+        EncodedFrame welcome = null;
+        EncodedFrame replay = null;
+        long upTo = 0;
+        try {
+            welcome = EncodedFrame.encode(welcoming, 1);
+            if (recent == null) {
+                return new Greeting(welcome, null, 0);
+            }
+
+            ArrayList<ReplayRing.Entry> entries = new ArrayList<ReplayRing.Entry>();
+            upTo = recent.read(0, entries);
+            ArrayList<byte[]> payloads = new ArrayList<byte[]>();
+            ArrayList<Long> offsets = new ArrayList<Long>();
+            long before = entries.isEmpty() ? (history == null ? -1 : history.getNextOffset())
+                            : entries.get(0).getOffset();
+            int wanted = recent.getCapacity() - entries.size();
+            if (history != null && wanted > 0 && before > history.getFirstOffset()) {
+                long from = Math.max(history.getFirstOffset(), before - wanted);
+                history.readEncoded(from, (int) (before - from), payloads);
+                for (int i = 0; i < payloads.size(); i++) {
+                    offsets.add(from + i);
                 }
             }
-        } else {
-            /**
-             * Enter here if isHosting is false. In this case, we send a WelcomeMessage to
-             * the user that just joined (not host-centric), as well as a JoinNotifyMessage
-             * to all others in the chat.
-             */
-            ArrayList<String> pListCopy = new ArrayList<>();
-            for (String p : participantList)
-                pListCopy.add(p);
-
-            welcoming = new WelcomeMessage(alias, roomName, isHosting, pListCopy);
-            JoinNotifyMessage joinNotify = new JoinNotifyMessage(alias, roomName);
-            ArrayBlockingQueue<Message> q = incomingMsgQueueMap.get(routingIdNumber);
-            q.add(joinNotify);
-            q.add(welcoming);
+            for (ReplayRing.Entry entry : entries) {
+                payloads.add(entry.getPayload());
+                offsets.add(entry.getOffset());
+            }
+
+            // leave the oldest out, should there be more than can reasonably be sent at once (the replay
+            // has to fit in the user's backlog, with room to spare for what comes after it).
+            long limit = Constants.REPLAY_MAX_BYTES;
+            if (backpressurePolicy.getMaxBacklogBytes() > 0) {
+                limit = Math.min(limit, backpressurePolicy.getMaxBacklogBytes() / 2);
+            }
+            int first = 0;
+            long bytes = 0;
+            for (byte[] payload : payloads) {
+                bytes += payload.length;
+            }
+            while (bytes > limit && first < payloads.size()) {
+                bytes -= payloads.get(first++).length;
+            }
+            // with a history to scroll back through, even an empty replay is sent, to say where it starts.
+            if (first < payloads.size() || history != null) {
+                ArrayList<byte[]> replayed = new ArrayList<byte[]>(payloads.subList(first, payloads.size()));
+                long firstOffset = first < payloads.size() ? offsets.get(first) : before;
+                replay = EncodedFrame.encode(new ReplayMessage(roomName, firstOffset, replayed), 1);
+            }
+        } catch (IOException e) {
+            System.out.println(workerID + " Error! --> could not put a replay together (" + e.getMessage() + ")");
+        }
+        return new Greeting(welcome, replay, upTo);
+    }
+
+    /**
+     * queues a user's greeting up for them, along with whatever was broadcast
+     * while it was being put together (see prepareGreeting()). Caller must hold
+     * the routingLock, and must have just let the user in.
+     * 
+     * @param greeting the greeting
+     * @param delivery queues a frame (holding one reference) up for the user
+     */
+    private void greet(Greeting greeting, Consumer<EncodedFrame> delivery) {
+        if (greeting.welcome == null) {
+            return; // nothing could be encoded; the error has been logged.
+        }
+        delivery.accept(greeting.welcome);
+        if (greeting.replay != null) {
+            delivery.accept(greeting.replay);
+        }
+        if (recent == null) {
+            return;
+        }
+        ArrayList<ReplayRing.Entry> missed = new ArrayList<ReplayRing.Entry>();
+        recent.read(greeting.replayedUpTo, missed);
+        for (ReplayRing.Entry entry : missed) {
             try {
-                taskQueue.put(routingIdNumber);
-            } catch (Exception e) {
-                System.out.println(workerID + " error placing tasking into Q --> " + e.getMessage());
+                byte[] payload = entry.getPayload();
+                delivery.accept(EncodedFrame.encode(MessageDecoder.decode(payload, 0, payload.length), 1));
+            } catch (IOException e) {
+                System.out.println(workerID + " Error! --> " + e.getMessage());
             }
-            /**
-             * NOTE by definition, WelcomeMessages are "single-shot" (i.e., they're only
-             * sent to a single target user), whereas JoinNotifyMessages aren't; they're
-             * sent to everyone BUT the person being welcomed. So by defining this key
-             * characteristic that defines a major difference between these Messages, we can
-             * accomplish the sending of N messages by only placing 2 messages into the
-             * outgoing queue.
-             */
         }
+    }
 
-        // fire up worker threads for the user that just joined.
-        outputWorkers.get(routingIdNumber).start();
-        inputWorkers.get(routingIdNumber).start();
-        messageRouters.get(routingIdNumber).start();
+    /**
+     * the event-loop counterpart of the latter half of initializeUser(). Rather than
+     * dispatching workers for the user, their connection is handed to the event
+     * engine (holding the routingLock, just as initializeUser() adds their route),
+     * and the join notice for everyone else is injected into it.
+     * 
+     * @param alias           name of the user
+     * @param routingIdNumber routing ID allocated to the user
+     * @param socket          socket that is connected to the user
+     * @param isHosting       true if the user is hosting the room
+     * @param in              input stream
+     * @param out             output stream
+     * @param outgoing        frames waiting to go out to the user
+     */
+    private void initializeEventLoopUser(String alias, int routingIdNumber, Socket socket, boolean isHosting,
+                    MessageReader in, MessageWriter out, OutgoingBacklog outgoing) {
+        Greeting greeting = prepareGreeting(welcomeFor(alias, isHosting));
+        synchronized (routingLock) {
+            try {
+                eventEngine.addParticipant(routingIdNumber, socket, in, out, outgoing,
+                                () -> connectionLost(routingIdNumber, alias));
+            } catch (IOException e) {
+                System.out.println(workerID + " error handing user to event engine --> " + e.getMessage());
+                greeting.welcome.release();
+                if (greeting.replay != null) {
+                    greeting.replay.release();
+                }
+                try {
+                    socket.close();
+                } catch (IOException ioe) {
+                    // nothing more to be done.
+                }
+                return;
+            }
+            greet(greeting, frame -> eventEngine.deliver(routingIdNumber, frame));
+        }
+
+        // perform book-keeping
+        routingTable.add(new RoutingTable.Route(routingIdNumber, alias, null, outgoing));
+        activeRoutingIDs.add(routingIdNumber);
+        aliasWorkerNumberMappings.put(alias, routingIdNumber);
+
+        if (!isHosting) {
+            // the user has been welcomed already; JoinNotify goes to everyone else (see initializeUser()).
+            eventEngine.inject(routingIdNumber, new JoinNotifyMessage(alias, roomName));
+        }
 
         participantList.add(alias);
     }
 
     /**
-     * method used to initialize the host communication pathways for the chat room.
+     * the event-loop counterpart of the exit procedure in run(). Notifies everyone
+     * else of the exit, answers the ExitRoomWorker, sends the ERM on to the exiting
+     * user, and waits for the engine to let go of their connection.
      * 
-     * @param hostAlias alias of the host user
+     * @param alias      name of the user leaving
+     * @param routingNum routing ID of the user leaving
+     * @param erm        the exit request
+     * @param out        output stream to the ExitRoomWorker (null if the user's
+     *                       connection was lost; see connectionLost())
      */
-    public void initializeHost(String hostAlias) {
-        // ChatUser will be attempting to connect to the ServerSocket at this point.
-
-        // declare variables.
-        Socket socket = null;
-        ObjectInputStream in = null;
-        ObjectOutputStream out = null;
+    private void exitEventLoopUser(String alias, int routingNum, ExitRoomMessage erm, MessageWriter out) {
+        // if there is more than one user currently, notify others of the exit.
+        if (activeRoutingIDs.size() > 1) {
+            eventEngine.inject(routingNum, new ExitNotifyMessage(alias, erm.getAssociatedRoom()));
+        }
 
         try {
+            if (out != null) {
+                out.writeMessage(new SimpleMessage(alias, "OK"));
+                out.flush();
+            }
+        } catch (Exception e) {
+            System.out.println(workerID + " error replying to ERM --> " + e.getMessage());
+        }
+        eventEngine.inject(routingNum, erm);
+        eventEngine.removeParticipant(routingNum);
+        routingTable.remove(routingNum);
+    }
 
-            socket = connectionReceiver.accept();
-            in = new ObjectInputStream(socket.getInputStream());
-            out = new ObjectOutputStream(socket.getOutputStream());
+    /**
+     * method used to initialize the host communication pathways for the chat room.
+     * 
+     * NOTE the host is only waited on for so long (see SESSION_HOST_TIMEOUT_MS);
+     * once that's up, nobody more is let in as the host.
+     * 
+     * @param hostAlias alias of the host user
+     * @return false if the host never arrived
+     */
+    public boolean initializeHost(String hostAlias) {
+        // ChatUser will be attempting to connect through the gateway at this point.
 
+        IncomingConnection conn = null;
+        try {
+            conn = handOffs.poll(hostTimeoutMillis, TimeUnit.MILLISECONDS);
+            if (conn == null && !isAwaitingHost.compareAndSet(true, false)) {
+                conn = handOffs.take(); // they turned up just as time ran out, and are on their way in.
+            }
         } catch (Exception e) {
             System.out.println("SessionCoordinator Error! --> " + e.getMessage());
             e.printStackTrace();
+            return false;
+        }
+        if (conn == null) {
+            return false;
         }
 
         // host is a user too.
-        initializeUser(hostAlias, socket, true, in, out);
+        prepareUser(conn, hostAlias, true);
+        initializeUser(conn, hostAlias, true);
+        return true;
     }
 
     /**
@@ -0,0 +1,174 @@
+package net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.MessageReader;
+import io.MessageStreams;
+import io.MessageWriter;
+import messages.Message;
+import messages.SessionConnectMessage;
+import messages.SimpleMessage;
+import misc.Constants;
+import misc.Worker;
+
+/**
+ * the single listening endpoint for every chat session hosted by this node.
+ *
+ * Previously, each room bound a ServerSocket of its own, on a port that was
+ * never handed back. Now every ChatUser (and ExitRoomWorker) connects here, and
+ * the first message sent over the connection is a SessionConnectMessage naming
+ * the room key of the room it is meant for. The gateway then hands the
+ * connection (streams and all) off to that room's SessionCoordinator.
+ *
+ * Handshakes are performed by a small pool of threads so that one slow client
+ * can't hold up the accept loop.
+ *
+ * NOTE connections are accepted through a ServerSocketChannel, so that every
+ * connection handed off comes with a SocketChannel that the event-loop session
+ * engine can take over. Until then, they are used through their plain streams.
+ */
+public class SessionGateway extends Worker {
+
+    private ServerSocketChannel serverChannel; // the one socket all sessions are reached through
+    private ConcurrentHashMap<String, SessionCoordinator> coordinators; // key -> room key
+    private ExecutorService handshakePool; // reads the first message of each new connection
+
+    /**
+     * SessionGateway constructor. Binds the listening port immediately.
+     *
+     * @param port port to listen on
+     * @throws IOException if the port could not be bound
+     */
+    public SessionGateway(int port) throws IOException {
+        super("SG-0");
+        // IPv4, as a plain ServerSocket would be, so that connect info parses as "ip:port".
+        serverChannel = ServerSocketChannel.open(StandardProtocolFamily.INET);
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        // a room filling up all at once shouldn't overflow the accept queue (see SESSION_GATEWAY_BACKLOG).
+        serverChannel.bind(new InetSocketAddress(port), Constants.SESSION_GATEWAY_BACKLOG);
+        coordinators = new ConcurrentHashMap<String, SessionCoordinator>();
+
+        handshakePool = Executors.newFixedThreadPool(Constants.SESSION_HANDSHAKE_THREADS,
+                        Worker.threadFactory("SGH-", true));
+    }
+
+    /**
+     * connection info advertised in room listings, in "ip:port" format.
+     *
+     * @return gateway address
+     */
+    public String getConnectInfo() {
+        ServerSocket serverSocket = serverChannel.socket();
+        return serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * makes a room reachable through the gateway.
+     *
+     * @param roomKey     key clients will use to name the room
+     * @param coordinator coordinator in charge of the room
+     */
+    public void register(String roomKey, SessionCoordinator coordinator) {
+        coordinators.put(roomKey, coordinator);
+    }
+
+    /**
+     * makes a room unreachable (typically because it has closed).
+     *
+     * @param roomKey key of the room
+     */
+    public void deregister(String roomKey) {
+        coordinators.remove(roomKey);
+    }
+
+    /**
+     * number of rooms currently reachable through the gateway.
+     *
+     * @return room count
+     */
+    public int getRoomCount() {
+        return coordinators.size();
+    }
+
+    /**
+     * main line of execution; accepts connections and queues up their handshakes.
+     */
+    public void run() {
+        turnOn();
+        while (isRunning) {
+            try {
+                Socket socket = serverChannel.accept().socket();
+                socket.setTcpNoDelay(true); // chat is small writes; don't hold one back waiting on an ACK.
+                handshakePool.execute(() -> handshake(socket));
+            } catch (IOException e) {
+                if (isRunning) {
+                    System.out.println(workerID + " Error accepting connection --> " + e.getMessage());
+                }
+            }
+        }
+        handshakePool.shutdown();
+        proclaimShutdown();
+    }
+
+    /**
+     * stops accepting new connections.
+     */
+    public void shutDown() {
+        turnOff();
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.out.println(workerID + " error closing ServerSocketChannel --> " + e.getMessage());
+        }
+    }
+
+    /**
+     * reads the SessionConnectMessage off of a new connection and hands the
+     * connection to the coordinator of the room it names.
+     *
+     * @param socket newly accepted connection
+     */
+    private void handshake(Socket socket) {
+        try {
+            socket.setSoTimeout(Constants.SESSION_HANDSHAKE_TIMEOUT_MS);
+
+            // NOTE order of constructor calls is crucial here! Reference ChatUser.java for
+            // more details.
+            MessageWriter out = MessageStreams.openWriter(socket.getOutputStream());
+            MessageReader in = MessageStreams.openReader(socket.getInputStream());
+            Message msg = in.readMessage();
+            if (!(msg instanceof SessionConnectMessage)) {
+                throw new ClassCastException("expected a SessionConnectMessage first");
+            }
+
+            SessionConnectMessage scm = (SessionConnectMessage) msg;
+            SessionCoordinator coordinator = coordinators.get(scm.getRoomKey());
+            if (coordinator == null) {
+                String content = "ERR; no such room " + scm.getRoomKey();
+                out.writeMessage(new SimpleMessage(scm.getAssociatedSenderAlias(), content));
+                out.flush();
+                socket.close();
+                return;
+            }
+
+            socket.setSoTimeout(0);
+            coordinator.handOff(socket, in, out, scm.getAssociatedSenderAlias());
+        } catch (Exception e) {
+            System.out.println(workerID + " handshake failed --> " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // nothing more to be done.
+            }
+        }
+    }
+}
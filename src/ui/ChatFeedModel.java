@@ -0,0 +1,148 @@
+package ui;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.swing.DefaultListModel;
+
+/**
+ * the lines of a ChatWindow's chat feed, along with where in the room's history
+ * they start, so that older ones can be asked for (see
+ * messages.HistoryPageMessage) as the user scrolls back.
+ *
+ * Lines are either kept in the room's history (what was broadcast, the user's
+ * own messages included) or not (welcomes, notices and the like). Every kept
+ * line since the user joined follows on from the one before it in the history,
+ * so the offset of the topmost kept line is all that needs tracking: pages are
+ * asked for before it, and put in just above it.
+ *
+ * The feed holds at most a fixed number of lines; past that, the oldest make
+ * way for new ones. Pages are only asked for while there is room for another,
+ * so how far back the user can scroll is bounded the same way.
+ *
+ * NOTE lines must only be added through the methods below (not through
+ * addElement() and the like), or the offsets will be off. Should the user miss
+ * Messages by falling behind, the offsets will be off by that many regardless.
+ * Only to be used on the event dispatch thread.
+ */
+public class ChatFeedModel extends DefaultListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int maxLines; // most lines held
+    private final ArrayDeque<Boolean> isKept; // whether each line is kept in the room's history, top to bottom
+    private long oldestOffset; // history offset of the topmost kept line (-1 if there's no scrolling back)
+    private boolean isPageRequested; // true while waiting on a page
+
+    /**
+     * CFM constructor.
+     *
+     * @param max most lines held
+     */
+    public ChatFeedModel(int max) {
+        super();
+        maxLines = max;
+        isKept = new ArrayDeque<Boolean>();
+        oldestOffset = -1;
+        isPageRequested = false;
+    }
+
+    /**
+     * adds a line to the bottom of the feed, letting the topmost line go if the
+     * feed is full.
+     *
+     * @param line text of the line
+     * @param kept true if the line is kept in the room's history
+     * @return number of lines let go from the top
+     */
+    public int addLine(String line, boolean kept) {
+        addElement(line);
+        isKept.addLast(kept);
+        int trimmed = 0;
+        while (size() > maxLines) {
+            remove(0);
+            if (isKept.removeFirst() && oldestOffset >= 0) {
+                oldestOffset++;
+            }
+            trimmed++;
+        }
+        return trimmed;
+    }
+
+    /**
+     * adds what was said before the user joined (see messages.ReplayMessage) to
+     * the bottom of the feed, under a heading, and starts scrolling back from
+     * there.
+     *
+     * @param heading heading shown above the lines (left out if there are none)
+     * @param lines   the lines, oldest first
+     * @param first   history offset of the first line (-1 if the room keeps no
+     *                    history)
+     * @return number of lines let go from the top
+     */
+    public int addReplay(String heading, List<String> lines, long first) {
+        int trimmed = 0;
+        if (!lines.isEmpty()) {
+            trimmed += addLine(heading, false);
+        }
+        oldestOffset = first;
+        for (String line : lines) {
+            trimmed += addLine(line, true);
+        }
+        return trimmed;
+    }
+
+    /**
+     * checks whether another page should be asked for; if so, takes note of it
+     * being asked for.
+     *
+     * @param pageLines lines a page holds
+     * @return history offset to ask for a page before, or -1 if no page is to
+     *         be asked for (one is on its way already, there is nothing older, or
+     *         there is no room for it)
+     */
+    public long requestPage(int pageLines) {
+        if (isPageRequested || oldestOffset <= 0 || size() + pageLines > maxLines) {
+            return -1;
+        }
+        isPageRequested = true;
+        return oldestOffset;
+    }
+
+    /**
+     * puts a page of older lines in just above the topmost kept line (or at the
+     * bottom of the feed, if there isn't one).
+     *
+     * @param lines the lines, oldest first
+     * @param first history offset of the first line (-1 if the room keeps no
+     *                  history)
+     * @return number of lines put in
+     */
+    public int addPage(List<String> lines, long first) {
+        isPageRequested = false;
+        if (first < 0) {
+            oldestOffset = -1;
+            return 0;
+        }
+        int at = 0;
+        Iterator<Boolean> kept = isKept.iterator();
+        while (kept.hasNext() && !kept.next()) {
+            at++;
+        }
+
+        ArrayDeque<Boolean> above = new ArrayDeque<Boolean>();
+        for (int i = 0; i < at; i++) {
+            above.addLast(isKept.removeFirst());
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            add(at + i, lines.get(i));
+            isKept.addFirst(true);
+        }
+        while (!above.isEmpty()) {
+            isKept.addFirst(above.removeLast());
+        }
+        oldestOffset = first;
+        return lines.size();
+    }
+}
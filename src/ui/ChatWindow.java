@@ -2,6 +2,7 @@ package ui;
 
 import io.user.UserOutputHandler;
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
@@ -10,6 +11,7 @@ import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.util.List;
 import javax.swing.BorderFactory;
 import javax.swing.DefaultListModel;
 import javax.swing.JButton;
@@ -17,9 +19,13 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JPanel;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.border.*;
+import messages.HistoryPageMessage;
 import misc.Constants;
+import misc.Signal;
 import misc.TimeStampGenerator;
 import net.ChatUser;
 import worker.ExitRoomWorker;
@@ -30,6 +36,8 @@ import worker.ExitRoomWorker;
  */
 public class ChatWindow extends JFrame {
 
+    private static final long serialVersionUID = 1L;
+
     private static final int CHAT_CELL_HEIGHT = 15; // number of rows
     private static final Font CHAT_PLACEHOLDER_FONT = new Font("Serif", Font.ITALIC, 14);
     private static final Font CHAT_TYPING_FONT = new Font("Serif", Font.PLAIN, 14);
@@ -38,12 +46,15 @@ public class ChatWindow extends JFrame {
     private static final String CHAT_PLACEHOLDER_STR = "Enter message here...";
     private static final int CHAT_WINDOW_WIDTH = 600;
     private static final int CHAT_WINDOW_HEIGHT = 400;
+    private static final int CHAT_FEED_MAX_LINES = 1000; // most lines kept in the chat feed
+    private static final int CHAT_PAGE_LINES = 50; // lines asked for at a time when scrolling back
 
     private String sessionID; // id unique to this session.
     private JPanel chatPanel; // panel of the chat window.
 
     // Variables with dynamic data below...
     private JList<String> chatFeed; // chat message history.
+    private JScrollPane chatFeedScroller; // scrolls the chat feed (and scrolling to its top loads older lines).
     private JTextField chatTextField; // where outgoing messages can be entered.
     private JButton sendMsgButton; // button used to send a message.
     private JButton exitButton; // button used to exit the chat.
@@ -51,11 +62,11 @@ public class ChatWindow extends JFrame {
     private JLabel participantListLabel; // simple participant list label.
 
     private DefaultListModel<String> participantListModel;
-    private DefaultListModel<String> chatFeedModel;
+    private ChatFeedModel chatFeedModel;
 
     private ChatUser chatUser; // user to which this chat window is dedicated.
     private UserOutputHandler outputHandler; // handles user-generated output events (i.e., sending a message)
-    private final Object messageEventNotifier = new Object(); // notify this to trigger sending of a message
+    private final Signal messageEventNotifier = new Signal(); // signal this to trigger sending of a message
 
     /**
      * constructor for the chat window.
@@ -75,9 +86,10 @@ public class ChatWindow extends JFrame {
 
         // instantiating objects
         participantListModel = new DefaultListModel<>();
-        chatFeedModel = new DefaultListModel<>();
+        chatFeedModel = new ChatFeedModel(CHAT_FEED_MAX_LINES);
         chatPanel = new JPanel();
         chatFeed = new JList<String>(chatFeedModel);
+        chatFeedScroller = new JScrollPane(chatFeed);
         chatTextField = new JTextField("", CHAT_TEXTBOX_WIDTH);
         sendMsgButton = new JButton("Send");
         exitButton = new JButton("Exit");
@@ -169,11 +181,23 @@ public class ChatWindow extends JFrame {
         Border lineBorder = BorderFactory.createLineBorder(Color.BLACK);
         TitledBorder titledBorder = BorderFactory.createTitledBorder(lineBorder, "Chat Feed");
         titledBorder.setTitleJustification(TitledBorder.ABOVE_TOP);
-        chatFeed.setBorder(titledBorder);
-        chatFeed.setVisibleRowCount(-1);
+        chatFeedScroller.setBorder(titledBorder);
+        chatFeedScroller.setPreferredSize(new Dimension(0, 0)); // sized by its constraints' weights alone
         chatFeed.setSelectionBackground(Color.WHITE);
         chatFeed.setSelectionForeground(Color.BLACK);
 
+        /**
+         * scrolling all the way up asks the room for what was said before the top
+         * line (see ChatFeedModel), which is then put in above it.
+         */
+        JScrollBar feedScrollBar = chatFeedScroller.getVerticalScrollBar();
+        feedScrollBar.addAdjustmentListener(e -> {
+            if (e.getValue() == feedScrollBar.getMinimum()
+                            && feedScrollBar.getMaximum() > feedScrollBar.getVisibleAmount()) {
+                requestOlderLines();
+            }
+        });
+
         chatTextField.setText(CHAT_PLACEHOLDER_STR);
         chatTextField.setForeground(Color.LIGHT_GRAY);
         chatTextField.setFont(CHAT_PLACEHOLDER_FONT);
@@ -251,15 +275,19 @@ public class ChatWindow extends JFrame {
                 return;
             }
             String timestamp = TimeStampGenerator.now();
-            String selfMsg = "[" + timestamp + "]" + " You: " + msgText;
-            addLineToFeed(selfMsg);
-
-            synchronized (messageEventNotifier) {
-                messageEventNotifier.notify();
+            if (msgText.startsWith(Constants.SEARCH_COMMAND)) {
+                // searches only go to the room's history, not to everyone in it (see UserOutputHandler).
+                addLineToFeed("[" + timestamp + "]" + " You searched for: "
+                                + msgText.substring(Constants.SEARCH_COMMAND.length()));
+            } else {
+                String selfMsg = "[" + timestamp + "]" + " You: " + msgText;
+                addLineToFeed(selfMsg, true);
             }
+
+            messageEventNotifier.signal();
         });
 
-        chatPanel.add(chatFeed, chatFeedConstraints);
+        chatPanel.add(chatFeedScroller, chatFeedConstraints);
         chatPanel.add(chatTextField, textFieldConstraints);
         chatPanel.add(sendMsgButton, sendMsgButtonConstraints);
         chatPanel.add(exitButton, exitButtonConstraints);
@@ -277,8 +305,90 @@ public class ChatWindow extends JFrame {
      * @param line text to be added.
      */
     public void addLineToFeed(String line) {
-        chatFeedModel.addElement(line);
-        chatFeed.ensureIndexIsVisible(chatFeedModel.size());
+        addLineToFeed(line, false);
+    }
+
+    /**
+     * method used to add a line of text to the chat feed. The feed follows along
+     * unless the user has scrolled back.
+     * 
+     * @param line   text to be added.
+     * @param isKept true if the line is kept in the room's history (i.e., it was
+     *                   broadcast to the room).
+     */
+    public void addLineToFeed(String line, boolean isKept) {
+        boolean isFollowing = isFollowingFeed();
+        int trimmed = chatFeedModel.addLine(line, isKept);
+        keepFeedInView(isFollowing, -trimmed);
+    }
+
+    /**
+     * adds what was said in the room before we joined to the chat feed, under a
+     * heading; we can scroll back from there.
+     * 
+     * @param heading heading shown above the lines (left out if there are none).
+     * @param lines   the lines, oldest first.
+     * @param first   history offset of the first line (-1 if the room keeps no
+     *                    history).
+     */
+    public void addReplayToFeed(String heading, List<String> lines, long first) {
+        boolean isFollowing = isFollowingFeed();
+        int trimmed = chatFeedModel.addReplay(heading, lines, first);
+        keepFeedInView(isFollowing, -trimmed);
+    }
+
+    /**
+     * puts a page of older lines, asked for as we scrolled back, into the chat
+     * feed above what we were looking at, without moving the view.
+     * 
+     * @param lines the lines, oldest first.
+     * @param first history offset of the first line (-1 if the room keeps no
+     *                  history).
+     */
+    public void addPageToFeed(List<String> lines, long first) {
+        boolean isFollowing = isFollowingFeed();
+        int added = chatFeedModel.addPage(lines, first);
+        keepFeedInView(isFollowing, added);
+    }
+
+    /**
+     * asks the room for the lines before the top of the chat feed, if there are
+     * any and there's room for them (see ChatFeedModel).
+     */
+    private void requestOlderLines() {
+        long before = chatFeedModel.requestPage(CHAT_PAGE_LINES);
+        if (before > 0) {
+            chatUser.pushOutgoingMessage(new HistoryPageMessage(chatUser.getAlias(), chatUser.getCurrentRoomName(),
+                            before, CHAT_PAGE_LINES));
+        }
+    }
+
+    /**
+     * checks whether the chat feed is scrolled all the way down.
+     * 
+     * @return true if the latest line is in view.
+     */
+    private boolean isFollowingFeed() {
+        JScrollBar bar = chatFeedScroller.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum();
+    }
+
+    /**
+     * scrolls the chat feed after lines have been added to (or let go from) it:
+     * down to the latest line if we were following along, and otherwise so that
+     * whatever we were looking at stays put.
+     * 
+     * @param wasFollowing true if the feed was scrolled all the way down.
+     * @param shifted      lines added (or, if negative, let go) above the view.
+     */
+    private void keepFeedInView(boolean wasFollowing, int shifted) {
+        if (wasFollowing) {
+            chatFeed.ensureIndexIsVisible(chatFeedModel.size() - 1);
+        } else if (shifted != 0) {
+            chatFeedScroller.validate(); // so the scroll bar knows of the new lines.
+            JScrollBar bar = chatFeedScroller.getVerticalScrollBar();
+            bar.setValue(bar.getValue() + shifted * CHAT_CELL_HEIGHT);
+        }
         chatFeed.requestFocus();
     }
 
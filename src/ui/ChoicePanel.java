@@ -18,6 +18,8 @@ import main.ApplicationState;
  */
 public class ChoicePanel extends JPanel {
 
+    private static final long serialVersionUID = 1L;
+
     private JButton joinRoomButton;
     private JButton createRoomButton;
     private final Font buttonFont = new Font("Serif", Font.BOLD, 24);
@@ -18,6 +18,8 @@ import misc.ValidateInput;
  * First panel that is seen upon starting Chatter.
  */
 public class LoginPanel extends JPanel {
+
+    private static final long serialVersionUID = 1L;
     private final static int ALIAS_FIELD_WIDTH = 20; // width of alias text field in columns (?)
 
     private JLabel welcomeLabel;
@@ -14,6 +14,8 @@ import java.awt.CardLayout;
  */
 public class MainWindow extends JFrame {
 
+    private static final long serialVersionUID = 1L;
+
     private JPanel cardStack;
     private CardLayout layout;
 
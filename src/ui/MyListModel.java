@@ -8,8 +8,11 @@ import java.util.ArrayList;
  * 
  *             instead, RoomSelectTable simply uses a DefaultListModel.
  */
+@Deprecated
 public class MyListModel extends DefaultListModel<String> {
 
+    private static final long serialVersionUID = 1L;
+
     private ArrayList<String> elements;
 
     MyListModel() {
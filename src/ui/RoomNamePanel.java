@@ -29,6 +29,8 @@ import misc.ValidateInput;
  */
 public class RoomNamePanel extends JPanel {
 
+    private static final long serialVersionUID = 1L;
+
     private final static int ROOM_NAMING_FIELD_WIDTH = 20;
     private final static String WARNING_TEXT = "Name may not include any special characters & can be 2-16 characters long!";
 
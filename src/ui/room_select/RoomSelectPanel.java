@@ -1,13 +1,17 @@
 package ui.room_select;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JSpinner;
+import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingUtilities;
-import javax.swing.Timer;
 import javax.swing.event.ListSelectionListener;
-import javax.swing.table.DefaultTableModel;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.JScrollPane;
 
@@ -19,33 +23,54 @@ import java.awt.Insets;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 
 import main.ApplicationState;
+import messages.FindRoomsMessage;
 import messages.ListRoomsMessage;
+import messages.LookupRoomMessage;
+import messages.Message;
 import main.AppStateValue;
 import misc.PanelNames;
-import misc.SharedValidateNotifier;
 import misc.ValidateInput;
 import net.ChatUser;
+import net.RegistryChannel;
+import net.RoomLookupCache;
 import worker.JoinRoomWorker;
 import misc.Constants;
 
 /**
- * Panel that shows chat rooms available for joining.
+ * Panel that shows chat rooms available for joining, one page at a time. Rooms
+ * can be searched for by name (or, with a "host:" query, by host alias),
+ * filtered by guest count and sorted by name, size or activity; the Registry
+ * does the searching (see FindRoomsMessage).
  */
 public class RoomSelectPanel extends JPanel {
 
+    private static final long serialVersionUID = 1L;
+
+    // sort order names, indexed by FindRoomsMessage.SORT_ constant
+    private static final String[] SORT_ORDERS = { "Name", "Size", "Activity" };
+
     private JButton backButton; // press to go to previous screen
     private JButton refreshButton; // press to refresh the list of rooms
     private JButton joinButton; // press to join a selected room
+    private JButton searchButton; // press to search for rooms
+    private JTextField searchField; // text to search room names (or, after "host:", host aliases) for
+    private JCheckBox anywhereBox; // checked to match the text anywhere, not just at the start
+    private JSpinner minGuestsSpinner; // fewest guests a room may have
+    private JSpinner maxGuestsSpinner; // most guests a room may have (0 for no limit)
+    private JComboBox<String> sortBox; // order to list rooms in
     private JScrollPane tablePane; // contains the room table
-    private JPanel refreshJoinPanel; // panel containing the refresh & join buttons
+    private JPanel refreshJoinPanel; // panel containing the paging, refresh & join buttons
+    private JPanel searchPanel; // panel containing the search controls
 
     private static RoomSelectTable table; // displays all the room selection data
+    private static RoomLookupCache lookups; // recent lookups of rooms we've tried to join
+    private static JButton prevButton; // press to go back a page
+    private static JButton nextButton; // press to go on to the next page
     private static Object workerNotifier; // notifies RoomsListFetcher for a "refresh"
     private ApplicationState appState; // interacted with on particular button presses.
 
@@ -54,26 +79,13 @@ public class RoomSelectPanel extends JPanel {
     private Object mainAppNotifier; // used to notify main() in ChatterApp.java
 
     /**
-     * name of the room currently selected (may or may not still exist) before
-     * joining a room, we perform one last refresh and cross-reference the selected
-     * room name with the results returned to ensure the selected room hasn't been
-     * closed, which could happen in cases where the rooms list wasn't refreshed
-     * before attempting to join.
+     * name of the room currently selected (may or may not still exist). Before
+     * joining a room, we cross-reference the selected room name with the latest
+     * listings to ensure the selected room hasn't been closed.
      */
     private static String selectedRoomName;
 
-    private static String selectedConnectInfo; // used to establish connection (JoinRoomWorker)
-
-    /**
-     * synchronicity object shared with RoomsListFetcher consisting of two flags.
-     * not all refreshes require validation of the selected room, and so this object
-     * provides two flags:
-     * 
-     * i) flag 1 allows the panel to communicate the need for a room validation.
-     * 
-     * ii) flag 2 allows RoomsListFetcher to commmunicate validation results.
-     */
-    private static SharedValidateNotifier svn;
+    private static String selectedConnectInfo; // connect info of the selected room, as listed
 
     /**
      * constructor for RSP
@@ -88,10 +100,10 @@ public class RoomSelectPanel extends JPanel {
         appState = state;
 
         table = new RoomSelectTable();
+        lookups = new RoomLookupCache();
         workerNotifier = new Object();
-        svn = new SharedValidateNotifier();
 
-        roomsListFetcher = new RoomsListFetcher(workerNotifier, svn);
+        roomsListFetcher = new RoomsListFetcher(workerNotifier);
         userRef = user;
         mainAppNotifier = appLock;
         selectedRoomName = "";
@@ -101,13 +113,38 @@ public class RoomSelectPanel extends JPanel {
         backButton = new JButton("Back");
         refreshButton = new JButton("Refresh");
         joinButton = new JButton("Join");
+        prevButton = new JButton("< Prev");
+        nextButton = new JButton("Next >");
         refreshJoinPanel = new JPanel();
+        refreshJoinPanel.add(prevButton);
+        refreshJoinPanel.add(nextButton);
         refreshJoinPanel.add(refreshButton);
         refreshJoinPanel.add(joinButton);
         refreshButton.setAlignmentY(Component.BOTTOM_ALIGNMENT);
         joinButton.setAlignmentY(Component.BOTTOM_ALIGNMENT);
 
         joinButton.setEnabled(false);
+        prevButton.setEnabled(false);
+        nextButton.setEnabled(false);
+
+        searchField = new JTextField(16);
+        searchField.setToolTipText("Room name; start with \"host:\" to search by host instead");
+        anywhereBox = new JCheckBox("Anywhere");
+        minGuestsSpinner = new JSpinner(new SpinnerNumberModel(0, 0, Integer.MAX_VALUE, 1));
+        maxGuestsSpinner = new JSpinner(new SpinnerNumberModel(0, 0, Integer.MAX_VALUE, 1));
+        maxGuestsSpinner.setToolTipText("0 for no limit");
+        sortBox = new JComboBox<String>(SORT_ORDERS);
+        searchButton = new JButton("Search");
+        searchPanel = new JPanel();
+        searchPanel.add(searchField);
+        searchPanel.add(anywhereBox);
+        searchPanel.add(new JLabel("Guests"));
+        searchPanel.add(minGuestsSpinner);
+        searchPanel.add(new JLabel("to"));
+        searchPanel.add(maxGuestsSpinner);
+        searchPanel.add(new JLabel("Sort by"));
+        searchPanel.add(sortBox);
+        searchPanel.add(searchButton);
 
         this.setLayout(new GridBagLayout());
         GridBagConstraints constraints = new GridBagConstraints();
@@ -122,6 +159,15 @@ public class RoomSelectPanel extends JPanel {
         constraints.weighty = 0.5;
         this.add(tablePane, constraints);
 
+        constraints.gridx = 0;
+        constraints.gridy = 0;
+        constraints.gridwidth = 5;
+        constraints.gridheight = 1;
+        constraints.fill = GridBagConstraints.NONE;
+        constraints.anchor = GridBagConstraints.FIRST_LINE_START;
+        constraints.insets = new Insets(4, 10, 0, 10);
+        this.add(searchPanel, constraints);
+
         constraints.gridx = 0;
         constraints.gridy = 3;
         constraints.gridwidth = 1;
@@ -166,18 +212,25 @@ public class RoomSelectPanel extends JPanel {
             }
         });
 
+        /**
+         * the rooms on the page update themselves as they change, so refreshing is
+         * rarely needed; it fetches the page afresh (picking up rooms opened since),
+         * and resumes live updates should the connection to the Registry have dropped.
+         */
         refreshButton.addActionListener(e -> {
-            refreshButton.setEnabled(false);
-            synchronized (workerNotifier) {
-                workerNotifier.notify();
-            }
+            roomsListFetcher.requestRefresh();
+        });
+
+        searchButton.addActionListener(e -> search());
+        searchField.addActionListener(e -> search());
+        sortBox.addActionListener(e -> search());
 
-            Timer timer = new Timer(3000, event -> {
-                // re-enable "Refresh" capability after 7.5 seconds
-                refreshButton.setEnabled(true);
-            });
-            timer.setRepeats(false);
-            timer.start();
+        prevButton.addActionListener(e -> {
+            roomsListFetcher.previousPage();
+        });
+
+        nextButton.addActionListener(e -> {
+            roomsListFetcher.nextPage();
         });
 
         joinButton.addActionListener(e -> {
@@ -197,13 +250,11 @@ public class RoomSelectPanel extends JPanel {
              */
             new Thread() {
                 public void run() {
+                    roomsListFetcher.stopWatching();
                     roomsListFetcher.clearListingCache();
                     SwingUtilities.invokeLater(new Runnable() {
                         public void run() {
-                            DefaultTableModel model = (DefaultTableModel) table.getModel();
-                            while (model.getRowCount() > 0) {
-                                model.removeRow(model.getRowCount() - 1);
-                            }
+                            table.clearEntries();
                         }
                     });
                     appState.setAppState(AppStateValue.CHOICE_PANEL);
@@ -216,6 +267,15 @@ public class RoomSelectPanel extends JPanel {
         });
     }
 
+    /**
+     * starts a new search with what's in the search controls, from the first page.
+     */
+    private void search() {
+        int match = anywhereBox.isSelected() ? FindRoomsMessage.MATCH_SUBSTRING : FindRoomsMessage.MATCH_PREFIX;
+        roomsListFetcher.search(searchField.getText().trim(), match, (Integer) minGuestsSpinner.getValue(),
+                        (Integer) maxGuestsSpinner.getValue(), sortBox.getSelectedIndex());
+    }
+
     /**
      * clears all listing data local to this client, both within the model & the
      * RoomsListFetch worker.
@@ -224,63 +284,55 @@ public class RoomSelectPanel extends JPanel {
         roomsListFetcher.clearListingCache();
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
-                DefaultTableModel model = (DefaultTableModel) table.getModel();
-                while (model.getRowCount() > 0) {
-                    model.removeRow(model.getRowCount() - 1);
-                }
+                table.clearEntries();
             }
         });
     }
 
     /**
      * instantiates and starts the thread responsible for populating the rooms list
-     * table. This persistent thread worker also handles refresh requests.
+     * table. This persistent thread worker also handles refresh requests, and keeps
+     * the table up to date as rooms change.
      */
     public void populateRoomsList() {
         if (!roomsListFetcher.isAlive()) {
-            roomsListFetcher = new RoomsListFetcher(workerNotifier, svn);
+            roomsListFetcher = new RoomsListFetcher(workerNotifier);
             roomsListFetcher.start();
         } else {
-            synchronized (workerNotifier) {
-                workerNotifier.notify();
-            }
+            roomsListFetcher.requestRefresh();
         }
 
     }
 
     /**
      * validation method for ensuring that the selected room indeed exists before we
-     * attempt to join. Achieved with a quick pre-join refresh and simple room name
-     * comparison.
+     * attempt to join. The room is looked up on the Registry by name (a single,
+     * small round trip), unless it was looked up a moment ago; the lookup also
+     * brings the room's connect info up to date.
      * 
      * @param selectedRoomName name of the room selected in the room list
      */
     public void attemptRoomJoin(String selectedRoomName) {
-        String ipPortString = selectedConnectInfo;
-
-        synchronized (svn) {
-            svn.toggleRequest();
-        }
-        synchronized (workerNotifier) {
-            workerNotifier.notify();
-            try {
-                workerNotifier.wait();
-            } catch (Exception e) {
-                System.out.println("RSP error waiting on RLF --> " + e.getMessage());
-            }
+        LookupRoomMessage room;
+        try {
+            room = lookups.lookup(selectedRoomName);
+        } catch (IOException e) {
+            System.out.println("RSP Error in communicating with Registry --> " + e.getMessage());
+            String dialogMessage = "The Registry could not be reached. Please try again.";
+            JOptionPane.showMessageDialog(null, dialogMessage, "Registry Unreachable", JOptionPane.WARNING_MESSAGE);
+            return;
         }
 
         // if we haven't found the room, alert the user and abort room joining.
-        synchronized (svn) {
-            if (!svn.readSuccessful()) {
-                String dialogMessage = "The room selected is no longer in existence.";
-                JOptionPane.showMessageDialog(null, dialogMessage, "Room Disbanded", JOptionPane.WARNING_MESSAGE);
-                svn.reset();
-                return;
-            }
-            svn.reset();
+        if (!room.isOpen()) {
+            String dialogMessage = "The room selected is no longer in existence.";
+            JOptionPane.showMessageDialog(null, dialogMessage, "Room Disbanded", JOptionPane.WARNING_MESSAGE);
+            return;
         }
-        JoinRoomWorker jrw = new JoinRoomWorker(ipPortString, userRef, selectedRoomName, mainAppNotifier, appState);
+        // live updates resume (by way of populateRoomsList()) if we end up back here.
+        roomsListFetcher.stopWatching();
+        JoinRoomWorker jrw = new JoinRoomWorker(room.getConnectInfo(), userRef, selectedRoomName, mainAppNotifier,
+                        appState);
         jrw.start();
     }
 
@@ -288,147 +340,295 @@ public class RoomSelectPanel extends JPanel {
      * this class is responsible for fetching rooms list data from the Registry,
      * which will then be used to populate the featured table with room listing
      * data.
+     *
+     * Rooms are fetched a page at a time, by search (see FindRoomsMessage); the
+     * Registry hands back a cursor with each page, for the next one to be asked
+     * for with. The cursors of the pages before this one are kept, so we can go
+     * back too.
+     *
+     * Every fetch also asks the Registry to keep pushing changes to the rooms on
+     * the page to us as they are joined, left and closed (see net.RoomWatchers);
+     * these come in on the shared RegistryChannel's reader thread. The rows of
+     * rooms that change are updated where they are, rooms that close are taken off
+     * the page, and rooms opened elsewhere are left for the next fetch to pick up.
+     * Should a pushed batch not follow on from the listings we have (say, one went
+     * missing), the page is fetched again to catch up.
      */
     private static class RoomsListFetcher extends Thread {
         private volatile boolean isRunning; // flag used to signal when work is complete
+        private volatile boolean isWatching; // true while we want changes pushed to us
         private Object workerNotify; // notified on for critical tasks or exit signals
-        private ArrayList<String> csvRoomDataObjs; // used for a point of reference when refreshing
-
-        private Socket socket; // socket used for Registry communication
-        private ObjectInputStream in; // input stream
-        private ObjectOutputStream out; // output stream
-
-        private SharedValidateNotifier svn; // shared validation notifier
+        private boolean isRefreshRequested; // true if a refresh is due; guarded by workerNotify
+        private LinkedHashMap<String, String> csvByRoom; // rooms on the page, room name -> CSV
+        private long listingVersion; // directory version of the page (0 if we have none); guarded by csvByRoom
+
+        // the search, and where we are in its results; all guarded by workerNotify.
+        private String query; // text searched for
+        private int matchMode; // FindRoomsMessage.MATCH_PREFIX or MATCH_SUBSTRING
+        private int minGuests; // fewest guests a room may have
+        private int maxGuests; // most guests a room may have (0 for no limit)
+        private int sortOrder; // one of the FindRoomsMessage.SORT_ constants
+        private String pageCursor; // cursor the page starts after (null for the first page)
+        private String nextCursor; // cursor the next page starts after (null if there are no more)
+        private ArrayList<String> earlierCursors; // cursors of the pages before this one, first page first
+        private int pageRequests; // bumped whenever a different page is asked for
 
         /**
          * constructor for RLF.
-         * 
-         * @param rn    the object by which we will wait for refresh requests
-         * @param svn__ shared validation notifier
+         *
+         * @param rn the object by which we will wait for refresh requests
          */
-        public RoomsListFetcher(Object rn, SharedValidateNotifier svn__) {
+        public RoomsListFetcher(Object rn) {
             isRunning = false;
+            isWatching = false;
             workerNotify = rn;
-            csvRoomDataObjs = new ArrayList<String>();
-            socket = null;
-            in = null;
-            out = null;
-            svn = svn__;
+            isRefreshRequested = false;
+            csvByRoom = new LinkedHashMap<String, String>();
+            listingVersion = 0;
+            query = "";
+            matchMode = FindRoomsMessage.MATCH_PREFIX;
+            minGuests = 0;
+            maxGuests = 0;
+            sortOrder = FindRoomsMessage.SORT_NAME;
+            pageCursor = null;
+            nextCursor = null;
+            earlierCursors = new ArrayList<String>();
+            pageRequests = 0;
         }
 
         /**
-         * clears the local storage of room listing CSV objects.
+         * clears the local storage of room listing CSV objects, and goes back to the
+         * first page (of the same search).
          */
         public void clearListingCache() {
-            csvRoomDataObjs.clear();
+            synchronized (workerNotify) {
+                pageCursor = null;
+                nextCursor = null;
+                earlierCursors.clear();
+                pageRequests++;
+            }
+            synchronized (csvByRoom) {
+                csvByRoom.clear();
+                listingVersion = 0;
+            }
         }
 
         /**
-         * this method pertains to servicing a refresh request for the list of rooms.
-         * 
-         * @param in  input reader
-         * @param out output writer
-         * @throws IOException
-         * @throws NumberFormatException
+         * asks for the page to be refreshed (and for changes to be pushed to us from
+         * then on).
          */
-        public void serviceRefreshRequest() {
+        public void requestRefresh() {
+            synchronized (workerNotify) {
+                isRefreshRequested = true;
+                workerNotify.notify();
+            }
+        }
 
-            Object obj = null;
-            try {
-                socket = new Socket(Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
+        /**
+         * starts a new search, from the first page.
+         *
+         * @param text  text to search for ("" for every room)
+         * @param match FindRoomsMessage.MATCH_PREFIX or MATCH_SUBSTRING
+         * @param min   fewest guests a room may have
+         * @param max   most guests a room may have (0 for no limit)
+         * @param sort  one of the FindRoomsMessage.SORT_ constants
+         */
+        public void search(String text, int match, int min, int max, int sort) {
+            synchronized (workerNotify) {
+                query = text;
+                matchMode = match;
+                minGuests = min;
+                maxGuests = max;
+                sortOrder = sort;
+                pageCursor = null;
+                nextCursor = null;
+                earlierCursors.clear();
+                pageRequests++;
+                requestRefresh();
+            }
+        }
 
-                ListRoomsMessage requestMessage = new ListRoomsMessage();
-                out.writeObject(requestMessage);
-                out.flush();
-                obj = in.readObject();
+        /**
+         * moves on to the next page, if there is one.
+         */
+        public void nextPage() {
+            synchronized (workerNotify) {
+                if (nextCursor == null) {
+                    return;
+                }
+                earlierCursors.add(pageCursor);
+                pageCursor = nextCursor;
+                nextCursor = null;
+                pageRequests++;
+                requestRefresh();
+            }
+        }
 
-            } catch (Exception e) {
-                System.out.println("RLF Error in communicating with Registry --> " + e.getMessage());
+        /**
+         * goes back a page, if there is one.
+         */
+        public void previousPage() {
+            synchronized (workerNotify) {
+                if (earlierCursors.isEmpty()) {
+                    return;
+                }
+                pageCursor = earlierCursors.remove(earlierCursors.size() - 1);
+                nextCursor = null;
+                pageRequests++;
+                requestRefresh();
             }
+        }
 
-            ListRoomsMessage response = ValidateInput.validateListRoomsMessage(obj);
-            ArrayList<String> latestListings = response.getListings();
+        /**
+         * asks the Registry to stop pushing changes to us. We don't wait around for the
+         * answer.
+         */
+        public void stopWatching() {
+            isWatching = false;
+            long knownVersion;
+            synchronized (csvByRoom) {
+                knownVersion = listingVersion;
+            }
+            RegistryChannel.getShared().send(new ListRoomsMessage(knownVersion, ListRoomsMessage.WATCH_STOP));
+        }
 
-            if (latestListings.size() == 0) {
-                // edge case: if true, just clear the model & list.
-                DefaultTableModel model = (DefaultTableModel) table.getModel();
+        /**
+         * fetches a page of rooms from the Registry.
+         *
+         * @param request the search, and the cursor the page starts after
+         * @return the Registry's response, carrying the page
+         * @throws IOException if the Registry could not be reached
+         */
+        private FindRoomsMessage fetchPage(FindRoomsMessage request) throws IOException {
+            Object obj = RegistryChannel.getShared().request(request);
+            return ValidateInput.validateFindRoomsMessage(obj);
+        }
 
-                try {
-                    SwingUtilities.invokeLater(new Runnable() {
-                        public void run() {
-                            while (table.getModel().getRowCount() > 0) {
-                                ((DefaultTableModel) table.getModel()).removeRow(model.getRowCount() - 1);
-                            }
-                        }
-                    });
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        /**
+         * this method pertains to servicing a refresh request for the list of rooms.
+         * The page is fetched afresh, and changes to the rooms on it are pushed to us
+         * from the version it was taken from on.
+         */
+        public void serviceRefreshRequest() {
+            FindRoomsMessage request;
+            int pageRequest;
+            synchronized (workerNotify) {
+                request = new FindRoomsMessage(query, matchMode, minGuests, maxGuests, sortOrder, pageCursor,
+                                Constants.ROOM_SELECT_PAGE_SIZE);
+                pageRequest = pageRequests;
             }
+            request.setWatchRequest(ListRoomsMessage.WATCH_START);
+            isWatching = true;
 
-            csvRoomDataObjs.clear();
             try {
-                System.out.println("waiting for table updates to occur..");
-                sleep(750);
-            } catch (Exception e) {
-                e.printStackTrace();
+                FindRoomsMessage page = fetchPage(request);
+                synchronized (workerNotify) {
+                    if (pageRequest != pageRequests) {
+                        return; // a different page has been asked for since; it's on its way.
+                    }
+                    nextCursor = page.getNextCursor();
+                    showPage(page, !earlierCursors.isEmpty(), nextCursor != null);
+                }
+            } catch (IOException e) {
+                System.out.println("RLF Error in communicating with Registry --> " + e.getMessage());
             }
+        }
 
-            /**
-             * at this point, we have the current set of rooms; now we can compare with the
-             * local CSV ArrayList and update the table's model accordingly.
-             */
-            int i = 0, j = 0, csvLen = csvRoomDataObjs.size(), latestLen = latestListings.size();
-
-            while (i < csvLen && j < latestLen) {
-                if (csvRoomDataObjs.get(i).equals(latestListings.get(j))) {
-                    i++;
-                    j++;
-                } else {
-                    /*
-                     * A mismatch tells us that a room removal has occurred. We know this, because
-                     * any additions would be added to the end.
-                     */
-
-                    table.removeEntry(i);
-                    csvRoomDataObjs.remove(i);
+        /**
+         * puts a freshly fetched page in the table.
+         *
+         * @param page    the Registry's response, carrying the page
+         * @param hasPrev true if there's a page before this one
+         * @param hasNext true if there's a page after this one
+         */
+        private void showPage(FindRoomsMessage page, boolean hasPrev, boolean hasNext) {
+            synchronized (csvByRoom) {
+                csvByRoom.clear();
+                for (String csv : page.getListings()) {
+                    csvByRoom.put(ListRoomsMessage.roomNameOf(csv), csv);
                 }
+                listingVersion = page.getDirectoryVersion();
+
+                // queued up while still holding the lock, so the table sees changes in the same order.
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        table.replaceEntries(page.getListings());
+                        prevButton.setEnabled(hasPrev);
+                        nextButton.setEnabled(hasNext);
+                    }
+                });
+            }
+        }
+
+        /**
+         * handles a Message pushed by the Registry. Runs on the RegistryChannel's
+         * reader thread.
+         *
+         * @param msg the pushed Message
+         */
+        private void onPush(Message msg) {
+            if (!isWatching || !(msg instanceof ListRoomsMessage)) {
+                return;
             }
-            // add any newly added rooms caught by the refresh.
-            while (j < latestLen) {
-                String[] newEntry = latestListings.get(j).split(",");
-                table.addEntry(newEntry);
-                csvRoomDataObjs.add(latestListings.get(j));
-                j++;
+            if (!apply((ListRoomsMessage) msg)) {
+                requestRefresh(); // we've missed something; catch up.
             }
-            // room listings refresh complete.
-
-            synchronized (svn) {
-                // enter here if a room validation has been requested.
-                if (svn.readRequested()) {
-                    /**
-                     * we start from the selected row and search backwards, because if it isn't at
-                     * its current index, it either A) no longer exists, or B) 1 or more rooms that
-                     * were created before it were removed, bumping the room of concern to an index
-                     * position closer to 0 in the list of rooms.
-                     */
-                    i = table.getSelectedRow();
-                    while (i >= 0) {
-                        String roomName = (String) table.getModel().getValueAt(i, Constants.ROOM_NAME_TABLE_COLUMN);
-
-                        // if we find a match, mark successful and break. Flag stays false otherwise.
-                        if (selectedRoomName.equals(roomName)) {
-                            svn.markAsSuccessful();
-                            break;
+        }
+
+        /**
+         * brings the rooms on the page, and the table, up to date with the Registry's
+         * response (or pushed changes). Rooms not on the page are passed over.
+         *
+         * @param response the Registry's response
+         * @return false if the response doesn't follow on from the page we have
+         */
+        private boolean apply(ListRoomsMessage response) {
+            synchronized (csvByRoom) {
+                if (!response.appliesTo(listingVersion)) {
+                    return response.getVersion() <= listingVersion; // stale is fine; a gap isn't.
+                }
+                listingVersion = response.getVersion();
+
+                ArrayList<String> changed = new ArrayList<String>();
+                ArrayList<String> removed = new ArrayList<String>();
+                HashSet<String> listed = new HashSet<String>(); // rooms on the page found in full listings
+                for (String csv : response.getListings()) {
+                    String roomName = ListRoomsMessage.roomNameOf(csv);
+                    if (csvByRoom.containsKey(roomName)) {
+                        lookups.invalidate(roomName);
+                        csvByRoom.put(roomName, csv);
+                        changed.add(csv);
+                        listed.add(roomName);
+                    }
+                }
+                if (response.isDelta()) {
+                    for (String roomName : response.getRemovedRooms()) {
+                        if (csvByRoom.remove(roomName) != null) {
+                            lookups.invalidate(roomName);
+                            removed.add(roomName);
                         }
-                        i--;
                     }
-                    synchronized (workerNotifier) {
-                        workerNotifier.notify();
+                } else {
+                    // full listings; whichever rooms on the page aren't in them have closed.
+                    for (String roomName : csvByRoom.keySet()) {
+                        if (!listed.contains(roomName)) {
+                            lookups.invalidate(roomName);
+                            removed.add(roomName);
+                        }
                     }
+                    csvByRoom.keySet().removeAll(removed);
                 }
+                if (changed.isEmpty() && removed.isEmpty()) {
+                    return true;
+                }
+
+                // queued up while still holding the lock, so the table sees changes in the same order.
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        table.applyChanges(changed, removed);
+                    }
+                });
+                return true;
             }
         }
 
@@ -436,42 +636,19 @@ public class RoomSelectPanel extends JPanel {
          * this thread's main line of execution.
          */
         public void run() {
-            Object obj = null;
-
             isRunning = true;
-            try {
-                socket = new Socket(Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
-                // NOTE order of constructor calls is crucial here! Reference ChatUser.java for
-                // more details.
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
-
-                ListRoomsMessage requestMessage = new ListRoomsMessage();
-                out.writeObject(requestMessage);
-                out.flush();
-
-                // expected response is a ListRoomsMessage, equipped with a serialized list of
-                // CSV-style room listings.
-                // NOTE format of the CSV-style room listings is outlined closely in
-                // ListRoomsMessage.java
-                obj = in.readObject();
-            } catch (Exception e) {
-                System.out.println("RoomsListFetcher Error --> " + e.getMessage());
-            }
-
-            ListRoomsMessage response = ValidateInput.validateListRoomsMessage(obj);
-            for (String csvListing : response.getListings()) {
-                String[] listingArgs = csvListing.split(",");
-                table.addEntry(listingArgs);
-                csvRoomDataObjs.add(csvListing);
-            }
+            RegistryChannel.getShared().setPushListener(this::onPush);
+            serviceRefreshRequest();
 
             // principal list fetch complete; wait on user for additional RoomListing (i.e.,
             // Refresh) requests.
             while (true) {
                 try {
                     synchronized (workerNotify) {
-                        workerNotify.wait();
+                        while (!isRefreshRequested && isRunning) {
+                            workerNotify.wait();
+                        }
+                        isRefreshRequested = false;
                     }
                 } catch (Exception e) {
                     System.out.println("RLF Error waiting for work --> " + e.getMessage());
@@ -483,14 +660,7 @@ public class RoomSelectPanel extends JPanel {
                 // otherwise, we can rightfully assume user is requesting a refresh.
                 serviceRefreshRequest();
             }
-            // work done; close streams and exit.
-            try {
-                if (socket.isConnected()) {
-                    socket.close();
-                }
-            } catch (Exception e) {
-                System.out.println("RLF Error in closing socket --> " + e.getMessage());
-            }
+            // work done; NOTE the Registry channel is shared, so we leave it open.
         }
     }
 
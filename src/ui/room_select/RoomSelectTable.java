@@ -1,19 +1,32 @@
 package ui.room_select;
 
 import java.lang.IndexOutOfBoundsException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import javax.swing.JTable;
 import javax.swing.table.DefaultTableModel;
 
+import messages.ListRoomsMessage;
+import misc.Constants;
+
 /**
  * this class will be used to house and display information for each joinable
  * chat room in a table-wise format.
+ *
+ * Rows are indexed by room name, so that listing changes (see
+ * ListRoomsMessage) can be applied in place, without the table being rebuilt.
+ *
+ * NOTE like any Swing component, the table should only be touched from the EDT.
  */
 public class RoomSelectTable extends JTable {
 
+    private static final long serialVersionUID = 1L;
+
     // column names
-    private static final String[] COLUMNS = { "Room Name", "Host Name", "# of Guests", "<IP>:<Port>" };
+    private static final String[] COLUMNS = { "Room Name", "Host Name", "# of Guests", "<IP>:<Port>/<Key>" };
 
     private DefaultTableModel model; // table model
+    private HashMap<String, Integer> rowOf; // room name -> row
 
     /**
      * constructor for RST.
@@ -23,6 +36,7 @@ public class RoomSelectTable extends JTable {
         for (int i = 0; i < COLUMNS.length; i++) {
             model.addColumn(COLUMNS[i]);
         }
+        rowOf = new HashMap<String, Integer>();
         this.setModel(model);
     }
 
@@ -42,6 +56,7 @@ public class RoomSelectTable extends JTable {
             System.out.println("Args length mismatch! Returning..");
             return;
         }
+        rowOf.put(args[Constants.ROOM_NAME_TABLE_COLUMN], model.getRowCount());
         model.addRow(args);
     }
 
@@ -57,6 +72,79 @@ public class RoomSelectTable extends JTable {
             System.out.println("Invalid index supplied to removeEntry(i) in RST.java");
             throw new IndexOutOfBoundsException();
         }
+        rowOf.remove(model.getValueAt(i, Constants.ROOM_NAME_TABLE_COLUMN));
         model.removeRow(i);
+        reindexFrom(i);
+    }
+
+    /**
+     * removes every entry.
+     */
+    public void clearEntries() {
+        rowOf.clear();
+        model.setRowCount(0);
+    }
+
+    /**
+     * replaces every entry with the given listings.
+     * 
+     * @param listings CSV room listings (see ListRoomsMessage)
+     */
+    public void replaceEntries(ArrayList<String> listings) {
+        clearEntries();
+        for (String csv : listings) {
+            addEntry(csv.split(","));
+        }
+    }
+
+    /**
+     * applies listing changes in place: rooms already listed have their row
+     * updated, new rooms are added to the end, and closed rooms are removed.
+     * 
+     * @param changed listings of rooms opened or changed
+     * @param removed names of rooms closed
+     */
+    public void applyChanges(ArrayList<String> changed, ArrayList<String> removed) {
+        for (String csv : changed) {
+            Integer row = rowOf.get(ListRoomsMessage.roomNameOf(csv));
+            String[] args = csv.split(",");
+            if (row == null) {
+                addEntry(args);
+            } else if (args.length == COLUMNS.length) {
+                for (int col = 0; col < COLUMNS.length; col++) {
+                    if (!args[col].equals(model.getValueAt(row, col))) {
+                        model.setValueAt(args[col], row, col);
+                    }
+                }
+            }
+        }
+
+        // remove from the bottom up, so rows yet to be removed stay put.
+        ArrayList<Integer> rows = new ArrayList<Integer>(removed.size());
+        for (String roomName : removed) {
+            Integer row = rowOf.remove(roomName);
+            if (row != null) {
+                rows.add(row);
+            }
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+        rows.sort(null);
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            model.removeRow(rows.get(i));
+        }
+        reindexFrom(rows.get(0));
+    }
+
+    /**
+     * brings the row index up to date after rows have been removed.
+     * 
+     * @param first first row whose index may have changed
+     */
+    private void reindexFrom(int first) {
+        for (int row = first; row < model.getRowCount(); row++) {
+            rowOf.put((String) model.getValueAt(row, Constants.ROOM_NAME_TABLE_COLUMN), row);
+        }
     }
 }
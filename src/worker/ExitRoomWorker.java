@@ -1,10 +1,12 @@
 package worker;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 
+import io.MessageReader;
+import io.MessageStreams;
+import io.MessageWriter;
 import messages.ExitRoomMessage;
+import messages.SessionConnectMessage;
 import messages.SimpleMessage;
 import misc.ValidateInput;
 import net.ChatUser;
@@ -35,18 +37,20 @@ public class ExitRoomWorker extends Thread {
         ExitRoomMessage erm = new ExitRoomMessage(alias, roomName);
 
         Socket socket = null;
-        ObjectInputStream in = null;
-        ObjectOutputStream out = null;
+        MessageReader in = null;
+        MessageWriter out = null;
         Object obj = null;
         String sessionIP = userRef.getSessionIP();
         int sessionPort = userRef.getSessionPort();
         try {
             socket = new Socket(sessionIP, sessionPort);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
-            out.writeObject(erm);
+            out = MessageStreams.openWriter(socket.getOutputStream());
+            in = MessageStreams.openReader(socket.getInputStream());
+            // the gateway needs to know which room we're after before anything else.
+            out.writeMessage(new SessionConnectMessage(userRef.getSessionKey(), alias));
+            out.writeMessage(erm);
             out.flush();
-            obj = in.readObject();
+            obj = in.readMessage();
 
             /**
              * nothing to do with this message; we read for the simple matter of ensuring
@@ -11,8 +11,9 @@ import net.ChatUser;
  */
 public class JoinRoomWorker extends Worker {
 
-    private String sessionIP; // ip of the SessionCoordinator in charge of the room being joined
-    private int sessionPort; // port number of the session
+    private String sessionIP; // ip of the session gateway
+    private int sessionPort; // port number of the session gateway
+    private String sessionKey; // key of the room being joined within the gateway
     private ChatUser userJoining; // alias of the user requesting to join
     private String roomName; // name of the room being joined
     private Object mainAppLock; // used to notify main() state machine to proceed to next state.
@@ -30,7 +31,7 @@ public class JoinRoomWorker extends Worker {
      * 
      *                        NOTE we operate on the precondition that connectInfo
      *                        being passed in is of the form --> "<Valid IP
-     *                        address>:<Valid port>"
+     *                        address>:<Valid port>/<room key>"
      * 
      *                        This input is not user-supplied, it is programmed, and
      *                        so I choose to leave it up to the correctness of my
@@ -41,9 +42,11 @@ public class JoinRoomWorker extends Worker {
     public JoinRoomWorker(String connectInfo, ChatUser userJoin, String nameOfRoom, Object mainLock,
                     ApplicationState state) {
         super("JRW-0");
-        String[] connectionArgs = connectInfo.split(":");
+        String[] addressAndKey = connectInfo.split("/");
+        String[] connectionArgs = addressAndKey[0].split(":");
         sessionIP = connectionArgs[0].startsWith("0.0.0.0") ? "localhost" : connectionArgs[0];
         sessionPort = Integer.parseInt(connectionArgs[1]);
+        sessionKey = addressAndKey[1];
         userJoining = userJoin;
         roomName = nameOfRoom;
         mainAppLock = mainLock;
@@ -60,7 +63,7 @@ public class JoinRoomWorker extends Worker {
          * change application state, and notify main(). The rest takes care of itself.
          * ChatUser joins the room mostly by themselves.
          */
-        userJoining.initSessionInfo(sessionIP, sessionPort, roomName);
+        userJoining.initSessionInfo(sessionIP, sessionPort, sessionKey, roomName);
         appState.setAppState(AppStateValue.CHATTING);
 
         synchronized (mainAppLock) {
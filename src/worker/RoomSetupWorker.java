@@ -1,18 +1,14 @@
 package worker;
 
-import java.net.Socket;
-
-import misc.Constants;
 import misc.ValidateInput;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-
 import net.ChatUser;
+import net.RegistryChannel;
 import main.AppStateValue;
 import main.ApplicationState;
 import misc.Worker;
 
+import messages.Message;
 import messages.NewRoomMessage;
 import messages.SimpleMessage;
 
@@ -48,35 +44,29 @@ public class RoomSetupWorker extends Worker {
      * This thread's main line of execution.
      */
     public void run() {
-        Socket socket = null;
         try {
-            socket = new Socket(Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
-
-            // NOTE order of calls is crucial here; see ChatUser.java for more details.
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-
-            // write the NewRoomMessage to Registry.
+            // send the NewRoomMessage to Registry.
             NewRoomMessage nrm = new NewRoomMessage(chatUser.getAlias(), roomName);
-            out.writeObject(nrm);
-            out.flush();
 
             /*
              * NOTE Registry response is expected to be a SimpleMessage whose content
-             * follows the following format: "OK; ConnectInfo is IP:port"
+             * follows the following format: "OK; ConnectInfo is IP:port/roomKey"
              */
 
-            Object obj = in.readObject();
-            SimpleMessage response = ValidateInput.validateSimpleMessage(obj);
+            Message reply = RegistryChannel.getShared().request(nrm);
+            SimpleMessage response = ValidateInput.validateSimpleMessage(reply);
 
             // perform message processing here.
             String[] msgArgs = response.getContent().split(";");
-            msgArgs = msgArgs[1].substring(1).split(" "); // msgArgs[1] --> " ConnectInfo is IP:port"
-            String[] ipAndPort = msgArgs[2].split(":"); // msgArgs[2] --> "IP:port"
+            msgArgs = msgArgs[1].substring(1).split(" "); // msgArgs[1] --> " ConnectInfo is IP:port/roomKey"
+            String[] addressAndKey = msgArgs[2].split("/"); // msgArgs[2] --> "IP:port/roomKey"
+            String[] ipAndPort = addressAndKey[0].split(":");
             String seshIp = ipAndPort[0];
             int seshPortNum = Integer.valueOf(ipAndPort[1]);
+            String seshKey = addressAndKey[1];
 
-            chatUser.initSessionInfo(seshIp, seshPortNum, roomName); // perform ChatUser init with the Session.
+            // perform ChatUser init with the Session.
+            chatUser.initSessionInfo(seshIp, seshPortNum, seshKey, roomName);
             chatUser.setHost(true);
             appState.setAppState(AppStateValue.CHATTING);
 
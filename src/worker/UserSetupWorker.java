@@ -1,15 +1,12 @@
 package worker;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-
-import misc.Constants;
 import misc.ValidateInput;
 import net.ChatUser;
+import net.RegistryChannel;
 import main.AppStateValue;
 import main.ApplicationState;
 import misc.Worker;
+import messages.Message;
 import messages.NewUserMessage;
 import messages.SimpleMessage;
 
@@ -48,26 +45,15 @@ public class UserSetupWorker extends Worker {
      * NOTE format of the SimpleMessage response will be: "OK; UID is <uid>"
      */
     public void run() {
-        Socket socket = null;
-
         try {
-            socket = new Socket(Constants.REGISTRY_IP, Constants.REGISTRY_PORT);
-
-            // NOTE order of calls is crucial here; see ChatUser.java for more details.
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-
             NewUserMessage msg = new NewUserMessage(alias);
-            out.writeObject(msg);
-            out.flush();
-
-            Object obj = in.readObject(); // should be a SimpleMessage containing the UID string for the user
-            SimpleMessage response = ValidateInput.validateSimpleMessage(obj);
+            // should be a SimpleMessage containing the UID string for the user
+            Message reply = RegistryChannel.getShared().request(msg);
+            SimpleMessage response = ValidateInput.validateSimpleMessage(reply);
 
             // initialize the ChatUser's fields.
             userRef.initializeID(response, alias);
 
-            socket.close(); // NOTE this will close both associated streams.
             appState.setAppState(AppStateValue.CHOICE_PANEL);
 
             /**